@@ -75,7 +75,8 @@ public class CKMSQuantileBenchmark {
         Quantile q99 = new Quantile(0.99, 0.001);
         List<Double> shuffle;
 
-        int rank = (int) (value * q95.quantile);
+        int rank;
+        double next;
 
 
         @Setup(Level.Trial)
@@ -91,7 +92,7 @@ public class CKMSQuantileBenchmark {
                 shuffle.add((double) i);
             }
             Collections.shuffle(shuffle, rand);
-
+            rank = (int) (value * q95.quantile);
 
             ckmsQuantiles = new CKMSQuantiles(quantiles.toArray(new Quantile[]{}));
             for (Double l : shuffle) {
@@ -101,7 +102,15 @@ public class CKMSQuantileBenchmark {
             ckmsQuantiles.get(0);
             // compress everything so we have a similar samples size regardless of n.
             ckmsQuantiles.compress();
-            System.out.println("Sample size is: " + ckmsQuantiles.samples.size());
+            System.out.println("Sample size is: " + ckmsQuantiles.size + ", retained heap of the samples is about "
+                    + retainedBytes(ckmsQuantiles) + " bytes");
+        }
+
+        /**
+         * Size of the sample arrays, not including array headers.
+         */
+        static long retainedBytes(CKMSQuantiles ckms) {
+            return ckms.value.length * 8L + ckms.g.length * 4L + ckms.delta.length * 4L;
         }
 
     }
@@ -113,6 +122,28 @@ public class CKMSQuantileBenchmark {
         blackhole.consume(state.ckmsQuantiles.get(state.q90.quantile));
     }
 
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void ckmsQuantileGetAllBenchmark(Blackhole blackhole, PrefilledBenchmarkState state) {
+        for (Quantile q : state.quantiles) {
+            blackhole.consume(state.ckmsQuantiles.get(q.quantile));
+        }
+    }
+
+    /**
+     * Insert throughput in steady state, i.e. with a filled and compressed sample array.
+     * Includes the amortized cost of flushing the buffer and compressing every 128 inserts.
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void ckmsQuantileInsertPrefilledBenchmark(PrefilledBenchmarkState state) {
+        // Cheap deterministic values that are not sorted, in the same range as the prefilled values.
+        state.next = (state.next + 0.618034) % 1.0;
+        state.ckmsQuantiles.insert(state.next * state.value);
+    }
+
     /**
      * benchmark for the f method.
      */
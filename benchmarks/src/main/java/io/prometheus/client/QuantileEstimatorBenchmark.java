@@ -0,0 +1,133 @@
+package io.prometheus.client;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link QuantileEstimator}s available for {@link Summary}: insert cost and get cost in steady state.
+ * <p>
+ * The setup prints the retained heap of each estimator and the error of the estimated quantiles for
+ * one million log-normally distributed values (like latencies), both as rank error and as relative error of the value.
+ * <pre>
+ * java -jar target/benchmarks.jar QuantileEstimatorBenchmark -wi 5 -i 5 -f 1
+ * </pre>
+ */
+public class QuantileEstimatorBenchmark {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double[] ERRORS = {0.05, 0.01, 0.001, 0.0001};
+
+    @State(Scope.Benchmark)
+    public static class PrefilledBenchmarkState {
+
+        @Param({"ckms", "ddSketch", "kll"})
+        public String estimator;
+
+        QuantileEstimator quantileEstimator;
+        double[] values;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random random = new Random(0);
+            values = new double[1000 * 1000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Math.exp(random.nextGaussian());
+            }
+            quantileEstimator = factory(estimator).newEstimator(QUANTILES, ERRORS);
+            for (double value : values) {
+                quantileEstimator.insert(value);
+            }
+            printAccuracy();
+        }
+
+        private void printAccuracy() {
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            StringBuilder result = new StringBuilder(estimator).append(": retained heap of the samples is about ")
+                    .append(retainedBytes(quantileEstimator)).append(" bytes");
+            for (double q : QUANTILES) {
+                double estimate = quantileEstimator.get(q);
+                double actual = sorted[(int) (q * (sorted.length - 1))];
+                int rank = Arrays.binarySearch(sorted, estimate);
+                if (rank < 0) {
+                    rank = -rank - 1;
+                }
+                result.append(String.format(", q=%s: rank error %.5f, relative error %.5f", q,
+                        Math.abs((double) rank / sorted.length - q), Math.abs(estimate - actual) / actual));
+            }
+            System.out.println(result);
+        }
+    }
+
+    static QuantileEstimator.Factory factory(String name) {
+        if (name.equals("ddSketch")) {
+            return QuantileEstimator.ddSketch(0.01);
+        } else if (name.equals("kll")) {
+            return QuantileEstimator.kll(200);
+        }
+        return QuantileEstimator.ckms();
+    }
+
+    /**
+     * Size of the arrays holding the samples, not including array headers.
+     */
+    static long retainedBytes(QuantileEstimator estimator) {
+        if (estimator instanceof CKMSQuantiles) {
+            CKMSQuantiles ckms = (CKMSQuantiles) estimator;
+            return ckms.value.length * 8L + ckms.g.length * 4L + ckms.delta.length * 4L;
+        } else if (estimator instanceof DDSketchQuantiles) {
+            DDSketchQuantiles sketch = (DDSketchQuantiles) estimator;
+            return sketch.positive.retainedBytes() + sketch.negative.retainedBytes();
+        } else {
+            return ((KLLQuantiles) estimator).retainedBytes();
+        }
+    }
+
+    /**
+     * Insert in steady state, including the amortized cost of compressing.
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void insert(PrefilledBenchmarkState state) {
+        state.quantileEstimator.insert(state.values[state.next]);
+        if (++state.next == state.values.length) {
+            state.next = 0;
+        }
+    }
+
+    /**
+     * Get all quantiles after an insert, like a scrape of a Summary that is observed between scrapes.
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.AverageTime})
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void insertAndGetAll(Blackhole blackhole, PrefilledBenchmarkState state) {
+        insert(state);
+        for (double q : QUANTILES) {
+            blackhole.consume(state.quantileEstimator.get(q));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options opt = new OptionsBuilder()
+                .include(QuantileEstimatorBenchmark.class.getSimpleName())
+                .warmupIterations(5)
+                .measurementIterations(4)
+                .threads(1)
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,96 @@
+package io.prometheus.client.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares observing a batch of values with {@code observe(double[], int, int)} against calling
+ * {@code observe(double)} in a loop. The result is the time per batch.
+ */
+@State(Scope.Benchmark)
+public class BatchObserveBenchmark {
+
+  @Param({"512", "4096"})
+  public int batchSize;
+
+  io.prometheus.client.Histogram.Child histogram;
+  io.prometheus.client.Summary.Child summary;
+  double[] values;
+
+  @Setup
+  public void setup() {
+    histogram = io.prometheus.client.Histogram.build()
+        .name("name")
+        .help("some description..")
+        .create().labels();
+    summary = io.prometheus.client.Summary.build()
+        .name("name")
+        .help("some description..")
+        .quantile(0.5, 0.05)
+        .quantile(0.9, 0.01)
+        .quantile(0.99, 0.001)
+        .create().labels();
+    Random rand = new Random(0);
+    values = new double[batchSize];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = rand.nextDouble() * 2;
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void histogramObserveLoop() {
+    for (double value : values) {
+      histogram.observe(value);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void histogramObserveBatch() {
+    histogram.observe(values, 0, values.length);
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void summaryObserveLoop() {
+    for (double value : values) {
+      summary.observe(value);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void summaryObserveBatch() {
+    summary.observe(values, 0, values.length);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(BatchObserveBenchmark.class.getSimpleName())
+        .warmupIterations(5)
+        .measurementIterations(4)
+        .threads(1)
+        .forks(1)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
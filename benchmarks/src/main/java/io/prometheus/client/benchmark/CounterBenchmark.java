@@ -25,6 +25,8 @@ public class CounterBenchmark {
   io.prometheus.client.Counter prometheusSimpleCounter;
   io.prometheus.client.Counter.Child prometheusSimpleCounterChild;
   io.prometheus.client.Counter prometheusSimpleCounterNoLabels;
+  io.prometheus.client.Counter.Child prometheusSimpleIntegralCounterChild;
+  io.prometheus.client.Counter prometheusSimpleIntegralCounterNoLabels;
 
   @Setup
   public void setup() {
@@ -39,6 +41,18 @@ public class CounterBenchmark {
       .help("some description..")
       .create();
 
+    prometheusSimpleIntegralCounterChild = io.prometheus.client.Counter.build()
+      .name("name")
+      .help("some description..")
+      .labelNames("some", "group")
+      .integral().create()
+      .labels("test", "group");
+
+    prometheusSimpleIntegralCounterNoLabels = io.prometheus.client.Counter.build()
+      .name("name")
+      .help("some description..")
+      .integral().create();
+
     registry = new MetricRegistry();
     codahaleCounter = registry.counter("counter");
     codahaleMeter = registry.meter("meter");
@@ -65,6 +79,20 @@ public class CounterBenchmark {
     prometheusSimpleCounterNoLabels.inc(); 
   }
 
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleIntegralCounterChildIncBenchmark() {
+    prometheusSimpleIntegralCounterChild.inc();
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleIntegralCounterNoLabelsIncBenchmark() {
+    prometheusSimpleIntegralCounterNoLabels.inc();
+  }
+
   @Benchmark
   @BenchmarkMode({Mode.AverageTime})
   @OutputTimeUnit(TimeUnit.NANOSECONDS)
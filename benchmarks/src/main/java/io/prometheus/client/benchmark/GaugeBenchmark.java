@@ -24,6 +24,7 @@ public class GaugeBenchmark {
   io.prometheus.client.Gauge prometheusSimpleGauge;
   io.prometheus.client.Gauge.Child prometheusSimpleGaugeChild;
   io.prometheus.client.Gauge prometheusSimpleGaugeNoLabels;
+  io.prometheus.client.Gauge.Child prometheusSimpleSetOptimizedGaugeChild;
 
   @Setup
   public void setup() {
@@ -38,6 +39,13 @@ public class GaugeBenchmark {
       .help("some description..")
       .create();
 
+    prometheusSimpleSetOptimizedGaugeChild = io.prometheus.client.Gauge.build()
+      .name("name")
+      .help("some description..")
+      .labelNames("some", "group")
+      .optimizeForSet().create()
+      .labels("test", "group");
+
     registry = new MetricRegistry();
     codahaleCounter = registry.counter("name");
   }
@@ -64,6 +72,13 @@ public class GaugeBenchmark {
     prometheusSimpleGaugeNoLabels.inc(); 
   }
 
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleSetOptimizedGaugeChildIncBenchmark() {
+    prometheusSimpleSetOptimizedGaugeChild.inc();
+  }
+
   @Benchmark
   @BenchmarkMode({Mode.AverageTime})
   @OutputTimeUnit(TimeUnit.NANOSECONDS)
@@ -123,6 +138,13 @@ public class GaugeBenchmark {
     prometheusSimpleGaugeNoLabels.set(42); 
   }
 
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleSetOptimizedGaugeChildSetBenchmark() {
+    prometheusSimpleSetOptimizedGaugeChild.set(42);
+  }
+
   public static void main(String[] args) throws RunnerException {
 
     Options opt = new OptionsBuilder()
@@ -0,0 +1,146 @@
+package io.prometheus.client.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@code Histogram.Child.observe()} for different numbers of buckets.
+ * <p>
+ * The same bucket boundaries are used with explicit buckets (binary search for many buckets) and
+ * with {@code linearBuckets()} / {@code exponentialBuckets()} (computed bucket index for many buckets).
+ * Observed values are spread over all buckets so that the branch predictor cannot learn the result.
+ * <p>
+ * {@code exponentialHistogramObserve} observes the exponential values with an {@code ExponentialHistogram},
+ * which needs no bucket configuration.
+ */
+@State(Scope.Benchmark)
+public class HistogramBenchmark {
+
+  @Param({"10", "30", "100"})
+  public int numberOfBuckets;
+
+  io.prometheus.client.Histogram.Child explicitLinearBuckets;
+  io.prometheus.client.Histogram.Child linearBuckets;
+  io.prometheus.client.Histogram.Child explicitExponentialBuckets;
+  io.prometheus.client.Histogram.Child exponentialBuckets;
+  io.prometheus.client.ExponentialHistogram.Child exponentialHistogram;
+
+  double[] linearValues;
+  double[] exponentialValues;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    int next;
+  }
+
+  @Setup
+  public void setup() {
+    double[] linear = new double[numberOfBuckets];
+    double[] exponential = new double[numberOfBuckets];
+    for (int i = 0; i < numberOfBuckets; i++) {
+      linear[i] = 0.01 + i * 0.01;
+      exponential[i] = 0.0001 * Math.pow(1.5, i);
+    }
+    explicitLinearBuckets = io.prometheus.client.Histogram.build()
+        .name("name")
+        .help("some description..")
+        .buckets(linear)
+        .create().labels();
+    linearBuckets = io.prometheus.client.Histogram.build()
+        .name("name")
+        .help("some description..")
+        .linearBuckets(0.01, 0.01, numberOfBuckets)
+        .create().labels();
+    explicitExponentialBuckets = io.prometheus.client.Histogram.build()
+        .name("name")
+        .help("some description..")
+        .buckets(exponential)
+        .create().labels();
+    exponentialBuckets = io.prometheus.client.Histogram.build()
+        .name("name")
+        .help("some description..")
+        .exponentialBuckets(0.0001, 1.5, numberOfBuckets)
+        .create().labels();
+    exponentialHistogram = io.prometheus.client.ExponentialHistogram.build()
+        .name("name")
+        .help("some description..")
+        .create().labels();
+
+    Random rand = new Random(0);
+    linearValues = new double[1024];
+    exponentialValues = new double[1024];
+    for (int i = 0; i < linearValues.length; i++) {
+      linearValues[i] = rand.nextDouble() * linear[numberOfBuckets - 1] * 1.05;
+      exponentialValues[i] = exponential[rand.nextInt(numberOfBuckets)] * (0.7 + 0.4 * rand.nextDouble());
+    }
+  }
+
+  private double nextLinear(ThreadState state) {
+    return linearValues[state.next++ & (linearValues.length - 1)];
+  }
+
+  private double nextExponential(ThreadState state) {
+    return exponentialValues[state.next++ & (exponentialValues.length - 1)];
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void explicitLinearBucketsObserve(ThreadState state) {
+    explicitLinearBuckets.observe(nextLinear(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void linearBucketsObserve(ThreadState state) {
+    linearBuckets.observe(nextLinear(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void explicitExponentialBucketsObserve(ThreadState state) {
+    explicitExponentialBuckets.observe(nextExponential(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void exponentialBucketsObserve(ThreadState state) {
+    exponentialBuckets.observe(nextExponential(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void exponentialHistogramObserve(ThreadState state) {
+    exponentialHistogram.observe(nextExponential(state));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+        .include(HistogramBenchmark.class.getSimpleName())
+        .warmupIterations(5)
+        .measurementIterations(4)
+        .threads(1)
+        .forks(1)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
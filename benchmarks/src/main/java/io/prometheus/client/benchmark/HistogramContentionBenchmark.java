@@ -0,0 +1,99 @@
+package io.prometheus.client.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@code Histogram.Child.observe()} when several threads observe the same child,
+ * with and without a thread that reads the histogram concurrently like a scrape does,
+ * for the default histogram and for one with {@code consistentSnapshots()}.
+ */
+@State(Scope.Benchmark)
+public class HistogramContentionBenchmark {
+
+  @Param({"false", "true"})
+  boolean consistentSnapshots;
+
+  io.prometheus.client.Histogram.Child histogram;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    int next;
+  }
+
+  @Setup
+  public void setup() {
+    io.prometheus.client.Histogram.Builder builder = io.prometheus.client.Histogram.build()
+        .name("name")
+        .help("some description..");
+    if (consistentSnapshots) {
+      builder.consistentSnapshots();
+    }
+    histogram = builder.create().labels();
+  }
+
+  private static double nextValue(ThreadState state) {
+    state.next = (state.next + 1) & 63;
+    return state.next * 0.2;
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Threads(1)
+  public void observe1Thread(ThreadState state) {
+    histogram.observe(nextValue(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Threads(4)
+  public void observe4Threads(ThreadState state) {
+    histogram.observe(nextValue(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Group("observeWhileScraping")
+  @GroupThreads(3)
+  public void observe(ThreadState state) {
+    histogram.observe(nextValue(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  @Group("observeWhileScraping")
+  @GroupThreads(1)
+  public Object scrape() {
+    return histogram.get();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(HistogramContentionBenchmark.class.getSimpleName())
+        .warmupIterations(5)
+        .measurementIterations(4)
+        .forks(1)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,130 @@
+package io.prometheus.client.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the child lookup in {@code SimpleCollector.labels()} with the
+ * {@code ConcurrentHashMap<List<String>, Child>} lookup that was used before.
+ * <p>
+ * The label values are created with {@code new String()} so that the lookup cannot rely on
+ * identity of the label values. The {@code Interned} variants use the same String instances as
+ * the ones that were used to create the child.
+ * <p>
+ * The {@code Bounded} variant uses a counter with {@code maxChildren} and {@code childIdleTimeout},
+ * which records the access epoch on lookup.
+ */
+@State(Scope.Benchmark)
+public class LabelsBenchmark {
+
+  @Param({"1", "3", "6"})
+  public int numberOfLabels;
+
+  io.prometheus.client.Counter prometheusSimpleCounter;
+  io.prometheus.client.Counter prometheusSimpleCounterBounded;
+  ConcurrentMap<List<String>, io.prometheus.client.Counter.Child> concurrentHashMap;
+
+  String[] labelValues;
+  String[] internedLabelValues;
+
+  @Setup
+  public void setup() {
+    String[] labelNames = new String[numberOfLabels];
+    labelValues = new String[numberOfLabels];
+    internedLabelValues = new String[numberOfLabels];
+    for (int i = 0; i < numberOfLabels; i++) {
+      labelNames[i] = "label" + i;
+      internedLabelValues[i] = "value" + i;
+      labelValues[i] = new String(internedLabelValues[i]);
+    }
+    prometheusSimpleCounter = io.prometheus.client.Counter.build()
+        .name("name")
+        .help("some description..")
+        .labelNames(labelNames).create();
+    prometheusSimpleCounterBounded = io.prometheus.client.Counter.build()
+        .name("name")
+        .help("some description..")
+        .labelNames(labelNames)
+        .maxChildren(1000)
+        .childIdleTimeout(1, TimeUnit.HOURS)
+        .create();
+    concurrentHashMap = new ConcurrentHashMap<List<String>, io.prometheus.client.Counter.Child>();
+
+    // Add some other children so that the lookup is not trivial.
+    for (int i = 0; i < 100; i++) {
+      String[] other = new String[numberOfLabels];
+      Arrays.fill(other, "other" + i);
+      prometheusSimpleCounter.labels(other);
+      prometheusSimpleCounterBounded.labels(other);
+      concurrentHashMap.put(Arrays.asList(other), new io.prometheus.client.Counter.Child());
+    }
+    prometheusSimpleCounter.labels(internedLabelValues);
+    prometheusSimpleCounterBounded.labels(internedLabelValues);
+    concurrentHashMap.put(Arrays.asList(internedLabelValues), new io.prometheus.client.Counter.Child());
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleCounterLabels(Blackhole blackhole) {
+    blackhole.consume(prometheusSimpleCounter.labels(labelValues));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleCounterLabelsInterned(Blackhole blackhole) {
+    blackhole.consume(prometheusSimpleCounter.labels(internedLabelValues));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleCounterLabelsBounded(Blackhole blackhole) {
+    blackhole.consume(prometheusSimpleCounterBounded.labels(labelValues));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void concurrentHashMapLabels(Blackhole blackhole) {
+    blackhole.consume(concurrentHashMap.get(Arrays.asList(labelValues)));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void concurrentHashMapLabelsInterned(Blackhole blackhole) {
+    blackhole.consume(concurrentHashMap.get(Arrays.asList(internedLabelValues)));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+        .include(LabelsBenchmark.class.getSimpleName())
+        .warmupIterations(5)
+        .measurementIterations(4)
+        .threads(4)
+        .forks(1)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
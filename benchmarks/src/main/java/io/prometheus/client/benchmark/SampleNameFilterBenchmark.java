@@ -0,0 +1,92 @@
+package io.prometheus.client.benchmark;
+
+import io.prometheus.client.SampleNameFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests sample names against a {@link SampleNameFilter} with many names and prefixes,
+ * compared with testing the same lists with {@code contains()} and {@code startsWith()}.
+ */
+@State(Scope.Benchmark)
+public class SampleNameFilterBenchmark {
+
+  @Param({"10", "500"})
+  public int rules;
+
+  SampleNameFilter filter;
+  List<String> excludedNames;
+  List<String> excludedPrefixes;
+  String[] sampleNames;
+
+  @Setup
+  public void setup() {
+    excludedNames = new ArrayList<String>();
+    excludedPrefixes = new ArrayList<String>();
+    for (int i = 0; i < rules; i++) {
+      excludedNames.add("app_requests_" + i + "_total");
+      excludedPrefixes.add("app_cache_" + i + "_");
+    }
+    filter = new SampleNameFilter.Builder()
+        .nameMustNotBeEqualTo(excludedNames)
+        .nameMustNotStartWith(excludedPrefixes)
+        .build();
+    sampleNames = new String[]{
+        "jvm_memory_bytes_used", "app_requests_3_total", "app_cache_7_hits_total", "app_latency_seconds_bucket",
+        "process_cpu_seconds_total", "app_cache_size", "http_requests_total", "app_requests_total"};
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void compiledFilter(Blackhole blackhole) {
+    for (String name : sampleNames) {
+      blackhole.consume(filter.test(name));
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void listLookup(Blackhole blackhole) {
+    for (String name : sampleNames) {
+      blackhole.consume(!excludedNames.contains(name) && !startsWithAny(name));
+    }
+  }
+
+  private boolean startsWithAny(String name) {
+    for (String prefix : excludedPrefixes) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+        .include(SampleNameFilterBenchmark.class.getSimpleName())
+        .warmupIterations(5)
+        .measurementIterations(4)
+        .threads(1)
+        .forks(1)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,91 @@
+package io.prometheus.client.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Like {@link SummaryBenchmark}, but for Summaries with quantiles, which are much more expensive than
+ * Summaries without quantiles. Compares the default (synchronized) mode with {@code concurrentQuantiles(true)}.
+ * <p>
+ * The {@link #main(String[])} method runs the benchmarks with 1, 4, 16, and 64 threads.
+ * To run with a specific number of threads use the {@code -t} command line option, like
+ * <pre>
+ * java -jar target/benchmarks.jar SummaryQuantilesBenchmark -wi 5 -i 5 -f 1 -t 16
+ * </pre>
+ */
+@State(Scope.Benchmark)
+public class SummaryQuantilesBenchmark {
+
+  io.prometheus.client.Summary.Child prometheusSimpleSummaryChild;
+  io.prometheus.client.Summary.Child prometheusConcurrentSummaryChild;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    double next;
+  }
+
+  @Setup
+  public void setup() {
+    prometheusSimpleSummaryChild = io.prometheus.client.Summary.build()
+      .name("name")
+      .help("some description..")
+      .quantile(0.5, 0.05)
+      .quantile(0.9, 0.01)
+      .quantile(0.99, 0.001)
+      .create().labels();
+
+    prometheusConcurrentSummaryChild = io.prometheus.client.Summary.build()
+      .name("name")
+      .help("some description..")
+      .quantile(0.5, 0.05)
+      .quantile(0.9, 0.01)
+      .quantile(0.99, 0.001)
+      .concurrentQuantiles(true)
+      .create().labels();
+  }
+
+  private double next(ThreadState state) {
+    // Cheap deterministic values that are not sorted, so that CKMSQuantiles has some work to do.
+    state.next = (state.next + 0.618034) % 1.0;
+    return state.next;
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusSimpleSummaryChildBenchmark(ThreadState state) {
+    prometheusSimpleSummaryChild.observe(next(state));
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.AverageTime})
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void prometheusConcurrentSummaryChildBenchmark(ThreadState state) {
+    prometheusConcurrentSummaryChild.observe(next(state));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : new int[]{1, 4, 16, 64}) {
+      Options opt = new OptionsBuilder()
+        .include(SummaryQuantilesBenchmark.class.getSimpleName())
+        .warmupIterations(5)
+        .measurementIterations(4)
+        .threads(threads)
+        .forks(1)
+        .build();
+
+      new Runner(opt).run();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package io.prometheus.client.benchmark;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.prometheus.client.exporter.common.TextFormatEncoder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a complete scrape in the text format 0.0.4 and in OpenMetrics format.
+ * <ul>
+ *   <li>{@code writerEnumeration}: {@code TextFormat.writeFormat()} with {@code metricFamilySamples()}.</li>
+ *   <li>{@code writerRegistry}: {@code TextFormat.writeFormat()} visiting the registry without MetricFamilySamples.</li>
+ *   <li>{@code encoder}: {@code TextFormatEncoder}, writing bytes with cached labels. This is what the HTTPServer uses.</li>
+ * </ul>
+ * The Writer variants write into a reused ByteArrayOutputStream, like the HTTPServer did before.
+ * The {@code bytes} counter reports the response size in bytes/sec.
+ * Run with {@code -prof gc} to see the allocation per scrape ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+public class TextFormatBenchmark {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Param({"10000", "100000"})
+  public int numberOfSeries;
+
+  @Param({TextFormat.CONTENT_TYPE_004, TextFormat.CONTENT_TYPE_OPENMETRICS_100})
+  public String contentType;
+
+  CollectorRegistry registry;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+    TextFormatEncoder encoder = new TextFormatEncoder(1 << 20);
+  }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  @Setup
+  public void setup() {
+    registry = new CollectorRegistry();
+    // Half of the series are gauges, the other half are histograms with 5 buckets, each child has 9 series.
+    int gauges = numberOfSeries / 2;
+    int histograms = (numberOfSeries - gauges) / 9;
+    io.prometheus.client.Gauge gauge = io.prometheus.client.Gauge.build()
+        .name("gauge")
+        .help("some description..")
+        .labelNames("path", "status")
+        .register(registry);
+    for (int i = 0; i < gauges; i++) {
+      gauge.labels("/api/v1/resource/" + i, i % 2 == 0 ? "200" : "500").set(i % 3 == 0 ? i : i * 0.37);
+    }
+    io.prometheus.client.Histogram histogram = io.prometheus.client.Histogram.build()
+        .name("request_duration_seconds")
+        .help("some description..")
+        .labelNames("path", "method")
+        .buckets(0.01, 0.05, 0.1, 0.5, 1)
+        .register(registry);
+    for (int i = 0; i < histograms; i++) {
+      io.prometheus.client.Histogram.Child child = histogram.labels("/api/v1/resource/" + i, "GET");
+      for (int j = 0; j < 10; j++) {
+        child.observe(j * 0.07);
+      }
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.Throughput})
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public int writerEnumeration(ThreadState state, Bytes bytes) throws IOException {
+    state.out.reset();
+    Writer writer = new OutputStreamWriter(state.out, UTF_8);
+    TextFormat.writeFormat(contentType, writer, registry.metricFamilySamples());
+    writer.close();
+    bytes.bytes += state.out.size();
+    return state.out.size();
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.Throughput})
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public int writerRegistry(ThreadState state, Bytes bytes) throws IOException {
+    state.out.reset();
+    Writer writer = new OutputStreamWriter(state.out, UTF_8);
+    TextFormat.writeFormat(contentType, writer, registry, null);
+    writer.close();
+    bytes.bytes += state.out.size();
+    return state.out.size();
+  }
+
+  @Benchmark
+  @BenchmarkMode({Mode.Throughput})
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public int encoder(ThreadState state, Bytes bytes) throws IOException {
+    state.encoder.reset();
+    state.encoder.write(contentType, registry, null);
+    bytes.bytes += state.encoder.size();
+    return state.encoder.size();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+
+    Options opt = new OptionsBuilder()
+        .include(TextFormatBenchmark.class.getSimpleName())
+        .addProfiler("gc")
+        .warmupIterations(5)
+        .measurementIterations(4)
+        .threads(1)
+        .forks(1)
+        .build();
+
+    new Runner(opt).run();
+  }
+}
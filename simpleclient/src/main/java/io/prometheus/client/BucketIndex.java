@@ -0,0 +1,188 @@
+package io.prometheus.client;
+
+/**
+ * Finds the {@link Histogram} bucket for an observed value.
+ * <p>
+ * The bucket is the index of the first upper bound that is &gt;= the value. The last upper bound is always
+ * {@code +Inf}, so every value except {@code NaN} has a bucket. For {@code NaN} the index is -1,
+ * i.e. no bucket is incremented.
+ * <p>
+ * Implementations are stateless and shared between all children of a Histogram.
+ * Use {@link #create(double[], Layout, double, double)} to get the most efficient implementation
+ * for the given buckets.
+ */
+abstract class BucketIndex {
+
+  /**
+   * Up to this number of buckets a linear scan is at least as fast as anything else,
+   * because it is branch-predictor and cache friendly.
+   */
+  static final int LINEAR_SCAN_MAX_BUCKETS = 16;
+
+  /**
+   * How the upper bounds were created.
+   */
+  enum Layout {
+    /**
+     * Explicit upper bounds, see {@link Histogram.Builder#buckets(double...)}.
+     */
+    EXPLICIT,
+    /**
+     * {@code upperBounds[i] = start + i * width}, see {@link Histogram.Builder#linearBuckets(double, double, int)}.
+     */
+    LINEAR,
+    /**
+     * {@code upperBounds[i] = start * factor^i}, see {@link Histogram.Builder#exponentialBuckets(double, double, int)}.
+     */
+    EXPONENTIAL
+  }
+
+  final double[] upperBounds;
+
+  BucketIndex(double[] upperBounds) {
+    this.upperBounds = upperBounds;
+  }
+
+  /**
+   * @return the index of the bucket for {@code value}, or -1 if {@code value} is {@code NaN}.
+   */
+  abstract int indexOf(double value);
+
+  /**
+   * @param upperBounds must be sorted in increasing order and end with {@code +Inf}.
+   * @param layout how the upper bounds were created. For {@link Layout#LINEAR} and {@link Layout#EXPONENTIAL}
+   *               the bucket index is computed rather than searched if there are many buckets.
+   * @param start first upper bound for {@link Layout#LINEAR} and {@link Layout#EXPONENTIAL}, ignored otherwise.
+   * @param widthOrFactor the width for {@link Layout#LINEAR}, the factor for {@link Layout#EXPONENTIAL},
+   *                      ignored otherwise.
+   */
+  static BucketIndex create(double[] upperBounds, Layout layout, double start, double widthOrFactor) {
+    if (upperBounds.length <= LINEAR_SCAN_MAX_BUCKETS) {
+      return new LinearScan(upperBounds);
+    }
+    switch (layout) {
+      case LINEAR:
+        if (widthOrFactor > 0) {
+          return new LinearLayout(upperBounds, start, widthOrFactor);
+        }
+        break;
+      case EXPONENTIAL:
+        if (start > 0 && widthOrFactor > 1) {
+          return new ExponentialLayout(upperBounds, start, widthOrFactor);
+        }
+        break;
+      default:
+    }
+    return new BinarySearch(upperBounds);
+  }
+
+  /**
+   * Correct an approximate index so that the result is exact.
+   * The computed index may be off by one due to floating point rounding in the bucket boundaries.
+   */
+  final int adjust(double value, int approximateIndex) {
+    int i = approximateIndex;
+    while (i > 0 && value <= upperBounds[i - 1]) {
+      i--;
+    }
+    while (value > upperBounds[i]) {
+      i++; // terminates because the last upper bound is +Inf
+    }
+    return i;
+  }
+
+  static final class LinearScan extends BucketIndex {
+
+    LinearScan(double[] upperBounds) {
+      super(upperBounds);
+    }
+
+    @Override
+    int indexOf(double value) {
+      for (int i = 0; i < upperBounds.length; ++i) {
+        // The last bucket is +Inf, so we always find a bucket unless value is NaN.
+        if (value <= upperBounds[i]) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  static final class BinarySearch extends BucketIndex {
+
+    BinarySearch(double[] upperBounds) {
+      super(upperBounds);
+    }
+
+    @Override
+    int indexOf(double value) {
+      if (value != value) { // NaN
+        return -1;
+      }
+      int low = 0;
+      int high = upperBounds.length - 1; // +Inf, always >= value
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (upperBounds[mid] < value) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  static final class LinearLayout extends BucketIndex {
+
+    private final double start;
+    private final double width;
+    private final int lastIndex;
+
+    LinearLayout(double[] upperBounds, double start, double width) {
+      super(upperBounds);
+      this.start = start;
+      this.width = width;
+      this.lastIndex = upperBounds.length - 1;
+    }
+
+    @Override
+    int indexOf(double value) {
+      if (value != value) { // NaN
+        return -1;
+      }
+      if (value <= start) {
+        return 0;
+      }
+      double approximateIndex = Math.ceil((value - start) / width);
+      return adjust(value, approximateIndex >= lastIndex ? lastIndex : (int) approximateIndex);
+    }
+  }
+
+  static final class ExponentialLayout extends BucketIndex {
+
+    private final double start;
+    private final double inverseLogFactor;
+    private final int lastIndex;
+
+    ExponentialLayout(double[] upperBounds, double start, double factor) {
+      super(upperBounds);
+      this.start = start;
+      this.inverseLogFactor = 1.0 / Math.log(factor);
+      this.lastIndex = upperBounds.length - 1;
+    }
+
+    @Override
+    int indexOf(double value) {
+      if (value != value) { // NaN
+        return -1;
+      }
+      if (value <= start) {
+        return 0;
+      }
+      double approximateIndex = Math.ceil(Math.log(value / start) * inverseLogFactor);
+      return adjust(value, approximateIndex >= lastIndex ? lastIndex : (int) approximateIndex);
+    }
+  }
+}
@@ -22,17 +22,17 @@ package io.prometheus.client;
  */
 
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
 
 /**
  * Algorithm solving the "Targeted Quantile Problem" as described in
  * "Effective Computation of Biased Quantiles over Data Streams"
  * by Cormode, Korn, Muthukrishnan, and Srivastava.
- *
+ * <p>
+ * The samples are stored in parallel primitive arrays {@link #value}, {@link #g}, and {@link #delta}, ordered by
+ * value. Inserting a sorted batch merges it into the arrays in a single pass, and {@link #compress()} compacts the
+ * arrays in place, so neither allocates unless the arrays need to grow.
  */
-final class CKMSQuantiles {
+final class CKMSQuantiles extends QuantileEstimator {
 
     final Quantile[] quantiles;
 
@@ -42,9 +42,27 @@ final class CKMSQuantiles {
     int n = 0;
 
     /**
-     * List of sampled observations, ordered by Sample.value.
+     * Number of samples, i.e. number of valid entries in {@link #value}, {@link #g}, and {@link #delta}.
      */
-    final LinkedList<Sample> samples = new LinkedList<Sample>();
+    int size = 0;
+
+    /**
+     * Observed value of each sample, in ascending order.
+     */
+    double[] value = new double[INITIAL_CAPACITY];
+
+    /**
+     * Difference between the lowest possible rank of each sample and its predecessor.
+     * This always starts with 1, but will be updated when compress() merges samples.
+     */
+    int[] g = new int[INITIAL_CAPACITY];
+
+    /**
+     * Difference between the greatest possible rank of each sample and the lowest possible rank of that sample.
+     */
+    int[] delta = new int[INITIAL_CAPACITY];
+
+    private static final int INITIAL_CAPACITY = 256;
 
     /**
      * Compress is called every compressInterval inserts.
@@ -73,6 +91,7 @@ final class CKMSQuantiles {
     /**
      * Add an observed value
      */
+    @Override
     public void insert(double value) {
         buffer[bufferPos++] = value;
 
@@ -94,87 +113,106 @@ final class CKMSQuantiles {
 
     /**
      * Inserts the elements from index 0 to index toIndex from the sortedBuffer.
+     * <p>
+     * A new value is inserted before the first sample with a value &gt;= the new value.
+     * The merge runs from right to left, so that the samples can be moved in place.
+     * The rank r left of each new value and the number of observations at the time
+     * the value is inserted are derived from the suffix sum of the g's.
      */
     void insertBatch(double[] sortedBuffer, int toIndex) {
         if (toIndex == 0) {
             return;
         }
-        ListIterator<Sample> iterator = samples.listIterator();
-        int i = 0; // position in buffer
-        int r = 0; // sum of g's left of the current sample
-        while (iterator.hasNext() && i < toIndex) {
-            Sample item = iterator.next();
-            while (i < toIndex) {
-                if (sortedBuffer[i] > item.value) {
-                    break;
+        ensureCapacity(size + toIndex);
+        int k = size - 1; // current sample
+        int i = toIndex - 1; // current position in buffer
+        int w = size + toIndex - 1; // write position
+        int gRight = 0; // sum of g's of the samples right of k
+        while (i >= 0) {
+            if (k >= 0 && value[k] >= sortedBuffer[i]) {
+                gRight += g[k];
+                value[w] = value[k];
+                g[w] = g[k];
+                delta[w] = delta[k];
+                k--;
+            } else {
+                value[w] = sortedBuffer[i];
+                g[w] = 1;
+                if (k == size - 1 || w == 0) {
+                    // New maximum or new minimum.
+                    delta[w] = 0;
+                } else {
+                    // r = sum of g's left of the new value, including new values with a lower index in the buffer.
+                    // At the time the value is inserted, i new values have already been inserted.
+                    int r = n - gRight + i;
+                    delta[w] = f(r, n + i) - 1;
                 }
-                insertBefore(iterator, sortedBuffer[i], r);
-                r++; // new item with g=1 was inserted before, so increment r
-                i++;
-                n++;
+                i--;
             }
-            r += item.g;
-        }
-        while (i < toIndex) {
-            samples.add(new Sample(sortedBuffer[i], 0));
-            i++;
-            n++;
+            w--;
         }
+        size += toIndex;
+        n += toIndex;
     }
 
-    private void insertBefore(ListIterator<Sample> iterator, double value, int r) {
-        if (!iterator.hasPrevious()) {
-            samples.addFirst(new Sample(value, 0));
-        } else {
-            iterator.previous();
-            iterator.add(new Sample(value, f(r) - 1));
-            iterator.next();
+    private void ensureCapacity(int capacity) {
+        if (capacity > value.length) {
+            int newCapacity = Math.max(capacity, value.length * 2);
+            value = Arrays.copyOf(value, newCapacity);
+            g = Arrays.copyOf(g, newCapacity);
+            delta = Arrays.copyOf(delta, newCapacity);
         }
     }
 
+    /**
+     * Merge a sorted batch in a single pass, see {@link #insertBatch(double[], int)}.
+     */
+    @Override
+    public void insertSorted(double[] sorted, int length) {
+        insertBatch(sorted, length);
+        compress();
+    }
+
     /**
      * Get the estimated value at the specified quantile.
      */
+    @Override
     public double get(double q) {
         flush();
 
-        if (samples.size() == 0) {
+        if (size == 0) {
             return Double.NaN;
         }
 
         if (q == 0.0) {
-            return samples.getFirst().value;
+            return value[0];
         }
 
         if (q == 1.0) {
-            return samples.getLast().value;
+            return value[size - 1];
         }
 
         int r = 0; // sum of g's left of the current sample
         int desiredRank = (int) Math.ceil(q * n);
         int upperBound = desiredRank + f(desiredRank) / 2;
 
-        ListIterator<Sample> iterator = samples.listIterator();
-        while (iterator.hasNext()) {
-            Sample sample = iterator.next();
-            if (r + sample.g + sample.delta > upperBound) {
-                iterator.previous(); // roll back the item.next() above
-                if (iterator.hasPrevious()) {
-                    Sample result = iterator.previous();
-                    return result.value;
-                } else {
-                    return sample.value;
-                }
+        for (int i = 0; i < size; i++) {
+            if (r + g[i] + delta[i] > upperBound) {
+                return i > 0 ? value[i - 1] : value[i];
             }
-            r += sample.g;
+            r += g[i];
         }
-        return samples.getLast().value;
+        return value[size - 1];
     }
 
     /**
      * Error function, as in definition 5 of the paper.
      */
     int f(int r) {
+        return f(r, n);
+    }
+
+    private int f(int r, int n) {
         int minResult = Integer.MAX_VALUE;
         for (Quantile q : quantiles) {
             if (q.quantile == 0 || q.quantile == 1) {
@@ -199,61 +237,127 @@ final class CKMSQuantiles {
 
     /**
      * Merge pairs of consecutive samples if this doesn't violate the error function.
+     * <p>
+     * Runs from right to left. The surviving samples are written to the right end of the arrays,
+     * and moved to the beginning of the arrays at the end.
      */
     void compress() {
-        if (samples.size() < 3) {
+        if (size < 3) {
             return;
         }
-        Iterator<Sample> descendingIterator = samples.descendingIterator();
         int r = n; // n is equal to the sum of the g's of all samples
-
-        Sample right;
-        Sample left = descendingIterator.next();
-        r -= left.g;
-
-        while (descendingIterator.hasNext()) {
-            right = left;
-            left = descendingIterator.next();
-            r = r - left.g;
-            if (left == samples.getFirst()) {
-                // The min sample must never be merged.
-                break;
-            }
-            if (left.g + right.g + right.delta < f(r)) {
-                right.g += left.g;
-                descendingIterator.remove();
-                left = right;
+        int right = size - 1; // write position of the current right sample
+        r -= g[right];
+        for (int left = size - 2; left > 0; left--) { // The min sample (left == 0) must never be merged.
+            r -= g[left];
+            if (g[left] + g[right] + delta[right] < f(r)) {
+                g[right] += g[left];
+            } else {
+                right--;
+                value[right] = value[left];
+                g[right] = g[left];
+                delta[right] = delta[left];
             }
         }
+        right--;
+        // The min sample stays at index 0, the others are moved next to it.
+        int newSize = size - right;
+        if (right > 0) {
+            System.arraycopy(value, right + 1, value, 1, newSize - 1);
+            System.arraycopy(g, right + 1, g, 1, newSize - 1);
+            System.arraycopy(delta, right + 1, delta, 1, newSize - 1);
+        }
+        size = newSize;
     }
 
-    static class Sample {
-
-        /**
-         * Observed value.
-         */
-        final double value;
-
-        /**
-         * Difference between the lowest possible rank of this sample and its predecessor.
-         * This always starts with 1, but will be updated when compress() merges Samples.
-         */
-        int g = 1;
-
-        /**
-         * Difference between the greatest possible rank of this sample and the lowest possible rank of this sample.
-         */
-        final int delta;
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
 
-        Sample(double value, int delta) {
-            this.value = value;
-            this.delta = delta;
+    /**
+     * Merge the samples of {@code other} into this, as in "Mergeable Summaries" by Agarwal et al.
+     * <p>
+     * The rank bounds of a sample from one summary are extended by the rank bounds of its neighbors in the other
+     * summary: the lowest possible rank adds the lowest possible rank of the predecessor, and the greatest possible
+     * rank adds the greatest possible rank of the successor, minus one. Like {@link #insertBatch(double[], int)},
+     * the merge runs from right to left in place, and the lowest possible ranks are stored in {@link #g} and converted
+     * to differences at the end.
+     */
+    @Override
+    public void merge(QuantileEstimator estimator) {
+        CKMSQuantiles other = (CKMSQuantiles) estimator;
+        flush();
+        other.flush();
+        if (other.size == 0) {
+            return;
+        }
+        ensureCapacity(size + other.size);
+        int k = size - 1; // current sample of this
+        int j = other.size - 1; // current sample of other
+        int w = size + other.size - 1; // write position
+        int gRight = 0, gRightOther = 0; // sum of g's of the samples right of k and j
+        // Greatest possible rank of the successor in this and in other, as if there was a successor after the max.
+        int rmaxSuccessor = n + 1, rmaxSuccessorOther = other.n + 1;
+        while (j >= 0) {
+            if (k >= 0 && value[k] >= other.value[j]) {
+                int rmin = n - gRight;
+                int rmax = rmin + delta[k];
+                gRight += g[k];
+                value[w] = value[k];
+                g[w] = rmin + (other.n - gRightOther);
+                delta[w] = rmax + rmaxSuccessorOther - 1 - g[w];
+                rmaxSuccessor = rmax;
+                k--;
+            } else {
+                int rmin = other.n - gRightOther;
+                int rmax = rmin + other.delta[j];
+                gRightOther += other.g[j];
+                value[w] = other.value[j];
+                g[w] = rmin + (n - gRight);
+                delta[w] = rmax + rmaxSuccessor - 1 - g[w];
+                rmaxSuccessorOther = rmax;
+                j--;
+            }
+            w--;
         }
+        // The remaining samples of this are left of all samples of other, only the greatest possible rank changes.
+        while (k >= 0) {
+            int rmin = n - gRight;
+            gRight += g[k];
+            g[k] = rmin;
+            delta[k] += rmaxSuccessorOther - 1;
+            k--;
+        }
+        size += other.size;
+        n += other.n;
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            int rmin = g[i];
+            g[i] = rmin - previous;
+            previous = rmin;
+        }
+        compress();
+    }
 
-        @Override
-        public String toString() {
-            return String.format("Sample{val=%.3f, g=%d, delta=%d}", value, g, delta);
+    @Override
+    public void reset() {
+        n = 0;
+        size = 0;
+        bufferPos = 0;
+        insertsSinceLastCompress = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("CKMSQuantiles{n=").append(n).append(", samples=[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                result.append(", ");
+            }
+            result.append(String.format("{val=%.3f, g=%d, delta=%d}", value[i], g[i], delta[i]));
         }
+        return result.append("]}").toString();
     }
 
     static class Quantile {
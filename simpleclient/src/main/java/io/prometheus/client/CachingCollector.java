@@ -0,0 +1,192 @@
+package io.prometheus.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves the metrics of collectors that are too expensive to run on every scrape from a cache.
+ * <p>
+ * By default the wrapped collectors are called at most once per {@code maxAge}: the first scrape after the
+ * cached samples expired refreshes them, scrapes that arrive while the refresh is running get the previous samples.
+ * <pre>
+ * {@code
+ *   new CachingCollector(new ThreadExports(), 30, TimeUnit.SECONDS).register();
+ * }
+ * </pre>
+ * Alternatively, the samples are refreshed in the background with {@link #scheduleRefresh(ScheduledExecutorService)},
+ * so that scrapes never wait for the wrapped collectors.
+ * <p>
+ * If an age metric name is given, a gauge with the age of the served samples in seconds is added to each scrape.
+ */
+public class CachingCollector extends Collector implements Collector.Describable {
+
+  private static final String AGE_HELP = "Age of the cached samples of the collectors in seconds.";
+
+  private final List<Collector> collectors;
+  private final String ageMetricName;
+  private final long maxAgeNanos;
+  private final SimpleTimer.TimeProvider timeProvider;
+  private final ReentrantLock refreshLock = new ReentrantLock();
+  private volatile Snapshot snapshot; // null until the first refresh
+  private volatile boolean scheduled;
+
+  /**
+   * Cache the metrics of {@code collector} for {@code maxAge}.
+   */
+  public CachingCollector(Collector collector, long maxAge, TimeUnit unit) {
+    this(Collections.singletonList(collector), null, maxAge, unit);
+  }
+
+  /**
+   * Cache the metrics of {@code collectors} for {@code maxAge}. The collectors are refreshed together.
+   *
+   * @param ageMetricName name of the gauge with the age of the cached samples, or {@code null} for no such gauge.
+   */
+  public CachingCollector(List<? extends Collector> collectors, String ageMetricName, long maxAge, TimeUnit unit) {
+    this(collectors, ageMetricName, maxAge, unit, SimpleTimer.defaultTimeProvider);
+  }
+
+  // Visible for testing.
+  CachingCollector(List<? extends Collector> collectors, String ageMetricName, long maxAge, TimeUnit unit,
+                   SimpleTimer.TimeProvider timeProvider) {
+    if (collectors.isEmpty()) {
+      throw new IllegalArgumentException("At least one collector is required.");
+    }
+    if (maxAge <= 0) {
+      throw new IllegalArgumentException("maxAge must be > 0");
+    }
+    if (ageMetricName != null) {
+      checkMetricName(ageMetricName);
+    }
+    this.collectors = new ArrayList<Collector>(collectors);
+    this.ageMetricName = ageMetricName;
+    this.maxAgeNanos = unit.toNanos(maxAge);
+    this.timeProvider = timeProvider;
+  }
+
+  /**
+   * Refresh the cached samples every {@code maxAge} on {@code executor}, starting immediately.
+   * Scrapes do not refresh the samples anymore, except for scrapes before the first refresh completed.
+   * <p>
+   * If the wrapped collectors throw, the previous samples are kept and their age keeps growing.
+   *
+   * @return the scheduled refresh, which can be cancelled.
+   */
+  public ScheduledFuture<?> scheduleRefresh(ScheduledExecutorService executor) {
+    scheduled = true;
+    return executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        refreshLock.lock();
+        try {
+          refresh();
+        } catch (RuntimeException e) {
+          // Keep serving the previous samples, the age shows that they are stale.
+        } finally {
+          refreshLock.unlock();
+        }
+      }
+    }, 0, maxAgeNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Age of the cached samples in seconds, or {@code NaN} if the collectors have not been called yet.
+   */
+  public double getAgeSeconds() {
+    Snapshot s = snapshot;
+    if (s == null) {
+      return Double.NaN;
+    }
+    return (timeProvider.nanoTime() - s.nanoTime) / NANOSECONDS_PER_SECOND;
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    return collect(null);
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    Snapshot s = current();
+    List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(s.samples.size() + 1);
+    for (MetricFamilySamples mfs : s.samples) {
+      MetricFamilySamples filtered = mfs.filter(sampleNameFilter);
+      if (filtered != null) {
+        result.add(filtered);
+      }
+    }
+    if (ageMetricName != null && (sampleNameFilter == null || sampleNameFilter.test(ageMetricName))) {
+      result.add(new GaugeMetricFamily(ageMetricName, AGE_HELP,
+          (timeProvider.nanoTime() - s.nanoTime) / NANOSECONDS_PER_SECOND));
+    }
+    return result;
+  }
+
+  /**
+   * The names of the wrapped collectors if all of them are {@link Describable}, otherwise an empty list.
+   */
+  @Override
+  public List<MetricFamilySamples> describe() {
+    List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>();
+    for (Collector collector : collectors) {
+      if (!(collector instanceof Describable)) {
+        return Collections.emptyList();
+      }
+      result.addAll(((Describable) collector).describe());
+    }
+    if (ageMetricName != null) {
+      result.add(new GaugeMetricFamily(ageMetricName, AGE_HELP, Collections.<String>emptyList()));
+    }
+    return result;
+  }
+
+  private Snapshot current() {
+    Snapshot s = snapshot;
+    if (s != null && (scheduled || !isExpired(s))) {
+      return s;
+    }
+    if (s == null) {
+      refreshLock.lock();
+    } else if (!refreshLock.tryLock()) {
+      return s; // another scrape is refreshing, don't wait for it
+    }
+    try {
+      Snapshot latest = snapshot;
+      if (latest != null && (scheduled || !isExpired(latest))) {
+        return latest;
+      }
+      return refresh();
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  private boolean isExpired(Snapshot s) {
+    return timeProvider.nanoTime() - s.nanoTime >= maxAgeNanos;
+  }
+
+  private Snapshot refresh() {
+    List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+    for (Collector collector : collectors) {
+      samples.addAll(collector.collect());
+    }
+    Snapshot s = new Snapshot(Collections.unmodifiableList(samples), timeProvider.nanoTime());
+    snapshot = s;
+    return s;
+  }
+
+  private static class Snapshot {
+    final List<MetricFamilySamples> samples;
+    final long nanoTime;
+
+    Snapshot(List<MetricFamilySamples> samples, long nanoTime) {
+      this.samples = samples;
+      this.nanoTime = nanoTime;
+    }
+  }
+}
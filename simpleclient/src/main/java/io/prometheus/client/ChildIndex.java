@@ -0,0 +1,244 @@
+package io.prometheus.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lookup index from label values to children, used by {@link SimpleCollector#labels(String...)}.
+ * <p>
+ * This is an open-addressing hash table with linear probing, keyed directly by the label value array.
+ * Lookups do not allocate: The hash is computed from the cached {@link String#hashCode()} of each label value,
+ * and label values are compared by identity before falling back to {@link String#equals(Object)}.
+ * <p>
+ * Reads are lock-free. Writes must be externally synchronized. A concurrent read may miss an entry
+ * that is being inserted, moved, or removed, so callers must treat {@code null} as "not sure"
+ * and fall back to an authoritative lookup under the write lock.
+ * <p>
+ * If access tracking is enabled, each entry remembers the {@link #getEpoch() epoch} in which it was last returned
+ * by {@link #get(String[])}. The epoch is only written if it changed, so that lookups within the same epoch
+ * remain read-only.
+ */
+final class ChildIndex<Child> {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static final class Entry<Child> {
+    final String[] labelValues;
+    final int hash;
+    final Child child;
+    volatile int accessEpoch;
+
+    Entry(String[] labelValues, int hash, Child child, int accessEpoch) {
+      this.labelValues = labelValues;
+      this.hash = hash;
+      this.child = child;
+      this.accessEpoch = accessEpoch;
+    }
+  }
+
+  private volatile AtomicReferenceArray<Entry<Child>> table = new AtomicReferenceArray<Entry<Child>>(INITIAL_CAPACITY);
+  private int size; // guarded by external write lock
+  private final boolean trackAccess;
+  private volatile int epoch;
+
+  ChildIndex() {
+    this(false);
+  }
+
+  ChildIndex(boolean trackAccess) {
+    this.trackAccess = trackAccess;
+  }
+
+  /**
+   * Returns the child for the given label values, or {@code null} if not found.
+   */
+  Child get(String[] labelValues) {
+    int hash = hash(labelValues);
+    AtomicReferenceArray<Entry<Child>> tab = table;
+    int mask = tab.length() - 1;
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      Entry<Child> e = tab.get(i);
+      if (e == null) {
+        return null;
+      }
+      if (e.hash == hash && matches(e.labelValues, labelValues)) {
+        if (trackAccess) {
+          int epoch = this.epoch;
+          if (e.accessEpoch != epoch) {
+            e.accessEpoch = epoch;
+          }
+        }
+        return e.child;
+      }
+    }
+  }
+
+  /**
+   * Insert or replace the child for the given label values.
+   * The {@code labelValues} array is retained and must not be modified afterwards.
+   */
+  void put(String[] labelValues, Child child) {
+    int hash = hash(labelValues);
+    AtomicReferenceArray<Entry<Child>> tab = table;
+    int mask = tab.length() - 1;
+    int i = hash & mask;
+    for (Entry<Child> e = tab.get(i); e != null; e = tab.get(i)) {
+      if (e.hash == hash && matches(e.labelValues, labelValues)) {
+        tab.set(i, new Entry<Child>(e.labelValues, hash, child, epoch));
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    tab.set(i, new Entry<Child>(labelValues, hash, child, epoch));
+    if (++size * 2 > tab.length()) {
+      resize(tab.length() * 2);
+    }
+  }
+
+  /**
+   * Remove the entry for the given label values, if present.
+   */
+  void remove(String[] labelValues) {
+    int hash = hash(labelValues);
+    AtomicReferenceArray<Entry<Child>> tab = table;
+    int mask = tab.length() - 1;
+    int i = hash & mask;
+    for (Entry<Child> e = tab.get(i); ; e = tab.get(i)) {
+      if (e == null) {
+        return;
+      }
+      if (e.hash == hash && matches(e.labelValues, labelValues)) {
+        break;
+      }
+      i = (i + 1) & mask;
+    }
+    // Backward shift deletion: Move subsequent entries of the same probe sequence into the gap,
+    // so that no tombstones are needed. Entries are copied before the old slot is cleared.
+    int gap = i;
+    for (int j = (gap + 1) & mask; ; j = (j + 1) & mask) {
+      Entry<Child> e = tab.get(j);
+      if (e == null) {
+        break;
+      }
+      int home = e.hash & mask;
+      // Move e into the gap if its home slot is not cyclically in (gap, j].
+      if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+        tab.set(gap, e);
+        gap = j;
+      }
+    }
+    tab.set(gap, null);
+    size--;
+  }
+
+  /**
+   * Remove all entries.
+   */
+  void clear() {
+    table = new AtomicReferenceArray<Entry<Child>>(INITIAL_CAPACITY);
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Start a new epoch. Must be externally synchronized like the other writes.
+   */
+  int nextEpoch() {
+    return ++epoch;
+  }
+
+  /**
+   * The label values of all entries that were last accessed before {@code epoch}.
+   */
+  List<String[]> accessedBefore(int epoch) {
+    List<String[]> result = new ArrayList<String[]>();
+    AtomicReferenceArray<Entry<Child>> tab = table;
+    for (int i = 0; i < tab.length(); i++) {
+      Entry<Child> e = tab.get(i);
+      if (e != null && e.accessEpoch - epoch < 0) {
+        result.add(e.labelValues);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The label values of the {@code count} least recently accessed entries.
+   */
+  List<String[]> leastRecentlyUsed(int count) {
+    List<Entry<Child>> entries = new ArrayList<Entry<Child>>(size);
+    AtomicReferenceArray<Entry<Child>> tab = table;
+    for (int i = 0; i < tab.length(); i++) {
+      Entry<Child> e = tab.get(i);
+      if (e != null) {
+        entries.add(e);
+      }
+    }
+    final int current = epoch;
+    Collections.sort(entries, new Comparator<Entry<Child>>() {
+      @Override
+      public int compare(Entry<Child> a, Entry<Child> b) {
+        // Larger age first.
+        int ageA = current - a.accessEpoch;
+        int ageB = current - b.accessEpoch;
+        return ageA > ageB ? -1 : ageA == ageB ? 0 : 1;
+      }
+    });
+    List<String[]> result = new ArrayList<String[]>(Math.min(count, entries.size()));
+    for (int i = 0; i < count && i < entries.size(); i++) {
+      result.add(entries.get(i).labelValues);
+    }
+    return result;
+  }
+
+  private void resize(int newCapacity) {
+    AtomicReferenceArray<Entry<Child>> oldTab = table;
+    AtomicReferenceArray<Entry<Child>> newTab = new AtomicReferenceArray<Entry<Child>>(newCapacity);
+    int mask = newCapacity - 1;
+    for (int j = 0; j < oldTab.length(); j++) {
+      Entry<Child> e = oldTab.get(j);
+      if (e != null) {
+        int i = e.hash & mask;
+        while (newTab.get(i) != null) {
+          i = (i + 1) & mask;
+        }
+        newTab.set(i, e);
+      }
+    }
+    table = newTab;
+  }
+
+  private static boolean matches(String[] a, String[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; i++) {
+      if (a[i] != b[i] && !a[i].equals(b[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Same as {@link java.util.List#hashCode()} of the label values, with the high bits spread
+   * so that the low bits used for indexing are well distributed.
+   */
+  static int hash(String[] labelValues) {
+    int h = 1;
+    for (String labelValue : labelValues) {
+      h = 31 * h + labelValue.hashCode();
+    }
+    return h ^ (h >>> 16);
+  }
+}
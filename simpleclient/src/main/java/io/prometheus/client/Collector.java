@@ -3,6 +3,7 @@ package io.prometheus.client;
 
 import io.prometheus.client.exemplars.Exemplar;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -58,6 +59,65 @@ public abstract class Collector {
     return remaining;
   }
 
+  /**
+   * Like {@link #collect(Predicate)}, but the metrics are passed to the {@code visitor} one sample at a time
+   * instead of being returned as a List of {@code MetricFamilySamples}. This allows exporters to write the samples
+   * directly to the output without creating intermediate objects, which matters for collectors with many samples.
+   * <p>
+   * Unlike {@link #collect(Predicate)}, only samples where {@code sampleNameFilter.test(name)} is {@code true} are
+   * visited, and a metric family is not visited at all if none of its samples match.
+   * <p>
+   * The default implementation calls {@link #collect(Predicate)} and passes the result to the {@code visitor},
+   * so it works for all collectors. The collectors in this package override this method.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be collected.
+   */
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    for (MetricFamilySamples mfs : collect(sampleNameFilter)) {
+      MetricFamilySamples filtered = mfs.filter(sampleNameFilter);
+      if (filtered != null) {
+        filtered.visit(visitor);
+      }
+    }
+  }
+
+  /**
+   * Receives metrics from {@link #collect(SampleVisitor, Predicate)}.
+   * <p>
+   * {@link #visitFamily(String, String, Type, String) visitFamily()} is called once per metric family,
+   * followed by {@link #visitSample(String, List, List, String, String, double, Exemplar, Long) visitSample()}
+   * for each sample of that family.
+   */
+  public interface SampleVisitor {
+
+    /**
+     * Start of a new metric family. The parameters are the same as in
+     * {@link MetricFamilySamples#MetricFamilySamples(String, String, Type, String, List)}, except that
+     * the name of a {@link Type#COUNTER COUNTER} never ends with {@code _total}.
+     */
+    void visitFamily(String name, String unit, Type type, String help) throws IOException;
+
+    /**
+     * A sample of the current metric family.
+     * <p>
+     * Many samples have the labels of a child plus one additional label, like {@code le} for histogram
+     * buckets or {@code quantile} for summaries. In order to avoid creating a new List of labels for each of these
+     * samples, the additional label is passed as {@code extraLabelName} and {@code extraLabelValue}.
+     * The additional label comes after the other labels.
+     *
+     * @param labelNames      must not be modified, and is only valid until this method returns.
+     * @param labelValues     must have the same size as labelNames, must not be modified, and is only valid until
+     *                        this method returns.
+     * @param extraLabelName  may be {@code null} if there is no additional label.
+     * @param extraLabelValue {@code null} if {@code extraLabelName} is {@code null}.
+     * @param exemplar        may be {@code null}.
+     * @param timestampMs     may be {@code null}.
+     */
+    void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                     String extraLabelName, String extraLabelValue,
+                     double value, Exemplar exemplar, Long timestampMs) throws IOException;
+  }
+
   public enum Type {
     UNKNOWN, // This is untyped in Prometheus text format.
     COUNTER,
@@ -73,6 +133,8 @@ public abstract class Collector {
    * A metric, and all of its samples.
    */
   static public class MetricFamilySamples {
+    private static final int FILTER_CACHE_SIZE = 8;
+
     public final String name;
     public final String unit;
     public final Type type;
@@ -122,9 +184,28 @@ public abstract class Collector {
       if (sampleNameFilter == null) {
         return this;
       }
+      // A family has only a few distinct sample names, like _bucket, _count, _sum and _created,
+      // but possibly many samples. Test each distinct name once.
+      String[] testedNames = new String[FILTER_CACHE_SIZE];
+      boolean[] results = new boolean[FILTER_CACHE_SIZE];
+      int nTested = 0;
       List<Sample> remainingSamples = new ArrayList<Sample>(samples.size());
       for (Sample sample : samples) {
-        if (sampleNameFilter.test(sample.name)) {
+        int i = 0;
+        while (i < nTested && !testedNames[i].equals(sample.name)) {
+          i++;
+        }
+        boolean included;
+        if (i < nTested) {
+          included = results[i];
+        } else {
+          included = sampleNameFilter.test(sample.name);
+          if (nTested < FILTER_CACHE_SIZE) {
+            testedNames[nTested] = sample.name;
+            results[nTested++] = included;
+          }
+        }
+        if (included) {
           remainingSamples.add(sample);
         }
       }
@@ -134,6 +215,17 @@ public abstract class Collector {
       return new MetricFamilySamples(name, unit, type, help, remainingSamples);
     }
 
+    /**
+     * Pass this metric family and all of its samples to the {@code visitor}.
+     */
+    public void visit(SampleVisitor visitor) throws IOException {
+      visitor.visitFamily(name, unit, type, help);
+      for (Sample sample : samples) {
+        visitor.visitSample(sample.name, sample.labelNames, sample.labelValues, null, null,
+            sample.value, sample.exemplar, sample.timestampMs);
+      }
+    }
+
     /**
      * List of names that are reserved for Samples in these MetricsFamilySamples.
      * <p>
@@ -1,16 +1,22 @@
 package io.prometheus.client;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A registry of Collectors.
@@ -20,6 +26,10 @@ import java.util.Set;
  * Creating a registry other than the default is primarily useful for unittests, or
  * pushing a subset of metrics to the <a href="https://github.com/prometheus/pushgateway">Pushgateway</a>
  * from batch jobs.
+ * <p>
+ * Collectors are collected in the order in which they were registered. By default they are collected one after
+ * another on the thread that scrapes the registry, see {@link #enableParallelCollection(ExecutorService, long, TimeUnit)}
+ * for collecting them concurrently.
  */
 public class CollectorRegistry {
   /**
@@ -27,11 +37,15 @@ public class CollectorRegistry {
    */
   public static final CollectorRegistry defaultRegistry = new CollectorRegistry(true);
 
+  // Registration is synchronized on namesCollectorsLock. Each change publishes a new immutable snapshot,
+  // so that scrapes read the collectors without taking the lock.
   private final Object namesCollectorsLock = new Object();
-  private final Map<Collector, List<String>> collectorsToNames = new HashMap<Collector, List<String>>();
+  private final Map<Collector, List<String>> collectorsToNames = new LinkedHashMap<Collector, List<String>>();
   private final Map<String, Collector> namesToCollectors = new HashMap<String, Collector>();
+  private volatile Snapshot snapshot = new Snapshot(collectorsToNames);
 
   private final boolean autoDescribe;
+  private volatile ParallelCollection parallelCollection; // null if disabled
 
   public CollectorRegistry() {
     this(false);
@@ -61,6 +75,7 @@ public class CollectorRegistry {
         namesToCollectors.put(name, m);
       }
       collectorsToNames.put(m, names);
+      snapshot = new Snapshot(collectorsToNames);
     }
   }
 
@@ -84,26 +99,110 @@ public class CollectorRegistry {
         for (String name : names) {
           namesToCollectors.remove(name);
         }
+        snapshot = new Snapshot(collectorsToNames);
+      }
+      ParallelCollection parallel = parallelCollection;
+      if (parallel != null) {
+        parallel.remove(m);
       }
     }
   }
 
   /**
    * Unregister all Collectors.
+   * <p>
+   * This also disables parallel collection.
    */
   public void clear() {
     synchronized (namesCollectorsLock) {
       collectorsToNames.clear();
       namesToCollectors.clear();
+      snapshot = new Snapshot(collectorsToNames);
+      parallelCollection = null;
     }
   }
 
   /**
-   * A snapshot of the current collectors.
+   * Collect the registered collectors concurrently on the {@code executor}.
+   * <p>
+   * Collectors that are slow because they do I/O or JMX calls then no longer add up on the scrape thread.
+   * The metrics are in the same order as with sequential collection.
+   * The {@code timeout} applies to the whole scrape: collectors that did not finish within {@code timeout} after the
+   * scrape started, whether they were slow or waited for a busy executor, are cancelled and their metrics are missing
+   * from the scrape.
+   * <p>
+   * The executor should be bounded, like a fixed thread pool, and is not shut down by the registry.
+   * If it rejects a task, the collector is collected on the scraping thread.
+   * <p>
+   * This registers a collector with the self-metrics {@code collector_registry_collector_duration_seconds} and
+   * {@code collector_registry_collector_timeouts_total}, labeled with the first metric name of each collector.
+   * Durations are from the last collection that completed.
    */
-  private Set<Collector> collectors() {
+  public void enableParallelCollection(ExecutorService executor, long timeout, TimeUnit unit) {
+    ParallelCollection parallel = new ParallelCollection(this, executor, unit.toNanos(timeout));
     synchronized (namesCollectorsLock) {
-      return new HashSet<Collector>(collectorsToNames.keySet());
+      disableParallelCollection();
+      register(parallel.metrics);
+      parallelCollection = parallel;
+    }
+  }
+
+  /**
+   * Go back to collecting the collectors one after another on the scraping thread, and unregister the self-metrics.
+   */
+  public void disableParallelCollection() {
+    synchronized (namesCollectorsLock) {
+      ParallelCollection parallel = parallelCollection;
+      if (parallel != null) {
+        parallelCollection = null;
+        unregister(parallel.metrics);
+      }
+    }
+  }
+
+  /**
+   * Label for a collector in the parallel collection self-metrics.
+   */
+  String collectorLabel(Collector collector) {
+    Snapshot current = snapshot;
+    for (int i = 0; i < current.collectors.length; i++) {
+      if (current.collectors[i] == collector && !current.names[i].isEmpty()) {
+        return current.names[i].get(0);
+      }
+    }
+    return collector.getClass().getName();
+  }
+
+  /**
+   * Immutable copy of the registered collectors and their names, in registration order.
+   */
+  private static final class Snapshot {
+    final Collector[] collectors;
+    final List<String>[] names; // names[i] are the names of collectors[i]
+    final Map<String, Integer> nameToIndex;
+    final int[] unnamed; // indexes of collectors without known names, they may produce any name
+
+    @SuppressWarnings("unchecked")
+    Snapshot(Map<Collector, List<String>> collectorsToNames) {
+      int n = collectorsToNames.size();
+      collectors = new Collector[n];
+      names = (List<String>[]) new List[n];
+      nameToIndex = new HashMap<String, Integer>();
+      int[] unnamed = new int[n];
+      int nUnnamed = 0;
+      int i = 0;
+      for (Map.Entry<Collector, List<String>> entry : collectorsToNames.entrySet()) {
+        collectors[i] = entry.getKey();
+        names[i] = entry.getValue();
+        for (String name : entry.getValue()) {
+          nameToIndex.put(name, i);
+        }
+        if (entry.getValue().isEmpty()) {
+          unnamed[nUnnamed++] = i;
+        }
+        i++;
+      }
+      this.unnamed = Arrays.copyOf(unnamed, nUnnamed);
     }
   }
 
@@ -160,32 +259,15 @@ public class CollectorRegistry {
 
     MetricFamilySamplesEnumeration(Predicate<String> sampleNameFilter) {
       this.sampleNameFilter = sampleNameFilter;
-      this.collectorIter = filteredCollectorIterator();
-      findNextElement();
-    }
-
-    private Iterator<Collector> filteredCollectorIterator() {
-      if (sampleNameFilter == null) {
-        return collectors().iterator();
+      List<Collector> collectors = filteredCollectors(sampleNameFilter);
+      ParallelCollection parallel = parallelCollection;
+      if (parallel != null) {
+        this.metricFamilySamples = parallel.collect(collectors, sampleNameFilter).iterator();
+        this.collectorIter = Collections.<Collector>emptyList().iterator();
       } else {
-        HashSet<Collector> collectors = new HashSet<Collector>();
-        synchronized (namesCollectorsLock) {
-          for (Map.Entry<Collector, List<String>> entry : collectorsToNames.entrySet()) {
-            List<String> names = entry.getValue();
-            if (names.isEmpty()) {
-              collectors.add(entry.getKey());
-            } else {
-              for (String name : names) {
-                if (sampleNameFilter.test(name)) {
-                  collectors.add(entry.getKey());
-                  break;
-                }
-              }
-            }
-          }
-        }
-        return collectors.iterator();
+        this.collectorIter = collectors.iterator();
       }
+      findNextElement();
     }
 
     MetricFamilySamplesEnumeration() {
@@ -227,6 +309,84 @@ public class CollectorRegistry {
     }
   }
 
+  /**
+   * A snapshot of the collectors that may have samples matching the {@code sampleNameFilter}, in registration order.
+   */
+  private List<Collector> filteredCollectors(Predicate<String> sampleNameFilter) {
+    Snapshot current = snapshot;
+    if (sampleNameFilter == null) {
+      return Collections.unmodifiableList(Arrays.asList(current.collectors));
+    }
+    Collection<String> requiredNames = SampleNameFilter.requiredNames(sampleNameFilter);
+    if (requiredNames != null) {
+      // Only names from a fixed set are allowed, look up the collectors rather than testing every name.
+      int[] indexes = new int[requiredNames.size() + current.unnamed.length];
+      int n = 0;
+      for (String name : requiredNames) {
+        Integer index = current.nameToIndex.get(name);
+        if (index != null && sampleNameFilter.test(name)) {
+          indexes[n++] = index;
+        }
+      }
+      for (int index : current.unnamed) {
+        indexes[n++] = index;
+      }
+      Arrays.sort(indexes, 0, n);
+      List<Collector> collectors = new ArrayList<Collector>(n);
+      for (int i = 0; i < n; i++) {
+        if (i == 0 || indexes[i] != indexes[i - 1]) {
+          collectors.add(current.collectors[indexes[i]]);
+        }
+      }
+      return collectors;
+    }
+    List<Collector> collectors = new ArrayList<Collector>();
+    for (int i = 0; i < current.collectors.length; i++) {
+      List<String> names = current.names[i];
+      if (names.isEmpty()) {
+        collectors.add(current.collectors[i]);
+      } else {
+        for (String name : names) {
+          if (sampleNameFilter.test(name)) {
+            collectors.add(current.collectors[i]);
+            break;
+          }
+        }
+      }
+    }
+    return collectors;
+  }
+
+  /**
+   * Pass the metrics of all registered collectors to the {@code visitor}, see
+   * {@link Collector#collect(Collector.SampleVisitor, Predicate)}.
+   * <p>
+   * This produces the same metrics as {@link #filteredMetricFamilySamples(Predicate)}, but without creating
+   * {@link Collector.MetricFamilySamples} for collectors that support visitors.
+   * <p>
+   * If {@link #enableParallelCollection(ExecutorService, long, TimeUnit) parallel collection} is enabled,
+   * the collectors produce {@link Collector.MetricFamilySamples} concurrently, which are then passed to the
+   * {@code visitor} on the calling thread.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be collected.
+   */
+  public void collect(Collector.SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    List<Collector> collectors = filteredCollectors(sampleNameFilter);
+    ParallelCollection parallel = parallelCollection;
+    if (parallel != null) {
+      for (Collector.MetricFamilySamples mfs : parallel.collect(collectors, sampleNameFilter)) {
+        Collector.MetricFamilySamples filtered = mfs.filter(sampleNameFilter);
+        if (filtered != null) {
+          filtered.visit(visitor);
+        }
+      }
+      return;
+    }
+    for (Collector collector : collectors) {
+      collector.collect(visitor, sampleNameFilter);
+    }
+  }
+
   /**
    * Returns the given value, or null if it doesn't exist.
    * <p>
@@ -239,30 +399,50 @@ public class CollectorRegistry {
   /**
    * Returns the given value, or null if it doesn't exist.
    * <p>
-   * This is inefficient, and intended only for use in unittests.
+   * This is intended only for use in unittests. The collectors that may produce {@code name} are collected first,
+   * the others only if the sample was not found.
    */
   public Double getSampleValue(String name, String[] labelNames, String[] labelValues) {
-    for (Collector.MetricFamilySamples metricFamilySamples : Collections.list(metricFamilySamples())) {
-      for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
-        if (sample.name.equals(name)
-                && Arrays.equals(sample.labelNames.toArray(), labelNames)
-                && Arrays.equals(sample.labelValues.toArray(), labelValues)) {
-          return sample.value;
-        }
-      }
-    }
-    return null;
+    return getSampleValue(name, labelNames, labelValues, null);
   }
 
   /**
    * Returns the given value, or null if it doesn't exist.
    * <p>
-   * This is inefficient, and intended only for use in unittests.
+   * This is intended only for use in unittests. The collectors that may produce {@code name} are collected first,
+   * the others only if the sample was not found.
    */
   public Double getSampleValue(String name, String[] labelNames, String[] labelValues, Predicate<String> sampleNameFilter) {
-    for (Collector.MetricFamilySamples metricFamilySamples : Collections.list(filteredMetricFamilySamples(sampleNameFilter))) {
+    // The name is only used to select the collectors. They are collected with the caller's filter,
+    // because some collectors test family names rather than sample names against the filter.
+    Predicate<String> nameFilter = SampleNameFilter.restrictToNamesEqualTo(sampleNameFilter, Collections.singleton(name));
+    List<Collector> candidates = filteredCollectors(nameFilter);
+    for (Collector collector : candidates) {
+      Double value = getSampleValue(collector, name, labelNames, labelValues, sampleNameFilter);
+      if (value != null) {
+        return value;
+      }
+    }
+    // The names of a Describable collector are taken from describe(), which may not list all of its samples.
+    Set<Collector> collected = Collections.newSetFromMap(new IdentityHashMap<Collector, Boolean>());
+    collected.addAll(candidates);
+    for (Collector collector : filteredCollectors(null)) {
+      if (!collected.contains(collector)) {
+        Double value = getSampleValue(collector, name, labelNames, labelValues, sampleNameFilter);
+        if (value != null) {
+          return value;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Double getSampleValue(Collector collector, String name, String[] labelNames, String[] labelValues,
+                                       Predicate<String> sampleNameFilter) {
+    for (Collector.MetricFamilySamples metricFamilySamples : collector.collect(sampleNameFilter)) {
       for (Collector.MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
         if (sample.name.equals(name)
+                && (sampleNameFilter == null || sampleNameFilter.test(name))
                 && Arrays.equals(sample.labelNames.toArray(), labelNames)
                 && Arrays.equals(sample.labelValues.toArray(), labelValues)) {
           return sample.value;
@@ -272,4 +452,5 @@ public class CollectorRegistry {
     return null;
   }
 
+
 }
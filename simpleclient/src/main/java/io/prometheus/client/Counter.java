@@ -4,8 +4,8 @@ import io.prometheus.client.exemplars.CounterExemplarSampler;
 import io.prometheus.client.exemplars.Exemplar;
 import io.prometheus.client.exemplars.ExemplarConfig;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
@@ -78,16 +78,26 @@ import static java.lang.Boolean.TRUE;
  * <code>_total</code> suffix will be added. This is for compatibility between
  * OpenMetrics and the Prometheus text format, as OpenMetrics requires the
  * <code>_total</code> suffix.
+ * <p>
+ * Counters that only count whole events can be created with {@link Builder#integral()}.
+ * These are backed by a {@code long} adder, which is cheaper to increment than the default {@code double} adder.
+ * <p>
+ * Counters of applications that run as several processes can keep their values in a {@link MultiProcessStorage},
+ * see {@link Builder#multiProcess(MultiProcessStorage)}.
  */
 public class Counter extends SimpleCollector<Counter.Child> implements Collector.Describable {
 
   private final Boolean exemplarsEnabled; // null means default from ExemplarConfig applies
   private final CounterExemplarSampler exemplarSampler;
+  private final boolean integral;
+  private final MultiProcessStorage multiProcessStorage;
 
   Counter(Builder b) {
     super(b);
     this.exemplarsEnabled = b.exemplarsEnabled;
     this.exemplarSampler = b.exemplarSampler;
+    this.integral = b.integral;
+    this.multiProcessStorage = b.multiProcessStorage;
     initializeNoLabelsChild();
   }
 
@@ -95,6 +105,8 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
 
     private Boolean exemplarsEnabled = null;
     private CounterExemplarSampler exemplarSampler = null;
+    private boolean integral = false;
+    private MultiProcessStorage multiProcessStorage = null;
 
     @Override
     public Counter create() {
@@ -139,6 +151,32 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
       this.exemplarsEnabled = FALSE;
       return this;
     }
+
+    /**
+     * Only allow increments by whole numbers.
+     * <p>
+     * The value is stored in a {@code long} adder, so {@link Child#inc()} is a single addition
+     * without the {@code double} to {@code long} bits conversions of the default mode.
+     * {@link Child#inc(double)} throws an {@link IllegalArgumentException} if the amount is not a whole number.
+     */
+    public Builder integral() {
+      this.integral = true;
+      return this;
+    }
+
+    /**
+     * Keep the values in a file shared with other processes, which are exported by a {@link MultiProcessCollector}.
+     * <p>
+     * Each update is a locked read-modify-write of the memory-mapped file, which is slower than the
+     * default in-memory adders. The {@code _created} series is not exported for multi-process counters.
+     */
+    public Builder multiProcess(MultiProcessStorage storage) {
+      if (storage == null) {
+        throw new NullPointerException();
+      }
+      this.multiProcessStorage = storage;
+      return this;
+    }
   }
 
   /**
@@ -160,7 +198,17 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
 
   @Override
   protected Child newChild() {
-    return new Child(exemplarsEnabled, exemplarSampler);
+    return new Child(exemplarsEnabled, exemplarSampler, integral, null);
+  }
+
+  @Override
+  protected Child newChild(List<String> labelValues) {
+    if (multiProcessStorage == null) {
+      return newChild();
+    }
+    MultiProcessStorage.Slot slot = multiProcessStorage.slot(fullname, Type.COUNTER, null, help,
+        fullname + "_total", labelNames, labelValues);
+    return new Child(exemplarsEnabled, exemplarSampler, false, slot);
   }
 
   /**
@@ -170,7 +218,11 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
    * {@link SimpleCollector#remove} or {@link SimpleCollector#clear},
    */
   public static class Child {
-    private final DoubleAdder value = new DoubleAdder();
+    // Exactly one of value, count and slot is used: slot if the counter is stored in a MultiProcessStorage,
+    // otherwise count if the counter is integral.
+    private final DoubleAdder value;
+    private final LongAdder count;
+    private final MultiProcessStorage.Slot slot;
     private final long created = System.currentTimeMillis();
     private final Boolean exemplarsEnabled;
     private final CounterExemplarSampler exemplarSampler;
@@ -181,8 +233,16 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
     }
 
     public Child(Boolean exemplarsEnabled, CounterExemplarSampler exemplarSampler) {
+      this(exemplarsEnabled, exemplarSampler, false, null);
+    }
+
+    private Child(Boolean exemplarsEnabled, CounterExemplarSampler exemplarSampler, boolean integral,
+                  MultiProcessStorage.Slot slot) {
       this.exemplarsEnabled = exemplarsEnabled;
       this.exemplarSampler = exemplarSampler;
+      this.value = slot == null && !integral ? new DoubleAdder() : null;
+      this.count = slot == null && integral ? new LongAdder() : null;
+      this.slot = slot;
     }
 
     /**
@@ -209,7 +269,8 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
     /**
      * Increment the counter by the given amount.
      *
-     * @throws IllegalArgumentException If amt is negative.
+     * @throws IllegalArgumentException If amt is negative, or if the counter is {@link Builder#integral() integral}
+     *                                  and amt is not a whole number.
      */
     public void inc(double amt) {
       incWithExemplar(amt, (String[]) null);
@@ -236,7 +297,17 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
       if (amt < 0) {
         throw new IllegalArgumentException("Amount to increment must be non-negative.");
       }
-      value.add(amt);
+      if (value != null) {
+        value.add(amt);
+      } else if (count != null) {
+        long n = (long) amt;
+        if (n != amt) {
+          throw new IllegalArgumentException("Amount to increment must be a whole number for integral counters.");
+        }
+        count.add(n);
+      } else {
+        slot.add(amt);
+      }
       updateExemplar(amt, exemplar);
     }
 
@@ -282,7 +353,10 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
      * Get the value of the counter.
      */
     public double get() {
-      return value.sum();
+      if (value != null) {
+        return value.sum();
+      }
+      return count != null ? count.sum() : slot.get();
     }
 
     private Exemplar getExemplar() {
@@ -362,8 +436,33 @@ public class Counter extends SimpleCollector<Counter.Child> implements Collector
     return familySamplesList(Type.COUNTER, samples);
   }
 
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    return collectVisited(sampleNameFilter);
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    visitChildrenOverflow(visitor, sampleNameFilter);
+    String totalName = fullname + "_total";
+    String createdName = fullname + "_created";
+    boolean total = isIncluded(sampleNameFilter, totalName);
+    boolean created = Environment.includeCreatedSeries() && isIncluded(sampleNameFilter, createdName);
+    if (!visitFamily(visitor, Type.COUNTER, sampleNameFilter, total || created)) {
+      return;
+    }
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      if (total) {
+        visitor.visitSample(totalName, labelNames, c.getKey(), null, null, c.getValue().get(), c.getValue().getExemplar(), null);
+      }
+      if (created) {
+        visitor.visitSample(createdName, labelNames, c.getKey(), null, null, c.getValue().created() / 1000.0, null, null);
+      }
+    }
+  }
+
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.<MetricFamilySamples>singletonList(new CounterMetricFamily(fullname, help, labelNames));
+    return familySamplesList(new CounterMetricFamily(fullname, help, labelNames));
   }
 }
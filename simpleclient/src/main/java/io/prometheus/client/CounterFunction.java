@@ -0,0 +1,73 @@
+package io.prometheus.client;
+
+import java.util.List;
+
+/**
+ * Counter metric with values that are provided by callbacks when the metric is collected.
+ * <p>
+ * Use this for counts that are already tracked elsewhere, like an {@code AtomicLong} in your code or
+ * the statistics of a cache library. The callbacks must return values that only go up (and are reset
+ * when the process restarts), as for {@link Counter}.
+ * <p>
+ * Example CounterFunction:
+ * <pre>
+ * {@code
+ *   class YourClass {
+ *     static final CounterFunction processed = CounterFunction.build()
+ *         .name("tasks_processed_total").help("Total processed tasks.").register();
+ *
+ *     private final AtomicLong processedCount = new AtomicLong();
+ *
+ *     YourClass() {
+ *       processed.add(processedCount, new ToDoubleFunction<AtomicLong>() {
+ *         public double applyAsDouble(AtomicLong count) {
+ *           return count.get();
+ *         }
+ *       });
+ *     }
+ *   }
+ * }
+ * </pre>
+ * As with {@link Counter}, a {@code _total} suffix of the name is removed, and added to the sample name.
+ * Only weak references to the observed objects are held, see {@link #add(Object, ToDoubleFunction, String...)}.
+ */
+public class CounterFunction extends FunctionCollector {
+
+  CounterFunction(Builder b) {
+    super(b, Type.COUNTER, "_total");
+  }
+
+  public static class Builder extends SimpleCollector.Builder<Builder, CounterFunction> {
+    @Override
+    public CounterFunction create() {
+      // Gracefully handle pre-OpenMetrics counters.
+      if (name.endsWith("_total")) {
+        name = name.substring(0, name.length() - 6);
+      }
+      dontInitializeNoLabelsChild = true;
+      return new CounterFunction(this);
+    }
+  }
+
+  /**
+   *  Return a Builder to allow configuration of a new CounterFunction. Ensures required fields are provided.
+   *
+   *  @param name The name of the metric
+   *  @param help The help string of the metric
+   */
+  public static Builder build(String name, String help) {
+    return new Builder().name(name).help(help);
+  }
+
+  /**
+   *  Return a Builder to allow configuration of a new CounterFunction.
+   */
+  public static Builder build() {
+    return new Builder();
+  }
+
+  @Override
+  public List<MetricFamilySamples> describe() {
+    return familySamplesList(new CounterMetricFamily(fullname, help, labelNames));
+  }
+}
@@ -0,0 +1,354 @@
+package io.prometheus.client;
+
+import java.util.Arrays;
+
+/**
+ * Relative-error quantile sketch as described in
+ * "DDSketch: A Fast and Fully-Mergeable Quantile Sketch with Relative-Error Guarantees"
+ * by Masson, Rim, and Lee.
+ * <p>
+ * Positive values are counted in logarithmic buckets: bucket {@code i} covers the values in
+ * {@code (gamma^(i-1), gamma^i]} with {@code gamma = (1 + alpha) / (1 - alpha)}, and is estimated as
+ * {@code 2 * gamma^i / (gamma + 1)}, which is within a relative error {@code alpha} of every value in the bucket.
+ * Negative values are counted in the same way by their absolute value. Values that are too close to zero for
+ * a bucket index are counted as zero, infinite values are counted separately.
+ * <p>
+ * The buckets of positive and negative values are stored in {@link Store}s, which are dense arrays of counts with
+ * at most {@link #maxBuckets} entries. Inserting is O(1), except when a store needs to grow.
+ * The minimum and the maximum are tracked exactly, so that {@code get(0.0)} and {@code get(1.0)} are exact.
+ */
+final class DDSketchQuantiles extends QuantileEstimator {
+
+    static final int DEFAULT_MAX_BUCKETS = 2048;
+    static final double MIN_RELATIVE_ACCURACY = 1e-6; // so that the bucket indexes of all doubles fit into an int
+
+    final double relativeAccuracy;
+    final int maxBuckets;
+    private final double gamma;
+    private final double multiplier; // 1 / log(gamma)
+    private final double minIndexableValue;
+
+    final Store positive;
+    final Store negative;
+    long zeroCount = 0;
+    long negativeInfinityCount = 0;
+    long positiveInfinityCount = 0;
+    long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    DDSketchQuantiles(double relativeAccuracy, int maxBuckets) {
+        if (relativeAccuracy < MIN_RELATIVE_ACCURACY || relativeAccuracy >= 1.0) {
+            throw new IllegalArgumentException("relativeAccuracy must be between " + MIN_RELATIVE_ACCURACY + " and 1");
+        }
+        if (maxBuckets < 2) {
+            throw new IllegalArgumentException("maxBuckets must be at least 2");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.maxBuckets = maxBuckets;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.multiplier = 1 / Math.log(gamma);
+        // The smallest value whose index is not affected by the precision loss of subnormal numbers.
+        this.minIndexableValue = Double.MIN_NORMAL * gamma;
+        this.positive = new Store(maxBuckets);
+        this.negative = new Store(maxBuckets);
+    }
+
+    @Override
+    public void insert(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value > minIndexableValue) {
+            if (value == Double.POSITIVE_INFINITY) {
+                positiveInfinityCount++;
+            } else {
+                positive.add(index(value));
+            }
+        } else if (value < -minIndexableValue) {
+            if (value == Double.NEGATIVE_INFINITY) {
+                negativeInfinityCount++;
+            } else {
+                negative.add(index(-value));
+            }
+        } else {
+            zeroCount++;
+        }
+        count++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    @Override
+    public void merge(QuantileEstimator estimator) {
+        DDSketchQuantiles other = (DDSketchQuantiles) estimator;
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different relative accuracy.");
+        }
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        negativeInfinityCount += other.negativeInfinityCount;
+        positiveInfinityCount += other.positiveInfinityCount;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * The bucket arrays are kept, so that a recycled sketch does not need to grow them again.
+     */
+    @Override
+    public void reset() {
+        positive.reset();
+        negative.reset();
+        zeroCount = 0;
+        negativeInfinityCount = 0;
+        positiveInfinityCount = 0;
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public String encode() {
+        SketchEncoding.Writer writer = new SketchEncoding.Writer()
+                .writeByte(SketchEncoding.DDSKETCH)
+                .writeDouble(relativeAccuracy)
+                .writeVarLong(maxBuckets)
+                .writeVarLong(zeroCount)
+                .writeVarLong(negativeInfinityCount)
+                .writeVarLong(positiveInfinityCount)
+                .writeDouble(min)
+                .writeDouble(max);
+        positive.write(writer);
+        negative.write(writer);
+        return writer.toBase64();
+    }
+
+    /**
+     * Read a sketch written by {@link #encode()}, after the type.
+     */
+    static DDSketchQuantiles read(SketchEncoding.Reader reader) {
+        double relativeAccuracy = reader.readDouble();
+        int maxBuckets = reader.readSize(Integer.MAX_VALUE);
+        DDSketchQuantiles result = new DDSketchQuantiles(relativeAccuracy, maxBuckets);
+        result.zeroCount = reader.readVarLong();
+        result.negativeInfinityCount = reader.readVarLong();
+        result.positiveInfinityCount = reader.readVarLong();
+        result.min = reader.readDouble();
+        result.max = reader.readDouble();
+        int maxIndex = result.index(Double.MAX_VALUE);
+        int minIndex = result.index(result.minIndexableValue);
+        result.positive.read(reader, minIndex, maxIndex);
+        result.negative.read(reader, minIndex, maxIndex);
+        reader.checkEnd();
+        result.count = result.zeroCount + result.negativeInfinityCount + result.positiveInfinityCount
+                + result.positive.count + result.negative.count;
+        return result;
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) * multiplier);
+    }
+
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    @Override
+    public double get(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q == 0.0) {
+            return min;
+        }
+        if (q == 1.0) {
+            return max;
+        }
+        double rank = q * (count - 1);
+        if (rank < negativeInfinityCount) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        rank -= negativeInfinityCount;
+        double result;
+        if (rank < negative.count) {
+            // The most negative value has the highest index.
+            result = -value(negative.indexAtRankDescending(rank));
+        } else if (rank < negative.count + zeroCount) {
+            result = 0;
+        } else if (rank < negative.count + zeroCount + positive.count) {
+            result = value(positive.indexAtRank(rank - negative.count - zeroCount));
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.max(min, Math.min(max, result));
+    }
+
+    /**
+     * Bucket counts for bucket indexes {@code offset} to {@code offset + counts.length - 1}.
+     * <p>
+     * The array grows as needed, but never beyond {@code maxBuckets}. If the indexes do not fit into
+     * {@code maxBuckets}, the lowest buckets are collapsed into the lowest remaining bucket.
+     */
+    static final class Store {
+
+        private static final int GROW_BY = 64;
+
+        private final int maxBuckets;
+        long[] counts = new long[0];
+        int offset = 0;
+        int minIndex = Integer.MAX_VALUE; // lowest non-empty bucket
+        int maxIndex = Integer.MIN_VALUE; // highest non-empty bucket
+        long count = 0;
+
+        Store(int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+        }
+
+        void add(int index) {
+            add(index, 1);
+        }
+
+        private void add(int index, long n) {
+            if (index < minIndex || index > maxIndex) {
+                index = extendRange(index);
+            }
+            counts[index - offset] += n;
+            count += n;
+        }
+
+        void merge(Store other) {
+            if (other.count == 0) {
+                return;
+            }
+            // Extend the range for the highest bucket first, so that the range is extended at most twice.
+            add(other.maxIndex, other.counts[other.maxIndex - other.offset]);
+            for (int i = other.minIndex; i < other.maxIndex; i++) {
+                long n = other.counts[i - other.offset];
+                if (n > 0) {
+                    add(i, n);
+                }
+            }
+        }
+
+        void reset() {
+            if (count > 0) {
+                Arrays.fill(counts, minIndex - offset, maxIndex - offset + 1, 0L);
+            }
+            minIndex = Integer.MAX_VALUE;
+            maxIndex = Integer.MIN_VALUE;
+            count = 0;
+        }
+
+        /**
+         * Make room for {@code index}.
+         *
+         * @return the bucket index for counting {@code index}, which is higher than {@code index}
+         *         if the lowest buckets were collapsed.
+         */
+        private int extendRange(int index) {
+            int newMin = Math.min(index, minIndex);
+            int newMax = Math.max(index, maxIndex);
+            if ((long) newMax - newMin + 1 > maxBuckets) {
+                newMin = newMax - maxBuckets + 1;
+            }
+            if (newMin < offset || newMax >= offset + counts.length) {
+                int length = (int) Math.min(maxBuckets, (long) newMax - newMin + 1 + GROW_BY);
+                int padding = length - (newMax - newMin + 1);
+                int newOffset = newMin - padding / 2;
+                long[] newCounts = new long[length];
+                for (int i = minIndex; i <= maxIndex; i++) {
+                    newCounts[Math.max(i, newMin) - newOffset] += counts[i - offset];
+                }
+                counts = newCounts;
+                offset = newOffset;
+            } else {
+                for (int i = minIndex; i < newMin; i++) {
+                    counts[newMin - offset] += counts[i - offset];
+                    counts[i - offset] = 0;
+                }
+            }
+            minIndex = newMin;
+            maxIndex = newMax;
+            return Math.max(index, newMin);
+        }
+
+        /**
+         * Index of the bucket containing the value with the given rank, counting from the lowest index.
+         */
+        int indexAtRank(double rank) {
+            long n = 0;
+            for (int i = minIndex; i < maxIndex; i++) {
+                n += counts[i - offset];
+                if (n > rank) {
+                    return i;
+                }
+            }
+            return maxIndex;
+        }
+
+        /**
+         * Index of the bucket containing the value with the given rank, counting from the highest index.
+         */
+        int indexAtRankDescending(double rank) {
+            long n = 0;
+            for (int i = maxIndex; i > minIndex; i--) {
+                n += counts[i - offset];
+                if (n > rank) {
+                    return i;
+                }
+            }
+            return minIndex;
+        }
+
+        /**
+         * The number of buckets from the lowest to the highest non-empty bucket, the lowest index,
+         * and the count of each bucket.
+         */
+        void write(SketchEncoding.Writer writer) {
+            if (count == 0) {
+                writer.writeVarLong(0);
+                return;
+            }
+            writer.writeVarLong(maxIndex - minIndex + 1).writeZigZag(minIndex);
+            for (int i = minIndex; i <= maxIndex; i++) {
+                writer.writeVarLong(counts[i - offset]);
+            }
+        }
+
+        void read(SketchEncoding.Reader reader, int minValidIndex, int maxValidIndex) {
+            int buckets = reader.readSize(reader.remaining()); // at least one byte per bucket
+            if (buckets == 0) {
+                return;
+            }
+            int index = reader.readZigZag();
+            if (index < minValidIndex || (long) index + buckets - 1 > maxValidIndex) {
+                throw new IllegalArgumentException("Invalid bucket index " + index + " in sketch.");
+            }
+            for (int i = 0; i < buckets; i++) {
+                long n = reader.readVarLong();
+                if (n > 0) {
+                    add(index + i, n);
+                }
+            }
+        }
+
+        /**
+         * Size of the counts array, not including the array header.
+         */
+        long retainedBytes() {
+            return counts.length * 8L;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package io.prometheus.client;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -211,9 +212,28 @@ public class Enumeration extends SimpleCollector<Enumeration.Child> implements C
     return familySamplesList(Type.STATE_SET, samples);
   }
 
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    return collectVisited(sampleNameFilter);
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    visitChildrenOverflow(visitor, sampleNameFilter);
+    if (!visitFamily(visitor, Type.STATE_SET, sampleNameFilter, isIncluded(sampleNameFilter, fullname))) {
+      return;
+    }
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      String v = c.getValue().get();
+      for (String s : states) {
+        visitor.visitSample(fullname, labelNames, c.getKey(), fullname, s, s.equals(v) ? 1.0 : 0.0, null, null);
+      }
+    }
+  }
+
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.singletonList(
+    return familySamplesList(
             new MetricFamilySamples(fullname, Type.STATE_SET, help, Collections.<MetricFamilySamples.Sample>emptyList()));
   }
 
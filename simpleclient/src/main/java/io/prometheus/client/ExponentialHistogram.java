@@ -0,0 +1,728 @@
+package io.prometheus.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with exponential buckets that are created on demand, also known as sparse or native histogram.
+ * <p>
+ * Unlike {@link Histogram}, you don't define the buckets. Instead, you define the resolution with the
+ * {@link Builder#schema(int) schema}: The bucket boundaries are powers of
+ * <pre>
+ * base = 2^(2^-schema)
+ * </pre>
+ * The bucket with index {@code i} contains observations in {@code (base^(i-1), base^i]}, i.e. observation {@code x}
+ * goes into bucket {@code ceil(log_base(x))}. Negative observations are mirrored, so that the upper bound of their
+ * buckets is inclusive as well: the bucket with index {@code i} contains {@code (-base^i, -base^(i-1)]}.
+ * Schema 0 means {@code base = 2}, every increment of the schema doubles
+ * the resolution. The schema must be between {@code -4} and {@code 8}. The relative error of an observation's bucket
+ * is at most {@code (base - 1) / (base + 1)}, which is 1.1% for the default schema 5 and 0.27% for schema 8.
+ * <p>
+ * Only buckets that have observations are stored. If the number of buckets for a child exceeds
+ * {@link Builder#maxBuckets(int) maxBuckets}, the schema of the child is reduced, i.e. each pair of neighbouring
+ * buckets is merged into one, until the buckets fit or the schema is {@link Builder#minSchema(int) minSchema}.
+ * Observations with an absolute value
+ * &lt;= {@link Builder#zeroThreshold(double) zeroThreshold} are counted in a separate zero bucket.
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ *   class YourClass {
+ *     static final ExponentialHistogram requestLatency = ExponentialHistogram.build()
+ *         .name("requests_latency_seconds").help("Request latency in seconds.")
+ *         .schema(6)
+ *         .register();
+ *
+ *     void processRequest(Request req) {
+ *        ExponentialHistogram.Timer requestTimer = requestLatency.startTimer();
+ *        try {
+ *          // Your code here.
+ *        } finally {
+ *          requestTimer.observeDuration();
+ *        }
+ *     }
+ *   }
+ * }
+ * </pre>
+ * The text formats don't support sparse buckets yet, so the buckets are exposed as classic histogram buckets
+ * with an {@code le} label, with the resolution of {@link Builder#minSchema(int) minSchema} rather than the current
+ * schema of the child. That way the {@code le} values don't change when the schema is reduced, and a bucket that was
+ * exposed once is exposed in every later scrape, so that {@code rate()} and {@code histogram_quantile()} work as
+ * with {@link Histogram}. Empty buckets are omitted until they have observations.
+ * <p>
+ * <em>Note:</em> Each populated classic bucket is one time series. Use {@link Builder#minSchema(int) minSchema} and
+ * {@link Builder#maxBuckets(int) maxBuckets} to limit the number of time series per child.
+ */
+public class ExponentialHistogram extends SimpleCollector<ExponentialHistogram.Child> implements Collector.Describable {
+
+  static final int MIN_SCHEMA = -4;
+  static final int MAX_SCHEMA = 8;
+
+  /**
+   * {@code MANTISSA_BOUNDS[schema][k] = 2^(k / 2^schema)} for {@code schema > 0}.
+   */
+  private static final double[][] MANTISSA_BOUNDS = new double[MAX_SCHEMA + 1][];
+
+  static {
+    for (int schema = 1; schema <= MAX_SCHEMA; schema++) {
+      int n = 1 << schema;
+      double[] bounds = new double[n + 1];
+      for (int k = 0; k <= n; k++) {
+        bounds[k] = Math.pow(2, (double) k / n);
+      }
+      MANTISSA_BOUNDS[schema] = bounds;
+    }
+  }
+
+  private final int schema;
+  private final int minSchema;
+  private final int maxBuckets;
+  private final double zeroThreshold;
+
+  ExponentialHistogram(Builder b) {
+    super(b);
+    this.schema = b.schema;
+    this.minSchema = Math.min(b.minSchema, b.schema);
+    this.maxBuckets = b.maxBuckets;
+    this.zeroThreshold = b.zeroThreshold;
+    initializeNoLabelsChild();
+  }
+
+  public static class Builder extends SimpleCollector.Builder<Builder, ExponentialHistogram> {
+
+    private int schema = 5;
+    private int minSchema = 0;
+    private int maxBuckets = 160;
+    private double zeroThreshold = Math.pow(2, -128);
+
+    @Override
+    public ExponentialHistogram create() {
+      for (String label : labelNames) {
+        if (label.equals("le")) {
+          throw new IllegalStateException("ExponentialHistogram cannot have a label named 'le'.");
+        }
+      }
+      dontInitializeNoLabelsChild = true;
+      return new ExponentialHistogram(this);
+    }
+
+    /**
+     * Set the initial resolution. The bucket boundaries are powers of {@code 2^(2^-schema)}.
+     * Must be between -4 and 8. Default is 5.
+     */
+    public Builder schema(int schema) {
+      if (schema < MIN_SCHEMA || schema > MAX_SCHEMA) {
+        throw new IllegalArgumentException("schema must be between " + MIN_SCHEMA + " and " + MAX_SCHEMA + ": " + schema);
+      }
+      this.schema = schema;
+      return this;
+    }
+
+    /**
+     * Set the lowest resolution. The schema of a child is not reduced below {@code minSchema}, and the classic
+     * {@code le} buckets are exposed with this resolution, i.e. the {@code le} values are powers of
+     * {@code 2^(2^-minSchema)}. Must be between -4 and 8. Default is 0, which exposes powers of two.
+     * If {@code minSchema} is greater than the {@link #schema(int) schema}, the schema is used.
+     */
+    public Builder minSchema(int minSchema) {
+      if (minSchema < MIN_SCHEMA || minSchema > MAX_SCHEMA) {
+        throw new IllegalArgumentException("minSchema must be between " + MIN_SCHEMA + " and " + MAX_SCHEMA + ": " + minSchema);
+      }
+      this.minSchema = minSchema;
+      return this;
+    }
+
+    /**
+     * Set the initial resolution as the growth factor between bucket boundaries.
+     * <p>
+     * Buckets can only be merged if each boundary is a power of the next lower resolution, so this
+     * uses the largest base {@code 2^(2^-schema)} that is &lt;= {@code base}.
+     * If {@code base} is smaller than the base of schema 8 ({@code 1.0027}), schema 8 is used.
+     */
+    public Builder base(double base) {
+      if (!(base > 1)) {
+        throw new IllegalArgumentException("base must be > 1: " + base);
+      }
+      int schema = MIN_SCHEMA;
+      while (schema < MAX_SCHEMA && Math.pow(2, Math.pow(2, -schema)) > base) {
+        schema++;
+      }
+      this.schema = schema;
+      return this;
+    }
+
+    /**
+     * Maximum number of buckets per child. Positive and negative observations are limited separately.
+     * If an observation would exceed this limit, the resolution of the child is reduced.
+     * Default is 160.
+     * <p>
+     * The limit is only exceeded if all finite observations don't fit into {@code maxBuckets} buckets even with
+     * the resolution of {@link #minSchema(int) minSchema}, which can only happen for very small values of
+     * {@code maxBuckets}.
+     */
+    public Builder maxBuckets(int maxBuckets) {
+      if (maxBuckets <= 0) {
+        throw new IllegalArgumentException("maxBuckets must be > 0: " + maxBuckets);
+      }
+      this.maxBuckets = maxBuckets;
+      return this;
+    }
+
+    /**
+     * Observations with an absolute value &lt;= {@code zeroThreshold} are counted in the zero bucket.
+     * Default is {@code 2^-128}.
+     */
+    public Builder zeroThreshold(double zeroThreshold) {
+      if (!(zeroThreshold >= 0) || Double.isInfinite(zeroThreshold)) {
+        throw new IllegalArgumentException("zeroThreshold must be >= 0 and finite: " + zeroThreshold);
+      }
+      this.zeroThreshold = zeroThreshold;
+      return this;
+    }
+  }
+
+  /**
+   * Return a Builder to allow configuration of a new ExponentialHistogram. Ensures required fields are provided.
+   *
+   * @param name The name of the metric
+   * @param help The help string of the metric
+   */
+  public static Builder build(String name, String help) {
+    return new Builder().name(name).help(help);
+  }
+
+  /**
+   * Return a Builder to allow configuration of a new ExponentialHistogram.
+   */
+  public static Builder build() {
+    return new Builder();
+  }
+
+  @Override
+  protected Child newChild() {
+    return new Child(schema, minSchema, maxBuckets, zeroThreshold);
+  }
+
+  /**
+   * Represents an event being timed.
+   */
+  public static class Timer implements Closeable {
+    private final Child child;
+    private final long start;
+
+    private Timer(Child child, long start) {
+      this.child = child;
+      this.start = start;
+    }
+
+    /**
+     * Observe the amount of time in seconds since {@link Child#startTimer} was called.
+     *
+     * @return Measured duration in seconds since {@link Child#startTimer} was called.
+     */
+    public double observeDuration() {
+      double elapsed = SimpleTimer.elapsedSecondsFromNanos(start, SimpleTimer.defaultTimeProvider.nanoTime());
+      child.observe(elapsed);
+      return elapsed;
+    }
+
+    /**
+     * Equivalent to calling {@link #observeDuration()}.
+     */
+    @Override
+    public void close() {
+      observeDuration();
+    }
+  }
+
+  /**
+   * The value of a single ExponentialHistogram.
+   * <p>
+   * Observations are recorded lock-free. The buckets of a child live in a {@code State} with a fixed schema
+   * and a fixed capacity. If an observation does not fit, a new {@code State} with more capacity or lower resolution
+   * is published, and the previous {@code State} is kept as read-only history. Threads that still write to the
+   * previous {@code State} are not lost, because {@link #get()} merges all {@code State}s into the current schema.
+   * The capacity of a new {@code State} is at least twice that of the previous one until it reaches
+   * {@link Builder#maxBuckets(int) maxBuckets}, after that the schema is reduced. Only if the observations don't fit
+   * into {@code maxBuckets} buckets at {@link Builder#minSchema(int) minSchema}, the capacity keeps doubling beyond
+   * {@code maxBuckets}. So the number of {@code State}s is logarithmic in the number of buckets per schema, and the
+   * {@code State}s need memory for at most {@code (schema - minSchema + 1) * 2 * maxBuckets} buckets plus twice the
+   * buckets of the current {@code State}.
+   * <p>
+   * <em>Warning:</em> References to a Child become invalid after using
+   * {@link SimpleCollector#remove} or {@link SimpleCollector#clear}.
+   */
+  public static class Child {
+
+    public static class Value {
+      public final double count;
+      public final double sum;
+      public final int schema;
+      public final double zeroThreshold;
+      public final long zeroCount;
+      /**
+       * Bucket index to count, for observations &gt; {@link #zeroThreshold}. Only populated buckets are included.
+       */
+      public final SortedMap<Integer, Long> positiveBuckets;
+      /**
+       * Bucket index to count, for observations &lt; {@code -}{@link #zeroThreshold}. Bucket {@code i} contains
+       * observations in {@code (-base^i, -base^(i-1)]}. Only populated buckets are included.
+       */
+      public final SortedMap<Integer, Long> negativeBuckets;
+      public final long created;
+
+      private Value(double count, double sum, int schema, double zeroThreshold, long zeroCount,
+                    SortedMap<Integer, Long> positiveBuckets, SortedMap<Integer, Long> negativeBuckets, long created) {
+        this.count = count;
+        this.sum = sum;
+        this.schema = schema;
+        this.zeroThreshold = zeroThreshold;
+        this.zeroCount = zeroCount;
+        this.positiveBuckets = Collections.unmodifiableSortedMap(positiveBuckets);
+        this.negativeBuckets = Collections.unmodifiableSortedMap(negativeBuckets);
+        this.created = created;
+      }
+    }
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int minSchema;
+    private final int maxBuckets;
+    private final double zeroThreshold;
+    // Like zeroThreshold, but at least the largest subnormal number, because the bucket index is computed from the
+    // exponent of normal numbers.
+    private final double effectiveZeroThreshold;
+    private volatile State state;
+    private final AtomicLong zeroCount = new AtomicLong();
+    private final AtomicLong infiniteCount = new AtomicLong();
+    private final DoubleAdder sum = new DoubleAdder();
+    private final long created = System.currentTimeMillis();
+
+    private Child(int schema, int minSchema, int maxBuckets, double zeroThreshold) {
+      this.minSchema = minSchema;
+      this.maxBuckets = maxBuckets;
+      this.zeroThreshold = zeroThreshold;
+      this.effectiveZeroThreshold = Math.max(zeroThreshold, Math.nextAfter(Double.MIN_NORMAL, 0));
+      this.state = new State(schema, new Buckets(Math.min(INITIAL_CAPACITY, maxBuckets), Buckets.EMPTY), null, null);
+    }
+
+    /**
+     * Observe the given amount.
+     *
+     * @param amt in most cases amt should be &gt;= 0. Negative values are supported, but you should read
+     *            <a href="https://prometheus.io/docs/practices/histograms/#count-and-sum-of-observations">
+     *            https://prometheus.io/docs/practices/histograms/#count-and-sum-of-observations</a> for
+     *            implications and alternatives. {@code NaN} is added to the sum but not counted. Infinite
+     *            values are only counted in the {@code +Inf} bucket.
+     */
+    public void observe(double amt) {
+      if (amt == amt) { // not NaN
+        double abs = Math.abs(amt);
+        if (abs <= effectiveZeroThreshold) {
+          zeroCount.incrementAndGet();
+        } else if (abs == Double.POSITIVE_INFINITY) {
+          infiniteCount.incrementAndGet();
+        } else {
+          boolean negative = amt < 0;
+          State s = state;
+          while (!s.add(abs, negative)) {
+            s = grow(s, abs, negative);
+          }
+        }
+      }
+      sum.add(amt);
+    }
+
+    /**
+     * Publish a new {@link State} that has room for {@code abs}.
+     *
+     * @return the new current state.
+     */
+    private synchronized State grow(State s, double abs, boolean negative) {
+      State current = state;
+      if (current != s) {
+        return current; // another thread has already replaced s
+      }
+      long positiveRange = s.positive.range.get();
+      long negativeRange = s.negative == null ? Buckets.EMPTY : s.negative.range.get();
+      int index = bucketIndex(abs, negative, s.schema);
+      if (negative) {
+        negativeRange = Buckets.extend(negativeRange, index);
+      } else {
+        positiveRange = Buckets.extend(positiveRange, index);
+      }
+      int schema = s.schema;
+      while (schema > minSchema
+          && (Buckets.span(reduce(positiveRange, s.schema - schema)) > maxBuckets
+          || Buckets.span(reduce(negativeRange, s.schema - schema)) > maxBuckets)) {
+        schema--;
+      }
+      positiveRange = reduce(positiveRange, s.schema - schema);
+      negativeRange = reduce(negativeRange, s.schema - schema);
+      Buckets positiveBuckets = new Buckets(capacity(positiveRange), positiveRange);
+      Buckets negativeBuckets = negativeRange == Buckets.EMPTY ? null : new Buckets(capacity(negativeRange), negativeRange);
+      state = new State(schema, positiveBuckets, negativeBuckets, s);
+      return state;
+    }
+
+    private int capacity(long range) {
+      int span = Buckets.span(range);
+      if (span > maxBuckets) {
+        // Only possible at minSchema. Double the capacity, so that the chain of States stays short.
+        return 2 * span;
+      }
+      return Math.min(maxBuckets, Math.max(INITIAL_CAPACITY, 2 * span));
+    }
+
+    /**
+     * The number of {@code State}s, including the current one.
+     */
+    int stateCount() {
+      int count = 0;
+      for (State s = state; s != null; s = s.previous) {
+        count++;
+      }
+      return count;
+    }
+
+    private static long reduce(long range, int by) {
+      if (range == Buckets.EMPTY) {
+        return range;
+      }
+      return Buckets.pack(reduceIndex(Buckets.min(range), by), reduceIndex(Buckets.max(range), by));
+    }
+
+    /**
+     * Start a timer to track a duration.
+     * <p>
+     * Call {@link Timer#observeDuration} at the end of what you want to measure the duration of.
+     */
+    public Timer startTimer() {
+      return new Timer(this, SimpleTimer.defaultTimeProvider.nanoTime());
+    }
+
+    /**
+     * Get the value of the ExponentialHistogram.
+     * <p>
+     * <em>Warning:</em> The definition of {@link Value} is subject to change.
+     */
+    public Value get() {
+      State current = state;
+      SortedMap<Integer, Long> positiveBuckets = new TreeMap<Integer, Long>();
+      SortedMap<Integer, Long> negativeBuckets = new TreeMap<Integer, Long>();
+      long count = 0;
+      for (State s = current; s != null; s = s.previous) {
+        count += s.positive.collect(s.schema - current.schema, positiveBuckets);
+        if (s.negative != null) {
+          count += s.negative.collect(s.schema - current.schema, negativeBuckets);
+        }
+      }
+      long zeros = zeroCount.get();
+      count += zeros + infiniteCount.get();
+      return new Value(count, sum.sum(), current.schema, zeroThreshold, zeros, positiveBuckets, negativeBuckets, created);
+    }
+  }
+
+  /**
+   * Buckets with a fixed schema and capacity.
+   */
+  private static final class State {
+    final int schema;
+    final Buckets positive;
+    final Buckets negative; // null until the first negative observation
+    final State previous;
+
+    State(int schema, Buckets positive, Buckets negative, State previous) {
+      this.schema = schema;
+      this.positive = positive;
+      this.negative = negative;
+      this.previous = previous;
+    }
+
+    /**
+     * @return false if {@code abs} does not fit.
+     */
+    boolean add(double abs, boolean negative) {
+      Buckets buckets = negative ? this.negative : positive;
+      return buckets != null && buckets.add(bucketIndex(abs, negative, schema));
+    }
+  }
+
+  /**
+   * Counts for a range of bucket indexes.
+   * <p>
+   * The counts are stored in a ring buffer: The count for index {@code i} is in slot {@code i mod capacity}.
+   * The range of indexes in use is stored as a single {@code long} so that it can be extended with a CAS,
+   * and it is never extended to more than {@code capacity} indexes, so that each slot belongs to exactly one index.
+   */
+  private static final class Buckets {
+
+    static final long EMPTY = pack(Integer.MAX_VALUE, Integer.MIN_VALUE);
+
+    final AtomicLongArray counts;
+    final AtomicLong range;
+
+    Buckets(int capacity, long range) {
+      this.counts = new AtomicLongArray(capacity);
+      this.range = new AtomicLong(range);
+    }
+
+    static long pack(int min, int max) {
+      return ((long) min << 32) | (max & 0xFFFFFFFFL);
+    }
+
+    static int min(long range) {
+      return (int) (range >> 32);
+    }
+
+    static int max(long range) {
+      return (int) range;
+    }
+
+    static long extend(long range, int index) {
+      return pack(Math.min(min(range), index), Math.max(max(range), index));
+    }
+
+    static int span(long range) {
+      return range == EMPTY ? 0 : max(range) - min(range) + 1;
+    }
+
+    boolean add(int index) {
+      long r = range.get();
+      while (index < min(r) || index > max(r)) {
+        long extended = extend(r, index);
+        if (span(extended) > counts.length()) {
+          return false;
+        }
+        if (range.compareAndSet(r, extended)) {
+          break;
+        }
+        r = range.get();
+      }
+      counts.incrementAndGet(slot(index));
+      return true;
+    }
+
+    private int slot(int index) {
+      int slot = index % counts.length();
+      return slot < 0 ? slot + counts.length() : slot;
+    }
+
+    /**
+     * Add the non-zero counts to {@code result}, with indexes reduced by {@code reduceBy} schema steps.
+     *
+     * @return the total count.
+     */
+    long collect(int reduceBy, SortedMap<Integer, Long> result) {
+      long r = range.get();
+      long total = 0;
+      if (r == EMPTY) {
+        return total;
+      }
+      for (int index = min(r); index <= max(r); index++) {
+        long count = counts.get(slot(index));
+        if (count > 0) {
+          Integer key = reduceIndex(index, reduceBy);
+          Long previous = result.get(key);
+          result.put(key, previous == null ? count : previous + count);
+          total += count;
+        }
+      }
+      return total;
+    }
+  }
+
+  /**
+   * Index of the bucket for {@code abs}, i.e. {@code ceil(log_base(abs))} with {@code base = 2^(2^-schema)}.
+   * <p>
+   * The index is computed from the binary exponent and mantissa of {@code abs}, so that powers of two and
+   * other bucket boundaries end up in the correct bucket.
+   *
+   * @param abs must be a positive finite normal number.
+   */
+  static int bucketIndex(double abs, int schema) {
+    int exponent = Math.getExponent(abs);
+    double mantissa = Math.scalb(abs, -exponent); // in [1, 2)
+    if (schema <= 0) {
+      int index = mantissa == 1.0 ? exponent : exponent + 1;
+      return reduceIndex(index, -schema);
+    }
+    double[] bounds = MANTISSA_BOUNDS[schema];
+    int low = 0;
+    int high = bounds.length - 1; // bounds[high] == 2 > mantissa
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (bounds[mid] < mantissa) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return (exponent << schema) + low;
+  }
+
+  /**
+   * Like {@link #bucketIndex(double, int)}, but for a negative observation {@code abs} is in bucket
+   * {@code floor(log_base(abs)) + 1}, so that an observation on a boundary is in the bucket that has
+   * {@code -abs} as its upper bound.
+   */
+  static int bucketIndex(double abs, boolean negative, int schema) {
+    int index = bucketIndex(abs, schema);
+    return negative && upperBound(index, schema) == abs ? index + 1 : index;
+  }
+
+  /**
+   * Upper bound {@code base^index} of the bucket with index {@code index}.
+   */
+  static double upperBound(int index, int schema) {
+    if (schema <= 0) {
+      long exponent = (long) index << -schema;
+      return exponent > Integer.MAX_VALUE ? Double.POSITIVE_INFINITY
+          : exponent < Integer.MIN_VALUE ? 0 : Math.scalb(1.0, (int) exponent);
+    }
+    int exponent = index >> schema;
+    return Math.scalb(MANTISSA_BOUNDS[schema][index - (exponent << schema)], exponent);
+  }
+
+  /**
+   * Index of the bucket containing bucket {@code index} after reducing the schema by {@code by},
+   * i.e. {@code ceil(index / 2^by)}.
+   */
+  static int reduceIndex(int index, int by) {
+    return (int) (((long) index + (1L << by) - 1) >> by);
+  }
+
+  // Convenience methods.
+
+  /**
+   * Observe the given amount on the histogram with no labels.
+   *
+   * @param amt see {@link Child#observe(double)}.
+   */
+  public void observe(double amt) {
+    noLabelsChild.observe(amt);
+  }
+
+  /**
+   * Start a timer to track a duration on the histogram with no labels.
+   * <p>
+   * Call {@link Timer#observeDuration} at the end of what you want to measure the duration of.
+   */
+  public Timer startTimer() {
+    return noLabelsChild.startTimer();
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+    List<String> labelNamesWithLe = new ArrayList<String>(labelNames);
+    labelNamesWithLe.add("le");
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      Child.Value v = c.getValue().get();
+      double cumulativeCount = 0;
+      for (Map.Entry<Double, Long> bucket : classicBuckets(v).entrySet()) {
+        cumulativeCount += bucket.getValue();
+        addBucket(samples, labelNamesWithLe, c.getKey(), bucket.getKey(), cumulativeCount);
+      }
+      addBucket(samples, labelNamesWithLe, c.getKey(), Double.POSITIVE_INFINITY, v.count);
+      samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), v.count));
+      samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, c.getKey(), v.sum));
+      if (Environment.includeCreatedSeries()) {
+        samples.add(new MetricFamilySamples.Sample(fullname + "_created", labelNames, c.getKey(), v.created / 1000.0));
+      }
+    }
+    return familySamplesList(Type.HISTOGRAM, samples);
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    return collectVisited(sampleNameFilter);
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    visitChildrenOverflow(visitor, sampleNameFilter);
+    String bucketName = fullname + "_bucket";
+    String countName = fullname + "_count";
+    String sumName = fullname + "_sum";
+    String createdName = fullname + "_created";
+    boolean bucket = isIncluded(sampleNameFilter, bucketName);
+    boolean count = isIncluded(sampleNameFilter, countName);
+    boolean sum = isIncluded(sampleNameFilter, sumName);
+    boolean created = Environment.includeCreatedSeries() && isIncluded(sampleNameFilter, createdName);
+    if (!visitFamily(visitor, Type.HISTOGRAM, sampleNameFilter, bucket || count || sum || created)) {
+      return;
+    }
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      Child.Value v = c.getValue().get();
+      if (bucket) {
+        double cumulativeCount = 0;
+        for (Map.Entry<Double, Long> b : classicBuckets(v).entrySet()) {
+          cumulativeCount += b.getValue();
+          visitor.visitSample(bucketName, labelNames, c.getKey(), "le", doubleToGoString(b.getKey()), cumulativeCount, null, null);
+        }
+        visitor.visitSample(bucketName, labelNames, c.getKey(), "le", "+Inf", v.count, null, null);
+      }
+      if (count) {
+        visitor.visitSample(countName, labelNames, c.getKey(), null, null, v.count, null, null);
+      }
+      if (sum) {
+        visitor.visitSample(sumName, labelNames, c.getKey(), null, null, v.sum, null, null);
+      }
+      if (created) {
+        visitor.visitSample(createdName, labelNames, c.getKey(), null, null, v.created / 1000.0, null, null);
+      }
+    }
+  }
+
+  /**
+   * The counts of the classic buckets of {@code v} by their upper bound, with the resolution of {@link #minSchema}.
+   * Not including {@code +Inf}.
+   * <p>
+   * The schema of a child is never reduced below {@code minSchema}, so each upper bound is a bucket boundary of the
+   * child and the cumulative counts are exact.
+   */
+  private SortedMap<Double, Long> classicBuckets(Child.Value v) {
+    int reduceBy = v.schema - minSchema;
+    SortedMap<Double, Long> result = new TreeMap<Double, Long>();
+    for (Map.Entry<Integer, Long> b : v.negativeBuckets.entrySet()) {
+      // Bucket i contains (-base^i, -base^(i-1)].
+      addClassicBucket(result, -upperBound(reduceIndex(b.getKey(), reduceBy) - 1, minSchema), b.getValue());
+    }
+    if (v.zeroCount > 0) {
+      addClassicBucket(result, v.zeroThreshold, v.zeroCount);
+    }
+    for (Map.Entry<Integer, Long> b : v.positiveBuckets.entrySet()) {
+      addClassicBucket(result, upperBound(reduceIndex(b.getKey(), reduceBy), minSchema), b.getValue());
+    }
+    return result;
+  }
+
+  private static void addClassicBucket(SortedMap<Double, Long> buckets, double le, long count) {
+    if (le == Double.POSITIVE_INFINITY) {
+      return; // counted in the +Inf bucket
+    }
+    Long previous = buckets.get(le);
+    buckets.put(le, previous == null ? count : previous + count);
+  }
+
+  private void addBucket(List<MetricFamilySamples.Sample> samples, List<String> labelNamesWithLe, List<String> labelValues, double le, double cumulativeCount) {
+    List<String> labelValuesWithLe = new ArrayList<String>(labelValues);
+    labelValuesWithLe.add(doubleToGoString(le));
+    samples.add(new MetricFamilySamples.Sample(fullname + "_bucket", labelNamesWithLe, labelValuesWithLe, cumulativeCount));
+  }
+
+  @Override
+  public List<MetricFamilySamples> describe() {
+    return familySamplesList(
+        new MetricFamilySamples(fullname, Type.HISTOGRAM, help, Collections.<MetricFamilySamples.Sample>emptyList()));
+  }
+}
@@ -0,0 +1,122 @@
+package io.prometheus.client;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Common functionality for {@link GaugeFunction} and {@link CounterFunction}.
+ * <p>
+ * Each set of label values has a callback that is evaluated when the metric is collected.
+ * The callback gets the observed object, which is only weakly referenced: Once the object is garbage collected,
+ * its label values are removed.
+ */
+public abstract class FunctionCollector extends SimpleCollector<FunctionCollector.Callback> implements Collector.Describable {
+
+  private final Type type;
+  private final String sampleName;
+
+  FunctionCollector(SimpleCollector.Builder b, Type type, String sampleSuffix) {
+    super(b);
+    if (b.maxChildren > 0 || b.childIdleTimeoutNanos > 0) {
+      throw new IllegalStateException("maxChildren and childIdleTimeout are not supported for callbacks.");
+    }
+    this.type = type;
+    this.sampleName = fullname + sampleSuffix;
+  }
+
+  /**
+   * The callback for one set of label values. Callbacks are created with
+   * {@link #add(Object, ToDoubleFunction, String...)} and have no methods to update them.
+   */
+  public static final class Callback {
+    private final WeakReference<Object> ref;
+    private final ToDoubleFunction<Object> function;
+
+    @SuppressWarnings("unchecked")
+    <T> Callback(T obj, ToDoubleFunction<? super T> function) {
+      this.ref = new WeakReference<Object>(obj);
+      this.function = (ToDoubleFunction<Object>) function;
+    }
+  }
+
+  /**
+   * Report {@code function.applyAsDouble(obj)} for the given label values.
+   * <p>
+   * The {@code function} is called only when the metric is collected, and only if the metric is not excluded
+   * by the sample name filter. Only a weak reference to {@code obj} is kept, so the {@code function} should not
+   * reference {@code obj} itself. When {@code obj} is garbage collected, the label values are removed.
+   * <p>
+   * The {@code function} may be called concurrently by multiple scrapes.
+   * Any previous callback for these label values is replaced.
+   */
+  public <T> void add(T obj, ToDoubleFunction<? super T> function, String... labelValues) {
+    if (obj == null || function == null) {
+      throw new NullPointerException();
+    }
+    setChild(new Callback(obj, function), labelValues);
+  }
+
+  /**
+   * Not supported, as there is no Child to update. Use {@link #add(Object, ToDoubleFunction, String...)} to
+   * report a value for label values.
+   *
+   * @throws UnsupportedOperationException always.
+   */
+  @Override
+  public Callback labels(String... labelValues) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " " + fullname
+        + " has no children to update, use add(obj, function, labelValues) to add a callback for label values.");
+  }
+
+  /**
+   * Not supported, callbacks are added with {@link #add(Object, ToDoubleFunction, String...)}.
+   */
+  @Override
+  protected Callback newChild() {
+    throw new UnsupportedOperationException("Use add() to add a callback for label values.");
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(children.size());
+    for (Map.Entry<List<String>, Callback> c : children.entrySet()) {
+      Object obj = c.getValue().ref.get();
+      if (obj == null) {
+        removeCollected(c.getKey(), c.getValue());
+      } else {
+        samples.add(new MetricFamilySamples.Sample(sampleName, labelNames, c.getKey(), c.getValue().function.applyAsDouble(obj)));
+      }
+    }
+    return familySamplesList(type, samples);
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    // Don't call the callbacks if the result is discarded anyway.
+    return isIncluded(sampleNameFilter, sampleName) ? collect() : Collections.<MetricFamilySamples>emptyList();
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    if (!visitFamily(visitor, type, sampleNameFilter, isIncluded(sampleNameFilter, sampleName))) {
+      return;
+    }
+    for (Map.Entry<List<String>, Callback> c : children.entrySet()) {
+      Object obj = c.getValue().ref.get();
+      if (obj == null) {
+        removeCollected(c.getKey(), c.getValue());
+      } else {
+        visitor.visitSample(sampleName, labelNames, c.getKey(), null, null, c.getValue().function.applyAsDouble(obj), null, null);
+      }
+    }
+  }
+
+  private void removeCollected(List<String> labelValues, Callback callback) {
+    // Don't remove a callback that was added for the same label values in the meantime.
+    removeIfSame(labelValues, callback);
+  }
+}
@@ -1,11 +1,12 @@
 package io.prometheus.client;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Gauge metric, to report instantaneous values.
@@ -62,18 +63,74 @@ import java.util.concurrent.Callable;
  * <p>
  * These can be aggregated and processed together much more easily in the Prometheus
  * server than individual metrics for each labelset.
+ * <p>
+ * Gauges that are mostly {@link #set(double) set} rather than incremented, for example from callbacks
+ * reporting the size of a pool, can be created with {@link Builder#optimizeForSet()}.
+ * <p>
+ * Gauges of applications that run as several processes can keep their values in a {@link MultiProcessStorage},
+ * see {@link Builder#multiProcess(MultiProcessStorage, MultiProcessStorage.GaugeMode)}.
  */
 public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Describable {
 
+  private final boolean optimizeForSet;
+  private final MultiProcessStorage multiProcessStorage;
+  private final MultiProcessStorage.GaugeMode multiProcessMode;
+
   Gauge(Builder b) {
     super(b);
+    this.optimizeForSet = b.optimizeForSet;
+    this.multiProcessStorage = b.multiProcessStorage;
+    this.multiProcessMode = b.multiProcessMode;
+    initializeNoLabelsChild();
   }
 
   public static class Builder extends SimpleCollector.Builder<Builder, Gauge> {
+
+    private boolean optimizeForSet = false;
+    private MultiProcessStorage multiProcessStorage = null;
+    private MultiProcessStorage.GaugeMode multiProcessMode = null;
+
     @Override
     public Gauge create() {
+      if (multiProcessMode == MultiProcessStorage.GaugeMode.ALL) {
+        for (String label : labelNames) {
+          if (label.equals("pid")) {
+            throw new IllegalStateException("Multi-process gauge cannot have a label named 'pid'.");
+          }
+        }
+      }
+      dontInitializeNoLabelsChild = true;
       return new Gauge(this);
     }
+
+    /**
+     * Store the value in a single {@code AtomicLong} instead of a striped {@link DoubleAdder}.
+     * <p>
+     * {@link Child#set(double) set()} becomes a single volatile write and is atomic with respect to concurrent
+     * {@link Child#inc(double) inc()} calls. {@code inc()} and {@code dec()} use a compare-and-set loop,
+     * which is slower than the default if many threads increment the same gauge concurrently.
+     */
+    public Builder optimizeForSet() {
+      this.optimizeForSet = true;
+      return this;
+    }
+
+    /**
+     * Keep the values in a file shared with other processes, which are exported by a {@link MultiProcessCollector}.
+     * <p>
+     * Each update is a locked read-modify-write of the memory-mapped file, which is slower than the
+     * default in-memory adders.
+     *
+     * @param mode how the {@link MultiProcessCollector} combines the values of the processes.
+     */
+    public Builder multiProcess(MultiProcessStorage storage, MultiProcessStorage.GaugeMode mode) {
+      if (storage == null || mode == null) {
+        throw new NullPointerException();
+      }
+      this.multiProcessStorage = storage;
+      this.multiProcessMode = mode;
+      return this;
+    }
   }
 
   /**
@@ -95,7 +152,16 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
 
   @Override
   protected Child newChild() {
-    return new Child();
+    return new Child(optimizeForSet, null);
+  }
+
+  @Override
+  protected Child newChild(List<String> labelValues) {
+    if (multiProcessStorage == null) {
+      return newChild();
+    }
+    return new Child(false, multiProcessStorage.slot(fullname, Type.GAUGE, multiProcessMode, help,
+        fullname, labelNames, labelValues));
   }
 
    /**
@@ -135,10 +201,24 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
    */
   public static class Child {
 
-    private final DoubleAdder value = new DoubleAdder();
+    // Exactly one of value, bits and slot is used: slot if the gauge is stored in a MultiProcessStorage,
+    // otherwise bits holds the raw long bits of the double value if the gauge is optimized for set().
+    private final DoubleAdder value;
+    private final AtomicLong bits;
+    private final MultiProcessStorage.Slot slot;
 
     static TimeProvider timeProvider = new TimeProvider();
 
+    public Child() {
+      this(false, null);
+    }
+
+    private Child(boolean optimizeForSet, MultiProcessStorage.Slot slot) {
+      this.value = slot == null && !optimizeForSet ? new DoubleAdder() : null;
+      this.bits = slot == null && optimizeForSet ? new AtomicLong(Double.doubleToRawLongBits(0.0)) : null;
+      this.slot = slot;
+    }
+
     /**
      * Increment the gauge by 1.
      */
@@ -149,7 +229,13 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
      * Increment the gauge by the given amount.
      */
     public void inc(double amt) {
-      value.add(amt);
+      if (value != null) {
+        value.add(amt);
+      } else if (bits != null) {
+        add(amt);
+      } else {
+        slot.add(amt);
+      }
     }
     /**
      * Decrement the gauge by 1.
@@ -161,13 +247,26 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
      * Decrement the gauge by the given amount.
      */
     public void dec(double amt) {
-      value.add(-amt);
+      inc(-amt);
     }
     /**
      * Set the gauge to the given value.
      */
     public void set(double val) {
-      value.set(val);
+      if (value != null) {
+        value.set(val);
+      } else if (bits != null) {
+        bits.set(Double.doubleToRawLongBits(val));
+      } else {
+        slot.set(val);
+      }
+    }
+    private void add(double amt) {
+      long prev, next;
+      do {
+        prev = bits.get();
+        next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + amt);
+      } while (!bits.compareAndSet(prev, next));
     }
     /**
      * Set the gauge to the current unixtime.
@@ -229,7 +328,10 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
      * Get the value of the gauge.
      */
     public double get() {
-      return value.sum();
+      if (value != null) {
+        return value.sum();
+      }
+      return bits != null ? Double.longBitsToDouble(bits.get()) : slot.get();
     }
   }
 
@@ -319,9 +421,25 @@ public class Gauge extends SimpleCollector<Gauge.Child> implements Collector.Des
     return familySamplesList(Type.GAUGE, samples);
   }
 
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    return collectVisited(sampleNameFilter);
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    visitChildrenOverflow(visitor, sampleNameFilter);
+    if (!visitFamily(visitor, Type.GAUGE, sampleNameFilter, isIncluded(sampleNameFilter, fullname))) {
+      return;
+    }
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      visitor.visitSample(fullname, labelNames, c.getKey(), null, null, c.getValue().get(), null, null);
+    }
+  }
+
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.<MetricFamilySamples>singletonList(new GaugeMetricFamily(fullname, help, labelNames));
+    return familySamplesList(new GaugeMetricFamily(fullname, help, labelNames));
   }
 
   static class TimeProvider {
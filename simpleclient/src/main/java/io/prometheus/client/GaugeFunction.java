@@ -0,0 +1,66 @@
+package io.prometheus.client;
+
+import java.util.List;
+
+/**
+ * Gauge metric with values that are provided by callbacks when the metric is collected.
+ * <p>
+ * Use this for values that are already tracked elsewhere, like the size of a queue or a connection pool.
+ * Unlike setting a {@link Gauge} on every change, this costs nothing until the metric is scraped.
+ * <p>
+ * Example GaugeFunction:
+ * <pre>
+ * {@code
+ *   class YourClass {
+ *     static final GaugeFunction queueSize = GaugeFunction.build()
+ *         .name("queue_size").help("Number of items in the queue.")
+ *         .labelNames("queue").register();
+ *
+ *     YourClass(BlockingQueue<Task> queue) {
+ *       queueSize.add(queue, new ToDoubleFunction<BlockingQueue<Task>>() {
+ *         public double applyAsDouble(BlockingQueue<Task> q) {
+ *           return q.size();
+ *         }
+ *       }, "tasks");
+ *     }
+ *   }
+ * }
+ * </pre>
+ * Only weak references to the observed objects are held, see {@link #add(Object, ToDoubleFunction, String...)}.
+ */
+public class GaugeFunction extends FunctionCollector {
+
+  GaugeFunction(Builder b) {
+    super(b, Type.GAUGE, "");
+  }
+
+  public static class Builder extends SimpleCollector.Builder<Builder, GaugeFunction> {
+    @Override
+    public GaugeFunction create() {
+      dontInitializeNoLabelsChild = true;
+      return new GaugeFunction(this);
+    }
+  }
+
+  /**
+   *  Return a Builder to allow configuration of a new GaugeFunction. Ensures required fields are provided.
+   *
+   *  @param name The name of the metric
+   *  @param help The help string of the metric
+   */
+  public static Builder build(String name, String help) {
+    return new Builder().name(name).help(help);
+  }
+
+  /**
+   *  Return a Builder to allow configuration of a new GaugeFunction.
+   */
+  public static Builder build() {
+    return new Builder();
+  }
+
+  @Override
+  public List<MetricFamilySamples> describe() {
+    return familySamplesList(new GaugeMetricFamily(fullname, help, labelNames));
+  }
+}
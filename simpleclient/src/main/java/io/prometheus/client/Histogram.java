@@ -5,12 +5,14 @@ import io.prometheus.client.exemplars.ExemplarConfig;
 import io.prometheus.client.exemplars.HistogramExemplarSampler;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
@@ -67,17 +69,35 @@ import static java.lang.Boolean.TRUE;
  * {@link Histogram.Builder#linearBuckets(double, double, int) linearBuckets} and
  * {@link Histogram.Builder#exponentialBuckets(double, double, int) exponentialBuckets}
  * offer easy ways to set common bucket patterns.
+ * <p>
+ * Histograms of applications that run as several processes can keep their values in a {@link MultiProcessStorage},
+ * see {@link Builder#multiProcess(MultiProcessStorage)}.
+ * <p>
+ * By default, the buckets and the sum are read one after the other while observations continue, so within a scrape
+ * {@code _sum} may include a few observations that {@code _count} and the buckets don't, or vice versa.
+ * {@link Builder#consistentSnapshots()} avoids that at a cost for each observation.
  */
 public class Histogram extends SimpleCollector<Histogram.Child> implements Collector.Describable {
   private final double[] buckets;
+  private final BucketIndex bucketIndex;
+  private final String[] leLabelValues; // formatted buckets, so that collect() doesn't need to format them
   private final Boolean exemplarsEnabled; // null means default from ExemplarConfig applies
   private final HistogramExemplarSampler exemplarSampler;
+  private final MultiProcessStorage multiProcessStorage;
+  private final boolean consistentSnapshots;
 
   Histogram(Builder b) {
     super(b);
+    this.consistentSnapshots = b.consistentSnapshots;
     this.exemplarsEnabled = b.exemplarsEnabled;
     this.exemplarSampler = b.exemplarSampler;
+    this.multiProcessStorage = b.multiProcessStorage;
     buckets = b.buckets;
+    bucketIndex = BucketIndex.create(buckets, b.bucketLayout, b.bucketStart, b.bucketWidthOrFactor);
+    leLabelValues = new String[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      leLabelValues[i] = doubleToGoString(buckets[i]);
+    }
     initializeNoLabelsChild();
   }
 
@@ -85,7 +105,14 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
 
     private Boolean exemplarsEnabled = null;
     private HistogramExemplarSampler exemplarSampler = null;
+    private MultiProcessStorage multiProcessStorage = null;
+    private boolean consistentSnapshots = false;
     private double[] buckets = new double[] { .005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10 };
+    // Remember how linearBuckets() and exponentialBuckets() created the buckets,
+    // so that the bucket for an observation can be computed rather than searched.
+    private BucketIndex.Layout bucketLayout = BucketIndex.Layout.EXPLICIT;
+    private double bucketStart;
+    private double bucketWidthOrFactor;
 
     @Override
     public Histogram create() {
@@ -120,6 +147,7 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
      */
     public Builder buckets(double... buckets) {
       this.buckets = buckets;
+      this.bucketLayout = BucketIndex.Layout.EXPLICIT;
       return this;
     }
 
@@ -131,6 +159,9 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       for (int i = 0; i < count; i++) {
         buckets[i] = start + i * width;
       }
+      bucketLayout = BucketIndex.Layout.LINEAR;
+      bucketStart = start;
+      bucketWidthOrFactor = width;
       return this;
     }
 
@@ -142,6 +173,9 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       for (int i = 0; i < count; i++) {
         buckets[i] = start * Math.pow(factor, i);
       }
+      bucketLayout = BucketIndex.Layout.EXPONENTIAL;
+      bucketStart = start;
+      bucketWidthOrFactor = factor;
       return this;
     }
 
@@ -178,6 +212,36 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       this.exemplarsEnabled = FALSE;
       return this;
     }
+
+    /**
+     * Read the buckets and the sum of a child as a consistent snapshot, so that each observation is either
+     * included in all of {@code _bucket}, {@code _count} and {@code _sum} of a scrape, or in none of them.
+     * <p>
+     * Each observation is registered with one of two buffers before it is added, and collecting a child switches
+     * the buffers and waits until the observations registered with the previous buffer are complete.
+     * {@code observe()} stays lock-free, but costs an additional atomic update, and a scrape may have to wait for
+     * an application thread that was descheduled in the middle of an observation.
+     * Ignored for {@link #multiProcess(MultiProcessStorage) multi-process} histograms.
+     */
+    public Builder consistentSnapshots() {
+      this.consistentSnapshots = true;
+      return this;
+    }
+
+    /**
+     * Keep the values in a file shared with other processes, which are exported by a {@link MultiProcessCollector}.
+     * <p>
+     * Each observation is a locked read-modify-write of a bucket count and of the sum in the memory-mapped file,
+     * which is slower than the default in-memory adders. The {@code _created} series is not exported for
+     * multi-process histograms.
+     */
+    public Builder multiProcess(MultiProcessStorage storage) {
+      if (storage == null) {
+        throw new NullPointerException();
+      }
+      this.multiProcessStorage = storage;
+      return this;
+    }
   }
 
   /**
@@ -199,7 +263,27 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
 
   @Override
   protected Child newChild() {
-    return new Child(buckets, exemplarsEnabled, exemplarSampler);
+    return new Child(bucketIndex, exemplarsEnabled, exemplarSampler, consistentSnapshots, null, null);
+  }
+
+  @Override
+  protected Child newChild(List<String> labelValues) {
+    if (multiProcessStorage == null) {
+      return newChild();
+    }
+    // Buckets are stored as non-cumulative counts, so that the MultiProcessCollector can simply add them up.
+    List<String> labelNamesWithLe = new ArrayList<String>(labelNames);
+    labelNamesWithLe.add("le");
+    MultiProcessStorage.Slot[] bucketSlots = new MultiProcessStorage.Slot[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      List<String> labelValuesWithLe = new ArrayList<String>(labelValues);
+      labelValuesWithLe.add(leLabelValues[i]);
+      bucketSlots[i] = multiProcessStorage.slot(fullname, Type.HISTOGRAM, null, help,
+          fullname + "_bucket", labelNamesWithLe, labelValuesWithLe);
+    }
+    MultiProcessStorage.Slot sumSlot = multiProcessStorage.slot(fullname, Type.HISTOGRAM, null, help,
+        fullname + "_sum", labelNames, labelValues);
+    return new Child(bucketIndex, exemplarsEnabled, exemplarSampler, false, bucketSlots, sumSlot);
   }
 
   /**
@@ -338,24 +422,54 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       }
     }
 
-    private Child(double[] buckets, Boolean exemplarsEnabled, HistogramExemplarSampler exemplarSampler) {
+    private Child(BucketIndex bucketIndex, Boolean exemplarsEnabled, HistogramExemplarSampler exemplarSampler,
+                  boolean consistentSnapshots, MultiProcessStorage.Slot[] bucketSlots, MultiProcessStorage.Slot sumSlot) {
+      double[] buckets = bucketIndex.upperBounds;
+      this.bucketIndex = bucketIndex;
       upperBounds = buckets;
       this.exemplarsEnabled = exemplarsEnabled;
       this.exemplarSampler = exemplarSampler;
+      this.bucketSlots = bucketSlots;
+      this.sumSlot = sumSlot;
       exemplars = new ArrayList<AtomicReference<Exemplar>>(buckets.length);
-      cumulativeCounts = new DoubleAdder[buckets.length];
       for (int i = 0; i < buckets.length; ++i) {
-        cumulativeCounts[i] = new DoubleAdder();
         exemplars.add(new AtomicReference<Exemplar>());
       }
+      if (bucketSlots == null && !consistentSnapshots) {
+        counts = new LongAdder[buckets.length];
+        for (int i = 0; i < buckets.length; ++i) {
+          counts[i] = new LongAdder();
+        }
+        sum = new DoubleAdder();
+      } else {
+        counts = null;
+        sum = null;
+      }
+      if (bucketSlots == null && consistentSnapshots) {
+        this.buffers = new Buffer[]{new Buffer(buckets.length), new Buffer(buckets.length)};
+      } else {
+        this.buffers = null;
+      }
     }
 
     private final ArrayList<AtomicReference<Exemplar>> exemplars;
     private final Boolean exemplarsEnabled;
     private final HistogramExemplarSampler exemplarSampler;
+    private final BucketIndex bucketIndex;
     private final double[] upperBounds;
-    private final DoubleAdder[] cumulativeCounts;
-    private final DoubleAdder sum = new DoubleAdder();
+    // Non-cumulative bucket counts. Bucket counts are whole numbers, so they use long adders.
+    // Only one of counts and sum, buffers, or bucketSlots and sumSlot is used:
+    // With consistentSnapshots, observations go to the hot buffer and get() switches buffers, see Buffer.
+    // If the histogram is stored in a MultiProcessStorage, the slots are used.
+    private final LongAdder[] counts;
+    private final DoubleAdder sum;
+    private final Buffer[] buffers; // also the lock for snapshot()
+    private volatile int hot; // index of the hot buffer
+    // How often snapshot() yields before it parks while waiting for pending observations.
+    private static final int SNAPSHOT_SPINS = 100;
+    private static final long SNAPSHOT_PARK_NANOS = 10000;
+    private final MultiProcessStorage.Slot[] bucketSlots;
+    private final MultiProcessStorage.Slot sumSlot;
     private final long created = System.currentTimeMillis();
 
     /**
@@ -388,17 +502,50 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
      */
     public void observeWithExemplar(double amt, String... exemplarLabels) {
       Exemplar exemplar = exemplarLabels == null ? null : new Exemplar(amt, System.currentTimeMillis(), exemplarLabels);
-      for (int i = 0; i < upperBounds.length; ++i) {
-        // The last bucket is +Inf, so we always increment.
-        if (amt <= upperBounds[i]) {
-          cumulativeCounts[i].add(1);
+      int i = bucketIndex.indexOf(amt);
+      // The last bucket is +Inf, so we always increment unless amt is NaN.
+      if (bucketSlots != null) {
+        if (i >= 0) {
+          bucketSlots[i].add(1);
+          updateExemplar(amt, i, exemplar);
+        }
+        sumSlot.add(amt);
+        return;
+      }
+      if (buffers != null) {
+        Buffer buffer = acquireHotBuffer(1);
+        buffer.sum.add(amt);
+        // Counting the observation completes it, so the sum must be added first.
+        buffer.counts[i >= 0 ? i : buffer.nanIndex()].increment();
+        if (i >= 0) {
           updateExemplar(amt, i, exemplar);
-          break;
         }
+        return;
+      }
+      if (i >= 0) {
+        counts[i].increment();
+        updateExemplar(amt, i, exemplar);
       }
       sum.add(amt);
     }
 
+    /**
+     * Register {@code n} observations with the hot buffer. The caller must then add them to the sum and the counts
+     * of the returned buffer.
+     */
+    private Buffer acquireHotBuffer(long n) {
+      while (true) {
+        int h = hot;
+        Buffer buffer = buffers[h];
+        buffer.started.add(n);
+        if (hot == h) {
+          return buffer;
+        }
+        // get() switched buffers in the meantime and may be waiting for this buffer. Undo and use the new hot buffer.
+        buffer.started.add(-n);
+      }
+    }
+
     /**
      * Like {@link #observeWithExemplar(double, String...)}, but the exemplar labels are passed as a {@link Map}.
      */
@@ -406,6 +553,64 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       observeWithExemplar(amt, Exemplar.mapToArray(exemplarLabels));
     }
 
+    /**
+     * Observe {@code values[offset]} to {@code values[offset + len - 1]}.
+     * <p>
+     * The values are counted per bucket locally first, and then added to each bucket that was hit and to the sum
+     * with a single update each. This is cheaper than calling {@link #observe(double)} for each value.
+     * The exemplar sampler is called once per bucket that was hit, with the last value in that bucket.
+     */
+    public void observe(double[] values, int offset, int len) {
+      if (offset < 0 || len < 0 || offset > values.length - len) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (len == 0) {
+        return;
+      }
+      long[] counts = new long[upperBounds.length + 1]; // the last one counts NaN
+      double[] lastValues = new double[upperBounds.length];
+      double batchSum = 0;
+      for (int j = offset; j < offset + len; j++) {
+        double amt = values[j];
+        int i = bucketIndex.indexOf(amt);
+        if (i >= 0) {
+          counts[i]++;
+          lastValues[i] = amt;
+        } else {
+          counts[upperBounds.length]++;
+        }
+        batchSum += amt;
+      }
+      if (bucketSlots != null) {
+        for (int i = 0; i < upperBounds.length; i++) {
+          if (counts[i] > 0) {
+            bucketSlots[i].add(counts[i]);
+          }
+        }
+        sumSlot.add(batchSum);
+      } else if (buffers == null) {
+        for (int i = 0; i < upperBounds.length; i++) {
+          if (counts[i] > 0) {
+            this.counts[i].add(counts[i]);
+          }
+        }
+        sum.add(batchSum);
+      } else {
+        Buffer buffer = acquireHotBuffer(len);
+        buffer.sum.add(batchSum);
+        for (int i = 0; i < counts.length; i++) {
+          if (counts[i] > 0) {
+            buffer.counts[i].add(counts[i]);
+          }
+        }
+      }
+      for (int i = 0; i < upperBounds.length; i++) {
+        if (counts[i] > 0) {
+          updateExemplar(lastValues[i], i, null);
+        }
+      }
+    }
+
     private void updateExemplar(double amt, int i, Exemplar userProvidedExemplar) {
       AtomicReference<Exemplar> exemplar = exemplars.get(i);
       double bucketFrom = i == 0 ? Double.NEGATIVE_INFINITY : upperBounds[i - 1];
@@ -452,18 +657,128 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
     /**
      * Get the value of the Histogram.
      * <p>
+     * With {@link Builder#consistentSnapshots()}, the buckets and the sum are a consistent snapshot:
+     * each observation is either fully included or not at all.
+     * <p>
      * <em>Warning:</em> The definition of {@link Value} is subject to change.
      */
     public Value get() {
-      double[] buckets = new double[cumulativeCounts.length];
-      Exemplar[] exemplars = new Exemplar[cumulativeCounts.length];
-      double acc = 0;
-      for (int i = 0; i < cumulativeCounts.length; ++i) {
-        acc += cumulativeCounts[i].sum();
-        buckets[i] = acc;
+      double[] buckets = new double[upperBounds.length];
+      Exemplar[] exemplars = new Exemplar[upperBounds.length];
+      double sum;
+      if (bucketSlots != null) {
+        long acc = 0;
+        for (int i = 0; i < upperBounds.length; ++i) {
+          acc += (long) bucketSlots[i].get();
+          buckets[i] = acc;
+        }
+        sum = sumSlot.get();
+      } else if (buffers == null) {
+        long acc = 0;
+        for (int i = 0; i < upperBounds.length; ++i) {
+          acc += counts[i].sum();
+          buckets[i] = acc;
+        }
+        sum = this.sum.sum();
+      } else {
+        long[] counts = new long[upperBounds.length + 1];
+        sum = snapshot(counts);
+        long acc = 0;
+        for (int i = 0; i < upperBounds.length; ++i) {
+          acc += counts[i];
+          buckets[i] = acc;
+        }
+      }
+      for (int i = 0; i < upperBounds.length; ++i) {
         exemplars[i] = this.exemplars.get(i).get();
       }
-      return new Value(sum.sum(), buckets, exemplars, created);
+      return new Value(sum, buckets, exemplars, created);
+    }
+
+    /**
+     * Switch buffers, wait until the observations that are still writing to the previous hot buffer are complete,
+     * and move its content to the new hot buffer.
+     *
+     * @param counts receives the counts of the snapshot.
+     * @return the sum of the snapshot.
+     */
+    private double snapshot(long[] counts) {
+      synchronized (buffers) {
+        return snapshotLocked(counts);
+      }
+    }
+
+    private double snapshotLocked(long[] counts) {
+      int h = hot;
+      Buffer cold = buffers[h];
+      Buffer newHot = buffers[1 - h];
+      hot = 1 - h;
+      // Observations that registered with the cold buffer before the switch are complete once they are counted.
+      // Observations that register after the switch see the new hot buffer and undo their registration.
+      for (int spins = 0; ; spins++) {
+        long started = cold.started.sum();
+        long completed = cold.moved;
+        for (LongAdder count : cold.counts) {
+          completed += count.sum();
+        }
+        if (completed == started) {
+          break;
+        }
+        // A writer that is still pending was most likely descheduled, don't burn a core waiting for it.
+        if (spins < SNAPSHOT_SPINS) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(SNAPSHOT_PARK_NANOS);
+        }
+      }
+      // There are no writers to the cold buffer's counts and sum anymore.
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = cold.counts[i].sum();
+        cold.counts[i].reset();
+        total += counts[i];
+      }
+      double sum = cold.sum.sum();
+      cold.sum.reset();
+      cold.moved += total;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] > 0) {
+          newHot.counts[i].add(counts[i]);
+        }
+      }
+      newHot.sum.add(sum);
+      newHot.started.add(total);
+      return sum;
+    }
+
+    /**
+     * One of the two buffers of a Child.
+     * <p>
+     * Writers register with the hot buffer by incrementing {@link #started}, add the value to {@link #sum},
+     * and complete the observation by incrementing its bucket in {@link #counts}, all without locking.
+     * {@link #snapshot(long[])} makes the other buffer hot, waits until all observations in the cold buffer are
+     * complete, and then moves the cold buffer's counts and sum to the hot buffer. This way {@code _count},
+     * {@code _sum} and the buckets agree within a scrape, which they wouldn't if the adders were read while
+     * writers keep going.
+     */
+    private static class Buffer {
+      // Observations that registered with this buffer, including moved ones. Never reset.
+      final LongAdder started = new LongAdder();
+      // Non-cumulative bucket counts, followed by the count of NaN observations, which are in no bucket.
+      final LongAdder[] counts;
+      final DoubleAdder sum = new DoubleAdder();
+      long moved; // observations moved to the other buffer, guarded by the Child's buffers array
+
+      Buffer(int buckets) {
+        counts = new LongAdder[buckets + 1];
+        for (int i = 0; i < counts.length; i++) {
+          counts[i] = new LongAdder();
+        }
+      }
+
+      int nanIndex() {
+        return counts.length - 1;
+      }
     }
   }
 
@@ -481,6 +796,13 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
     noLabelsChild.observe(amt);
   }
 
+  /**
+   * Like {@link Child#observe(double[], int, int)}, but for the histogram without labels.
+   */
+  public void observe(double[] values, int offset, int len) {
+    noLabelsChild.observe(values, offset, len);
+  }
+
   /**
    * Like {@link Child#observeWithExemplar(double, String...)}, but for the histogram without labels.
    */
@@ -569,7 +891,7 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
       labelNamesWithLe.add("le");
       for (int i = 0; i < v.buckets.length; ++i) {
         List<String> labelValuesWithLe = new ArrayList<String>(c.getKey());
-        labelValuesWithLe.add(doubleToGoString(buckets[i]));
+        labelValuesWithLe.add(leLabelValues[i]);
         samples.add(new MetricFamilySamples.Sample(fullname + "_bucket", labelNamesWithLe, labelValuesWithLe, v.buckets[i], v.exemplars[i]));
       }
       samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), v.buckets[buckets.length-1]));
@@ -582,9 +904,47 @@ public class Histogram extends SimpleCollector<Histogram.Child> implements Colle
     return familySamplesList(Type.HISTOGRAM, samples);
   }
 
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    return collectVisited(sampleNameFilter);
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    visitChildrenOverflow(visitor, sampleNameFilter);
+    String bucketName = fullname + "_bucket";
+    String countName = fullname + "_count";
+    String sumName = fullname + "_sum";
+    String createdName = fullname + "_created";
+    boolean bucket = isIncluded(sampleNameFilter, bucketName);
+    boolean count = isIncluded(sampleNameFilter, countName);
+    boolean sum = isIncluded(sampleNameFilter, sumName);
+    boolean created = Environment.includeCreatedSeries() && isIncluded(sampleNameFilter, createdName);
+    if (!visitFamily(visitor, Type.HISTOGRAM, sampleNameFilter, bucket || count || sum || created)) {
+      return;
+    }
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      Child.Value v = c.getValue().get();
+      if (bucket) {
+        for (int i = 0; i < v.buckets.length; ++i) {
+          visitor.visitSample(bucketName, labelNames, c.getKey(), "le", leLabelValues[i], v.buckets[i], v.exemplars[i], null);
+        }
+      }
+      if (count) {
+        visitor.visitSample(countName, labelNames, c.getKey(), null, null, v.buckets[buckets.length - 1], null, null);
+      }
+      if (sum) {
+        visitor.visitSample(sumName, labelNames, c.getKey(), null, null, v.sum, null, null);
+      }
+      if (created) {
+        visitor.visitSample(createdName, labelNames, c.getKey(), null, null, v.created / 1000.0, null, null);
+      }
+    }
+  }
+
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.singletonList(
+    return familySamplesList(
         new MetricFamilySamples(fullname, Type.HISTOGRAM, help, Collections.<MetricFamilySamples.Sample>emptyList()));
   }
 
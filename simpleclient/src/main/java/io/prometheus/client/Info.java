@@ -1,5 +1,6 @@
 package io.prometheus.client;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -164,9 +165,39 @@ public class Info extends SimpleCollector<Info.Child> implements Counter.Describ
     return familySamplesList(Type.INFO, samples);
   }
 
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    return collectVisited(sampleNameFilter);
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    visitChildrenOverflow(visitor, sampleNameFilter);
+    String infoName = fullname + "_info";
+    if (!visitFamily(visitor, Type.INFO, sampleNameFilter, isIncluded(sampleNameFilter, infoName))) {
+      return;
+    }
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      Map<String, String> v = c.getValue().get();
+      if (v.isEmpty()) {
+        visitor.visitSample(infoName, labelNames, c.getKey(), null, null, 1.0, null, null);
+        continue;
+      }
+      List<String> names = new ArrayList<String>(labelNames.size() + v.size());
+      List<String> values = new ArrayList<String>(labelNames.size() + v.size());
+      names.addAll(labelNames);
+      values.addAll(c.getKey());
+      for (Map.Entry<String, String> l : v.entrySet()) {
+        names.add(l.getKey());
+        values.add(l.getValue());
+      }
+      visitor.visitSample(infoName, names, values, null, null, 1.0, null, null);
+    }
+  }
+
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.singletonList(
+    return familySamplesList(
             new MetricFamilySamples(fullname, Type.INFO, help, Collections.<MetricFamilySamples.Sample>emptyList()));
   }
 
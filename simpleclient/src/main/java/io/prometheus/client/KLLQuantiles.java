@@ -0,0 +1,290 @@
+package io.prometheus.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Quantile sketch as described in "Optimal Quantile Approximation in Streams" by Karnin, Lang, and Liberty.
+ * <p>
+ * The retained values are organized in levels, each value at level {@code h} represents {@code 2^h} observations.
+ * New values are added to level 0. If the sketch is full, the lowest level that exceeds its capacity is compacted:
+ * it is sorted, and every other value (starting at a random offset) is promoted to the next level, while the others
+ * are discarded. The capacity of a level is {@code k * (2/3)^d}, where {@code d} is its distance from the top level,
+ * so the sketch retains about {@code 3 * k} values.
+ */
+final class KLLQuantiles extends QuantileEstimator {
+
+    static final int MIN_K = 8;
+    private static final double C = 2.0 / 3.0;
+    private static final int MIN_CAPACITY = 2;
+    private static final int INITIAL_CAPACITY = 256; // level 0 grows as needed for large k
+
+    final int k;
+    private final Random random = new Random();
+
+    double[][] levels = new double[1][];
+    int[] sizes = new int[1];
+    private int[] capacities;
+    private int retained = 0; // sum of sizes
+    private int totalCapacity;
+    long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    // Values and cumulative weights in ascending order, computed in get(). null if there were inserts since.
+    private double[] sortedValues;
+    private long[] cumulativeWeights;
+
+    KLLQuantiles(int k) {
+        if (k < MIN_K) {
+            throw new IllegalArgumentException("k must be at least " + MIN_K);
+        }
+        this.k = k;
+        updateCapacities();
+        levels[0] = new double[Math.min(capacities[0], INITIAL_CAPACITY)];
+    }
+
+    @Override
+    public void insert(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (retained >= totalCapacity) {
+            compress();
+        }
+        if (sizes[0] == levels[0].length) {
+            levels[0] = Arrays.copyOf(levels[0], levels[0].length * 2);
+        }
+        levels[0][sizes[0]++] = value;
+        retained++;
+        count++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        sortedValues = null;
+    }
+
+    @Override
+    public boolean isMergeable() {
+        return true;
+    }
+
+    /**
+     * Append the values of each level of {@code other} to the same level of this, and compact until this
+     * is not full anymore.
+     */
+    @Override
+    public void merge(QuantileEstimator estimator) {
+        KLLQuantiles other = (KLLQuantiles) estimator;
+        if (other.count == 0) {
+            return;
+        }
+        if (other.levels.length > levels.length) {
+            int height = levels.length;
+            levels = Arrays.copyOf(levels, other.levels.length);
+            sizes = Arrays.copyOf(sizes, other.levels.length);
+            updateCapacities();
+            for (int h = height; h < levels.length; h++) {
+                levels[h] = new double[capacities[h]];
+            }
+        }
+        for (int h = 0; h < other.levels.length; h++) {
+            int otherSize = other.sizes[h];
+            if (sizes[h] + otherSize > levels[h].length) {
+                levels[h] = Arrays.copyOf(levels[h], sizes[h] + otherSize);
+            }
+            System.arraycopy(other.levels[h], 0, levels[h], sizes[h], otherSize);
+            sizes[h] += otherSize;
+            retained += otherSize;
+        }
+        while (retained >= totalCapacity) {
+            compress();
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sortedValues = null;
+    }
+
+    /**
+     * The array of level 0 is kept, so that a recycled sketch does not need to grow it again.
+     */
+    @Override
+    public void reset() {
+        levels = Arrays.copyOf(levels, 1);
+        sizes = new int[1];
+        updateCapacities();
+        retained = 0;
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        sortedValues = null;
+    }
+
+    @Override
+    public String encode() {
+        SketchEncoding.Writer writer = new SketchEncoding.Writer()
+                .writeByte(SketchEncoding.KLL)
+                .writeVarLong(k)
+                .writeDouble(min)
+                .writeDouble(max)
+                .writeVarLong(levels.length);
+        for (int h = 0; h < levels.length; h++) {
+            writer.writeVarLong(sizes[h]);
+            for (int i = 0; i < sizes[h]; i++) {
+                writer.writeDouble(levels[h][i]);
+            }
+        }
+        return writer.toBase64();
+    }
+
+    /**
+     * Read a sketch written by {@link #encode()}, after the type.
+     */
+    static KLLQuantiles read(SketchEncoding.Reader reader) {
+        KLLQuantiles result = new KLLQuantiles(reader.readSize(Integer.MAX_VALUE));
+        result.min = reader.readDouble();
+        result.max = reader.readDouble();
+        int height = reader.readSize(62); // weights are 2^h
+        if (height == 0) {
+            throw new IllegalArgumentException("Invalid size 0 in sketch.");
+        }
+        result.levels = new double[height][];
+        result.sizes = new int[height];
+        for (int h = 0; h < height; h++) {
+            int size = reader.readSize(reader.remaining() / 8);
+            result.levels[h] = new double[size];
+            for (int i = 0; i < size; i++) {
+                result.levels[h][i] = reader.readDouble();
+            }
+            result.sizes[h] = size;
+            result.retained += size;
+            result.count += (long) size << h;
+        }
+        reader.checkEnd();
+        result.updateCapacities();
+        while (result.retained >= result.totalCapacity) {
+            result.compress();
+        }
+        return result;
+    }
+
+    private void updateCapacities() {
+        int height = levels.length;
+        capacities = new int[height];
+        totalCapacity = 0;
+        for (int h = 0; h < height; h++) {
+            capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(C, height - 1 - h)));
+            totalCapacity += capacities[h];
+        }
+    }
+
+    /**
+     * Compact the lowest level that is at its capacity. There is such a level, because the sketch is full.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacities[h]) {
+                compact(h);
+                return;
+            }
+        }
+    }
+
+    private void compact(int h) {
+        if (h == levels.length - 1) {
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            sizes = Arrays.copyOf(sizes, sizes.length + 1);
+            updateCapacities();
+            levels[h + 1] = new double[capacities[h + 1]];
+        }
+        double[] level = levels[h];
+        int size = sizes[h];
+        Arrays.sort(level, 0, size);
+        // If the size is odd, the lowest value stays at this level, so that the total weight is preserved.
+        int from = size % 2;
+        int promoted = (size - from) / 2;
+        double[] next = levels[h + 1];
+        if (sizes[h + 1] + promoted > next.length) {
+            next = Arrays.copyOf(next, Math.max(next.length + capacities[h + 1], sizes[h + 1] + promoted));
+            levels[h + 1] = next;
+        }
+        int offset = random.nextBoolean() ? 1 : 0;
+        for (int i = from + offset; i < size; i += 2) {
+            next[sizes[h + 1]++] = level[i];
+        }
+        sizes[h] = from;
+        retained -= promoted;
+        if (level.length > 2 * capacities[h]) {
+            // Lower levels get smaller capacities as the sketch grows, don't keep their old arrays.
+            levels[h] = Arrays.copyOf(level, capacities[h]);
+        }
+    }
+
+    @Override
+    public double get(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q == 0.0) {
+            return min;
+        }
+        if (q == 1.0) {
+            return max;
+        }
+        if (sortedValues == null) {
+            sort();
+        }
+        double rank = q * (count - 1);
+        int i = 0;
+        while (i < sortedValues.length - 1 && cumulativeWeights[i] <= rank) {
+            i++;
+        }
+        return sortedValues[i];
+    }
+
+    /**
+     * Merge the levels into {@link #sortedValues} and {@link #cumulativeWeights}.
+     */
+    private void sort() {
+        double[] values = new double[0];
+        long[] weights = new long[0];
+        for (int h = 0; h < levels.length; h++) {
+            double[] level = Arrays.copyOf(levels[h], sizes[h]);
+            Arrays.sort(level);
+            double[] mergedValues = new double[values.length + level.length];
+            long[] mergedWeights = new long[mergedValues.length];
+            int i = 0, j = 0;
+            for (int w = 0; w < mergedValues.length; w++) {
+                if (j == level.length || (i < values.length && values[i] <= level[j])) {
+                    mergedValues[w] = values[i];
+                    mergedWeights[w] = weights[i++];
+                } else {
+                    mergedValues[w] = level[j++];
+                    mergedWeights[w] = 1L << h;
+                }
+            }
+            values = mergedValues;
+            weights = mergedWeights;
+        }
+        for (int i = 1; i < weights.length; i++) {
+            weights[i] += weights[i - 1];
+        }
+        sortedValues = values;
+        cumulativeWeights = weights;
+    }
+
+    /**
+     * Size of the level arrays, not including array headers.
+     */
+    long retainedBytes() {
+        long result = 0;
+        for (double[] level : levels) {
+            result += level.length * 8L;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,228 @@
+package io.prometheus.client;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the metrics of all processes that write to a {@link MultiProcessStorage} directory.
+ * <p>
+ * Counters and Histograms are summed over all processes, Gauges are combined according to their
+ * {@link MultiProcessStorage.GaugeMode}.
+ * <pre>
+ * {@code
+ *   new MultiProcessCollector(new File("/var/run/myapp/metrics")).register();
+ * }
+ * </pre>
+ * The files are read at each scrape, so the collector can be registered in any of the processes,
+ * or in a separate process that only exports the metrics.
+ */
+public class MultiProcessCollector extends Collector {
+
+  private static final String PID_LABEL = "pid";
+
+  private final File directory;
+
+  public MultiProcessCollector(File directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(MultiProcessStorage.FILE_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    Arrays.sort(files);
+    Map<String, Family> families = new TreeMap<String, Family>();
+    for (File file : files) {
+      String name = file.getName();
+      String processId = name.substring(0, name.length() - MultiProcessStorage.FILE_SUFFIX.length());
+      try {
+        read(file, processId, families);
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to read multi-process metrics file " + file, e);
+      }
+    }
+    List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(families.size());
+    for (Family family : families.values()) {
+      result.add(family.toMetricFamilySamples());
+    }
+    return result;
+  }
+
+  private static void read(File file, String processId, Map<String, Family> families) throws IOException {
+    // The file is copied to the heap rather than mapped: mappings cannot be released explicitly,
+    // so mapping every file at every scrape would hold on to address space until the next GC.
+    ByteBuffer buffer;
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(MultiProcessStorage.HEADER_SIZE);
+      readFully(channel, header, 0);
+      int used = header.getInt(0);
+      if (used <= MultiProcessStorage.HEADER_SIZE) {
+        return; // empty, or still being created
+      }
+      if (header.getInt(4) != MultiProcessStorage.MAGIC) {
+        throw new IOException("Not a multi-process metrics file.");
+      }
+      buffer = ByteBuffer.allocate(used);
+      readFully(channel, buffer, 0);
+    } finally {
+      in.close();
+    }
+    for (MultiProcessStorage.Entry entry : MultiProcessStorage.entries(buffer, buffer.capacity())) {
+      MultiProcessStorage.Key key = MultiProcessStorage.decodeKey(buffer, entry);
+      Family family = families.get(key.familyName);
+      if (family == null) {
+        family = new Family(key);
+        families.put(key.familyName, family);
+      } else if (family.type != key.type) {
+        continue; // conflicting definitions in different processes, the first one wins
+      }
+      family.add(key, processId, buffer.getDouble(entry.valueOffset));
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position + buffer.position());
+      if (n < 0) {
+        throw new IOException("Unexpected end of file.");
+      }
+    }
+  }
+
+  /**
+   * Merged samples of a metric family, keyed by sample name and labels.
+   */
+  private static class Family {
+    final String name;
+    final Type type;
+    final MultiProcessStorage.GaugeMode gaugeMode;
+    final String help;
+    final Map<List<String>, Double> values = new LinkedHashMap<List<String>, Double>();
+
+    Family(MultiProcessStorage.Key key) {
+      this.name = key.familyName;
+      this.type = key.type;
+      this.gaugeMode = key.gaugeMode;
+      this.help = key.help;
+    }
+
+    void add(MultiProcessStorage.Key key, String processId, double value) {
+      boolean addPid = type == Type.GAUGE && gaugeMode == MultiProcessStorage.GaugeMode.ALL;
+      // sample name, label names, label values
+      List<String> sampleKey = new ArrayList<String>(1 + 2 * (key.labelNames.length + 1));
+      sampleKey.add(key.sampleName);
+      sampleKey.addAll(Arrays.asList(key.labelNames));
+      if (addPid) {
+        sampleKey.add(PID_LABEL);
+      }
+      sampleKey.addAll(Arrays.asList(key.labelValues));
+      if (addPid) {
+        sampleKey.add(processId);
+      }
+      Double prev = values.get(sampleKey);
+      if (prev == null) {
+        values.put(sampleKey, value);
+      } else if (type == Type.GAUGE && gaugeMode == MultiProcessStorage.GaugeMode.MIN) {
+        values.put(sampleKey, Math.min(prev, value));
+      } else if (type == Type.GAUGE && gaugeMode == MultiProcessStorage.GaugeMode.MAX) {
+        values.put(sampleKey, Math.max(prev, value));
+      } else {
+        values.put(sampleKey, prev + value);
+      }
+    }
+
+    MetricFamilySamples toMetricFamilySamples() {
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(values.size());
+      if (type == Type.HISTOGRAM) {
+        addHistogramSamples(samples);
+      } else {
+        for (Map.Entry<List<String>, Double> e : values.entrySet()) {
+          samples.add(sample(e.getKey(), e.getValue()));
+        }
+      }
+      return new MetricFamilySamples(name, type, help, samples);
+    }
+
+    /**
+     * Histograms are stored as per-bucket counts and a sum. Accumulate the buckets and add the count.
+     */
+    private void addHistogramSamples(List<MetricFamilySamples.Sample> samples) {
+      Map<List<String>, List<MetricFamilySamples.Sample>> bucketsByLabels = new LinkedHashMap<List<String>, List<MetricFamilySamples.Sample>>();
+      Map<List<String>, MetricFamilySamples.Sample> sumByLabels = new LinkedHashMap<List<String>, MetricFamilySamples.Sample>();
+      for (Map.Entry<List<String>, Double> e : values.entrySet()) {
+        MetricFamilySamples.Sample sample = sample(e.getKey(), e.getValue());
+        if (sample.name.endsWith("_bucket")) {
+          // Labels other than le.
+          List<String> labels = new ArrayList<String>(sample.labelValues.subList(0, sample.labelValues.size() - 1));
+          List<MetricFamilySamples.Sample> buckets = bucketsByLabels.get(labels);
+          if (buckets == null) {
+            buckets = new ArrayList<MetricFamilySamples.Sample>();
+            bucketsByLabels.put(labels, buckets);
+          }
+          buckets.add(sample);
+        } else {
+          sumByLabels.put(sample.labelValues, sample);
+        }
+      }
+      for (Map.Entry<List<String>, List<MetricFamilySamples.Sample>> e : bucketsByLabels.entrySet()) {
+        List<MetricFamilySamples.Sample> buckets = e.getValue();
+        Collections.sort(buckets, new Comparator<MetricFamilySamples.Sample>() {
+          @Override
+          public int compare(MetricFamilySamples.Sample a, MetricFamilySamples.Sample b) {
+            return Double.compare(le(a), le(b));
+          }
+        });
+        double acc = 0;
+        MetricFamilySamples.Sample first = buckets.get(0);
+        List<String> labelNames = first.labelNames.subList(0, first.labelNames.size() - 1);
+        for (MetricFamilySamples.Sample bucket : buckets) {
+          acc += bucket.value;
+          samples.add(new MetricFamilySamples.Sample(name + "_bucket", bucket.labelNames, bucket.labelValues, acc));
+        }
+        samples.add(new MetricFamilySamples.Sample(name + "_count", labelNames, e.getKey(), acc));
+        MetricFamilySamples.Sample sum = sumByLabels.get(e.getKey());
+        if (sum != null) {
+          samples.add(sum);
+        }
+      }
+    }
+
+    private static double le(MetricFamilySamples.Sample bucket) {
+      return parseDouble(bucket.labelValues.get(bucket.labelValues.size() - 1));
+    }
+
+    private static double parseDouble(String s) {
+      if ("+Inf".equals(s)) {
+        return Double.POSITIVE_INFINITY;
+      }
+      return Double.parseDouble(s);
+    }
+
+    private static MetricFamilySamples.Sample sample(List<String> sampleKey, double value) {
+      int n = (sampleKey.size() - 1) / 2;
+      return new MetricFamilySamples.Sample(sampleKey.get(0), sampleKey.subList(1, 1 + n),
+          sampleKey.subList(1 + n, 1 + 2 * n), value);
+    }
+  }
+}
@@ -0,0 +1,335 @@
+package io.prometheus.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage for metric values shared by several processes, like the workers of a pre-forked server or
+ * short-lived batch JVMs.
+ * <p>
+ * Each process writes its values to its own memory-mapped file {@code <processId>.db} in a common directory,
+ * and a {@link MultiProcessCollector} reads all files in the directory at scrape time.
+ * Counters, Gauges and Histograms use the storage if it is configured in their builder:
+ * <pre>
+ * {@code
+ *   MultiProcessStorage storage = MultiProcessStorage.open(new File("/var/run/myapp/metrics"));
+ *   Counter requests = Counter.build()
+ *       .name("requests_total").help("Total requests.")
+ *       .multiProcess(storage).create();
+ * }
+ * </pre>
+ * The metrics are not registered, only the {@link MultiProcessCollector} is.
+ * <p>
+ * Values survive the process, so counters and histograms of processes that exited are still part of the totals.
+ * The directory should be emptied when the application as a whole is restarted.
+ * <p>
+ * The file consists of an 8 byte header with the number of bytes used and a magic number,
+ * followed by entries of a 4 byte key length, the key, padding to a multiple of 8 bytes, and an 8 byte value.
+ * Entries are only appended, and the number of bytes used is updated after the entry is complete,
+ * so that readers never see partial entries.
+ */
+public class MultiProcessStorage {
+
+  /**
+   * How the values of a Gauge from different processes are combined.
+   */
+  public enum GaugeMode {
+    /**
+     * Export the value of each process with a {@code pid} label.
+     */
+    ALL,
+    /**
+     * Export the sum of the values of all processes.
+     */
+    SUM,
+    /**
+     * Export the minimum of the values of all processes.
+     */
+    MIN,
+    /**
+     * Export the maximum of the values of all processes.
+     */
+    MAX
+  }
+
+  static final String FILE_SUFFIX = ".db";
+  static final int MAGIC = 0x50726f6d; // "Prom"
+  static final int HEADER_SIZE = 8;
+  private static final int INITIAL_SIZE = 1 << 16;
+  // Number of locks for updating values, must be a power of two.
+  private static final int LOCK_STRIPES = 64;
+
+  private final String processId;
+  private final RandomAccessFile file;
+  private final Map<ByteBuffer, Slot> slots = new HashMap<ByteBuffer, Slot>();
+  // Replaced under the lock of this when the file grows. Values are read and written through the current buffer
+  // under the lock of their stripe. All mappings share the pages of the file, so updates through a previous buffer
+  // are not lost.
+  private volatile MappedByteBuffer buffer;
+  private int used; // guarded by this
+  // Locks for the values, chosen by offset, so that updates of unrelated values don't contend on a single lock.
+  // Java 6 has no atomic operations on a MappedByteBuffer.
+  private final Object[] locks = new Object[LOCK_STRIPES];
+
+  private MultiProcessStorage(File file, String processId) throws IOException {
+    this.processId = processId;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+    this.file = new RandomAccessFile(file, "rw");
+    if (this.file.length() < HEADER_SIZE) {
+      map(INITIAL_SIZE);
+      buffer.putInt(4, MAGIC);
+      used = HEADER_SIZE;
+      buffer.putInt(0, used);
+    } else {
+      map((int) this.file.length());
+      if (buffer.getInt(4) != MAGIC) {
+        throw new IOException(file + " is not a multi-process metrics file.");
+      }
+      used = buffer.getInt(0);
+      for (Entry entry : entries(buffer, used)) {
+        byte[] key = new byte[entry.keyLength];
+        ((ByteBuffer) buffer.duplicate().position(entry.keyOffset)).get(key);
+        slots.put(ByteBuffer.wrap(key), new Slot(this, entry.valueOffset));
+      }
+    }
+  }
+
+  /**
+   * Open the storage for the current process in {@code directory}.
+   * The process is identified by the process id reported by the JVM.
+   */
+  public static MultiProcessStorage open(File directory) throws IOException {
+    String name = ManagementFactory.getRuntimeMXBean().getName(); // pid@hostname
+    int at = name.indexOf('@');
+    return open(directory, at > 0 ? name.substring(0, at) : name);
+  }
+
+  /**
+   * Open the storage for the process identified by {@code processId} in {@code directory}.
+   * <p>
+   * If the file for {@code processId} exists, for example because the process id was re-used,
+   * values are continued from the file. Each file must only be opened by one process at a time.
+   */
+  public static MultiProcessStorage open(File directory, String processId) throws IOException {
+    if (processId.length() == 0 || processId.indexOf('/') >= 0 || processId.indexOf(File.separatorChar) >= 0) {
+      throw new IllegalArgumentException("Invalid process id: " + processId);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create directory " + directory);
+    }
+    return new MultiProcessStorage(new File(directory, processId + FILE_SUFFIX), processId);
+  }
+
+  /**
+   * The process id used in the file name, which is also the value of the {@code pid} label of {@link GaugeMode#ALL} gauges.
+   */
+  public String getProcessId() {
+    return processId;
+  }
+
+  /**
+   * Return the slot for a sample, appending it to the file if it does not exist yet.
+   */
+  Slot slot(String familyName, Collector.Type type, GaugeMode gaugeMode, String help,
+            String sampleName, List<String> labelNames, List<String> labelValues) {
+    byte[] key = encodeKey(familyName, type, gaugeMode, help, sampleName, labelNames, labelValues);
+    synchronized (this) {
+      Slot slot = slots.get(ByteBuffer.wrap(key));
+      if (slot == null) {
+        int valueOffset = align(used + 4 + key.length);
+        int end = valueOffset + 8;
+        try {
+          if (end > buffer.capacity()) {
+            int size = buffer.capacity();
+            while (size < end) {
+              size *= 2;
+            }
+            map(size);
+          }
+        } catch (IOException e) {
+          throw new IllegalStateException("Failed to grow multi-process metrics file for process " + processId, e);
+        }
+        buffer.putInt(used, key.length);
+        ((ByteBuffer) buffer.duplicate().position(used + 4)).put(key);
+        buffer.putDouble(valueOffset, 0.0);
+        used = end;
+        buffer.putInt(0, used);
+        slot = new Slot(this, valueOffset);
+        slots.put(ByteBuffer.wrap(key), slot);
+      }
+      return slot;
+    }
+  }
+
+  private void map(int size) throws IOException {
+    file.setLength(size);
+    buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  private Object lock(int offset) {
+    return locks[(offset >>> 3) & (LOCK_STRIPES - 1)]; // offsets are multiples of 8
+  }
+
+  private void add(int offset, double amt) {
+    synchronized (lock(offset)) {
+      MappedByteBuffer buffer = this.buffer;
+      buffer.putDouble(offset, buffer.getDouble(offset) + amt);
+    }
+  }
+
+  private void set(int offset, double value) {
+    synchronized (lock(offset)) {
+      buffer.putDouble(offset, value);
+    }
+  }
+
+  private double get(int offset) {
+    synchronized (lock(offset)) {
+      return buffer.getDouble(offset);
+    }
+  }
+
+  private static int align(int offset) {
+    return (offset + 7) & ~7;
+  }
+
+  /**
+   * The location of a single value in the file of a process.
+   */
+  static final class Slot {
+    private final MultiProcessStorage storage;
+    private final int offset;
+
+    private Slot(MultiProcessStorage storage, int offset) {
+      this.storage = storage;
+      this.offset = offset;
+    }
+
+    void add(double amt) {
+      storage.add(offset, amt);
+    }
+
+    void set(double value) {
+      storage.set(offset, value);
+    }
+
+    double get() {
+      return storage.get(offset);
+    }
+  }
+
+  /**
+   * Location of an entry in a file, see {@link #entries(ByteBuffer, int)}.
+   */
+  static final class Entry {
+    final int keyOffset;
+    final int keyLength;
+    final int valueOffset;
+
+    private Entry(int keyOffset, int keyLength, int valueOffset) {
+      this.keyOffset = keyOffset;
+      this.keyLength = keyLength;
+      this.valueOffset = valueOffset;
+    }
+  }
+
+  /**
+   * The entries in the first {@code used} bytes of a file.
+   */
+  static List<Entry> entries(ByteBuffer buffer, int used) throws IOException {
+    List<Entry> result = new ArrayList<Entry>();
+    int pos = HEADER_SIZE;
+    while (pos < used) {
+      int keyLength = buffer.getInt(pos);
+      int valueOffset = align(pos + 4 + keyLength);
+      if (keyLength <= 0 || valueOffset + 8 > used) {
+        throw new IOException("Corrupt multi-process metrics file at offset " + pos + ".");
+      }
+      result.add(new Entry(pos + 4, keyLength, valueOffset));
+      pos = valueOffset + 8;
+    }
+    return result;
+  }
+
+  /**
+   * Decoded entry key.
+   */
+  static final class Key {
+    final String familyName;
+    final Collector.Type type;
+    final GaugeMode gaugeMode; // null if the type is not GAUGE
+    final String help;
+    final String sampleName;
+    final String[] labelNames;
+    final String[] labelValues;
+
+    private Key(String familyName, Collector.Type type, GaugeMode gaugeMode, String help,
+                String sampleName, String[] labelNames, String[] labelValues) {
+      this.familyName = familyName;
+      this.type = type;
+      this.gaugeMode = gaugeMode;
+      this.help = help;
+      this.sampleName = sampleName;
+      this.labelNames = labelNames;
+      this.labelValues = labelValues;
+    }
+  }
+
+  static byte[] encodeKey(String familyName, Collector.Type type, GaugeMode gaugeMode, String help,
+                          String sampleName, List<String> labelNames, List<String> labelValues) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(familyName);
+      out.writeUTF(type.name());
+      out.writeUTF(gaugeMode == null ? "" : gaugeMode.name());
+      out.writeUTF(help);
+      out.writeUTF(sampleName);
+      out.writeShort(labelNames.size());
+      for (int i = 0; i < labelNames.size(); i++) {
+        out.writeUTF(labelNames.get(i));
+        out.writeUTF(labelValues.get(i));
+      }
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Only thrown by writeUTF for strings longer than 64k.
+      throw new IllegalArgumentException("Cannot store " + sampleName + " in multi-process metrics file.", e);
+    }
+  }
+
+  static Key decodeKey(ByteBuffer buffer, Entry entry) throws IOException {
+    byte[] key = new byte[entry.keyLength];
+    ((ByteBuffer) buffer.duplicate().position(entry.keyOffset)).get(key);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(key));
+    String familyName = in.readUTF();
+    Collector.Type type = Collector.Type.valueOf(in.readUTF());
+    String gaugeMode = in.readUTF();
+    String help = in.readUTF();
+    String sampleName = in.readUTF();
+    int n = in.readShort();
+    String[] labelNames = new String[n];
+    String[] labelValues = new String[n];
+    for (int i = 0; i < n; i++) {
+      labelNames[i] = in.readUTF();
+      labelValues[i] = in.readUTF();
+    }
+    return new Key(familyName, type, gaugeMode.length() == 0 ? null : GaugeMode.valueOf(gaugeMode),
+        help, sampleName, labelNames, labelValues);
+  }
+}
@@ -0,0 +1,194 @@
+package io.prometheus.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls {@link Collector#collect(Predicate)} of several collectors concurrently on an executor,
+ * see {@link CollectorRegistry#enableParallelCollection(ExecutorService, long, TimeUnit)}.
+ * <p>
+ * Results are returned in the order of the collectors. All collectors of a scrape share one deadline,
+ * {@code timeoutNanos} after the scrape started, so a scrape takes at most about {@code timeoutNanos} no matter
+ * how many collectors are slow or wait for a busy executor. Collectors that did not finish by the deadline are
+ * cancelled and their metrics are omitted from the scrape. Collectors that the executor rejects are collected on
+ * the calling thread and are not bounded by the deadline.
+ */
+class ParallelCollection {
+
+  static final String DURATION_NAME = "collector_registry_collector_duration_seconds";
+  static final String TIMEOUTS_NAME = "collector_registry_collector_timeouts";
+
+  private final CollectorRegistry registry;
+  private final ExecutorService executor;
+  private final long timeoutNanos;
+  private final ConcurrentMap<Collector, Stats> stats = new ConcurrentHashMap<Collector, Stats>();
+  final Collector metrics = new Metrics();
+
+  ParallelCollection(CollectorRegistry registry, ExecutorService executor, long timeoutNanos) {
+    if (executor == null) {
+      throw new NullPointerException();
+    }
+    if (timeoutNanos <= 0) {
+      throw new IllegalArgumentException("timeout must be > 0");
+    }
+    this.registry = registry;
+    this.executor = executor;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  List<Collector.MetricFamilySamples> collect(List<Collector> collectors, Predicate<String> sampleNameFilter) {
+    long deadline = System.nanoTime() + timeoutNanos;
+    List<Task> tasks = new ArrayList<Task>(collectors.size());
+    for (Collector collector : collectors) {
+      Task task = new Task(collector, sampleNameFilter, stats(collector));
+      try {
+        task.future = executor.submit(task);
+      } catch (RejectedExecutionException e) {
+        task.future = null; // collected on the calling thread below
+      }
+      tasks.add(task);
+    }
+    List<Collector.MetricFamilySamples> result = new ArrayList<Collector.MetricFamilySamples>();
+    for (Task task : tasks) {
+      result.addAll(await(task, deadline));
+    }
+    return result;
+  }
+
+  private List<Collector.MetricFamilySamples> await(Task task, long deadline) {
+    try {
+      if (task.future == null) {
+        return task.call();
+      }
+      if (task.future.isDone()) {
+        return task.future.get();
+      }
+      try {
+        // Only the time left of the scrape, the previous tasks may have used up some or all of it.
+        return task.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        task.future.cancel(true);
+        task.stats.timeouts.incrementAndGet();
+        return new ArrayList<Collector.MetricFamilySamples>(0);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private Stats stats(Collector collector) {
+    Stats result = stats.get(collector);
+    if (result == null) {
+      Stats newStats = new Stats(registry.collectorLabel(collector));
+      result = stats.putIfAbsent(collector, newStats);
+      if (result == null) {
+        result = newStats;
+      }
+    }
+    return result;
+  }
+
+  void remove(Collector collector) {
+    stats.remove(collector);
+  }
+
+  private static class Stats {
+    final String label;
+    final AtomicLong timeouts = new AtomicLong();
+    volatile double lastDurationSeconds;
+
+    Stats(String label) {
+      this.label = label;
+    }
+  }
+
+  private static class Task implements Callable<List<Collector.MetricFamilySamples>> {
+    final Collector collector;
+    final Predicate<String> sampleNameFilter;
+    final Stats stats;
+    Future<List<Collector.MetricFamilySamples>> future;
+
+    Task(Collector collector, Predicate<String> sampleNameFilter, Stats stats) {
+      this.collector = collector;
+      this.sampleNameFilter = sampleNameFilter;
+      this.stats = stats;
+    }
+
+    @Override
+    public List<Collector.MetricFamilySamples> call() {
+      long startNanos = System.nanoTime();
+      List<Collector.MetricFamilySamples> result = collector.collect(sampleNameFilter);
+      stats.lastDurationSeconds = (System.nanoTime() - startNanos) / Collector.NANOSECONDS_PER_SECOND;
+      return result;
+    }
+  }
+
+  /**
+   * Self-metrics: duration of the last collection and number of timeouts per collector.
+   * Collectors are identified by their first metric name, or by their class name if they have no known names.
+   */
+  private class Metrics extends Collector implements Collector.Describable {
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      // Collectors with the same label are aggregated, so that no duplicate series are exported.
+      Map<String, double[]> byLabel = new TreeMap<String, double[]>();
+      for (Stats s : stats.values()) {
+        double[] values = byLabel.get(s.label);
+        if (values == null) {
+          values = new double[2];
+          byLabel.put(s.label, values);
+        }
+        values[0] += s.lastDurationSeconds;
+        values[1] += s.timeouts.get();
+      }
+      List<String> labelNames = Arrays.asList("collector");
+      GaugeMetricFamily duration = new GaugeMetricFamily(DURATION_NAME,
+          "Duration of the last parallel collection of each collector.", labelNames);
+      CounterMetricFamily timeouts = new CounterMetricFamily(TIMEOUTS_NAME,
+          "Number of parallel collections of each collector that were cancelled after the timeout.", labelNames);
+      for (Map.Entry<String, double[]> e : byLabel.entrySet()) {
+        List<String> labelValues = Arrays.asList(e.getKey());
+        duration.addMetric(labelValues, e.getValue()[0]);
+        timeouts.addMetric(labelValues, e.getValue()[1]);
+      }
+      List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(2);
+      result.add(duration);
+      result.add(timeouts);
+      return result;
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+      List<String> labelNames = Arrays.asList("collector");
+      List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(2);
+      result.add(new GaugeMetricFamily(DURATION_NAME, "Duration of the last parallel collection of each collector.", labelNames));
+      result.add(new CounterMetricFamily(TIMEOUTS_NAME,
+          "Number of parallel collections of each collector that were cancelled after the timeout.", labelNames));
+      return result;
+    }
+  }
+}
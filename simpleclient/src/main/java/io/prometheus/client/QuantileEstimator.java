@@ -0,0 +1,182 @@
+package io.prometheus.client;
+
+/**
+ * Estimates quantiles of a stream of observations. Each age bucket of a {@link Summary} child has its own estimator.
+ * <p>
+ * The estimator is selected with {@link Summary.Builder#quantileEstimator(Factory)}:
+ * <ul>
+ *   <li>{@link #ckms()}: The default. Targeted quantiles with the allowed error configured for each quantile
+ *       with {@link Summary.Builder#quantile(double, double)}. Memory grows as the allowed error gets smaller,
+ *       and tail quantiles like 0.999 with a small allowed error are expensive.</li>
+ *   <li>{@link #ddSketch(double)}: Log-bucketed sketch with a relative error of the estimated value, i.e.
+ *       a 0.99 quantile of 100ms with relative accuracy 0.01 is between 99ms and 101ms. Inserts are O(1),
+ *       memory is bounded, and all quantiles are equally cheap. The allowed errors of the quantiles are ignored.</li>
+ *   <li>{@link #kll(int)}: KLL sketch with a rank error that depends on {@code k}, but not on the quantiles.
+ *       Memory is bounded. The allowed errors of the quantiles are ignored.</li>
+ * </ul>
+ * Implementations need not be thread safe, {@link Summary} calls them while holding a lock.
+ */
+public abstract class QuantileEstimator {
+
+  /**
+   * Add an observed value.
+   */
+  public abstract void insert(double value);
+
+  /**
+   * Add the observed values {@code sorted[0]} to {@code sorted[length - 1]}, which are in ascending order.
+   * Implementations may override this if they can merge a sorted batch more efficiently.
+   */
+  public void insertSorted(double[] sorted, int length) {
+    for (int i = 0; i < length; i++) {
+      insert(sorted[i]);
+    }
+  }
+
+  /**
+   * Get the estimated value at quantile {@code q}, or {@code NaN} if no values were observed.
+   */
+  public abstract double get(double q);
+
+  /**
+   * Whether {@link #merge(QuantileEstimator)} and {@link #reset()} are supported.
+   * <p>
+   * Summary inserts each observation into one estimator per age bucket if merging is not supported,
+   * and into the estimator of the current age bucket only if it is. Default is {@code false}.
+   */
+  public boolean isMergeable() {
+    return false;
+  }
+
+  /**
+   * Add the observations of {@code other} to this estimator. {@code other} is created by the same {@link Factory},
+   * and may be modified, but must keep its observations.
+   *
+   * @throws UnsupportedOperationException if {@link #isMergeable()} is {@code false}.
+   */
+  public void merge(QuantileEstimator other) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Remove all observations, so that the estimator can be reused.
+   *
+   * @throws UnsupportedOperationException if {@link #isMergeable()} is {@code false}.
+   */
+  public void reset() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Serialize the observations into a compact Base64 string, which can be read with {@link #decode(String)}.
+   * This allows merging estimators of different processes, like the sketches exported by
+   * {@link Summary.Builder#exportSketch(boolean)}.
+   *
+   * @throws UnsupportedOperationException if not supported, which is the default.
+   *         {@link #ddSketch(double)} and {@link #kll(int)} support it.
+   */
+  public String encode() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Read an estimator serialized with {@link #encode()}. The result is {@link #isMergeable() mergeable}
+   * with estimators decoded from sketches of the same kind and configuration.
+   *
+   * @throws IllegalArgumentException if {@code encoded} is not a valid sketch.
+   */
+  public static QuantileEstimator decode(String encoded) {
+    SketchEncoding.Reader reader = new SketchEncoding.Reader(encoded);
+    int type = reader.readByte();
+    switch (type) {
+      case SketchEncoding.DDSKETCH:
+        return DDSketchQuantiles.read(reader);
+      case SketchEncoding.KLL:
+        return KLLQuantiles.read(reader);
+      default:
+        throw new IllegalArgumentException("Unknown sketch type " + type + ".");
+    }
+  }
+
+  /**
+   * Creates the estimators of a {@link Summary}.
+   */
+  public interface Factory {
+    /**
+     * @param quantiles the quantiles configured with {@link Summary.Builder#quantile(double, double)}.
+     *                  The array is shared by all estimators and must not be modified.
+     * @param errors the allowed error of each quantile. Must not be modified either.
+     */
+    QuantileEstimator newEstimator(double[] quantiles, double[] errors);
+  }
+
+  private static final Factory CKMS = new Factory() {
+    @Override
+    public QuantileEstimator newEstimator(double[] quantiles, double[] errors) {
+      CKMSQuantiles.Quantile[] result = new CKMSQuantiles.Quantile[quantiles.length];
+      for (int i = 0; i < quantiles.length; i++) {
+        result[i] = new CKMSQuantiles.Quantile(quantiles[i], errors[i]);
+      }
+      return new CKMSQuantiles(result);
+    }
+  };
+
+  /**
+   * The CKMS algorithm for targeted quantiles. This is the default.
+   */
+  public static Factory ckms() {
+    return CKMS;
+  }
+
+  /**
+   * DDSketch with the given relative accuracy and at most 2048 buckets for positive and 2048 buckets for
+   * negative values, see {@link #ddSketch(double, int)}.
+   */
+  public static Factory ddSketch(double relativeAccuracy) {
+    return ddSketch(relativeAccuracy, DDSketchQuantiles.DEFAULT_MAX_BUCKETS);
+  }
+
+  /**
+   * DDSketch with the given relative accuracy.
+   * <p>
+   * The number of buckets grows with the logarithm of the range of observed values. If more than
+   * {@code maxBuckets} buckets are needed, the lowest buckets are merged, so that the accuracy of high quantiles
+   * is kept. With relative accuracy 0.01 and 2048 buckets, the values may span 17 orders of magnitude before
+   * buckets are merged.
+   *
+   * @param relativeAccuracy at least 1e-6 and less than 1.
+   */
+  public static Factory ddSketch(final double relativeAccuracy, final int maxBuckets) {
+    if (relativeAccuracy < DDSketchQuantiles.MIN_RELATIVE_ACCURACY || relativeAccuracy >= 1.0) {
+      throw new IllegalArgumentException("relativeAccuracy " + relativeAccuracy + " invalid: Expected number between "
+          + DDSketchQuantiles.MIN_RELATIVE_ACCURACY + " and 1.0.");
+    }
+    if (maxBuckets < 2) {
+      throw new IllegalArgumentException("maxBuckets cannot be " + maxBuckets);
+    }
+    return new Factory() {
+      @Override
+      public QuantileEstimator newEstimator(double[] quantiles, double[] errors) {
+        return new DDSketchQuantiles(relativeAccuracy, maxBuckets);
+      }
+    };
+  }
+
+  /**
+   * KLL sketch with accuracy parameter {@code k}. The rank error is about {@code 1.7 / k}, i.e. about 1% for
+   * {@code k = 200}, and the sketch retains about {@code 3 * k} values.
+   *
+   * @param k at least 8.
+   */
+  public static Factory kll(final int k) {
+    if (k < KLLQuantiles.MIN_K) {
+      throw new IllegalArgumentException("k cannot be " + k);
+    }
+    return new Factory() {
+      @Override
+      public QuantileEstimator newEstimator(double[] quantiles, double[] errors) {
+        return new KLLQuantiles(k);
+      }
+    };
+  }
+}
@@ -3,13 +3,19 @@ package io.prometheus.client;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
 
-import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableSet;
 
 /**
  * Filter samples (i.e. time series) by name.
+ * <p>
+ * The names are compiled into hash sets and the prefixes into tries when the filter is built,
+ * so {@link #test(String)} takes time proportional to the length of the name,
+ * not to the number of names and prefixes.
  */
 public class SampleNameFilter implements Predicate<String> {
 
@@ -18,10 +24,10 @@ public class SampleNameFilter implements Predicate<String> {
      */
     public static final Predicate<String> ALLOW_ALL = new AllowAll();
 
-    private final Collection<String> nameIsEqualTo;
-    private final Collection<String> nameIsNotEqualTo;
-    private final Collection<String> nameStartsWith;
-    private final Collection<String> nameDoesNotStartWith;
+    private final Set<String> nameIsEqualTo;
+    private final Set<String> nameIsNotEqualTo;
+    private final PrefixTrie nameStartsWith;
+    private final PrefixTrie nameDoesNotStartWith;
 
     @Override
     public boolean test(String sampleName) {
@@ -38,12 +44,40 @@ public class SampleNameFilter implements Predicate<String> {
         if (other == null) {
             throw new NullPointerException();
         }
-        return new Predicate<String>() {
-            @Override
-            public boolean test(String s) {
-                return SampleNameFilter.this.test(s) && other.test(s);
-            }
-        };
+        return new AndFilter(this, other);
+    }
+
+    /**
+     * If {@code filter} only accepts names from a fixed set, like the {@code name[]} parameters of a scrape,
+     * return that set. Otherwise return {@code null}.
+     * <p>
+     * The {@link CollectorRegistry} uses this to look up the matching collectors by name.
+     */
+    static Collection<String> requiredNames(Predicate<String> filter) {
+        if (filter instanceof AndFilter) {
+            return requiredNames(((AndFilter) filter).first);
+        }
+        if (filter instanceof SampleNameFilter) {
+            Collection<String> names = ((SampleNameFilter) filter).nameIsEqualTo;
+            return names.isEmpty() ? null : names;
+        }
+        return null;
+    }
+
+    private static class AndFilter implements Predicate<String> {
+
+        private final SampleNameFilter first;
+        private final Predicate<? super String> second;
+
+        private AndFilter(SampleNameFilter first, Predicate<? super String> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean test(String s) {
+            return first.test(s) && second.test(s);
+        }
     }
 
     private boolean matchesNameEqualTo(String metricName) {
@@ -64,24 +98,85 @@ public class SampleNameFilter implements Predicate<String> {
         if (nameStartsWith.isEmpty()) {
             return true;
         }
-        for (String prefix : nameStartsWith) {
-            if (metricName.startsWith(prefix)) {
-                return true;
-            }
-        }
-        return false;
+        return nameStartsWith.matches(metricName);
     }
 
     private boolean matchesNameDoesNotStartWith(String metricName) {
         if (nameDoesNotStartWith.isEmpty()) {
             return false;
         }
-        for (String prefix : nameDoesNotStartWith) {
-            if (metricName.startsWith(prefix)) {
-                return true;
+        return nameDoesNotStartWith.matches(metricName);
+    }
+
+    /**
+     * Trie of prefixes. {@link #matches(String)} walks the name once, regardless of the number of prefixes.
+     */
+    private static class PrefixTrie {
+
+        private final Node root = new Node();
+        private final boolean empty;
+
+        private PrefixTrie(Collection<String> prefixes) {
+            empty = prefixes.isEmpty();
+            for (String prefix : prefixes) {
+                Node node = root;
+                for (int i = 0; i < prefix.length(); i++) {
+                    node = node.getOrAddChild(prefix.charAt(i));
+                }
+                node.terminal = true;
+            }
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * @return true if {@code name} starts with one of the prefixes.
+         */
+        boolean matches(String name) {
+            Node node = root;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == name.length()) {
+                    return false;
+                }
+                node = node.child(name.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static class Node {
+            private char[] chars = new char[0]; // sorted
+            private Node[] children = new Node[0];
+            private boolean terminal; // a prefix ends here
+
+            Node child(char c) {
+                int i = Arrays.binarySearch(chars, c);
+                return i >= 0 ? children[i] : null;
+            }
+
+            Node getOrAddChild(char c) {
+                int i = Arrays.binarySearch(chars, c);
+                if (i >= 0) {
+                    return children[i];
+                }
+                i = -i - 1;
+                char[] newChars = new char[chars.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(chars, 0, newChars, 0, i);
+                System.arraycopy(children, 0, newChildren, 0, i);
+                newChars[i] = c;
+                newChildren[i] = new Node();
+                System.arraycopy(chars, i, newChars, i + 1, chars.length - i);
+                System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+                chars = newChars;
+                children = newChildren;
+                return newChildren[i];
             }
         }
-        return false;
     }
 
     public static class Builder {
@@ -173,10 +268,10 @@ public class SampleNameFilter implements Predicate<String> {
     }
 
     private SampleNameFilter(Collection<String> nameIsEqualTo, Collection<String> nameIsNotEqualTo, Collection<String> nameStartsWith, Collection<String> nameDoesNotStartWith) {
-        this.nameIsEqualTo = unmodifiableCollection(nameIsEqualTo);
-        this.nameIsNotEqualTo = unmodifiableCollection(nameIsNotEqualTo);
-        this.nameStartsWith = unmodifiableCollection(nameStartsWith);
-        this.nameDoesNotStartWith = unmodifiableCollection(nameDoesNotStartWith);
+        this.nameIsEqualTo = unmodifiableSet(new HashSet<String>(nameIsEqualTo));
+        this.nameIsNotEqualTo = unmodifiableSet(new HashSet<String>(nameIsNotEqualTo));
+        this.nameStartsWith = new PrefixTrie(nameStartsWith);
+        this.nameDoesNotStartWith = new PrefixTrie(nameDoesNotStartWith);
     }
 
     private static class AllowAll implements Predicate<String> {
@@ -1,10 +1,15 @@
 package io.prometheus.client;
 
+import io.prometheus.client.exemplars.Exemplar;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Common functionality for {@link Gauge}, {@link Counter}, {@link Summary} and {@link Histogram}.
@@ -32,6 +37,11 @@ import java.util.List;
  * <p>
  * {@link #remove} and {@link #clear} can be used to remove children.
  * <p>
+ * {@link Builder#maxChildren(int) maxChildren} and {@link Builder#childIdleTimeout(long, TimeUnit) childIdleTimeout}
+ * limit the number of children, so that a label with unexpectedly many values does not grow without bound.
+ * If a limit is configured, the collector exports an additional counter {@code <name>_children_overflow_total}
+ * with a {@code reason} label, counting children that were removed and distinct label values that were not accepted.
+ * <p>
  * <em>Warning #1:</em> Metrics that don't always export something are difficult to monitor, if you know in advance
  * what labels will be in use you should initialise them be calling {@link #labels}.
  * This is done for you for metrics with no labels.
@@ -55,12 +65,96 @@ public abstract class SimpleCollector<Child> extends Collector {
   protected final ConcurrentMap<List<String>, Child> children = new ConcurrentHashMap<List<String>, Child>();
   protected Child noLabelsChild;
 
+  /**
+   * The label value used for all labels of the child that new label values are routed to
+   * if the limit of children is reached and the {@link OverflowPolicy#OTHER} policy is configured.
+   */
+  public static final String OTHER_LABEL_VALUE = "other";
+
+  // Number of epoch start times kept for idle expiry, and number of epochs per idle timeout.
+  private static final int EPOCHS = 16;
+  private static final int EPOCHS_PER_TIMEOUT = 8;
+  // When evicting least recently used children, evict at least this fraction of maxChildren at once.
+  private static final int EVICTION_BATCH_DIVISOR = 16;
+  // Minimum number of label values that were not accepted to remember, see overflowIndex.
+  private static final int MIN_OVERFLOW_INDEX_SIZE = 64;
+  // Value in overflowIndex for label values rejected by OverflowPolicy.REJECT.
+  private static final Object REJECTED = new Object();
+  private static final List<String> REASON_LABEL = Collections.singletonList("reason");
+
+  // Allocation-free lookup index in front of children. Modifications of children and childIndex
+  // are guarded by childrenLock, so that the index never contains a Child that is not in children.
+  private final ChildIndex<Child> childIndex;
+  private final Object childrenLock = new Object();
+
+  // Limits for the number of children. childrenLimited is true if any limit is configured.
+  private final boolean childrenLimited;
+  private final int maxChildren;
+  private final OverflowPolicy overflowPolicy;
+  private final long childIdleTimeoutNanos;
+  private final long[] epochStartNanos; // guarded by childrenLock
+  private final String[] childrenOverflowReasons;
+  private Child droppedChild; // guarded by childrenLock
+  // Label values that were not accepted due to maxChildren, to the Child they are routed to or REJECTED.
+  // Like childIndex, reads are lock-free and writes are guarded by childrenLock, so that repeated lookups of
+  // these label values neither take the lock nor are counted again. null unless new children can be refused.
+  // Cleared when it has max(maxChildren, MIN_OVERFLOW_INDEX_SIZE) entries and when children are removed,
+  // as then there may be room for the label values.
+  private final ChildIndex<Object> overflowIndex;
+  // Written under childrenLock, read by collect().
+  private volatile long evictedChildren;
+  private volatile long expiredChildren;
+  private volatile long overflowedChildren;
+
+  /**
+   * What {@link #labels} does with new label values if the number of children is at
+   * {@link Builder#maxChildren(int) maxChildren}.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Remove the least recently used children to make room for the new child. This is the default.
+     * Eviction is done in batches of a few percent of {@code maxChildren}.
+     */
+    EVICT_LEAST_RECENTLY_USED,
+    /**
+     * Return a Child that is not exported, i.e. updates for new label values are dropped.
+     */
+    DROP,
+    /**
+     * Return the Child with all label values set to {@value SimpleCollector#OTHER_LABEL_VALUE}.
+     * This child is created even if the limit is reached.
+     */
+    OTHER,
+    /**
+     * Throw an {@link IllegalStateException}.
+     */
+    REJECT
+  }
+
   /**
    * Return the Child with the given labels, creating it if needed.
    * <p>
    * Must be passed the same number of labels are were passed to {@link #labelNames}.
+   * <p>
+   * Looking up an existing Child does not allocate. Still, for high update rates
+   * it is cheaper to keep a reference to the Child rather than calling this for every update.
    */
   public Child labels(String... labelValues) {
+    checkLabelValues(labelValues);
+    Child c = childIndex.get(labelValues);
+    if (c != null) {
+      return c;
+    }
+    if (overflowIndex != null) {
+      Object target = overflowIndex.get(labelValues);
+      if (target != null) {
+        return overflowTarget(target);
+      }
+    }
+    return getOrCreateChild(labelValues);
+  }
+
+  private void checkLabelValues(String[] labelValues) {
     if (labelValues.length != labelNames.size()) {
       throw new IllegalArgumentException("Incorrect number of labels.");
     }
@@ -69,14 +163,162 @@ public abstract class SimpleCollector<Child> extends Collector {
         throw new IllegalArgumentException("Label cannot be null.");
       }
     }
-    List<String> key = Arrays.asList(labelValues);
-    Child c = children.get(key);
-    if (c != null) {
+  }
+
+  private Child getOrCreateChild(String[] labelValues) {
+    synchronized (childrenLock) {
+      // Copy, as the caller may re-use the array.
+      String[] key = labelValues.clone();
+      List<String> keyList = Arrays.asList(key);
+      Child c = children.get(keyList);
+      if (c == null) {
+        if (overflowIndex != null) {
+          Object target = overflowIndex.get(key);
+          if (target != null) {
+            return overflowTarget(target);
+          }
+        }
+        if (childIdleTimeoutNanos > 0) {
+          expireIdleChildren();
+        }
+        if (maxChildren > 0 && children.size() >= maxChildren) {
+          switch (overflowPolicy) {
+            case EVICT_LEAST_RECENTLY_USED:
+              evictLeastRecentlyUsedChildren();
+              break;
+            case DROP:
+              if (droppedChild == null) {
+                droppedChild = newChild();
+              }
+              overflow(key, droppedChild);
+              return droppedChild;
+            case OTHER:
+              String[] otherKey = new String[key.length];
+              Arrays.fill(otherKey, OTHER_LABEL_VALUE);
+              if (!Arrays.equals(key, otherKey)) {
+                Child other = getOrCreateChild(otherKey);
+                overflow(key, other);
+                return other;
+              }
+              break;
+            case REJECT:
+              overflow(key, REJECTED);
+              return overflowTarget(REJECTED);
+          }
+        }
+        c = newChild(keyList);
+        children.put(keyList, c);
+      }
+      childIndex.put(key, c);
       return c;
     }
-    Child c2 = newChild();
-    Child tmp = children.putIfAbsent(key, c2);
-    return tmp == null ? c2 : tmp;
+  }
+
+  /**
+   * Remember label values that were not accepted due to maxChildren, and count them.
+   * Must be called with childrenLock held.
+   */
+  private void overflow(String[] labelValues, Object target) {
+    if (overflowIndex.size() >= Math.max(maxChildren, MIN_OVERFLOW_INDEX_SIZE)) {
+      overflowIndex.clear();
+    }
+    overflowIndex.put(labelValues, target);
+    overflowedChildren++;
+  }
+
+  /**
+   * The Child for label values that were not accepted, see {@link #overflowIndex}.
+   */
+  @SuppressWarnings("unchecked")
+  private Child overflowTarget(Object target) {
+    if (target == REJECTED) {
+      throw new IllegalStateException("Metric " + fullname + " already has the maximum of " + maxChildren + " children.");
+    }
+    return (Child) target;
+  }
+
+  /**
+   * Must be called with childrenLock held.
+   */
+  private void removeChild(String[] labelValues) {
+    if (children.remove(Arrays.asList(labelValues)) != null) {
+      childIndex.remove(labelValues);
+      clearOverflowIndex();
+    }
+  }
+
+  /**
+   * Must be called with childrenLock held.
+   */
+  private void clearOverflowIndex() {
+    if (overflowIndex != null && overflowIndex.size() > 0) {
+      overflowIndex.clear();
+    }
+  }
+
+  /**
+   * Must be called with childrenLock held.
+   */
+  private void evictLeastRecentlyUsedChildren() {
+    // Evicting a batch amortizes the cost of finding the least recently used children.
+    int count = Math.max(children.size() - maxChildren + 1, maxChildren / EVICTION_BATCH_DIVISOR);
+    for (String[] labelValues : childIndex.leastRecentlyUsed(count)) {
+      removeChild(labelValues);
+      evictedChildren++;
+    }
+    startEpoch(childIdleTimeoutNanos > 0 ? System.nanoTime() : 0);
+  }
+
+  /**
+   * Remove children that were not looked up with {@link #labels} for at least the idle timeout.
+   * <p>
+   * Idle times are tracked in epochs of a fraction of the timeout, a new epoch is started when this is called
+   * at least one epoch after the previous one. A child that was last looked up in an epoch is considered idle
+   * when the following epoch started at least the timeout ago.
+   * <p>
+   * Must be called with childrenLock held.
+   */
+  private void expireIdleChildren() {
+    long now = System.nanoTime();
+    int epoch = childIndex.getEpoch();
+    if (now - epochStartNanos[epoch % EPOCHS] < childIdleTimeoutNanos / EPOCHS_PER_TIMEOUT) {
+      return;
+    }
+    // Find the latest epoch that started at least the timeout ago. Epochs older than the ones we know
+    // started even earlier, so checking the oldest known epoch is conservative.
+    for (int e = epoch; e >= 0 && epoch - e < EPOCHS; e--) {
+      if (now - epochStartNanos[e % EPOCHS] >= childIdleTimeoutNanos) {
+        for (String[] labelValues : childIndex.accessedBefore(e)) {
+          removeChild(labelValues);
+          expiredChildren++;
+        }
+        break;
+      }
+    }
+    startEpoch(now);
+  }
+
+  private void startEpoch(long now) {
+    int epoch = childIndex.nextEpoch();
+    if (epochStartNanos.length > 0) {
+      epochStartNanos[epoch % EPOCHS] = now;
+    }
+  }
+
+  /**
+   * Called when the metric is collected.
+   */
+  private void maintainChildren() {
+    if (childrenLimited) {
+      synchronized (childrenLock) {
+        if (childIdleTimeoutNanos > 0) {
+          expireIdleChildren();
+        } else {
+          // Distinguish children used since the last scrape for LRU eviction.
+          startEpoch(0);
+        }
+      }
+    }
   }
 
   /**
@@ -85,8 +327,23 @@ public abstract class SimpleCollector<Child> extends Collector {
    * Any references to the Child are invalidated.
    */
   public void remove(String... labelValues) {
-    children.remove(Arrays.asList(labelValues));
-    initializeNoLabelsChild();
+    synchronized (childrenLock) {
+      removeChild(labelValues);
+    }
+    reinitializeNoLabelsChild();
+  }
+
+  /**
+   * Remove the child with the given labels if it is still {@code child}, i.e. if it was not replaced with
+   * {@link #setChild} in the meantime.
+   */
+  void removeIfSame(List<String> labelValues, Child child) {
+    synchronized (childrenLock) {
+      if (children.remove(labelValues, child)) {
+        childIndex.remove(labelValues.toArray(new String[0]));
+        clearOverflowIndex();
+      }
+    }
   }
   
   /**
@@ -95,8 +352,22 @@ public abstract class SimpleCollector<Child> extends Collector {
    * Any references to any children are invalidated.
    */
   public void clear() {
-    children.clear();
-    initializeNoLabelsChild();
+    synchronized (childrenLock) {
+      children.clear();
+      childIndex.clear();
+      clearOverflowIndex();
+    }
+    reinitializeNoLabelsChild();
+  }
+
+  /**
+   * Re-create the child with no labels after it was removed, unless the collector has no such child,
+   * like {@link GaugeFunction} and {@link CounterFunction}.
+   */
+  private void reinitializeNoLabelsChild() {
+    if (noLabelsChild != null) {
+      initializeNoLabelsChild();
+    }
   }
   
   /**
@@ -133,25 +404,206 @@ public abstract class SimpleCollector<Child> extends Collector {
    * A metric should be either all callbacks, or none.
    */
   public <T extends Collector> T setChild(Child child, String... labelValues) {
-    if (labelValues.length != labelNames.size()) {
-      throw new IllegalArgumentException("Incorrect number of labels.");
+    checkLabelValues(labelValues);
+    synchronized (childrenLock) {
+      String[] key = labelValues.clone();
+      children.put(Arrays.asList(key), child);
+      childIndex.put(key, child);
+      if (overflowIndex != null) {
+        overflowIndex.remove(key);
+      }
     }
-    children.put(Arrays.asList(labelValues), child);
     return (T)this;
   }
 
+  private static String overflowReason(OverflowPolicy policy) {
+    switch (policy) {
+      case DROP:
+        return "dropped";
+      case OTHER:
+        return "other";
+      case REJECT:
+        return "rejected";
+      default:
+        return "evicted";
+    }
+  }
+
   /**
    * Return a new child, workaround for Java generics limitations.
    */
   protected abstract Child newChild();
 
+  /**
+   * Return a new child for the given label values.
+   * <p>
+   * The default calls {@link #newChild()}. Subclasses override this if the child depends on its labels,
+   * like children that keep their value in a {@link MultiProcessStorage}.
+   */
+  protected Child newChild(List<String> labelValues) {
+    return newChild();
+  }
+
   protected List<MetricFamilySamples> familySamplesList(Collector.Type type, List<MetricFamilySamples.Sample> samples) {
-    MetricFamilySamples mfs = new MetricFamilySamples(fullname, unit, type, help, samples);
-    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(1);
+    maintainChildren();
+    return familySamplesList(new MetricFamilySamples(fullname, unit, type, help, samples));
+  }
+
+  /**
+   * Returns a list with {@code mfs}, preceded by the {@code _children_overflow} counter if the number of
+   * children is limited. Used for {@link #collect()} and {@link Describable#describe()}.
+   */
+  protected List<MetricFamilySamples> familySamplesList(MetricFamilySamples mfs) {
+    List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(2);
+    if (childrenLimited) {
+      CounterMetricFamily overflow = new CounterMetricFamily(fullname + "_children_overflow", childrenOverflowHelp(), REASON_LABEL);
+      for (int i = 0; i < childrenOverflowReasons.length; i++) {
+        overflow.addMetric(Collections.singletonList(childrenOverflowReasons[i]), childrenOverflowCount(i));
+      }
+      mfsList.add(overflow);
+    }
     mfsList.add(mfs);
     return mfsList;
   }
 
+  /**
+   * Helper for implementing {@link #collect(SampleVisitor, Predicate)}: Visit the {@code _children_overflow}
+   * counter if the number of children is limited. Must be called before the metric's own family is visited.
+   */
+  protected void visitChildrenOverflow(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    maintainChildren();
+    String name = fullname + "_children_overflow";
+    if (!childrenLimited || !isIncluded(sampleNameFilter, name + "_total")) {
+      return;
+    }
+    visitor.visitFamily(name, "", Type.COUNTER, childrenOverflowHelp());
+    for (int i = 0; i < childrenOverflowReasons.length; i++) {
+      visitor.visitSample(name + "_total", REASON_LABEL, Collections.singletonList(childrenOverflowReasons[i]),
+          null, null, childrenOverflowCount(i), null, null);
+    }
+  }
+
+  private String childrenOverflowHelp() {
+    return "Number of children of " + fullname + " that were removed, and of distinct label values that were not"
+        + " accepted, due to the limit of children.";
+  }
+
+  private double childrenOverflowCount(int reasonIndex) {
+    String reason = childrenOverflowReasons[reasonIndex];
+    if ("expired".equals(reason)) {
+      return expiredChildren;
+    } else if ("evicted".equals(reason)) {
+      return evictedChildren;
+    } else {
+      return overflowedChildren;
+    }
+  }
+
+  /**
+   * Helper for implementing {@link #collect(SampleVisitor, Predicate)}: Visit the metric family unless
+   * it has no samples matching the filter.
+   *
+   * @param anySampleNameIncluded {@code true} if at least one of the family's sample names passes the filter.
+   * @return {@code false} if the family was skipped, in that case no samples should be visited.
+   */
+  protected boolean visitFamily(SampleVisitor visitor, Collector.Type type, Predicate<String> sampleNameFilter, boolean anySampleNameIncluded) throws IOException {
+    if (sampleNameFilter != null && (!anySampleNameIncluded || children.isEmpty())) {
+      return false;
+    }
+    visitor.visitFamily(fullname, unit, type, help);
+    return true;
+  }
+
+  /**
+   * Helper for implementing {@link #collect(Predicate)}: Build the result with
+   * {@link #collect(SampleVisitor, Predicate)}, so that samples excluded by the filter are neither read nor created.
+   * <p>
+   * Only for subclasses that override {@link #collect(SampleVisitor, Predicate)}, otherwise the default implementation
+   * of that method calls {@link #collect(Predicate)} again.
+   */
+  protected List<MetricFamilySamples> collectVisited(Predicate<String> sampleNameFilter) {
+    if (sampleNameFilter == null) {
+      return collect();
+    }
+    MetricFamilySamplesVisitor visitor = new MetricFamilySamplesVisitor();
+    try {
+      collect(visitor, sampleNameFilter);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // not thrown by MetricFamilySamplesVisitor
+    }
+    return visitor.finish();
+  }
+
+  /**
+   * Creates the {@link MetricFamilySamples} for {@link #collectVisited(Predicate)}.
+   * <p>
+   * The label lists passed by the collectors in this package are the collector's label names and the children's
+   * label values, which are never modified. Therefore they are used in the samples without copying.
+   */
+  private static class MetricFamilySamplesVisitor implements SampleVisitor {
+
+    private final List<MetricFamilySamples> result = new ArrayList<MetricFamilySamples>(2);
+    private String name;
+    private String unit;
+    private Type type;
+    private String help;
+    private List<MetricFamilySamples.Sample> samples;
+    // The same extra label is added to many samples, like le for histogram buckets.
+    private List<String> labelNames;
+    private String extraLabelName;
+    private List<String> labelNamesWithExtraLabel;
+
+    @Override
+    public void visitFamily(String name, String unit, Type type, String help) {
+      addFamily();
+      this.name = name;
+      this.unit = unit;
+      this.type = type;
+      this.help = help;
+      this.samples = new ArrayList<MetricFamilySamples.Sample>();
+    }
+
+    @Override
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue,
+                            double value, Exemplar exemplar, Long timestampMs) {
+      if (extraLabelName != null) {
+        if (labelNames != this.labelNames || !extraLabelName.equals(this.extraLabelName)) {
+          this.labelNames = labelNames;
+          this.extraLabelName = extraLabelName;
+          labelNamesWithExtraLabel = new ArrayList<String>(labelNames.size() + 1);
+          labelNamesWithExtraLabel.addAll(labelNames);
+          labelNamesWithExtraLabel.add(extraLabelName);
+        }
+        List<String> labelValuesWithExtraLabel = new ArrayList<String>(labelValues.size() + 1);
+        labelValuesWithExtraLabel.addAll(labelValues);
+        labelValuesWithExtraLabel.add(extraLabelValue);
+        labelNames = labelNamesWithExtraLabel;
+        labelValues = labelValuesWithExtraLabel;
+      }
+      samples.add(new MetricFamilySamples.Sample(name, labelNames, labelValues, value, exemplar, timestampMs));
+    }
+
+    private void addFamily() {
+      if (samples != null) {
+        result.add(new MetricFamilySamples(name, unit, type, help, samples));
+      }
+    }
+
+    List<MetricFamilySamples> finish() {
+      addFamily();
+      samples = null;
+      return result;
+    }
+  }
+
+  /**
+   * @return {@code true} if {@code sampleNameFilter} is {@code null} or accepts {@code name}.
+   */
+  protected static boolean isIncluded(Predicate<String> sampleNameFilter, String name) {
+    return sampleNameFilter == null || sampleNameFilter.test(name);
+  }
+
   protected SimpleCollector(Builder b) {
     if (b.name.isEmpty()) throw new IllegalStateException("Name hasn't been set.");
     String name = b.name;
@@ -175,6 +627,29 @@ public abstract class SimpleCollector<Child> extends Collector {
       checkMetricLabelName(n);
     }
 
+    maxChildren = b.maxChildren;
+    overflowPolicy = b.overflowPolicy;
+    childIdleTimeoutNanos = b.childIdleTimeoutNanos;
+    childrenLimited = maxChildren > 0 || childIdleTimeoutNanos > 0;
+    if (childrenLimited && labelNames.isEmpty()) {
+      throw new IllegalStateException("maxChildren and childIdleTimeout require labelNames.");
+    }
+    childIndex = new ChildIndex<Child>(childrenLimited);
+    overflowIndex = maxChildren > 0 && overflowPolicy != OverflowPolicy.EVICT_LEAST_RECENTLY_USED
+        ? new ChildIndex<Object>() : null;
+    epochStartNanos = new long[childIdleTimeoutNanos > 0 ? EPOCHS : 0];
+    if (childIdleTimeoutNanos > 0) {
+      epochStartNanos[0] = System.nanoTime();
+    }
+    List<String> reasons = new ArrayList<String>(2);
+    if (maxChildren > 0) {
+      reasons.add(overflowReason(overflowPolicy));
+    }
+    if (childIdleTimeoutNanos > 0) {
+      reasons.add("expired");
+    }
+    childrenOverflowReasons = reasons.toArray(new String[0]);
+
     if (!b.dontInitializeNoLabelsChild) {
       initializeNoLabelsChild();
     }
@@ -193,6 +668,9 @@ public abstract class SimpleCollector<Child> extends Collector {
     String[] labelNames = new String[]{};
     // Some metrics require additional setup before the initialization can be done.
     boolean dontInitializeNoLabelsChild;
+    int maxChildren = 0;
+    OverflowPolicy overflowPolicy = OverflowPolicy.EVICT_LEAST_RECENTLY_USED;
+    long childIdleTimeoutNanos = 0;
 
     /**
      * Set the name of the metric. Required.
@@ -239,6 +717,49 @@ public abstract class SimpleCollector<Child> extends Collector {
       return (B)this;
     }
 
+    /**
+     * Limit the number of children, i.e. of distinct label values. Optional, by default there is no limit.
+     * <p>
+     * When the limit is reached, new label values are handled according to the
+     * {@link #overflowPolicy(OverflowPolicy) overflowPolicy}.
+     * Any references to a Child that was removed are invalidated like with {@link SimpleCollector#remove}.
+     */
+    public B maxChildren(int maxChildren) {
+      if (maxChildren <= 0) {
+        throw new IllegalArgumentException("maxChildren must be > 0");
+      }
+      this.maxChildren = maxChildren;
+      return (B)this;
+    }
+
+    /**
+     * What to do with new label values when {@link #maxChildren(int) maxChildren} is reached.
+     * Default is {@link OverflowPolicy#EVICT_LEAST_RECENTLY_USED}.
+     */
+    public B overflowPolicy(OverflowPolicy overflowPolicy) {
+      if (overflowPolicy == null) {
+        throw new NullPointerException("overflowPolicy");
+      }
+      this.overflowPolicy = overflowPolicy;
+      return (B)this;
+    }
+
+    /**
+     * Remove children that were not looked up with {@link SimpleCollector#labels labels()} for the given time.
+     * Optional, by default children are never removed.
+     * <p>
+     * Idle children are removed when the metric is collected or when a new child is created,
+     * between one and about two timeouts after they were last used.
+     * Note that updates through a reference to a Child, without calling {@code labels()}, do not count as use.
+     */
+    public B childIdleTimeout(long timeout, TimeUnit unit) {
+      if (timeout <= 0) {
+        throw new IllegalArgumentException("childIdleTimeout must be > 0");
+      }
+      this.childIdleTimeoutNanos = unit.toNanos(timeout);
+      return (B)this;
+    }
+
     /**
      * Return the constructed collector.
      * <p>
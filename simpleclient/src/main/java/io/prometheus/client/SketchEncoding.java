@@ -0,0 +1,199 @@
+package io.prometheus.client;
+
+import java.util.Arrays;
+
+/**
+ * Binary encoding of quantile sketches, see {@link QuantileEstimator#encode()}.
+ * <p>
+ * The first byte is the sketch type, followed by the fields of the sketch. Counts and sizes are written as
+ * unsigned varints, indexes as zigzag varints, and values as 8 byte IEEE 754 doubles in big-endian byte order.
+ * The result is Base64 encoded (RFC 4648, with padding), so that it can be used as a label value.
+ */
+final class SketchEncoding {
+
+    static final byte DDSKETCH = 1;
+    static final byte KLL = 2;
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_INDEX = new int[128];
+
+    static {
+        Arrays.fill(BASE64_INDEX, -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_INDEX[BASE64[i]] = i;
+        }
+    }
+
+    private SketchEncoding() {
+    }
+
+    static final class Writer {
+
+        private byte[] buffer = new byte[64];
+        private int size = 0;
+
+        Writer writeByte(int b) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[size++] = (byte) b;
+            return this;
+        }
+
+        Writer writeVarLong(long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative value: " + value);
+            }
+            while (value > 0x7F) {
+                writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            return writeByte((int) value);
+        }
+
+        Writer writeZigZag(int value) {
+            return writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        }
+
+        Writer writeDouble(double value) {
+            long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (bits >>> shift));
+            }
+            return this;
+        }
+
+        String toBase64() {
+            StringBuilder result = new StringBuilder((size + 2) / 3 * 4);
+            for (int i = 0; i < size; i += 3) {
+                int b = (buffer[i] & 0xFF) << 16;
+                if (i + 1 < size) {
+                    b |= (buffer[i + 1] & 0xFF) << 8;
+                }
+                if (i + 2 < size) {
+                    b |= buffer[i + 2] & 0xFF;
+                }
+                result.append(BASE64[b >>> 18]).append(BASE64[(b >>> 12) & 0x3F]);
+                result.append(i + 1 < size ? BASE64[(b >>> 6) & 0x3F] : '=');
+                result.append(i + 2 < size ? BASE64[b & 0x3F] : '=');
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Reads an encoded sketch. Malformed input results in an {@link IllegalArgumentException}.
+     */
+    static final class Reader {
+
+        private final byte[] bytes;
+        private int pos = 0;
+
+        Reader(String base64) {
+            this.bytes = decodeBase64(base64);
+        }
+
+        int readByte() {
+            if (pos >= bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of sketch.");
+            }
+            return bytes[pos++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (result < 0) {
+                        break;
+                    }
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in sketch.");
+        }
+
+        /**
+         * Read a varint that is used as an array size, which must not be larger than {@code max}.
+         */
+        int readSize(int max) {
+            long result = readVarLong();
+            if (result > max) {
+                throw new IllegalArgumentException("Invalid size " + result + " in sketch.");
+            }
+            return (int) result;
+        }
+
+        int readZigZag() {
+            long value = readVarLong();
+            if (value > 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("Malformed index in sketch.");
+            }
+            int n = (int) value;
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        /**
+         * Bytes that were not read yet. Sizes in the input are checked against this to reject malformed input
+         * before allocating arrays.
+         */
+        int remaining() {
+            return bytes.length - pos;
+        }
+
+        void checkEnd() {
+            if (pos != bytes.length) {
+                throw new IllegalArgumentException("Unexpected trailing bytes in sketch.");
+            }
+        }
+    }
+
+    private static byte[] decodeBase64(String base64) {
+        int length = base64.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Invalid Base64 length " + length + ".");
+        }
+        int padding = 0;
+        if (length > 0 && base64.charAt(length - 1) == '=') {
+            padding++;
+            if (base64.charAt(length - 2) == '=') {
+                padding++;
+            }
+        }
+        byte[] result = new byte[length / 4 * 3 - padding];
+        int pos = 0;
+        for (int i = 0; i < length; i += 4) {
+            int b = 0;
+            for (int j = 0; j < 4; j++) {
+                char c = base64.charAt(i + j);
+                int value;
+                if (c == '=' && i + 4 == length && j >= 4 - padding) {
+                    value = 0;
+                } else if (c < 128 && BASE64_INDEX[c] >= 0) {
+                    value = BASE64_INDEX[c];
+                } else {
+                    throw new IllegalArgumentException("Invalid Base64 character '" + c + "'.");
+                }
+                b = (b << 6) | value;
+            }
+            result[pos++] = (byte) (b >>> 16);
+            if (pos < result.length) {
+                result[pos++] = (byte) (b >>> 8);
+            }
+            if (pos < result.length) {
+                result[pos++] = (byte) b;
+            }
+        }
+        return result;
+    }
+}
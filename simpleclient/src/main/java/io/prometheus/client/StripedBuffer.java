@@ -0,0 +1,135 @@
+package io.prometheus.client;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects observations from many threads without a shared lock, and hands them over to a
+ * {@link Consumer} in sorted batches.
+ * <p>
+ * Each thread records into one of several stripes, selected by the same per-thread hash code as in
+ * {@link Striped64}. A stripe is protected by a CAS flag rather than a monitor: If the flag is taken by another
+ * thread, the writer rehashes and tries another stripe instead of waiting. When a stripe is full, the
+ * writer sorts it and passes it to the consumer. This way the consumer's lock is acquired once per
+ * {@link #STRIPE_SIZE} observations instead of once per observation, and sorting happens outside that lock.
+ * <p>
+ * Stripes are created lazily, so a buffer that is only used by a single thread has a single stripe.
+ * <p>
+ * Call {@link #drain()} before reading the consumer's state to make sure all buffered observations are included.
+ */
+final class StripedBuffer {
+
+  /**
+   * Receives sorted batches of observations.
+   */
+  interface Consumer {
+    /**
+     * Called with {@code sorted[0]} to {@code sorted[length - 1]} in ascending order.
+     * The array is re-used after this method returns.
+     */
+    void insertSorted(double[] sorted, int length);
+
+    /**
+     * Fallback if no stripe could be acquired.
+     */
+    void insert(double value);
+  }
+
+  static final int STRIPE_SIZE = 128;
+  private static final int MAX_STRIPES = 64;
+
+  private final Consumer consumer;
+  private final AtomicReferenceArray<Stripe> stripes;
+
+  StripedBuffer(Consumer consumer) {
+    this.consumer = consumer;
+    int n = 1;
+    while (n < Striped64.NCPU && n < MAX_STRIPES) {
+      n <<= 1;
+    }
+    this.stripes = new AtomicReferenceArray<Stripe>(n);
+  }
+
+  void insert(double value) {
+    int[] hc = Striped64.threadHashCode.get();
+    int h;
+    if (hc == null) {
+      Striped64.threadHashCode.set(hc = new int[1]);
+      int r = Striped64.rng.nextInt(); // Avoid zero to allow xorShift rehash
+      h = hc[0] = (r == 0) ? 1 : r;
+    } else {
+      h = hc[0];
+    }
+    int mask = stripes.length() - 1;
+    for (int attempt = 0; attempt <= mask; attempt++) {
+      Stripe stripe = stripes.get(h & mask);
+      if (stripe == null) {
+        stripes.compareAndSet(h & mask, null, new Stripe());
+        stripe = stripes.get(h & mask);
+      }
+      if (stripe.tryAcquire()) {
+        try {
+          stripe.values[stripe.count++] = value;
+          if (stripe.count == STRIPE_SIZE) {
+            flush(stripe);
+          }
+        } finally {
+          stripe.release();
+        }
+        return;
+      }
+      h ^= h << 13; // Rehash
+      h ^= h >>> 17;
+      h ^= h << 5;
+      hc[0] = h; // Record index for next time
+    }
+    // All stripes we tried were busy.
+    consumer.insert(value);
+  }
+
+  /**
+   * Pass all buffered observations to the consumer.
+   */
+  void drain() {
+    for (int i = 0; i < stripes.length(); i++) {
+      Stripe stripe = stripes.get(i);
+      // Read busy before count: The volatile read makes the last writer's count visible.
+      if (stripe == null || (stripe.busy == 0 && stripe.count == 0)) {
+        continue;
+      }
+      while (!stripe.tryAcquire()) {
+        Thread.yield();
+      }
+      try {
+        flush(stripe);
+      } finally {
+        stripe.release();
+      }
+    }
+  }
+
+  private void flush(Stripe stripe) {
+    if (stripe.count > 0) {
+      Arrays.sort(stripe.values, 0, stripe.count);
+      consumer.insertSorted(stripe.values, stripe.count);
+      stripe.count = 0;
+    }
+  }
+
+  private static final class Stripe {
+    final double[] values = new double[STRIPE_SIZE];
+    int count; // guarded by busy
+    volatile int busy;
+
+    boolean tryAcquire() {
+      return busy == 0 && BUSY.compareAndSet(this, 0, 1);
+    }
+
+    void release() {
+      busy = 0;
+    }
+
+    private static final AtomicIntegerFieldUpdater<Stripe> BUSY = AtomicIntegerFieldUpdater.newUpdater(Stripe.class, "busy");
+  }
+}
@@ -3,6 +3,7 @@ package io.prometheus.client;
 import io.prometheus.client.CKMSQuantiles.Quantile;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -98,18 +99,94 @@ import java.util.concurrent.TimeUnit;
  *
  * The default is a time window of 10 minutes and 5 age buckets, i.e. the time window is 10 minutes wide, and
  * we slide it forward every 2 minutes.
+ * <p>
+ * Calculating quantiles requires synchronization, so by default concurrent observations on the same {@link Summary}
+ * with quantiles contend on a lock. If a {@link Summary} with quantiles is updated by many threads concurrently,
+ * use {@link Builder#concurrentQuantiles(boolean) concurrentQuantiles(true)}:
+ *
+ * <pre>
+ * Summary requestLatency = Summary.build()
+ *     .name("requests_latency_seconds")
+ *     .help("Request latency in seconds.")
+ *     .quantile(0.95, 0.005)
+ *     .concurrentQuantiles(true)
+ *     // ...
+ *     .register();
+ * </pre>
+ *
+ * With {@code concurrentQuantiles(true)} each thread buffers its observations, and the buffers are merged in
+ * batches, or when the quantiles are collected. The {@code count} and the {@code sum} are not affected.
+ * <p>
+ * By default, quantiles are estimated with the CKMS algorithm, which respects the allowed error of each quantile.
+ * For tail quantiles like 0.999, or values spanning several orders of magnitude, a sketch with a relative error
+ * of the value is usually cheaper and more accurate:
+ *
+ * <pre>
+ * Summary requestLatency = Summary.build()
+ *     .name("requests_latency_seconds")
+ *     .help("Request latency in seconds.")
+ *     .quantile(0.99, 0)
+ *     .quantile(0.999, 0)
+ *     .quantileEstimator(QuantileEstimator.ddSketch(0.01)) // values within 1% of the actual quantiles
+ *     // ...
+ *     .register();
+ * </pre>
+ *
+ * See {@link QuantileEstimator} for the available estimators.
+ * <p>
+ * Quantiles cannot be aggregated across instances. With a mergeable estimator, the Summary can export the
+ * estimator of each child as a Base64 encoded sketch, which can be merged with the sketches of other instances,
+ * for example with {@code QuantileSketchMerger} in {@code simpleclient_common}. The sketches are not part of the
+ * scraped metrics, as they change with every observation. They are available with {@link #getSketches()},
+ * for example on the {@code /sketches} endpoint of the {@code HTTPServer}:
+ *
+ * <pre>
+ * Summary requestLatency = Summary.build()
+ *     .name("requests_latency_seconds")
+ *     .help("Request latency in seconds.")
+ *     .quantile(0.99, 0)
+ *     .quantileEstimator(QuantileEstimator.ddSketch(0.01))
+ *     .exportSketch(true) // makes the sketches available with getSketches()
+ *     // ...
+ *     .register();
+ *
+ * HTTPServer server = new HTTPServer.Builder()
+ *     .withPort(1234)
+ *     .withQuantileSketches(requestLatency) // serves requests_latency_seconds{...} &lt;sketch&gt; on /sketches
+ *     .build();
+ * </pre>
  */
 public class Summary extends SimpleCollector<Summary.Child> implements Counter.Describable {
 
   final List<Quantile> quantiles; // Can be empty, but can never be null.
+  private final SortedMap<Double, String> quantileLabelValues; // formatted quantiles, so that collect() doesn't need to format them
+  private final double[] sortedQuantiles; // the keys of quantileLabelValues
+  private final String[] sortedQuantileLabelValues; // the values of quantileLabelValues
   final long maxAgeSeconds;
   final int ageBuckets;
+  final boolean concurrentQuantiles;
+  final QuantileEstimator.Factory quantileEstimator;
+  final boolean exportSketch;
 
   Summary(Builder b) {
     super(b);
     quantiles = Collections.unmodifiableList(new ArrayList<Quantile>(b.quantiles));
+    quantileLabelValues = new TreeMap<Double, String>();
+    for (Quantile q : quantiles) {
+      quantileLabelValues.put(q.quantile, doubleToGoString(q.quantile));
+    }
+    sortedQuantiles = new double[quantileLabelValues.size()];
+    sortedQuantileLabelValues = new String[quantileLabelValues.size()];
+    int i = 0;
+    for (Map.Entry<Double, String> q : quantileLabelValues.entrySet()) {
+      sortedQuantiles[i] = q.getKey();
+      sortedQuantileLabelValues[i++] = q.getValue();
+    }
     this.maxAgeSeconds = b.maxAgeSeconds;
     this.ageBuckets = b.ageBuckets;
+    this.concurrentQuantiles = b.concurrentQuantiles;
+    this.quantileEstimator = b.quantileEstimator;
+    this.exportSketch = b.exportSketch;
     initializeNoLabelsChild();
   }
 
@@ -118,6 +195,9 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
     private final List<Quantile> quantiles = new ArrayList<Quantile>();
     private long maxAgeSeconds = TimeUnit.MINUTES.toSeconds(10);
     private int ageBuckets = 5;
+    private boolean concurrentQuantiles = false;
+    private QuantileEstimator.Factory quantileEstimator = QuantileEstimator.ckms();
+    private boolean exportSketch = false;
 
     /**
      * The class JavaDoc for {@link Summary} has more information on {@link #quantile(double, double)}.
@@ -158,6 +238,46 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
       return this;
     }
 
+    /**
+     * Record observations for quantiles in per-thread buffers, which are merged in batches rather than
+     * synchronizing on every observation. This reduces contention if many threads observe the same Child.
+     * <p>
+     * Buffered observations are included whenever quantiles are collected, but they may be assigned to a later
+     * age bucket than the time of the observation. Default is {@code false}.
+     * @see Summary
+     */
+    public Builder concurrentQuantiles(boolean concurrentQuantiles) {
+      this.concurrentQuantiles = concurrentQuantiles;
+      return this;
+    }
+
+    /**
+     * The algorithm for estimating the quantiles, like {@link QuantileEstimator#ddSketch(double)}.
+     * Default is {@link QuantileEstimator#ckms()}.
+     * @see QuantileEstimator
+     */
+    public Builder quantileEstimator(QuantileEstimator.Factory quantileEstimator) {
+      if (quantileEstimator == null) {
+        throw new NullPointerException();
+      }
+      this.quantileEstimator = quantileEstimator;
+      return this;
+    }
+
+    /**
+     * Make the {@link QuantileEstimator#encode() encoded} estimator of each child available with
+     * {@link Summary#getSketches()}. The sketch covers the same time window as the quantiles. Sketches of
+     * different instances can be merged to get quantiles across all instances.
+     * <p>
+     * Requires at least one quantile and an estimator that can be encoded, like
+     * {@link QuantileEstimator#ddSketch(double)} or {@link QuantileEstimator#kll(int)}. Default is {@code false}.
+     * @see Summary
+     */
+    public Builder exportSketch(boolean exportSketch) {
+      this.exportSketch = exportSketch;
+      return this;
+    }
+
     @Override
     public Summary create() {
       for (String label : labelNames) {
@@ -165,9 +285,29 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
           throw new IllegalStateException("Summary cannot have a label named 'quantile'.");
         }
       }
+      if (exportSketch) {
+        checkSketchCanBeExported();
+      }
       dontInitializeNoLabelsChild = true;
       return new Summary(this);
     }
+
+    private void checkSketchCanBeExported() {
+      if (quantiles.isEmpty()) {
+        throw new IllegalStateException("exportSketch(true) requires at least one quantile.");
+      }
+      QuantileEstimator estimator = quantileEstimator.newEstimator(new double[]{quantiles.get(0).quantile},
+          new double[]{quantiles.get(0).epsilon});
+      try {
+        if (estimator.isMergeable()) {
+          estimator.encode();
+          return;
+        }
+      } catch (UnsupportedOperationException e) {
+        // fall through
+      }
+      throw new IllegalStateException("exportSketch(true) requires a quantile estimator that is mergeable and can be encoded.");
+    }
   }
 
   /**
@@ -189,7 +329,7 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
 
   @Override
   protected Child newChild() {
-    return new Child(quantiles, maxAgeSeconds, ageBuckets);
+    return new Child(quantiles, maxAgeSeconds, ageBuckets, concurrentQuantiles, quantileEstimator);
   }
 
 
@@ -283,8 +423,16 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
 
       private SortedMap<Double, Double> snapshot(List<Quantile> quantiles, TimeWindowQuantiles quantileValues) {
         SortedMap<Double, Double> result = new TreeMap<Double, Double>();
-        for (Quantile q : quantiles) {
-          result.put(q.quantile, quantileValues.get(q.quantile));
+        if (quantiles.isEmpty()) {
+          return result;
+        }
+        double[] qs = new double[quantiles.size()];
+        for (int i = 0; i < qs.length; i++) {
+          qs[i] = quantiles.get(i).quantile;
+        }
+        double[] values = quantileValues.get(qs);
+        for (int i = 0; i < qs.length; i++) {
+          result.put(qs[i], values[i]);
         }
         return result;
       }
@@ -300,10 +448,12 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
     private final TimeWindowQuantiles quantileValues;
     private final long created = System.currentTimeMillis();
 
-    private Child(List<Quantile> quantiles, long maxAgeSeconds, int ageBuckets) {
+    private Child(List<Quantile> quantiles, long maxAgeSeconds, int ageBuckets, boolean concurrentQuantiles,
+                  QuantileEstimator.Factory quantileEstimator) {
       this.quantiles = quantiles;
       if (quantiles.size() > 0) {
-        quantileValues = new TimeWindowQuantiles(quantiles.toArray(new Quantile[]{}), maxAgeSeconds, ageBuckets);
+        quantileValues = new TimeWindowQuantiles(quantileEstimator, quantiles.toArray(new Quantile[]{}), maxAgeSeconds,
+            ageBuckets, concurrentQuantiles);
       } else {
         quantileValues = null;
       }
@@ -323,6 +473,26 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
         quantileValues.insert(amt);
       }
     }
+    /**
+     * Observe {@code values[offset]} to {@code values[offset + len - 1]}.
+     * <p>
+     * Count and sum are updated once for the whole batch. If the summary has quantiles, the batch is sorted
+     * and merged into the quantile estimators in a single pass, rather than being buffered value by value.
+     */
+    public void observe(double[] values, int offset, int len) {
+      if (offset < 0 || len < 0 || offset > values.length - len) {
+        throw new IndexOutOfBoundsException();
+      }
+      double batchSum = 0;
+      for (int i = offset; i < offset + len; i++) {
+        batchSum += values[i];
+      }
+      count.add(len);
+      sum.add(batchSum);
+      if (quantileValues != null) {
+        quantileValues.insert(values, offset, len);
+      }
+    }
     /**
      * Start a timer to track a duration.
      * <p>
@@ -352,6 +522,12 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
   public void observe(double amt) {
     noLabelsChild.observe(amt);
   }
+  /**
+   * Like {@link Child#observe(double[], int, int)}, but for the summary with no labels.
+   */
+  public void observe(double[] values, int offset, int len) {
+    noLabelsChild.observe(values, offset, len);
+  }
   /**
    * Start a timer to track a duration on the summary with no labels.
    * <p>
@@ -399,7 +575,7 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
       labelNamesWithQuantile.add("quantile");
       for(Map.Entry<Double, Double> q : v.quantiles.entrySet()) {
         List<String> labelValuesWithQuantile = new ArrayList<String>(c.getKey());
-        labelValuesWithQuantile.add(doubleToGoString(q.getKey()));
+        labelValuesWithQuantile.add(quantileLabelValues.get(q.getKey()));
         samples.add(new MetricFamilySamples.Sample(fullname, labelNamesWithQuantile, labelValuesWithQuantile, q.getValue()));
       }
       samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, c.getKey(), v.count));
@@ -412,9 +588,89 @@ public class Summary extends SimpleCollector<Summary.Child> implements Counter.D
     return familySamplesList(Type.SUMMARY, samples);
   }
 
+  /**
+   * The encoded sketch of each child, for Summaries built with {@link Builder#exportSketch(boolean) exportSketch(true)}.
+   *
+   * @throws IllegalStateException if the Summary doesn't export sketches.
+   */
+  public List<Sketch> getSketches() {
+    if (!exportSketch) {
+      throw new IllegalStateException(fullname + " was not built with exportSketch(true).");
+    }
+    List<Sketch> sketches = new ArrayList<Sketch>(children.size());
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      sketches.add(new Sketch(fullname, labelNames, c.getKey(), c.getValue().quantileValues.encode()));
+    }
+    return sketches;
+  }
+
+  /**
+   * The encoded quantile sketch of a child, see {@link #getSketches()}.
+   */
+  public static class Sketch {
+    public final String name;
+    public final List<String> labelNames;
+    public final List<String> labelValues;
+    /**
+     * The Base64 encoded sketch, see {@link QuantileEstimator#decode(String)}.
+     */
+    public final String sketch;
+
+    public Sketch(String name, List<String> labelNames, List<String> labelValues, String sketch) {
+      this.name = name;
+      this.labelNames = labelNames;
+      this.labelValues = labelValues;
+      this.sketch = sketch;
+    }
+
+    @Override
+    public String toString() {
+      return "Name: " + name + " LabelNames: " + labelNames + " labelValues: " + labelValues + " Sketch: " + sketch;
+    }
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect(Predicate<String> sampleNameFilter) {
+    return collectVisited(sampleNameFilter);
+  }
+
+  @Override
+  public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+    visitChildrenOverflow(visitor, sampleNameFilter);
+    String countName = fullname + "_count";
+    String sumName = fullname + "_sum";
+    String createdName = fullname + "_created";
+    boolean quantile = !quantiles.isEmpty() && isIncluded(sampleNameFilter, fullname);
+    boolean count = isIncluded(sampleNameFilter, countName);
+    boolean sum = isIncluded(sampleNameFilter, sumName);
+    boolean created = Environment.includeCreatedSeries() && isIncluded(sampleNameFilter, createdName);
+    if (!visitFamily(visitor, Type.SUMMARY, sampleNameFilter, quantile || count || sum || created)) {
+      return;
+    }
+    for (Map.Entry<List<String>, Child> c : children.entrySet()) {
+      // Read the child directly rather than with get(), so that quantiles are only computed if they are included.
+      Child child = c.getValue();
+      if (quantile) {
+        double[] values = child.quantileValues.get(sortedQuantiles);
+        for (int i = 0; i < values.length; i++) {
+          visitor.visitSample(fullname, labelNames, c.getKey(), "quantile", sortedQuantileLabelValues[i], values[i], null, null);
+        }
+      }
+      if (count) {
+        visitor.visitSample(countName, labelNames, c.getKey(), null, null, child.count.sum(), null, null);
+      }
+      if (sum) {
+        visitor.visitSample(sumName, labelNames, c.getKey(), null, null, child.sum.sum(), null, null);
+      }
+      if (created) {
+        visitor.visitSample(createdName, labelNames, c.getKey(), null, null, child.created / 1000.0, null, null);
+      }
+    }
+  }
+
   @Override
   public List<MetricFamilySamples> describe() {
-    return Collections.<MetricFamilySamples>singletonList(new SummaryMetricFamily(fullname, help, labelNames));
+    return familySamplesList(new SummaryMetricFamily(fullname, help, labelNames));
   }
 
 }
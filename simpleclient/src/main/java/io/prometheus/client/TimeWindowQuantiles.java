@@ -1,54 +1,198 @@
 package io.prometheus.client;
 
 import io.prometheus.client.CKMSQuantiles.Quantile;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Wrapper around CKMSQuantiles.
+ * Wrapper around {@link QuantileEstimator}s, CKMSQuantiles by default.
  *
- * Maintains a ring buffer of CKMSQuantiles to provide quantiles over a sliding windows of time.
+ * Maintains a ring buffer of QuantileEstimators to provide quantiles over a sliding windows of time.
+ * <p>
+ * If the estimators are {@link QuantileEstimator#isMergeable() mergeable}, each estimator in the ring buffer
+ * is a slice with the observations of one age bucket, and each observation is inserted into the current slice
+ * only. {@link #get(double[])} merges the slices into a separate estimator once for all quantiles, which is reused
+ * until the next observation or rotation. Rotating resets the oldest slice for reuse. Otherwise, each estimator in the ring buffer
+ * has the observations since it was created, so each observation is inserted into all of them.
+ * <p>
+ * If created with {@code striped = true}, observations are first recorded in a {@link StripedBuffer},
+ * so that concurrent {@link #insert(double)} calls don't contend on this object's lock. Buffered observations
+ * are added to the ring buffer when a stripe is full, and before quantiles are calculated in {@link #get(double[])}.
  */
 class TimeWindowQuantiles {
 
-  private final Quantile[] quantiles;
-  private final CKMSQuantiles[] ringBuffer;
+  private final QuantileEstimator.Factory factory;
+  private final double[] quantiles;
+  private final double[] errors;
+  private final QuantileEstimator[] ringBuffer;
+  private final QuantileEstimator merged; // null if the estimators are not mergeable
+  private boolean mergedIsCurrent = false;
   private int currentBucket;
   private long lastRotateTimestampMillis;
   private final long durationBetweenRotatesMillis;
+  private final StripedBuffer stripedBuffer; // may be null
 
   public TimeWindowQuantiles(Quantile[] quantiles, long maxAgeSeconds, int ageBuckets) {
-    this.quantiles = quantiles;
-    this.ringBuffer = new CKMSQuantiles[ageBuckets];
+    this(quantiles, maxAgeSeconds, ageBuckets, false);
+  }
+
+  public TimeWindowQuantiles(Quantile[] quantiles, long maxAgeSeconds, int ageBuckets, boolean striped) {
+    this(QuantileEstimator.ckms(), quantiles, maxAgeSeconds, ageBuckets, striped);
+  }
+
+  public TimeWindowQuantiles(QuantileEstimator.Factory factory, Quantile[] quantiles, long maxAgeSeconds,
+                             int ageBuckets, boolean striped) {
+    this.factory = factory;
+    this.quantiles = new double[quantiles.length];
+    this.errors = new double[quantiles.length];
+    for (int i = 0; i < quantiles.length; i++) {
+      this.quantiles[i] = quantiles[i].quantile;
+      this.errors[i] = quantiles[i].epsilon;
+    }
+    this.ringBuffer = new QuantileEstimator[ageBuckets];
     for (int i = 0; i < ageBuckets; i++) {
-      this.ringBuffer[i] = new CKMSQuantiles(quantiles);
+      this.ringBuffer[i] = factory.newEstimator(this.quantiles, this.errors);
     }
+    this.merged = ringBuffer[0].isMergeable() ? factory.newEstimator(this.quantiles, this.errors) : null;
     this.currentBucket = 0;
     this.lastRotateTimestampMillis = System.currentTimeMillis();
     this.durationBetweenRotatesMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds) / ageBuckets;
+    this.stripedBuffer = striped ? new StripedBuffer(new StripedBufferConsumer()) : null;
   }
 
-  public synchronized double get(double q) {
-    CKMSQuantiles currentBucket = rotate();
-    return currentBucket.get(q);
+  public double get(double q) {
+    return get(new double[]{q})[0];
   }
 
-  public synchronized void insert(double value) {
-    rotate();
-    for (CKMSQuantiles ckmsQuantiles : ringBuffer) {
-      ckmsQuantiles.insert(value);
+  /**
+   * The estimated values at the quantiles {@code qs}, all from the same state of the time window.
+   * The buffered observations are drained and the slices are merged at most once per call, even if observations
+   * are made while the quantiles are read, so reading all quantiles of a scrape should use a single call.
+   */
+  public double[] get(double[] qs) {
+    if (stripedBuffer != null) {
+      // Must not hold the lock here, because the StripedBuffer acquires it while holding a stripe.
+      stripedBuffer.drain();
+    }
+    synchronized (this) {
+      QuantileEstimator estimator = rotate();
+      if (merged != null) {
+        estimator = merged();
+      }
+      double[] result = new double[qs.length];
+      for (int i = 0; i < qs.length; i++) {
+        result[i] = estimator.get(qs[i]);
+      }
+      return result;
     }
   }
 
-  private CKMSQuantiles rotate() {
+  /**
+   * The {@link QuantileEstimator#encode() encoded} estimator of the time window.
+   *
+   * @throws UnsupportedOperationException if the estimators are not mergeable or cannot be encoded.
+   */
+  public String encode() {
+    if (stripedBuffer != null) {
+      stripedBuffer.drain();
+    }
+    synchronized (this) {
+      rotate();
+      if (merged == null) {
+        throw new UnsupportedOperationException();
+      }
+      return merged().encode();
+    }
+  }
+
+  private QuantileEstimator merged() {
+    if (!mergedIsCurrent) {
+      merged.reset();
+      for (QuantileEstimator slice : ringBuffer) {
+        merged.merge(slice);
+      }
+      mergedIsCurrent = true;
+    }
+    return merged;
+  }
+
+  public void insert(double value) {
+    if (stripedBuffer != null) {
+      stripedBuffer.insert(value);
+    } else {
+      insertNow(value);
+    }
+  }
+
+  /**
+   * Insert {@code values[offset]} to {@code values[offset + len - 1]}.
+   * The values are copied and sorted outside the lock, and merged into the QuantileEstimators in one pass.
+   */
+  public void insert(double[] values, int offset, int len) {
+    if (len == 0) {
+      return;
+    }
+    double[] sorted = Arrays.copyOfRange(values, offset, offset + len);
+    Arrays.sort(sorted);
+    insertSorted(sorted, len);
+  }
+
+  private synchronized void insertNow(double value) {
+    QuantileEstimator currentBucket = rotate();
+    if (merged != null) {
+      currentBucket.insert(value);
+      mergedIsCurrent = false;
+    } else {
+      for (QuantileEstimator estimator : ringBuffer) {
+        estimator.insert(value);
+      }
+    }
+  }
+
+  private synchronized void insertSorted(double[] sorted, int length) {
+    QuantileEstimator currentBucket = rotate();
+    if (merged != null) {
+      currentBucket.insertSorted(sorted, length);
+      mergedIsCurrent = false;
+    } else {
+      for (QuantileEstimator estimator : ringBuffer) {
+        estimator.insertSorted(sorted, length);
+      }
+    }
+  }
+
+  private QuantileEstimator rotate() {
     long timeSinceLastRotateMillis = System.currentTimeMillis() - lastRotateTimestampMillis;
     while (timeSinceLastRotateMillis > durationBetweenRotatesMillis) {
-      ringBuffer[currentBucket] = new CKMSQuantiles(quantiles);
-      if (++currentBucket >= ringBuffer.length) {
-        currentBucket = 0;
+      if (merged != null) {
+        // The next slice has the oldest observations, which are now out of the time window.
+        if (++currentBucket >= ringBuffer.length) {
+          currentBucket = 0;
+        }
+        ringBuffer[currentBucket].reset();
+        mergedIsCurrent = false;
+      } else {
+        ringBuffer[currentBucket] = factory.newEstimator(quantiles, errors);
+        if (++currentBucket >= ringBuffer.length) {
+          currentBucket = 0;
+        }
       }
       timeSinceLastRotateMillis -= durationBetweenRotatesMillis;
       lastRotateTimestampMillis += durationBetweenRotatesMillis;
     }
     return ringBuffer[currentBucket];
   }
+
+  private class StripedBufferConsumer implements StripedBuffer.Consumer {
+
+    @Override
+    public void insertSorted(double[] sorted, int length) {
+      TimeWindowQuantiles.this.insertSorted(sorted, length);
+    }
+
+    @Override
+    public void insert(double value) {
+      insertNow(value);
+    }
+  }
 }
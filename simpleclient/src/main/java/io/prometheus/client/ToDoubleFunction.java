@@ -0,0 +1,8 @@
+package io.prometheus.client;
+
+/**
+ * Replacement for Java 8's {@code java.util.function.ToDoubleFunction} for compatibility with Java versions &lt; 8.
+ */
+public interface ToDoubleFunction<T> {
+    double applyAsDouble(T value);
+}
@@ -0,0 +1,88 @@
+package io.prometheus.client;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BucketIndexTest {
+
+  @Test
+  public void testStrategySelection() {
+    assertTrue(BucketIndex.create(linear(0, 1, 10), BucketIndex.Layout.LINEAR, 0, 1) instanceof BucketIndex.LinearScan);
+    assertTrue(BucketIndex.create(linear(0, 1, 30), BucketIndex.Layout.LINEAR, 0, 1) instanceof BucketIndex.LinearLayout);
+    assertTrue(BucketIndex.create(exponential(1, 2, 30), BucketIndex.Layout.EXPONENTIAL, 1, 2) instanceof BucketIndex.ExponentialLayout);
+    assertTrue(BucketIndex.create(linear(0, 1, 30), BucketIndex.Layout.EXPLICIT, 0, 0) instanceof BucketIndex.BinarySearch);
+    // Invalid layout parameters fall back to binary search.
+    assertTrue(BucketIndex.create(linear(0, 1, 30), BucketIndex.Layout.EXPONENTIAL, 0, 1) instanceof BucketIndex.BinarySearch);
+  }
+
+  @Test
+  public void testLinearLayout() {
+    double[] upperBounds = linear(-1.5, 0.1, 100);
+    assertSameAsLinearScan(new BucketIndex.LinearLayout(upperBounds, -1.5, 0.1));
+    assertSameAsLinearScan(new BucketIndex.BinarySearch(upperBounds));
+  }
+
+  @Test
+  public void testExponentialLayout() {
+    double[] upperBounds = exponential(0.001, 1.3, 60);
+    assertSameAsLinearScan(new BucketIndex.ExponentialLayout(upperBounds, 0.001, 1.3));
+    assertSameAsLinearScan(new BucketIndex.BinarySearch(upperBounds));
+  }
+
+  @Test
+  public void testHistogramWithManyBuckets() {
+    CollectorRegistry registry = new CollectorRegistry();
+    Histogram h = Histogram.build().name("h").help("help").exponentialBuckets(1, 2, 40).register(registry);
+    h.observe(0.5);
+    h.observe(1);
+    h.observe(3);
+    h.observe(Double.NaN);
+    assertEquals(2.0, registry.getSampleValue("h_bucket", new String[]{"le"}, new String[]{"1.0"}), .001);
+    assertEquals(2.0, registry.getSampleValue("h_bucket", new String[]{"le"}, new String[]{"2.0"}), .001);
+    assertEquals(3.0, registry.getSampleValue("h_bucket", new String[]{"le"}, new String[]{"4.0"}), .001);
+    assertEquals(3.0, registry.getSampleValue("h_count"), .001);
+  }
+
+  private void assertSameAsLinearScan(BucketIndex bucketIndex) {
+    BucketIndex expected = new BucketIndex.LinearScan(bucketIndex.upperBounds);
+    for (double value : testValues(bucketIndex.upperBounds)) {
+      assertEquals("value " + value, expected.indexOf(value), bucketIndex.indexOf(value));
+    }
+  }
+
+  private List<Double> testValues(double[] upperBounds) {
+    List<Double> result = new ArrayList<Double>();
+    result.add(Double.NaN);
+    result.add(Double.NEGATIVE_INFINITY);
+    result.add(Double.POSITIVE_INFINITY);
+    result.add(-Double.MAX_VALUE);
+    result.add(Double.MAX_VALUE);
+    result.add(0.0);
+    result.add(-0.0);
+    for (double upperBound : upperBounds) {
+      result.add(upperBound);
+      result.add(Math.nextUp(upperBound));
+      result.add(Math.nextAfter(upperBound, Double.NEGATIVE_INFINITY));
+    }
+    Random rand = new Random(0);
+    double max = upperBounds[upperBounds.length - 2] * 1.1;
+    for (int i = 0; i < 10000; i++) {
+      result.add((rand.nextDouble() * 2 - 0.1) * max);
+    }
+    return result;
+  }
+
+  private double[] linear(double start, double width, int count) {
+    return Histogram.build().name("h").help("help").linearBuckets(start, width, count).create().getBuckets();
+  }
+
+  private double[] exponential(double start, double factor, int count) {
+    return Histogram.build().name("h").help("help").exponentialBuckets(start, factor, count).create().getBuckets();
+  }
+}
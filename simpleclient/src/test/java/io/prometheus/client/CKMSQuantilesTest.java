@@ -75,6 +75,20 @@ public class CKMSQuantilesTest {
         validateResults(ckms);
     }
 
+    @Test
+    public void testInsertBatchNewMinAndMax() {
+        CKMSQuantiles ckms = new CKMSQuantiles(q50, q95);
+        ckms.insertBatch(new double[]{10, 20, 30, 40, 50}, 5);
+        ckms.insertBatch(new double[]{5, 15, 35, 60}, 4);
+        validateSamples(ckms);
+        assertEquals(9, ckms.size);
+        assertArrayEquals(new double[]{5, 10, 15, 20, 30, 35, 40, 50, 60}, Arrays.copyOf(ckms.value, ckms.size), 0);
+        assertEquals("new min", 0, ckms.delta[0]);
+        assertEquals("new max", 0, ckms.delta[8]);
+        assertEquals(5.0, ckms.get(0.0), 0);
+        assertEquals(60.0, ckms.get(1.0), 0);
+    }
+
     @Test
     public void testGetWithAMillionElements() {
         Random random = new Random(2);
@@ -84,7 +98,7 @@ public class CKMSQuantilesTest {
             ckms.insert(v);
         }
         validateResults(ckms);
-        assertTrue("sample size should be way below 1_000_000", ckms.samples.size() < 1000);
+        assertTrue("sample size should be way below 1_000_000", ckms.size < 1000);
     }
 
     @Test
@@ -97,7 +111,7 @@ public class CKMSQuantilesTest {
         }
         validateResults(ckms);
         ckms.compress();
-        assertEquals(2, ckms.samples.size());
+        assertEquals(2, ckms.size);
     }
 
     @Test
@@ -110,7 +124,7 @@ public class CKMSQuantilesTest {
         }
         validateResults(ckms);
         ckms.compress();
-        assertEquals(2, ckms.samples.size());
+        assertEquals(2, ckms.size);
     }
 
     @Test
@@ -123,7 +137,7 @@ public class CKMSQuantilesTest {
         }
         validateResults(ckms);
         ckms.compress();
-        assertEquals(2, ckms.samples.size());
+        assertEquals(2, ckms.size);
     }
 
     @Test
@@ -135,7 +149,7 @@ public class CKMSQuantilesTest {
             ckms.insert(v);
         }
         validateResults(ckms);
-        assertTrue(ckms.samples.size() < 200); // should be a lot less than input.size()
+        assertTrue(ckms.size < 200); // should be a lot less than input.size()
     }
 
     @Test
@@ -147,7 +161,7 @@ public class CKMSQuantilesTest {
             ckms.insert(v);
         }
         validateResults(ckms);
-        assertTrue(ckms.samples.size() < 200); // should be a lot less than input.size()
+        assertTrue(ckms.size < 200); // should be a lot less than input.size()
     }
 
     @Test
@@ -159,7 +173,7 @@ public class CKMSQuantilesTest {
             ckms.insert(v);
         }
         validateResults(ckms);
-        assertTrue(ckms.samples.size() < 200); // should be a lot less than input.size()
+        assertTrue(ckms.size < 200); // should be a lot less than input.size()
     }
 
     @Test
@@ -172,7 +186,7 @@ public class CKMSQuantilesTest {
         }
         validateResults(ckms);
         // With epsilon == 0 we need to keep all inputs in samples.
-        assertEquals(input.size(), ckms.samples.size());
+        assertEquals(input.size(), ckms.size);
     }
 
     @Test
@@ -185,7 +199,7 @@ public class CKMSQuantilesTest {
         }
         validateResults(ckms);
         // With epsilon == 0 we need to keep all inputs in samples.
-        assertEquals(input.size(), ckms.samples.size());
+        assertEquals(input.size(), ckms.size);
     }
 
     @Test
@@ -198,7 +212,7 @@ public class CKMSQuantilesTest {
         }
         validateResults(ckms);
         // With epsilon == 0 we need to keep all inputs in samples.
-        assertEquals(input.size(), ckms.samples.size());
+        assertEquals(input.size(), ckms.size);
     }
 
     @Test
@@ -213,6 +227,30 @@ public class CKMSQuantilesTest {
         validateResults(ckms);
     }
 
+    @Test
+    public void testMerge() {
+        Random random = new Random(2);
+        List<Double> input = shuffledValues(100 * 1000, random);
+        CKMSQuantiles merged = new CKMSQuantiles(qMin, q50, q95, q99, qMax);
+        // Unequal slices, the last one is still in the insert buffer.
+        int[] sliceSizes = {50000, 1, 30000, 19900, 99};
+        int from = 0;
+        for (int sliceSize : sliceSizes) {
+            CKMSQuantiles slice = new CKMSQuantiles(qMin, q50, q95, q99, qMax);
+            for (double value : input.subList(from, from + sliceSize)) {
+                slice.insert(value);
+            }
+            from += sliceSize;
+            merged.merge(slice);
+            assertEquals(from, merged.n);
+        }
+        validateResults(merged);
+        merged.reset();
+        assertTrue(Double.isNaN(merged.get(0.5)));
+        merged.insert(7.0);
+        assertEquals(7.0, merged.get(0.5), 0.0);
+    }
+
     @Test
     public void testGetGaussian() {
         RandomGenerator rand = new JDKRandomGenerator();
@@ -253,7 +291,7 @@ public class CKMSQuantilesTest {
         assertEquals(p95, ckms.get(0.95), errorBoundsNormalDistribution(0.95, 0.001, normalDistribution));
         assertEquals(p99, ckms.get(0.99), errorBoundsNormalDistribution(0.99, 0.001, normalDistribution));
 
-        assertTrue("sample size should be below 1000", ckms.samples.size() < 1000);
+        assertTrue("sample size should be below 1000", ckms.size < 1000);
     }
 
     double errorBoundsNormalDistribution(double p, double epsilon, NormalDistribution nd) {
@@ -298,12 +336,12 @@ public class CKMSQuantilesTest {
     private void validateSamples(CKMSQuantiles ckms) {
         double prev = -1.0;
         int r = 0; // sum of all g's left of the current sample
-        for (CKMSQuantiles.Sample sample : ckms.samples) {
-            String msg = "invalid sample " + sample + ": count=" + ckms.n + " r=" + r + " f(r)=" + ckms.f(r);
-            assertTrue(msg, sample.g + sample.delta <= ckms.f(r));
-            assertTrue("Samples not ordered. Keep in mind that insertBatch() takes a sorted array as parameter.", prev <= sample.value);
-            prev = sample.value;
-            r += sample.g;
+        for (int i = 0; i < ckms.size; i++) {
+            String msg = "invalid sample {val=" + ckms.value[i] + ", g=" + ckms.g[i] + ", delta=" + ckms.delta[i] + "}: count=" + ckms.n + " r=" + r + " f(r)=" + ckms.f(r);
+            assertTrue(msg, ckms.g[i] + ckms.delta[i] <= ckms.f(r));
+            assertTrue("Samples not ordered. Keep in mind that insertBatch() takes a sorted array as parameter.", prev <= ckms.value[i]);
+            prev = ckms.value[i];
+            r += ckms.g[i];
         }
         assertEquals("the sum of all g's must be the total number of observations", r, ckms.n);
     }
@@ -329,9 +367,7 @@ public class CKMSQuantilesTest {
             }
             boolean ok = actual >= lowerBound && actual <= upperBound;
             if (!ok) {
-                for (CKMSQuantiles.Sample sample : ckms.samples) {
-                    System.err.println(sample);
-                }
+                System.err.println(ckms);
             }
             String errorMessage = q + ": " + actual + " not in [" + lowerBound + ", " + upperBound + "], n=" + ckms.n + ", " +  q.quantile + "*" + ckms.n + "=" + (q.quantile*ckms.n);
             assertTrue(errorMessage, ok);
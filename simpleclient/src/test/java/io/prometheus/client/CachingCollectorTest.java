@@ -0,0 +1,166 @@
+package io.prometheus.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CachingCollectorTest {
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  CollectorRegistry registry;
+  FakeTimeProvider time;
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+    time = new FakeTimeProvider();
+  }
+
+  static class FakeTimeProvider extends SimpleTimer.TimeProvider {
+    volatile long nanos = 1000;
+
+    @Override
+    long nanoTime() {
+      return nanos;
+    }
+
+    void advanceSeconds(long seconds) {
+      nanos += TimeUnit.SECONDS.toNanos(seconds);
+    }
+  }
+
+  static class CountingCollector extends Collector implements Collector.Describable {
+    private final String name;
+    volatile int collectCount;
+    volatile boolean fail;
+
+    CountingCollector(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      if (fail) {
+        throw new IllegalStateException("failed");
+      }
+      collectCount++;
+      return familySamples(collectCount);
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+      return familySamples(0);
+    }
+
+    private List<MetricFamilySamples> familySamples(double value) {
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      mfs.add(new GaugeMetricFamily(name, "help", value));
+      return mfs;
+    }
+  }
+
+  @Test
+  public void testSamplesAreRefreshedAfterMaxAge() {
+    CountingCollector collector = new CountingCollector("g");
+    new CachingCollector(Collections.singletonList(collector), "g_cache_age_seconds", 30, TimeUnit.SECONDS, time)
+        .register(registry);
+    assertEquals(0, collector.collectCount);
+
+    assertEquals(1.0, registry.getSampleValue("g"), .001);
+    time.advanceSeconds(10);
+    assertEquals(1.0, registry.getSampleValue("g"), .001);
+    assertEquals(10.0, registry.getSampleValue("g_cache_age_seconds"), .001);
+    assertEquals(1, collector.collectCount);
+
+    time.advanceSeconds(20);
+    assertEquals(2.0, registry.getSampleValue("g"), .001);
+    assertEquals(0.0, registry.getSampleValue("g_cache_age_seconds"), .001);
+    assertEquals(2, collector.collectCount);
+  }
+
+  @Test
+  public void testFailedRefreshIsRethrown() {
+    CountingCollector collector = new CountingCollector("g");
+    CachingCollector cache = new CachingCollector(Collections.singletonList(collector), null, 30, TimeUnit.SECONDS, time);
+    assertEquals(1, cache.collect().size());
+    time.advanceSeconds(30);
+    collector.fail = true;
+    thrown.expect(IllegalStateException.class);
+    cache.collect();
+  }
+
+  @Test
+  public void testCollectorsAreRefreshedTogether() {
+    CountingCollector a = new CountingCollector("a");
+    CountingCollector b = new CountingCollector("b");
+    CachingCollector cache = new CachingCollector(Arrays.asList(a, b), "cache_age_seconds", 30, TimeUnit.SECONDS, time);
+    assertEquals(Arrays.asList("a", "b", "cache_age_seconds"), names(cache.describe()));
+    assertEquals(Arrays.asList("a", "b", "cache_age_seconds"), names(cache.collect()));
+    assertEquals(Arrays.asList("b"), names(cache.collect(SampleNameFilter.restrictToNamesEqualTo(null,
+        Collections.singleton("b")))));
+    assertEquals(1, a.collectCount);
+    assertEquals(1, b.collectCount);
+  }
+
+  @Test
+  public void testNotDescribableCollectorIsNotDescribed() {
+    Collector collector = new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return new ArrayList<MetricFamilySamples>();
+      }
+    };
+    assertEquals(0, new CachingCollector(collector, 1, TimeUnit.SECONDS).describe().size());
+  }
+
+  @Test
+  public void testScheduledRefresh() throws InterruptedException {
+    CountingCollector collector = new CountingCollector("g");
+    CachingCollector cache = new CachingCollector(Collections.singletonList(collector), null, 1, TimeUnit.HOURS, time);
+    assertTrue(Double.isNaN(cache.getAgeSeconds()));
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      cache.scheduleRefresh(executor);
+      long deadline = System.currentTimeMillis() + 10000;
+      while (Double.isNaN(cache.getAgeSeconds()) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, collector.collectCount);
+      // Expired samples are not refreshed by scrapes, the executor refreshes them.
+      time.advanceSeconds(7200);
+      assertEquals(1.0, cache.collect().get(0).samples.get(0).value, .001);
+      assertEquals(7200.0, cache.getAgeSeconds(), .001);
+      assertEquals(1, collector.collectCount);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testInvalidMaxAge() {
+    thrown.expect(IllegalArgumentException.class);
+    new CachingCollector(new CountingCollector("g"), 0, TimeUnit.SECONDS);
+  }
+
+  private static List<String> names(List<Collector.MetricFamilySamples> mfs) {
+    List<String> result = new ArrayList<String>();
+    for (Collector.MetricFamilySamples family : mfs) {
+      result.add(family.name);
+    }
+    return result;
+  }
+}
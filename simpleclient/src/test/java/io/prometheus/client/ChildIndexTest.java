@@ -0,0 +1,88 @@
+package io.prometheus.client;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ChildIndexTest {
+
+  @Test
+  public void testPutGetRemove() {
+    ChildIndex<String> index = new ChildIndex<String>();
+    index.put(new String[]{"a", "b"}, "ab");
+    index.put(new String[]{"a", "c"}, "ac");
+    assertEquals("ab", index.get(new String[]{"a", "b"}));
+    assertEquals("ac", index.get(new String[]{"a", "c"}));
+    assertNull(index.get(new String[]{"a"}));
+    assertNull(index.get(new String[]{"b", "a"}));
+
+    index.put(new String[]{"a", "b"}, "ab2");
+    assertEquals("ab2", index.get(new String[]{"a", "b"}));
+    assertEquals(2, index.size());
+
+    index.remove(new String[]{"a", "b"});
+    assertNull(index.get(new String[]{"a", "b"}));
+    assertEquals("ac", index.get(new String[]{"a", "c"}));
+    assertEquals(1, index.size());
+
+    index.clear();
+    assertNull(index.get(new String[]{"a", "c"}));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testRandomOperationsMatchHashMap() {
+    ChildIndex<Integer> index = new ChildIndex<Integer>();
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    Random rand = new Random(0);
+    for (int i = 0; i < 100000; i++) {
+      // Small key space, so that we get lots of collisions, removals and re-insertions.
+      String key = Integer.toString(rand.nextInt(2000));
+      if (rand.nextInt(3) == 0) {
+        index.remove(new String[]{key});
+        expected.remove(key);
+      } else {
+        index.put(new String[]{key}, i);
+        expected.put(key, i);
+      }
+    }
+    assertEquals(expected.size(), index.size());
+    for (int i = 0; i < 2000; i++) {
+      String key = Integer.toString(i);
+      assertEquals(expected.get(key), index.get(new String[]{key}));
+    }
+  }
+
+  @Test
+  public void testNoLabels() {
+    ChildIndex<String> index = new ChildIndex<String>();
+    assertNull(index.get(new String[]{}));
+    index.put(new String[]{}, "x");
+    assertEquals("x", index.get(new String[]{}));
+  }
+
+  @Test
+  public void testAccessTracking() {
+    ChildIndex<String> index = new ChildIndex<String>(true);
+    index.put(new String[]{"a"}, "a");
+    index.put(new String[]{"b"}, "b");
+    index.put(new String[]{"c"}, "c");
+    assertEquals(1, index.nextEpoch());
+    index.get(new String[]{"b"});
+    assertEquals(2, index.nextEpoch());
+    index.get(new String[]{"a"});
+    assertEquals(1, index.accessedBefore(1).size());
+    assertEquals("c", index.accessedBefore(1).get(0)[0]);
+    assertEquals(2, index.accessedBefore(2).size());
+    List<String[]> lru = index.leastRecentlyUsed(2);
+    assertEquals("c", lru.get(0)[0]);
+    assertEquals("b", lru.get(1)[0]);
+    assertEquals(3, index.leastRecentlyUsed(10).size());
+  }
+}
@@ -8,9 +8,13 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class CollectorRegistryTest {
@@ -143,4 +147,191 @@ public class CollectorRegistryTest {
     new MyCollector().register(r);
     new MyCollector().register(r);
   }
+
+  static class SlowCollector extends Collector {
+    private final String name;
+    private final long sleepMillis;
+
+    SlowCollector(String name, long sleepMillis) {
+      this.name = name;
+      this.sleepMillis = sleepMillis;
+    }
+
+    public List<MetricFamilySamples> collect() {
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      mfs.add(new GaugeMetricFamily(name, "help", 1));
+      return mfs;
+    }
+  }
+
+  private List<String> collectNames() {
+    List<String> names = new ArrayList<String>();
+    for (Collector.MetricFamilySamples mfs : Collections.list(registry.metricFamilySamples())) {
+      names.add(mfs.name);
+    }
+    return names;
+  }
+
+  @Test
+  public void testCollectorsAreCollectedInRegistrationOrder() {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      Gauge.build().name("g" + i).help("h").register(registry);
+      expected.add("g" + i);
+    }
+    assertEquals(expected, collectNames());
+  }
+
+  @Test
+  public void testParallelCollection() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 8; i++) {
+        new SlowCollector("slow" + i, 50).register(registry);
+      }
+      registry.enableParallelCollection(executor, 10, TimeUnit.SECONDS);
+      long start = System.nanoTime();
+      List<String> names = collectNames();
+      long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertEquals(Arrays.asList("slow0", "slow1", "slow2", "slow3", "slow4", "slow5", "slow6", "slow7",
+          ParallelCollection.DURATION_NAME, ParallelCollection.TIMEOUTS_NAME), names);
+      assertTrue("took " + durationMillis + "ms", durationMillis < 8 * 50);
+
+      double duration = registry.getSampleValue(ParallelCollection.DURATION_NAME,
+          new String[]{"collector"}, new String[]{SlowCollector.class.getName()});
+      assertTrue(duration >= 8 * 0.05);
+      assertEquals(0.0, registry.getSampleValue(ParallelCollection.TIMEOUTS_NAME + "_total",
+          new String[]{"collector"}, new String[]{SlowCollector.class.getName()}), .001);
+
+      registry.disableParallelCollection();
+      assertEquals(Arrays.asList("slow0", "slow1", "slow2", "slow3", "slow4", "slow5", "slow6", "slow7"),
+          collectNames());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testParallelCollectionTimeout() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Gauge.build().name("fast").help("h").register(registry);
+      new SlowCollector("slow", 10000).register(registry);
+      registry.enableParallelCollection(executor, 100, TimeUnit.MILLISECONDS);
+      assertEquals(Arrays.asList("fast", ParallelCollection.DURATION_NAME, ParallelCollection.TIMEOUTS_NAME),
+          collectNames());
+      assertEquals(1.0, registry.getSampleValue(ParallelCollection.TIMEOUTS_NAME + "_total",
+          new String[]{"collector"}, new String[]{SlowCollector.class.getName()}), .001);
+      assertEquals(0.0, registry.getSampleValue(ParallelCollection.TIMEOUTS_NAME + "_total",
+          new String[]{"collector"}, new String[]{"fast"}), .001);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testParallelCollectionTimeoutIsPerScrape() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    try {
+      for (int i = 0; i < 4; i++) {
+        new SlowCollector("slow" + i, 10000).register(registry);
+      }
+      registry.enableParallelCollection(executor, 200, TimeUnit.MILLISECONDS);
+      long start = System.nanoTime();
+      // The self-metrics are queued behind the slow collectors as well.
+      assertEquals(Collections.<String>emptyList(), collectNames());
+      long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      // The collectors queued behind the first one don't get a timeout of their own.
+      assertTrue("took " + durationMillis + "ms", durationMillis < 4 * 200);
+      assertEquals(4.0, registry.getSampleValue(ParallelCollection.TIMEOUTS_NAME + "_total",
+          new String[]{"collector"}, new String[]{SlowCollector.class.getName()}), .001);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParallelCollectionRethrows() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      new Collector() {
+        public List<MetricFamilySamples> collect() {
+          throw new IllegalArgumentException();
+        }
+      }.register(registry);
+      registry.enableParallelCollection(executor, 1, TimeUnit.SECONDS);
+      collectNames();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  static class CountingCollector extends Collector implements Collector.Describable {
+    private final String name;
+    int collectCount;
+
+    CountingCollector(String name) {
+      this.name = name;
+    }
+
+    public List<MetricFamilySamples> collect() {
+      collectCount++;
+      return describe();
+    }
+
+    public List<MetricFamilySamples> describe() {
+      List<MetricFamilySamples> mfs = new ArrayList<MetricFamilySamples>();
+      mfs.add(new GaugeMetricFamily(name, "help", 1));
+      return mfs;
+    }
+  }
+
+  @Test
+  public void testNameFilteredScrapeOnlyCollectsMatchingCollectors() {
+    List<CountingCollector> collectors = new ArrayList<CountingCollector>();
+    for (int i = 0; i < 100; i++) {
+      CountingCollector collector = new CountingCollector("c" + i);
+      collector.register(registry);
+      collectors.add(collector);
+    }
+    new MyCollector().register(registry);
+    List<Collector.MetricFamilySamples> mfs = Collections.list(
+        registry.filteredMetricFamilySamples(new HashSet<String>(Arrays.asList("c42", "c7", "g", "unknown"))));
+    assertEquals(3, mfs.size());
+    // registration order
+    assertEquals("c7", mfs.get(0).name);
+    assertEquals("c42", mfs.get(1).name);
+    assertEquals("g", mfs.get(2).name);
+    for (int i = 0; i < collectors.size(); i++) {
+      assertEquals("c" + i, i == 7 || i == 42 ? 1 : 0, collectors.get(i).collectCount);
+    }
+
+    assertEquals(1.0, registry.getSampleValue("c99"), .001);
+    assertEquals(1, collectors.get(99).collectCount);
+    assertEquals(0, collectors.get(98).collectCount);
+
+    registry.unregister(collectors.get(99));
+    assertEquals(null, registry.getSampleValue("c99"));
+    assertEquals(1, collectors.get(99).collectCount);
+  }
+
+  @Test
+  public void testGetSampleValueFindsUndescribedSamples() {
+    new CountingCollector("described") {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples> mfs = super.collect();
+        mfs.add(new GaugeMetricFamily("undescribed", "help", 2));
+        return mfs;
+      }
+    }.register(registry);
+    assertEquals(1.0, registry.getSampleValue("described"), .001);
+    assertEquals(2.0, registry.getSampleValue("undescribed"), .001);
+    assertEquals(null, registry.getSampleValue("unknown"));
+  }
 }
@@ -0,0 +1,37 @@
+package io.prometheus.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CounterFunctionTest {
+
+  @Test
+  public void testCounterFunction() {
+    CollectorRegistry registry = new CollectorRegistry();
+    CounterFunction counter = CounterFunction.build().name("processed_total").help("help").labelNames("l").register(registry);
+    AtomicLong processed = new AtomicLong(10);
+    counter.add(processed, new ToDoubleFunction<AtomicLong>() {
+      @Override
+      public double applyAsDouble(AtomicLong value) {
+        return value.get();
+      }
+    }, "a");
+    assertEquals(10.0, registry.getSampleValue("processed_total", new String[]{"l"}, new String[]{"a"}), .001);
+    processed.incrementAndGet();
+    assertEquals(11.0, registry.getSampleValue("processed_total", new String[]{"l"}, new String[]{"a"}), .001);
+
+    List<Collector.MetricFamilySamples> mfs = counter.collect();
+    assertEquals("processed", mfs.get(0).name);
+    assertEquals(Collector.Type.COUNTER, mfs.get(0).type);
+    assertEquals("processed", counter.describe().get(0).name);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testChildrenLimitIsNotSupported() {
+    CounterFunction.build().name("processed_total").help("help").labelNames("l").maxChildren(10).create();
+  }
+}
@@ -56,6 +56,45 @@ public class CounterTest {
     noLabels.inc(-1);
   }
   
+  @Test
+  public void testIntegralIncrement() {
+    Counter integral = Counter.build().name("integral").help("help").integral().register(registry);
+    integral.inc();
+    integral.inc(2);
+    integral.labels().inc(4.0);
+    assertEquals(7.0, integral.get(), .001);
+    assertEquals(7.0, registry.getSampleValue("integral_total"), .001);
+  }
+
+  @Test
+  public void testIntegralFractionalIncrementFails() {
+    Counter integral = Counter.build().name("integral").help("help").integral().create();
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Amount to increment must be a whole number for integral counters.");
+    integral.inc(0.5);
+  }
+
+  @Test
+  public void testIntegralConcurrentIncrement() throws InterruptedException {
+    final Counter integral = Counter.build().name("integral").help("help").integral().create();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 100000; j++) {
+            integral.inc();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(400000.0, integral.get(), 0);
+  }
+
   @Test
   public void noLabelsDefaultZeroValue() {
     assertEquals(0.0, getValue(), .001);
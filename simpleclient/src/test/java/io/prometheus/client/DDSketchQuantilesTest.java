@@ -0,0 +1,140 @@
+package io.prometheus.client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DDSketchQuantilesTest {
+
+    private final double[] quantiles = {0.01, 0.1, 0.5, 0.9, 0.99, 0.999};
+
+    @Test
+    public void testGetOnEmptyValues() {
+        DDSketchQuantiles sketch = new DDSketchQuantiles(0.01, 2048);
+        assertTrue(Double.isNaN(sketch.get(0.5)));
+    }
+
+    @Test
+    public void testRelativeErrorLogNormal() {
+        Random random = new Random(0);
+        double[] values = new double[100 * 1000];
+        DDSketchQuantiles sketch = new DDSketchQuantiles(0.01, 2048);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 2);
+            sketch.insert(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : quantiles) {
+            double expected = values[(int) (q * (values.length - 1))];
+            assertEquals("q=" + q, expected, sketch.get(q), expected * 0.01);
+        }
+        assertEquals(values[0], sketch.get(0.0), 0.0);
+        assertEquals(values[values.length - 1], sketch.get(1.0), 0.0);
+    }
+
+    @Test
+    public void testMerge() {
+        DDSketchQuantiles merged = new DDSketchQuantiles(0.01, 2048);
+        DDSketchQuantiles small = new DDSketchQuantiles(0.01, 2048);
+        DDSketchQuantiles large = new DDSketchQuantiles(0.01, 2048);
+        for (int i = 1; i <= 1000; i++) {
+            small.insert(i);
+            large.insert(i * 1000.0);
+        }
+        small.insert(-1.0);
+        merged.merge(small);
+        merged.merge(large);
+        assertEquals(2001, merged.count);
+        assertEquals(-1.0, merged.get(0.0), 0.0);
+        assertEquals(1000.0, merged.get(0.5), 1000.0 * 0.01);
+        assertEquals(990000.0, merged.get(0.995), 990000.0 * 0.01);
+        assertEquals(1000000.0, merged.get(1.0), 0.0);
+        merged.reset();
+        assertTrue(Double.isNaN(merged.get(0.5)));
+        merged.insert(3.0);
+        assertEquals(3.0, merged.get(0.5), 0.0);
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        DDSketchQuantiles sketch = new DDSketchQuantiles(0.02, 512);
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            sketch.insert(random.nextGaussian() * 100);
+        }
+        sketch.insert(0.0);
+        sketch.insert(Double.POSITIVE_INFINITY);
+        String encoded = sketch.encode();
+        QuantileEstimator decoded = QuantileEstimator.decode(encoded);
+        for (double q : new double[]{0.0, 0.0001, 0.1, 0.5, 0.9, 0.9999, 1.0}) {
+            assertEquals("q=" + q, sketch.get(q), decoded.get(q), 0.0);
+        }
+        assertEquals(encoded, decoded.encode());
+        assertTrue(Double.isNaN(QuantileEstimator.decode(new DDSketchQuantiles(0.01, 2048).encode()).get(0.5)));
+    }
+
+    @Test
+    public void testDecodeInvalidSketch() {
+        String encoded = new DDSketchQuantiles(0.01, 2048).encode();
+        for (String invalid : new String[]{"", "AAAA", encoded.substring(0, encoded.length() - 4), encoded + "AAAA", "!!!!"}) {
+            try {
+                QuantileEstimator.decode(invalid);
+                fail("Expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testNegativeValuesAndZero() {
+        DDSketchQuantiles sketch = new DDSketchQuantiles(0.01, 2048);
+        double[] values = new double[201];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i - 100;
+            sketch.insert(values[i]);
+        }
+        for (double q : quantiles) {
+            double expected = values[(int) (q * (values.length - 1))];
+            assertEquals("q=" + q, expected, sketch.get(q), Math.abs(expected) * 0.01);
+        }
+        assertEquals(0.0, sketch.get(0.5), 0.0);
+    }
+
+    @Test
+    public void testMemoryIsBounded() {
+        // 1024 buckets cover about 8 orders of magnitude
+        DDSketchQuantiles sketch = new DDSketchQuantiles(0.01, 1024);
+        for (int i = -300; i <= 300; i++) {
+            sketch.insert(Math.pow(10, i));
+        }
+        assertTrue(sketch.positive.counts.length <= 1024);
+        assertEquals(601, sketch.count);
+        // High quantiles are still accurate, the lowest buckets were collapsed.
+        assertEquals(1e300, sketch.get(1.0), 0.0);
+        assertEquals(1e294, sketch.get(0.99), 1e294 * 0.01);
+        assertEquals(1e-300, sketch.get(0.0), 0.0);
+        assertTrue(sketch.get(0.01) > 1e290);
+    }
+
+    @Test
+    public void testSpecialValues() {
+        DDSketchQuantiles sketch = new DDSketchQuantiles(0.01, 2048);
+        sketch.insert(Double.NaN);
+        assertTrue(Double.isNaN(sketch.get(0.5)));
+        sketch.insert(1.0);
+        sketch.insert(Double.POSITIVE_INFINITY);
+        sketch.insert(Double.NEGATIVE_INFINITY);
+        sketch.insert(Double.MIN_VALUE);
+        assertEquals(4, sketch.count);
+        assertEquals(Double.NEGATIVE_INFINITY, sketch.get(0.0), 0.0);
+        assertEquals(0.0, sketch.get(0.4), 0.0);
+        assertEquals(1.0, sketch.get(0.7), 0.01);
+        assertEquals(Double.POSITIVE_INFINITY, sketch.get(1.0), 0.0);
+    }
+}
@@ -0,0 +1,347 @@
+package io.prometheus.client;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExponentialHistogramTest {
+
+  CollectorRegistry registry;
+  ExponentialHistogram noLabels, labels;
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+    noLabels = ExponentialHistogram.build().name("nolabels").help("help").schema(0).register(registry);
+    labels = ExponentialHistogram.build().name("labels").help("help").labelNames("l").register(registry);
+  }
+
+  private double getBucket(double le) {
+    Double value = registry.getSampleValue("nolabels_bucket",
+        new String[]{"le"},
+        new String[]{Collector.doubleToGoString(le)});
+    return value == null ? 0 : value;
+  }
+
+  @Test
+  public void testBucketIndex() {
+    for (int schema = ExponentialHistogram.MIN_SCHEMA; schema <= ExponentialHistogram.MAX_SCHEMA; schema++) {
+      // Bucket boundaries belong to the lower bucket.
+      for (int index = -1000; index <= 1000; index++) {
+        double upperBound = ExponentialHistogram.upperBound(index, schema);
+        if (upperBound < Double.MIN_NORMAL || Double.isInfinite(upperBound)) {
+          continue;
+        }
+        assertEquals("schema=" + schema + " value=" + upperBound, index, ExponentialHistogram.bucketIndex(upperBound, schema));
+        double justAbove = Math.nextUp(upperBound);
+        assertEquals("schema=" + schema + " value=" + justAbove, index + 1, ExponentialHistogram.bucketIndex(justAbove, schema));
+      }
+    }
+    assertEquals(0, ExponentialHistogram.bucketIndex(1.0, 0));
+    assertEquals(1, ExponentialHistogram.bucketIndex(1.5, 0));
+    assertEquals(1, ExponentialHistogram.bucketIndex(2.0, 0));
+    assertEquals(-1, ExponentialHistogram.bucketIndex(0.4, 0));
+    assertEquals(2, ExponentialHistogram.bucketIndex(2.0, 1));
+    assertEquals(1, ExponentialHistogram.bucketIndex(1.2, 1)); // sqrt(2) = 1.414
+    assertEquals(1, ExponentialHistogram.bucketIndex(3.0, -1)); // (1, 4]
+    assertEquals(2, ExponentialHistogram.bucketIndex(5.0, -1)); // (4, 16]
+  }
+
+  @Test
+  public void testReduceIndexMatchesLowerSchema() {
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      double value = Math.exp(random.nextGaussian() * 20);
+      for (int schema = ExponentialHistogram.MIN_SCHEMA + 1; schema <= ExponentialHistogram.MAX_SCHEMA; schema++) {
+        int index = ExponentialHistogram.bucketIndex(value, schema);
+        for (int by = 1; schema - by >= ExponentialHistogram.MIN_SCHEMA; by++) {
+          assertEquals(ExponentialHistogram.bucketIndex(value, schema - by), ExponentialHistogram.reduceIndex(index, by));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testObserve() {
+    noLabels.observe(2);
+    noLabels.observe(3);
+    noLabels.observe(3.5);
+    noLabels.observe(0);
+    assertEquals(4.0, registry.getSampleValue("nolabels_count"), .001);
+    assertEquals(8.5, registry.getSampleValue("nolabels_sum"), .001);
+    assertEquals(1.0, getBucket(Math.pow(2, -128)), .001);
+    assertEquals(2.0, getBucket(2), .001);
+    assertEquals(4.0, getBucket(4), .001);
+    assertEquals(4.0, getBucket(Double.POSITIVE_INFINITY), .001);
+
+    ExponentialHistogram.Child.Value value = noLabels.labels().get();
+    assertEquals(0, value.schema);
+    assertEquals(1, value.zeroCount);
+    assertEquals(2, value.positiveBuckets.size());
+    assertEquals(Long.valueOf(1), value.positiveBuckets.get(1));
+    assertEquals(Long.valueOf(2), value.positiveBuckets.get(2));
+  }
+
+  @Test
+  public void testNegativeValues() {
+    noLabels.observe(-3); // (-4, -2]
+    noLabels.observe(-0.75); // (-1, -0.5]
+    noLabels.observe(1);
+    List<Sample> buckets = buckets(noLabels);
+    assertEquals(4, buckets.size());
+    assertEquals("-2.0", buckets.get(0).labelValues.get(0));
+    assertEquals(1.0, buckets.get(0).value, .001);
+    assertEquals("-0.5", buckets.get(1).labelValues.get(0));
+    assertEquals(2.0, buckets.get(1).value, .001);
+    assertEquals("1.0", buckets.get(2).labelValues.get(0));
+    assertEquals(3.0, buckets.get(2).value, .001);
+    assertEquals("+Inf", buckets.get(3).labelValues.get(0));
+    assertEquals(3.0, buckets.get(3).value, .001);
+    assertEquals(-2.75, registry.getSampleValue("nolabels_sum"), .001);
+  }
+
+  @Test
+  public void testNegativeValuesOnBoundaries() {
+    noLabels.observe(-3);
+    noLabels.observe(-2);
+    noLabels.observe(-1);
+    noLabels.observe(-0.5);
+    // Each observation is <= its own le.
+    assertEquals(2.0, getBucket(-2), .001);
+    assertEquals(3.0, getBucket(-1), .001);
+    assertEquals(4.0, getBucket(-0.5), .001);
+    assertEquals(4.0, getBucket(Double.POSITIVE_INFINITY), .001);
+
+    // The same with the lowest schema, and after the schema was reduced.
+    ExponentialHistogram reduced = ExponentialHistogram.build().name("reduced").help("help")
+        .schema(3).minSchema(ExponentialHistogram.MIN_SCHEMA).maxBuckets(2).create();
+    reduced.observe(-Math.pow(2, 16));
+    reduced.observe(-1);
+    reduced.observe(-Math.pow(2, -16));
+    assertEquals(ExponentialHistogram.MIN_SCHEMA, reduced.labels().get().schema);
+    List<Sample> buckets = buckets(reduced);
+    assertEquals(Arrays.asList("-65536.0", "-1.0", "-1.52587890625E-5", "+Inf"), leValues(buckets));
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i + 1.0, buckets.get(i).value, .001);
+    }
+  }
+
+  private static List<String> leValues(List<Sample> buckets) {
+    List<String> result = new ArrayList<String>();
+    for (Sample sample : buckets) {
+      result.add(sample.labelValues.get(sample.labelValues.size() - 1));
+    }
+    return result;
+  }
+
+  @Test
+  public void testSpecialValues() {
+    noLabels.observe(Double.POSITIVE_INFINITY);
+    noLabels.observe(Double.NaN);
+    noLabels.observe(Double.MIN_VALUE); // subnormal
+    assertEquals(2.0, registry.getSampleValue("nolabels_count"), .001);
+    assertEquals(1.0, getBucket(Math.pow(2, -128)), .001);
+    assertEquals(2.0, getBucket(Double.POSITIVE_INFINITY), .001);
+  }
+
+  @Test
+  public void testSchemaIsReducedWhenMaxBucketsIsExceeded() {
+    ExponentialHistogram histogram = ExponentialHistogram.build().name("reduced").help("help")
+        .schema(8).minSchema(ExponentialHistogram.MIN_SCHEMA).maxBuckets(20).create();
+    Random random = new Random(1);
+    int n = 100000;
+    for (int i = 0; i < n; i++) {
+      histogram.observe(Math.exp(random.nextGaussian() * 5));
+    }
+    ExponentialHistogram.Child.Value value = histogram.labels().get();
+    assertTrue("schema " + value.schema, value.schema < 8);
+    assertTrue(value.positiveBuckets.size() <= 20);
+    assertEquals(n, sum(value.positiveBuckets));
+    assertEquals(n, value.count, .001);
+  }
+
+  @Test
+  public void testMinSchemaExceedsMaxBuckets() {
+    ExponentialHistogram histogram = ExponentialHistogram.build().name("tiny").help("help")
+        .minSchema(ExponentialHistogram.MIN_SCHEMA).maxBuckets(1).zeroThreshold(0).create();
+    histogram.observe(1e-300);
+    histogram.observe(1);
+    histogram.observe(1e300);
+    ExponentialHistogram.Child.Value value = histogram.labels().get();
+    assertEquals(ExponentialHistogram.MIN_SCHEMA, value.schema);
+    assertEquals(3, value.positiveBuckets.size());
+    assertEquals(3.0, value.count, .001);
+  }
+
+  @Test
+  public void testStatesAreBoundedAtMinSchema() {
+    ExponentialHistogram histogram = ExponentialHistogram.build().name("bounded").help("help")
+        .schema(8).minSchema(8).maxBuckets(4).create();
+    int n = 10000;
+    for (int i = 0; i < n; i++) {
+      // Each observation is in a new bucket of schema 8.
+      histogram.observe(Math.pow(2, i / 256.0 + 1 / 512.0));
+    }
+    ExponentialHistogram.Child child = histogram.labels();
+    assertEquals(n, child.get().positiveBuckets.size());
+    assertEquals(n, sum(child.get().positiveBuckets));
+    assertTrue(child.stateCount() + " States", child.stateCount() <= 20);
+  }
+
+  @Test
+  public void testMinSchema() {
+    ExponentialHistogram histogram = ExponentialHistogram.build().name("min").help("help")
+        .schema(8).minSchema(1).maxBuckets(2).create();
+    histogram.observe(1e-10);
+    histogram.observe(1e10);
+    assertEquals(1, histogram.labels().get().schema);
+  }
+
+  @Test
+  public void testClassicBucketsAreStable() {
+    ExponentialHistogram histogram = ExponentialHistogram.build().name("stable").help("help")
+        .schema(8).minSchema(0).maxBuckets(20).create();
+    histogram.observe(3);
+    histogram.observe(-3);
+    List<String> before = new ArrayList<String>();
+    for (Sample sample : buckets(histogram)) {
+      before.add(sample.labelValues.get(0));
+    }
+    // Powers of two, not the boundaries of schema 8.
+    assertEquals(Arrays.asList("-2.0", "4.0", "+Inf"), before);
+
+    Random random = new Random(3);
+    for (int i = 0; i < 1000; i++) {
+      histogram.observe(Math.exp(random.nextGaussian() * 5));
+    }
+    assertTrue(histogram.labels().get().schema < 8);
+    List<String> after = new ArrayList<String>();
+    double previous = 0;
+    for (Sample sample : buckets(histogram)) {
+      after.add(sample.labelValues.get(0));
+      assertTrue(sample.value >= previous);
+      previous = sample.value;
+      double le = Double.parseDouble(sample.labelValues.get(0).replace("+Inf", "Infinity"));
+      if (le > 0 && !Double.isInfinite(le)) {
+        assertEquals(Math.rint(Math.log(le) / Math.log(2)), Math.log(le) / Math.log(2), 1e-9);
+      }
+    }
+    assertTrue(after.containsAll(before));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMinSchemaThrows() {
+    ExponentialHistogram.build().minSchema(-5);
+  }
+
+  @Test
+  public void testResolution() {
+    ExponentialHistogram histogram = ExponentialHistogram.build().name("resolution").help("help")
+        .base(1.01).maxBuckets(3000).create();
+    assertEquals(7, histogram.labels().get().schema); // 2^(2^-7) = 1.0054
+    Random random = new Random(2);
+    for (int i = 0; i < 1000; i++) {
+      double value = Math.exp(random.nextDouble() * 14 - 7); // six orders of magnitude, about 2600 buckets
+      histogram.observe(value);
+    }
+    ExponentialHistogram.Child.Value value = histogram.labels().get();
+    assertEquals(7, value.schema);
+    for (int index : value.positiveBuckets.keySet()) {
+      double upper = ExponentialHistogram.upperBound(index, value.schema);
+      double lower = ExponentialHistogram.upperBound(index - 1, value.schema);
+      assertTrue((upper - lower) / upper < 0.01);
+    }
+  }
+
+  @Test
+  public void testConcurrentObserve() throws InterruptedException {
+    final ExponentialHistogram histogram = ExponentialHistogram.build().name("concurrent").help("help")
+        .schema(8).maxBuckets(30).create();
+    final int nThreads = 8;
+    final int n = 100000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < nThreads; t++) {
+      final Random random = new Random(t);
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < n; i++) {
+            histogram.observe(random.nextBoolean() ? Math.exp(random.nextGaussian() * 10) : -Math.exp(random.nextGaussian()));
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    ExponentialHistogram.Child.Value value = histogram.labels().get();
+    assertEquals(nThreads * n, value.zeroCount + sum(value.positiveBuckets) + sum(value.negativeBuckets));
+    assertEquals(nThreads * n, value.count, .001);
+  }
+
+  @Test
+  public void testLabels() {
+    labels.labels("a").observe(2);
+    labels.labels("b").observe(3);
+    assertEquals(1.0, registry.getSampleValue("labels_count", new String[]{"l"}, new String[]{"a"}), .001);
+    assertEquals(1.0, registry.getSampleValue("labels_count", new String[]{"l"}, new String[]{"b"}), .001);
+    assertEquals(3.0, registry.getSampleValue("labels_sum", new String[]{"l"}, new String[]{"b"}), .001);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testLeLabelThrows() {
+    ExponentialHistogram.build().name("labels").help("help").labelNames("le").create();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSchemaThrows() {
+    ExponentialHistogram.build().schema(9);
+  }
+
+  @Test
+  public void testCollect() {
+    labels.labels("a").observe(2);
+    List<MetricFamilySamples> mfs = labels.collect();
+    assertEquals(1, mfs.size());
+    assertEquals(Collector.Type.HISTOGRAM, mfs.get(0).type);
+    assertEquals("labels", mfs.get(0).name);
+  }
+
+  private List<Sample> buckets(ExponentialHistogram histogram) {
+    List<Sample> result = new ArrayList<Sample>();
+    for (Sample sample : histogram.collect().get(0).samples) {
+      if (sample.name.endsWith("_bucket")) {
+        result.add(sample);
+      }
+    }
+    return result;
+  }
+
+  private static long sum(Map<Integer, Long> buckets) {
+    long result = 0;
+    for (long count : buckets.values()) {
+      result += count;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,146 @@
+package io.prometheus.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class GaugeFunctionTest {
+
+  CollectorRegistry registry;
+  GaugeFunction gauge;
+  AtomicInteger calls;
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+    gauge = GaugeFunction.build().name("queue_size").help("help").labelNames("queue").register(registry);
+    calls = new AtomicInteger();
+  }
+
+  private ToDoubleFunction<AtomicLong> countingGet() {
+    return new ToDoubleFunction<AtomicLong>() {
+      @Override
+      public double applyAsDouble(AtomicLong value) {
+        calls.incrementAndGet();
+        return value.get();
+      }
+    };
+  }
+
+  @Test
+  public void testCallbackIsEvaluatedOnCollect() {
+    AtomicLong a = new AtomicLong(3);
+    AtomicLong b = new AtomicLong(5);
+    gauge.add(a, countingGet(), "a");
+    gauge.add(b, countingGet(), "b");
+    assertEquals(0, calls.get());
+    assertEquals(3.0, registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}), .001);
+    a.set(7);
+    assertEquals(7.0, registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}), .001);
+    assertEquals(5.0, registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"b"}), .001);
+    List<Collector.MetricFamilySamples> mfs = gauge.collect();
+    assertEquals(1, mfs.size());
+    assertEquals(Collector.Type.GAUGE, mfs.get(0).type);
+    assertEquals(2, mfs.get(0).samples.size());
+  }
+
+  @Test
+  public void testFilteredScrapeDoesNotCallCallback() throws IOException {
+    AtomicLong a = new AtomicLong(3);
+    gauge.add(a, countingGet(), "a");
+    SampleNameFilter filter = new SampleNameFilter.Builder().nameMustNotBeEqualTo("queue_size").build();
+    assertEquals(0, gauge.collect(filter).size());
+    registry.collect(new Collector.SampleVisitor() {
+      @Override
+      public void visitFamily(String name, String unit, Collector.Type type, String help) {
+      }
+
+      @Override
+      public void visitSample(String name, List<String> labelNames, List<String> labelValues, String extraLabelName,
+                              String extraLabelValue, double value, io.prometheus.client.exemplars.Exemplar exemplar,
+                              Long timestampMs) {
+      }
+    }, filter);
+    assertEquals(false, registry.filteredMetricFamilySamples(filter).hasMoreElements());
+    assertEquals(0, calls.get());
+  }
+
+  @Test
+  public void testGarbageCollectedObjectIsRemoved() throws InterruptedException {
+    AtomicLong a = new AtomicLong(3);
+    gauge.add(new AtomicLong(5), countingGet(), "b");
+    gauge.add(a, countingGet(), "a");
+    for (int i = 0; i < 100 && gauge.children.size() > 1; i++) {
+      System.gc();
+      Thread.sleep(10);
+      gauge.collect();
+    }
+    assertEquals(1, gauge.children.size());
+    assertNull(registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"b"}));
+    assertEquals(3.0, registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}), .001);
+  }
+
+  @Test
+  public void testAddReplacesCallback() {
+    gauge.add(new AtomicLong(1), countingGet(), "a");
+    AtomicLong a = new AtomicLong(2);
+    gauge.add(a, countingGet(), "a");
+    assertEquals(2.0, registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}), .001);
+    gauge.remove("a");
+    assertNull(registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}));
+  }
+
+  @Test
+  public void testCollectedCallbackDoesNotRemoveReplacement() {
+    gauge.add(new AtomicLong(1), countingGet(), "a");
+    FunctionCollector.Callback collected = gauge.children.get(Arrays.asList("a"));
+    AtomicLong a = new AtomicLong(2);
+    gauge.add(a, countingGet(), "a");
+    // What collect() does if it finds that the first object was garbage collected after add() replaced it.
+    gauge.removeIfSame(Arrays.asList("a"), collected);
+    assertEquals(2.0, registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}), .001);
+    gauge.removeIfSame(Arrays.asList("a"), gauge.children.get(Arrays.asList("a")));
+    assertNull(registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}));
+  }
+
+  @Test
+  public void testNoLabels() {
+    GaugeFunction noLabels = GaugeFunction.build("nolabels", "help").register(registry);
+    assertNull(registry.getSampleValue("nolabels"));
+    AtomicLong a = new AtomicLong(42);
+    noLabels.add(a, countingGet());
+    assertEquals(42.0, registry.getSampleValue("nolabels"), .001);
+    noLabels.clear();
+    assertNull(registry.getSampleValue("nolabels"));
+    noLabels.add(a, countingGet());
+    noLabels.remove();
+    assertNull(registry.getSampleValue("nolabels"));
+  }
+
+  @Test
+  public void testLabelsIsNotSupported() {
+    thrown.expect(UnsupportedOperationException.class);
+    thrown.expectMessage("use add(");
+    gauge.labels("a");
+  }
+
+  @Test
+  public void testLabelsIsNotSupportedForExistingLabelValues() {
+    gauge.add(new AtomicLong(1), countingGet(), "a");
+    thrown.expect(UnsupportedOperationException.class);
+    gauge.labels("a");
+  }
+}
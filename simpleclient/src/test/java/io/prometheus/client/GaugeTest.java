@@ -67,6 +67,40 @@ public class GaugeTest {
     assertEquals(7.0, getValue(), .001);
   }
 
+  @Test
+  public void testOptimizeForSet() {
+    Gauge gauge = Gauge.build().name("optimized").help("help").optimizeForSet().register(registry);
+    assertEquals(0.0, registry.getSampleValue("optimized"), .001);
+    gauge.set(42);
+    assertEquals(42.0, registry.getSampleValue("optimized"), .001);
+    gauge.inc(2);
+    gauge.dec();
+    assertEquals(43.0, gauge.get(), .001);
+    gauge.set(-0.5);
+    assertEquals(-0.5, gauge.get(), .001);
+  }
+
+  @Test
+  public void testOptimizeForSetConcurrentIncrement() throws InterruptedException {
+    final Gauge gauge = Gauge.build().name("optimized").help("help").labelNames("l").optimizeForSet().create();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 100000; j++) {
+            gauge.labels("a").inc();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(400000.0, gauge.labels("a").get(), 0);
+  }
+
   @Test
   public void testSetToCurrentTime() {
     Gauge.Child.timeProvider = new Gauge.TimeProvider() {
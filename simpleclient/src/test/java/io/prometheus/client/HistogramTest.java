@@ -68,6 +68,76 @@ public class HistogramTest {
         new String[]{Collector.doubleToGoString(b)}).doubleValue();
   }
 
+  @Test
+  public void testObserveBatch() {
+    double[] values = new double[]{100, 0.001, 2, 0.3, 2, Double.NaN, 20};
+    noLabels.observe(values, 1, 4);
+    assertEquals(4.0, getCount(), .001);
+    assertEquals(4.301, getSum(), .001);
+    assertEquals(1.0, getBucket(0.005), .001);
+    assertEquals(1.0, getBucket(0.25), .001);
+    assertEquals(2.0, getBucket(0.5), .001);
+    assertEquals(4.0, getBucket(2.5), .001);
+    assertEquals(4.0, getBucket(Double.POSITIVE_INFINITY), .001);
+    noLabels.observe(values, 0, 0);
+    assertEquals(4.0, getCount(), .001);
+    thrown.expect(IndexOutOfBoundsException.class);
+    noLabels.observe(values, 3, 5);
+  }
+
+  @Test
+  public void testSnapshotIsConsistentWithConcurrentObservations() throws InterruptedException {
+    final Histogram.Child child = Histogram.build().name("h").help("help").buckets(1, 10)
+        .consistentSnapshots()
+        .create().labels();
+    final int nThreads = 4;
+    final int nObservations = 100000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < nThreads; t++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < nObservations; i++) {
+            if (i % 2 == 0) {
+              child.observe(1.0);
+            } else {
+              child.observe(new double[]{5.0, 5.0}, 0, 2);
+            }
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    boolean running = true;
+    while (running) {
+      running = false;
+      for (Thread thread : threads) {
+        running |= thread.isAlive();
+      }
+      Histogram.Child.Value v = child.get();
+      double ones = v.buckets[0];
+      double fives = v.buckets[2] - ones;
+      // Each observation is either completely in the snapshot or not at all.
+      assertEquals(ones + 5 * fives, v.sum, 0);
+      assertEquals(v.buckets[1], v.buckets[2], 0);
+    }
+    Histogram.Child.Value v = child.get();
+    assertEquals(nThreads * nObservations * 1.5, v.buckets[2], 0);
+    assertEquals(nThreads * nObservations * 5.5, v.sum, 0);
+  }
+
+  @Test
+  public void testNaN() {
+    noLabels.observe(Double.NaN);
+    noLabels.observe(2);
+    assertEquals(1.0, getCount(), .001);
+    assertTrue(Double.isNaN(getSum()));
+    assertEquals(1.0, getBucket(2.5), .001);
+    assertEquals(1.0, getCount(), .001);
+  }
+
   @Test
   public void testObserve() {
     noLabels.observe(2);
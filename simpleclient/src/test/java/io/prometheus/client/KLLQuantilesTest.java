@@ -0,0 +1,93 @@
+package io.prometheus.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KLLQuantilesTest {
+
+    @Test
+    public void testGetOnEmptyValues() {
+        KLLQuantiles sketch = new KLLQuantiles(200);
+        assertTrue(Double.isNaN(sketch.get(0.5)));
+    }
+
+    @Test
+    public void testExactWhileNotCompacted() {
+        KLLQuantiles sketch = new KLLQuantiles(200);
+        for (int i = 100; i >= 0; i--) {
+            sketch.insert(i);
+        }
+        assertEquals(0.0, sketch.get(0.0), 0.0);
+        assertEquals(50.0, sketch.get(0.5), 0.0);
+        assertEquals(99.0, sketch.get(0.99), 0.0);
+        assertEquals(100.0, sketch.get(1.0), 0.0);
+    }
+
+    @Test
+    public void testRankError() {
+        int n = 1000 * 1000;
+        KLLQuantiles sketch = new KLLQuantiles(200);
+        for (int i = 0; i < n; i++) {
+            // Values 0 to n-1 in shuffled order, so that the rank of a value is the value itself.
+            sketch.insert((i * 7919L) % n);
+        }
+        for (double q : new double[]{0.01, 0.1, 0.5, 0.9, 0.99}) {
+            assertEquals("q=" + q, q * (n - 1), sketch.get(q), 0.02 * n);
+        }
+        assertEquals(0.0, sketch.get(0.0), 0.0);
+        assertEquals(n - 1, sketch.get(1.0), 0.0);
+    }
+
+    @Test
+    public void testMerge() {
+        int n = 1000 * 1000;
+        KLLQuantiles merged = new KLLQuantiles(200);
+        KLLQuantiles[] slices = {new KLLQuantiles(200), new KLLQuantiles(200), new KLLQuantiles(200)};
+        for (int i = 0; i < n; i++) {
+            // Slices of different sizes, so that they have a different number of levels.
+            slices[i % 7 == 0 ? 0 : i % 7 == 1 ? 1 : 2].insert((i * 7919L) % n);
+        }
+        for (KLLQuantiles slice : slices) {
+            merged.merge(slice);
+        }
+        assertEquals(n, merged.count);
+        for (double q : new double[]{0.01, 0.1, 0.5, 0.9, 0.99}) {
+            assertEquals("q=" + q, q * (n - 1), merged.get(q), 0.02 * n);
+        }
+        merged.reset();
+        assertTrue(Double.isNaN(merged.get(0.5)));
+        merged.insert(3.0);
+        assertEquals(3.0, merged.get(0.5), 0.0);
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        KLLQuantiles sketch = new KLLQuantiles(50);
+        for (int i = 0; i < 10000; i++) {
+            sketch.insert((i * 7919L) % 10000);
+        }
+        String encoded = sketch.encode();
+        QuantileEstimator decoded = QuantileEstimator.decode(encoded);
+        for (double q : new double[]{0.0, 0.1, 0.5, 0.9, 1.0}) {
+            assertEquals("q=" + q, sketch.get(q), decoded.get(q), 0.0);
+        }
+        assertEquals(encoded, decoded.encode());
+        assertEquals(10000, ((KLLQuantiles) decoded).count);
+    }
+
+    @Test
+    public void testMemoryIsBounded() {
+        KLLQuantiles sketch = new KLLQuantiles(200);
+        for (int i = 0; i < 1000 * 1000; i++) {
+            sketch.insert(i);
+        }
+        int retained = 0;
+        for (int size : sketch.sizes) {
+            retained += size;
+        }
+        assertTrue("retained " + retained, retained < 3 * 200 + 2 * sketch.levels.length);
+        assertEquals(1000 * 1000, sketch.count);
+    }
+}
@@ -0,0 +1,216 @@
+package io.prometheus.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+public class MultiProcessCollectorTest {
+
+  @Rule
+  public final TemporaryFolder tmp = new TemporaryFolder();
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  File dir;
+  CollectorRegistry registry;
+
+  @Before
+  public void setUp() {
+    dir = tmp.getRoot();
+    registry = new CollectorRegistry();
+    new MultiProcessCollector(dir).register(registry);
+  }
+
+  private Double getValue(String name, String... labels) {
+    String[] names = new String[labels.length / 2];
+    String[] values = new String[labels.length / 2];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = labels[2 * i];
+      values[i] = labels[2 * i + 1];
+    }
+    return registry.getSampleValue(name, names, values);
+  }
+
+  @Test
+  public void testCounterIsSummedOverProcesses() throws IOException {
+    Counter c1 = Counter.build("requests_total", "help").labelNames("path")
+        .multiProcess(MultiProcessStorage.open(dir, "1")).create();
+    Counter c2 = Counter.build("requests_total", "help").labelNames("path")
+        .multiProcess(MultiProcessStorage.open(dir, "2")).create();
+    c1.labels("/a").inc(2);
+    c2.labels("/a").inc(3);
+    c2.labels("/b").inc();
+    assertEquals(2.0, c1.labels("/a").get(), .001);
+    assertEquals(5.0, getValue("requests_total", "path", "/a"), .001);
+    assertEquals(1.0, getValue("requests_total", "path", "/b"), .001);
+    assertNull(getValue("requests_created", "path", "/a"));
+
+    List<Collector.MetricFamilySamples> mfs = new MultiProcessCollector(dir).collect();
+    assertEquals(1, mfs.size());
+    assertEquals("requests", mfs.get(0).name);
+    assertEquals("help", mfs.get(0).help);
+    assertEquals(Collector.Type.COUNTER, mfs.get(0).type);
+  }
+
+  @Test
+  public void testValuesAreContinuedWhenFileIsReopened() throws IOException {
+    Counter.build("c", "help").multiProcess(MultiProcessStorage.open(dir, "1")).create().inc(2);
+    Counter c = Counter.build("c", "help").multiProcess(MultiProcessStorage.open(dir, "1")).create();
+    assertEquals(2.0, c.get(), .001);
+    c.inc();
+    assertEquals(3.0, getValue("c_total"), .001);
+  }
+
+  @Test
+  public void testGaugeModes() throws IOException {
+    MultiProcessStorage s1 = MultiProcessStorage.open(dir, "1");
+    MultiProcessStorage s2 = MultiProcessStorage.open(dir, "2");
+    for (MultiProcessStorage.GaugeMode mode : MultiProcessStorage.GaugeMode.values()) {
+      String name = "g_" + mode.name().toLowerCase();
+      Gauge.build(name, "help").multiProcess(s1, mode).create().set(3);
+      Gauge g2 = Gauge.build(name, "help").multiProcess(s2, mode).create();
+      g2.set(10);
+      g2.dec(3);
+    }
+    assertEquals(3.0, getValue("g_all", "pid", "1"), .001);
+    assertEquals(7.0, getValue("g_all", "pid", "2"), .001);
+    assertEquals(10.0, getValue("g_sum"), .001);
+    assertEquals(3.0, getValue("g_min"), .001);
+    assertEquals(7.0, getValue("g_max"), .001);
+  }
+
+  @Test
+  public void testGaugePidLabelIsRejected() throws IOException {
+    thrown.expect(IllegalStateException.class);
+    Gauge.build("g", "help").labelNames("pid")
+        .multiProcess(MultiProcessStorage.open(dir, "1"), MultiProcessStorage.GaugeMode.ALL).create();
+  }
+
+  @Test
+  public void testHistogramIsMerged() throws IOException {
+    Histogram h1 = Histogram.build("h", "help").buckets(1, 2).labelNames("l")
+        .multiProcess(MultiProcessStorage.open(dir, "1")).create();
+    Histogram h2 = Histogram.build("h", "help").buckets(1, 2).labelNames("l")
+        .multiProcess(MultiProcessStorage.open(dir, "2")).create();
+    h1.labels("a").observe(0.5);
+    h1.labels("a").observe(1.5);
+    h2.labels("a").observe(1.5);
+    h2.labels("a").observe(5);
+    Histogram.Child.Value v = h1.labels("a").get();
+    assertEquals(2.0, v.sum, .001);
+    assertEquals(Arrays.asList(1.0, 2.0, 2.0), toList(v.buckets));
+
+    assertEquals(1.0, getValue("h_bucket", "l", "a", "le", "1.0"), .001);
+    assertEquals(3.0, getValue("h_bucket", "l", "a", "le", "2.0"), .001);
+    assertEquals(4.0, getValue("h_bucket", "l", "a", "le", "+Inf"), .001);
+    assertEquals(4.0, getValue("h_count", "l", "a"), .001);
+    assertEquals(8.5, getValue("h_sum", "l", "a"), .001);
+
+    List<Collector.MetricFamilySamples> mfs = new MultiProcessCollector(dir).collect();
+    assertEquals(1, mfs.size());
+    List<String> names = new ArrayList<String>();
+    for (Collector.MetricFamilySamples.Sample sample : mfs.get(0).samples) {
+      names.add(sample.name);
+    }
+    assertEquals(Arrays.asList("h_bucket", "h_bucket", "h_bucket", "h_count", "h_sum"), names);
+  }
+
+  @Test
+  public void testFileGrows() throws IOException {
+    Counter c = Counter.build("c", "help").labelNames("l")
+        .multiProcess(MultiProcessStorage.open(dir, "1")).create();
+    for (int i = 0; i < 5000; i++) {
+      c.labels("value" + i).inc(i);
+    }
+    assertEquals(4999.0, getValue("c_total", "l", "value4999"), .001);
+    assertEquals(1234.0, c.labels("value1234").get(), .001);
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    final Counter c = Counter.build("c", "help").labelNames("l")
+        .multiProcess(MultiProcessStorage.open(dir, "1")).create();
+    final int nThreads = 8;
+    final int n = 10000;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < nThreads; t++) {
+      final int thread = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < n; i++) {
+            c.labels("shared").inc();
+            // New slots make the file grow while other threads update values.
+            c.labels("thread" + thread + "_" + (i % 500)).inc();
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(nThreads * n, getValue("c_total", "l", "shared"), .001);
+    assertEquals(n / 500, getValue("c_total", "l", "thread7_499"), .001);
+  }
+
+  @Test
+  public void testEmptyDirectory() {
+    assertEquals(0, new MultiProcessCollector(dir).collect().size());
+    assertEquals(0, new MultiProcessCollector(new File(dir, "missing")).collect().size());
+  }
+
+  @Test
+  public void testMultipleJvms() throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    List<Process> processes = new ArrayList<Process>();
+    for (int i = 0; i < 3; i++) {
+      processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+          Worker.class.getName(), dir.getAbsolutePath()).start());
+    }
+    for (Process process : processes) {
+      assertEquals(0, process.waitFor());
+    }
+    assertEquals(3000.0, getValue("jobs_total"), .001);
+    assertEquals(3.0, getValue("job_duration_seconds_count"), .001);
+    assertEquals(3, dir.listFiles().length);
+  }
+
+  /**
+   * Main class of the processes started by {@link #testMultipleJvms()}.
+   */
+  public static class Worker {
+    public static void main(String[] args) throws IOException {
+      MultiProcessStorage storage = MultiProcessStorage.open(new File(args[0]));
+      Counter jobs = Counter.build("jobs_total", "help").multiProcess(storage).create();
+      Histogram duration = Histogram.build("job_duration_seconds", "help").multiProcess(storage).create();
+      Histogram.Timer timer = duration.startTimer();
+      for (int i = 0; i < 1000; i++) {
+        jobs.inc();
+      }
+      timer.observeDuration();
+    }
+  }
+
+  private static List<Double> toList(double[] values) {
+    List<Double> result = new ArrayList<Double>();
+    for (double value : values) {
+      result.add(value);
+    }
+    return result;
+  }
+}
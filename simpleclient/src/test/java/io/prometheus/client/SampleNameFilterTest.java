@@ -9,6 +9,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -301,4 +302,73 @@ public class SampleNameFilterTest {
         }
         Assert.assertEquals("Wrong total number of samples", n, count);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testManyNamesAndPrefixes() {
+        Random random = new Random(0);
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            names.add(randomName(random));
+        }
+        List<String> allowedPrefixes = names.subList(0, 200);
+        List<String> excludedPrefixes = names.subList(200, 400);
+        List<String> excludedNames = names.subList(400, 600);
+        SampleNameFilter filter = new SampleNameFilter.Builder()
+                .nameMustStartWith(allowedPrefixes)
+                .nameMustNotStartWith(excludedPrefixes)
+                .nameMustNotBeEqualTo(excludedNames)
+                .build();
+        for (String name : names) {
+            boolean expected = !excludedNames.contains(name)
+                    && startsWithAny(name, allowedPrefixes)
+                    && !startsWithAny(name, excludedPrefixes);
+            assertEquals(name, expected, filter.test(name));
+        }
+    }
+
+    private static String randomName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int length = 1 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            name.append("abc_".charAt(random.nextInt(4)));
+        }
+        return name.toString();
+    }
+
+    private static boolean startsWithAny(String name, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testEmptyPrefix() {
+        Assert.assertTrue(new SampleNameFilter.Builder().nameMustStartWith("").build().test("a"));
+        Assert.assertFalse(new SampleNameFilter.Builder().nameMustNotStartWith("").build().test("a"));
+        Assert.assertFalse(new SampleNameFilter.Builder().nameMustStartWith("ab").build().test("a"));
+        Assert.assertTrue(new SampleNameFilter.Builder().nameMustStartWith("a", "ab").build().test("ab_c"));
+    }
+
+    @Test
+    public void testEachSampleNameIsTestedOncePerFamily() {
+        Histogram histogram = Histogram.build().name("h").help("help").buckets(1, 2).labelNames("l").create();
+        for (int i = 0; i < 10; i++) {
+            histogram.labels("value" + i).observe(i);
+        }
+        final List<String> tested = new ArrayList<String>();
+        Predicate<String> filter = new Predicate<String>() {
+            @Override
+            public boolean test(String name) {
+                tested.add(name);
+                return !name.equals("h_created");
+            }
+        };
+        Collector.MetricFamilySamples mfs = histogram.collect().get(0).filter(filter);
+        Assert.assertEquals(Arrays.asList("h_bucket", "h_count", "h_sum", "h_created"), tested);
+        // 3 buckets, _count and _sum for each of the 10 children
+        Assert.assertEquals(50, mfs.samples.size());
+    }
+}
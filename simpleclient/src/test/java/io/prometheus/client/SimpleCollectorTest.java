@@ -3,6 +3,10 @@ package io.prometheus.client;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.rules.ExpectedException.none;
 
 import org.junit.Rule;
@@ -10,6 +14,11 @@ import org.junit.Test;
 import org.junit.Before;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 
 public class SimpleCollectorTest {
 
@@ -164,6 +173,190 @@ public class SimpleCollectorTest {
     assertEquals(42.0, getValue("a").doubleValue(), .001);
   }
 
+  @Test
+  public void testSetChildReplacesExistingChild() {
+    Gauge.Child old = metric.labels("a");
+    old.set(7);
+    metric.setChild(new Gauge.Child(){
+      public double get() {
+        return 42;
+      }
+    }, "a");
+    assertEquals(42.0, metric.labels("a").get(), .001);
+  }
+
+  @Test
+  public void testLabelsReturnsSameChild() {
+    Gauge.Child child = metric.labels("a");
+    assertSame(child, metric.labels("a"));
+    assertSame(child, metric.labels(new String("a")));
+    assertNotSame(child, metric.labels("b"));
+  }
+
+  @Test
+  public void testLabelsCopiesLabelValues() {
+    String[] labelValues = new String[]{"a"};
+    metric.labels(labelValues).set(7);
+    labelValues[0] = "b";
+    assertEquals(7.0, getValue("a").doubleValue(), .001);
+    assertNull(getValue("b"));
+  }
+
+  @Test
+  public void testManyChildren() {
+    Gauge g = Gauge.build().name("many").help("help").labelNames("a", "b").register(registry);
+    for (int i = 0; i < 1000; i++) {
+      g.labels("x" + i, "y" + i).set(i);
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      g.remove("x" + i, "y" + i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      Double value = registry.getSampleValue("many", new String[]{"a", "b"}, new String[]{"x" + i, "y" + i});
+      if (i % 2 == 0) {
+        assertNull(value);
+        assertEquals(0.0, g.labels("x" + i, "y" + i).get(), .001);
+      } else {
+        assertEquals(i, value.doubleValue(), .001);
+        assertEquals(i, g.labels("x" + i, "y" + i).get(), .001);
+      }
+    }
+  }
+
+  @Test
+  public void testMaxChildrenEvictsLeastRecentlyUsed() {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l").maxChildren(3).register(registry);
+    gauge.labels("a").set(1);
+    gauge.labels("b").set(2);
+    gauge.labels("c").set(3);
+    registry.getSampleValue("bounded"); // a scrape starts a new epoch
+    gauge.labels("a").inc();
+    gauge.labels("c").inc();
+    gauge.labels("d").set(4);
+    assertEquals(3, gauge.children.size());
+    assertNull(registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"b"}));
+    assertEquals(2.0, registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"a"}), .001);
+    assertEquals(4.0, registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"d"}), .001);
+    assertEquals(1.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"evicted"}), .001);
+  }
+
+  @Test
+  public void testMaxChildrenEvictsInBatches() {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l").maxChildren(100).register(registry);
+    for (int i = 0; i < 1000; i++) {
+      gauge.labels("v" + i).set(i);
+      assertTrue(gauge.children.size() <= 100);
+    }
+    assertNotNull(registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"v999"}));
+    assertEquals(900.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"evicted"}), 100);
+  }
+
+  @Test
+  public void testOverflowPolicyDrop() {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l")
+        .maxChildren(1).overflowPolicy(SimpleCollector.OverflowPolicy.DROP).register(registry);
+    gauge.labels("a").set(1);
+    gauge.labels("b").set(2);
+    gauge.labels("c").set(3);
+    assertEquals(1, gauge.children.size());
+    assertEquals(1.0, registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"a"}), .001);
+    assertNull(registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"b"}));
+    assertEquals(2.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"dropped"}), .001);
+  }
+
+  @Test
+  public void testOverflowPolicyOther() {
+    Counter counter = Counter.build().name("bounded").help("help").labelNames("l", "m")
+        .maxChildren(1).overflowPolicy(SimpleCollector.OverflowPolicy.OTHER).register(registry);
+    counter.labels("a", "a").inc();
+    counter.labels("b", "b").inc();
+    counter.labels("c", "c").inc();
+    assertEquals(2, counter.children.size());
+    assertEquals(2.0, registry.getSampleValue("bounded_total", new String[]{"l", "m"}, new String[]{"other", "other"}), .001);
+    assertEquals(2.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"other"}), .001);
+  }
+
+  @Test
+  public void testOverflowPolicyReject() {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l")
+        .maxChildren(1).overflowPolicy(SimpleCollector.OverflowPolicy.REJECT).register(registry);
+    gauge.labels("a");
+    try {
+      gauge.labels("b");
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    gauge.labels("a").inc();
+    assertEquals(1.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"rejected"}), .001);
+  }
+
+  @Test
+  public void testOverflowIsCountedOncePerLabelValues() {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l")
+        .maxChildren(1).overflowPolicy(SimpleCollector.OverflowPolicy.DROP).register(registry);
+    gauge.labels("a").set(1);
+    Gauge.Child dropped = gauge.labels("b");
+    for (int i = 0; i < 10; i++) {
+      assertSame(dropped, gauge.labels("b"));
+      assertSame(dropped, gauge.labels("c"));
+    }
+    assertEquals(2.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"dropped"}), .001);
+
+    // After a child is removed, there is room for label values that were dropped before.
+    gauge.remove("a");
+    gauge.labels("b").set(2);
+    assertEquals(2.0, registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"b"}), .001);
+  }
+
+  @Test
+  public void testRejectedLabelValuesAreCountedOnce() {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l")
+        .maxChildren(1).overflowPolicy(SimpleCollector.OverflowPolicy.REJECT).register(registry);
+    gauge.labels("a");
+    for (int i = 0; i < 3; i++) {
+      try {
+        gauge.labels("b");
+        fail("expected IllegalStateException");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    }
+    assertEquals(1.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"rejected"}), .001);
+  }
+
+  @Test
+  public void testChildIdleTimeout() throws InterruptedException {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l")
+        .childIdleTimeout(100, TimeUnit.MILLISECONDS).register(registry);
+    gauge.labels("idle").set(1);
+    gauge.labels("used").set(2);
+    // Idle children are removed between one and two timeouts after their last use.
+    for (int i = 0; i < 20; i++) {
+      Thread.sleep(20);
+      gauge.labels("used").inc();
+      registry.getSampleValue("bounded");
+    }
+    assertNull(registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"idle"}));
+    assertEquals(22.0, registry.getSampleValue("bounded", new String[]{"l"}, new String[]{"used"}), .001);
+    assertEquals(1.0, registry.getSampleValue("bounded_children_overflow_total", new String[]{"reason"}, new String[]{"expired"}), .001);
+  }
+
+  @Test
+  public void testChildrenOverflowIsDescribed() {
+    Gauge gauge = Gauge.build().name("bounded").help("help").labelNames("l").maxChildren(10).create();
+    assertEquals(2, gauge.describe().size());
+    assertEquals("bounded_children_overflow", gauge.describe().get(0).name);
+    assertEquals(Collector.Type.COUNTER, gauge.describe().get(0).type);
+    assertEquals(1, metric.describe().size());
+  }
+
+  @Test
+  public void testChildrenLimitRequiresLabels() {
+    thrown.expect(IllegalStateException.class);
+    Gauge.build().name("bounded").help("help").maxChildren(10).create();
+  }
+
   @Test
   public void testSetChildReturnsGauge() {
     Gauge g = metric.setChild(new Gauge.Child(){
@@ -177,4 +370,53 @@ public class SimpleCollectorTest {
   public void testCreateReturnsGauge() {
     Gauge g = Gauge.build().name("labels").help("help").labelNames("l").create();
   }
+
+  @Test
+  public void testCollectWithFilterOnlyCreatesMatchingSamples() {
+    Counter counter = Counter.build().name("c").help("help").labelNames("l").create();
+    counter.labels("a").inc();
+    Histogram histogram = Histogram.build().name("h").help("help").labelNames("l").buckets(1, 2).create();
+    histogram.labels("a").observe(1.5);
+    histogram.labels("b").observe(0.5);
+    Summary summary = Summary.build().name("s").help("help").labelNames("l")
+        .quantile(0.9, 0.01).quantile(0.5, 0.05).create();
+    summary.labels("a").observe(3);
+    Info info = Info.build().name("i").help("help").labelNames("l").create();
+    info.labels("a").info("version", "1.0");
+    Enumeration enumeration = Enumeration.build().name("e").help("help").labelNames("l").states("x", "y").create();
+    enumeration.labels("a").state("y");
+    metric.labels("a").set(2);
+
+    List<SimpleCollector<?>> collectors = Arrays.<SimpleCollector<?>>asList(
+        counter, histogram, summary, info, enumeration, metric);
+    List<Predicate<String>> filters = Arrays.<Predicate<String>>asList(
+        new SampleNameFilter.Builder().nameMustBeEqualTo("h_count", "s", "c_total", "i_info", "e", "labels").build(),
+        new SampleNameFilter.Builder().nameMustBeEqualTo("h_sum", "s_count", "c_created").build(),
+        new SampleNameFilter.Builder().nameMustNotStartWith("h_bucket", "s_sum").build(),
+        new SampleNameFilter.Builder().nameMustBeEqualTo("unknown").build());
+    for (Predicate<String> filter : filters) {
+      for (SimpleCollector<?> collector : collectors) {
+        List<Collector.MetricFamilySamples> expected = new ArrayList<Collector.MetricFamilySamples>();
+        for (Collector.MetricFamilySamples mfs : collector.collect()) {
+          Collector.MetricFamilySamples filtered = mfs.filter(filter);
+          if (filtered != null) {
+            expected.add(filtered);
+          }
+        }
+        assertEquals(expected, collector.collect(filter));
+      }
+    }
+    assertEquals(Arrays.asList("h_count", "h_count"), sampleNames(histogram.collect(filters.get(0))));
+    assertEquals(Arrays.asList("s", "s"), sampleNames(summary.collect(filters.get(0))));
+  }
+
+  private static List<String> sampleNames(List<Collector.MetricFamilySamples> mfs) {
+    List<String> result = new ArrayList<String>();
+    for (Collector.MetricFamilySamples family : mfs) {
+      for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+        result.add(sample.name);
+      }
+    }
+    return result;
+  }
 }
@@ -70,6 +70,24 @@ public class SummaryTest {
     assertEquals(6.0, noLabels.get().sum, .001);
   }
 
+  @Test
+  public void testObserveBatch() {
+    int nSamples = 10000;
+    double[] values = new double[nSamples + 2];
+    for (int i = 0; i < nSamples; i++) {
+      values[i + 1] = nSamples - i; // descending, so that the batch must be sorted
+    }
+    values[0] = values[nSamples + 1] = 1e9; // outside of the batch
+    noLabelsAndQuantiles.observe(values, 1, nSamples);
+    noLabels.observe(values, 1, 3);
+    assertEquals(3.0, getCount(), .001);
+    assertEquals(3 * nSamples - 3, getSum(), .001);
+    assertEquals(nSamples, noLabelsAndQuantiles.get().count, .001);
+    assertEquals(0.5 * nSamples, getNoLabelQuantile(0.5), 0.05 * nSamples);
+    assertEquals(0.9 * nSamples, getNoLabelQuantile(0.9), 0.01 * nSamples);
+    assertEquals(0.99 * nSamples, getNoLabelQuantile(0.99), 0.001 * nSamples);
+  }
+
   @Test
   // See https://github.com/prometheus/client_java/issues/646
   public void testNegativeAmount() {
@@ -98,6 +116,188 @@ public class SummaryTest {
     assertEquals(getLabeledQuantile("a", 0.99), 0.99 * nSamples, 0.001 * nSamples);
   }
 
+  @Test
+  public void testConcurrentQuantiles() throws InterruptedException {
+    final Summary summary = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(0.9, 0.01)
+            .quantile(0.99, 0.001)
+            .concurrentQuantiles(true)
+            .name("concurrent_quantiles").help("help").register(registry);
+    final int nThreads = 8;
+    final int nSamplesPerThread = 100000;
+    Thread[] threads = new Thread[nThreads];
+    for (int t = 0; t < nThreads; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          // The threads together observe the numbers from 1 to nThreads * nSamplesPerThread.
+          for (int i = 0; i < nSamplesPerThread; i++) {
+            summary.observe(i * nThreads + offset + 1);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    int nSamples = nThreads * nSamplesPerThread;
+    assertEquals(nSamples, summary.get().count, 0.0);
+    // The order of the observations depends on the thread scheduling. For unsorted input
+    // the rank error of CKMS regularly reaches epsilon, so allow twice the epsilon.
+    assertEquals(0.5 * nSamples, summary.get().quantiles.get(0.5), 2 * 0.05 * nSamples);
+    assertEquals(0.9 * nSamples, summary.get().quantiles.get(0.9), 2 * 0.01 * nSamples);
+    assertEquals(0.99 * nSamples, summary.get().quantiles.get(0.99), 2 * 0.001 * nSamples);
+  }
+
+  @Test
+  public void testConcurrentQuantilesIncludesBufferedObservations() {
+    Summary summary = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(1.0, 0.0)
+            .concurrentQuantiles(true)
+            .name("concurrent_quantiles").help("help").register(registry);
+    summary.observe(3.0);
+    summary.observe(7.0);
+    assertEquals(7.0, summary.get().quantiles.get(1.0), 0.0);
+    summary.observe(9.0);
+    assertEquals(9.0, summary.get().quantiles.get(1.0), 0.0);
+  }
+
+  @Test
+  public void testQuantileEstimators() {
+    Summary ddSketch = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(0.999, 0.0001)
+            .quantileEstimator(QuantileEstimator.ddSketch(0.01))
+            .name("dd_sketch").help("help").register(registry);
+    Summary kll = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(0.999, 0.0001)
+            .quantileEstimator(QuantileEstimator.kll(200))
+            .name("kll").help("help").register(registry);
+    int nSamples = 100000;
+    double[] batch = new double[100];
+    for (int i = 1; i <= nSamples; i += batch.length) {
+      for (int j = 0; j < batch.length; j++) {
+        batch[j] = i + j;
+        ddSketch.observe(i + j);
+      }
+      kll.observe(batch, 0, batch.length);
+    }
+    assertEquals(0.5 * nSamples, ddSketch.get().quantiles.get(0.5), 0.01 * 0.5 * nSamples);
+    assertEquals(0.999 * nSamples, ddSketch.get().quantiles.get(0.999), 0.01 * 0.999 * nSamples);
+    assertEquals(0.5 * nSamples, kll.get().quantiles.get(0.5), 0.02 * nSamples);
+    assertEquals(0.999 * nSamples, kll.get().quantiles.get(0.999), 0.02 * nSamples);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testQuantileEstimatorInvalidArguments() {
+    QuantileEstimator.ddSketch(1.0);
+  }
+
+  @Test
+  public void testExportSketch() {
+    Summary summary = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantileEstimator(QuantileEstimator.ddSketch(0.01))
+            .exportSketch(true)
+            .labelNames("l")
+            .name("sketched").help("help").register(registry);
+    for (int i = 1; i <= 1000; i++) {
+      summary.labels("a").observe(i);
+    }
+    List<Summary.Sketch> sketches = summary.getSketches();
+    assertEquals(1, sketches.size());
+    assertEquals("sketched", sketches.get(0).name);
+    assertEquals(asList("l"), sketches.get(0).labelNames);
+    assertEquals(asList("a"), sketches.get(0).labelValues);
+    QuantileEstimator sketch = QuantileEstimator.decode(sketches.get(0).sketch);
+    assertEquals(summary.labels("a").get().quantiles.get(0.5), sketch.get(0.5), 0.0);
+
+    // The sketches are not scraped.
+    List<Collector.MetricFamilySamples> mfs = summary.collect();
+    assertEquals(1, mfs.size());
+    assertEquals(mfs, summary.collect(SampleNameFilter.ALLOW_ALL));
+    assertEquals(1, summary.describe().size());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testGetSketchesRequiresExportSketch() {
+    Summary.build().quantile(0.5, 0.05).quantileEstimator(QuantileEstimator.kll(200))
+            .name("not_sketched").help("help").create().getSketches();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testExportSketchRequiresEncodableEstimator() {
+    Summary.build().quantile(0.5, 0.05).exportSketch(true).name("ckms").help("help").create();
+  }
+
+  /**
+   * Counts the merges of the time window slices, and observes a value into {@code summary} whenever a quantile is
+   * read, like a concurrent observation during a scrape.
+   */
+  private static class ObservingEstimator extends QuantileEstimator {
+    private final QuantileEstimator delegate;
+    private final int[] merges;
+    private final Summary[] summary;
+
+    ObservingEstimator(QuantileEstimator delegate, int[] merges, Summary[] summary) {
+      this.delegate = delegate;
+      this.merges = merges;
+      this.summary = summary;
+    }
+
+    public void insert(double value) {
+      delegate.insert(value);
+    }
+
+    public double get(double q) {
+      summary[0].observe(q);
+      return delegate.get(q);
+    }
+
+    public boolean isMergeable() {
+      return true;
+    }
+
+    public void merge(QuantileEstimator other) {
+      merges[0]++;
+      delegate.merge(((ObservingEstimator) other).delegate);
+    }
+
+    public void reset() {
+      delegate.reset();
+    }
+  }
+
+  @Test
+  public void testQuantilesAreReadFromOneMerge() {
+    final int[] merges = new int[1];
+    final Summary[] summary = new Summary[1];
+    summary[0] = Summary.build()
+            .quantile(0.5, 0.05)
+            .quantile(0.9, 0.01)
+            .quantile(0.99, 0.001)
+            .ageBuckets(2)
+            .quantileEstimator(new QuantileEstimator.Factory() {
+              public QuantileEstimator newEstimator(double[] quantiles, double[] errors) {
+                return new ObservingEstimator(QuantileEstimator.ddSketch(0.01).newEstimator(quantiles, errors),
+                    merges, summary);
+              }
+            })
+            .name("observed").help("help").register(registry);
+    for (int i = 1; i <= 100; i++) {
+      summary[0].observe(i);
+    }
+    assertEquals(50.0, registry.getSampleValue("observed", new String[]{"quantile"}, new String[]{"0.5"}), 1.0);
+    assertEquals(2, merges[0]);
+    assertEquals(3, summary[0].get().quantiles.size());
+    assertEquals(4, merges[0]);
+  }
+
   @Test
   public void testMaxAge() throws InterruptedException {
     Summary summary = Summary.build()
@@ -0,0 +1,600 @@
+package io.prometheus.client.exporter.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.exemplars.Exemplar;
+
+/**
+ * Writes the Prometheus protobuf format, i.e. length-delimited {@code io.prometheus.client.MetricFamily} messages
+ * as defined in <a href="https://github.com/prometheus/client_model/blob/master/io/prometheus/client/metrics.proto">metrics.proto</a>.
+ * <p>
+ * The messages are encoded directly, there is no dependency on protobuf-java.
+ * <p>
+ * Samples are grouped into one {@code Metric} per label set, like Prometheus does when it parses the text format:
+ * Histogram buckets, count, sum, and created timestamp become a single {@code Histogram} message,
+ * and summary quantiles, count, sum, and created timestamp become a single {@code Summary} message.
+ * Samples that don't fit into the type of their family are written as separate untyped families,
+ * so that no data is lost.
+ */
+public class ProtobufFormat {
+  /**
+   * Content-type for the Prometheus protobuf format.
+   */
+  public final static String CONTENT_TYPE_PROTOBUF = "application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // MetricType enum values
+  private static final int TYPE_COUNTER = 0;
+  private static final int TYPE_GAUGE = 1;
+  private static final int TYPE_SUMMARY = 2;
+  private static final int TYPE_UNTYPED = 3;
+  private static final int TYPE_HISTOGRAM = 4;
+  private static final int TYPE_GAUGE_HISTOGRAM = 5;
+
+  /**
+   * Return the content type that should be used for a given Accept HTTP header.
+   * <p>
+   * This is {@link #CONTENT_TYPE_PROTOBUF} if the header has a matching protobuf media range with
+   * the highest quality value (the first one wins if several have the same quality value).
+   * Otherwise this is the same as {@link TextFormat#chooseContentType(String)}.
+   */
+  public static String chooseContentType(String acceptHeader) {
+    if (acceptHeader == null) {
+      return TextFormat.chooseContentType(null);
+    }
+    boolean protobuf = false;
+    double bestQuality = -1;
+    for (String accepts : acceptHeader.split(",")) {
+      String[] parts = accepts.split(";");
+      boolean isProtobuf = "application/vnd.google.protobuf".equals(parts[0].trim());
+      boolean isMetricFamily = false;
+      boolean isDelimited = false;
+      double quality = 1.0;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.equals("proto=io.prometheus.client.MetricFamily")) {
+          isMetricFamily = true;
+        } else if (param.equals("encoding=delimited")) {
+          isDelimited = true;
+        } else if (param.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (quality > bestQuality) {
+        bestQuality = quality;
+        protobuf = isProtobuf && isMetricFamily && isDelimited;
+      }
+    }
+    return protobuf ? CONTENT_TYPE_PROTOBUF : TextFormat.chooseContentType(acceptHeader);
+  }
+
+  /**
+   * Write out the given MetricFamilySamples in the protobuf format.
+   */
+  public static void write(OutputStream out, Enumeration<MetricFamilySamples> mfs) throws IOException {
+    ProtobufWriter writer = new ProtobufWriter();
+    while (mfs.hasMoreElements()) {
+      writer.reset();
+      writeMetricFamilySamples(writer, mfs.nextElement());
+      writer.writeTo(out);
+    }
+  }
+
+  /**
+   * Write out the metrics of the {@code registry} in the protobuf format.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be written.
+   */
+  public static void write(OutputStream out, CollectorRegistry registry, Predicate<String> sampleNameFilter) throws IOException {
+    write(out, registry.filteredMetricFamilySamples(sampleNameFilter));
+  }
+
+  /**
+   * The samples of one label set.
+   */
+  private static class Metric {
+    final List<String> labelNames;
+    final List<String> labelValues;
+    Long timestampMs;
+    double value;
+    boolean hasValue;
+    Exemplar exemplar;
+    double created;
+    boolean hasCreated;
+    double count;
+    boolean hasCount;
+    double sum;
+    boolean hasSum;
+    final List<Sample> buckets = new ArrayList<Sample>();
+    final List<Sample> quantiles = new ArrayList<Sample>();
+
+    Metric(List<String> labelNames, List<String> labelValues) {
+      this.labelNames = labelNames;
+      this.labelValues = labelValues;
+    }
+  }
+
+  private static void writeMetricFamilySamples(ProtobufWriter writer, MetricFamilySamples mfs) {
+    Map<List<String>, Metric> metrics = new LinkedHashMap<List<String>, Metric>();
+    Map<String, List<Sample>> untyped = new LinkedHashMap<String, List<Sample>>();
+    for (Sample sample : mfs.samples) {
+      String suffix = sample.name.startsWith(mfs.name) ? sample.name.substring(mfs.name.length()) : null;
+      boolean added = false;
+      if (suffix != null) {
+        switch (mfs.type) {
+          case COUNTER:
+            if (suffix.equals("_total") || suffix.isEmpty()) {
+              Metric metric = metric(metrics, sample, null);
+              setValue(metric, sample);
+              metric.exemplar = sample.exemplar;
+              added = true;
+            } else if (suffix.equals("_created")) {
+              setCreated(metric(metrics, sample, null), sample);
+              added = true;
+            }
+            break;
+          case HISTOGRAM:
+          case GAUGE_HISTOGRAM:
+            if (suffix.equals("_bucket") && sample.labelNames.contains("le")) {
+              metric(metrics, sample, "le").buckets.add(sample);
+              added = true;
+            } else if (suffix.equals(mfs.type == Collector.Type.HISTOGRAM ? "_count" : "_gcount")) {
+              Metric metric = metric(metrics, sample, null);
+              metric.count = sample.value;
+              metric.hasCount = true;
+              added = true;
+            } else if (suffix.equals(mfs.type == Collector.Type.HISTOGRAM ? "_sum" : "_gsum")) {
+              Metric metric = metric(metrics, sample, null);
+              metric.sum = sample.value;
+              metric.hasSum = true;
+              added = true;
+            } else if (suffix.equals("_created")) {
+              setCreated(metric(metrics, sample, null), sample);
+              added = true;
+            }
+            break;
+          case SUMMARY:
+            if (suffix.isEmpty() && sample.labelNames.contains("quantile")) {
+              metric(metrics, sample, "quantile").quantiles.add(sample);
+              added = true;
+            } else if (suffix.equals("_count")) {
+              Metric metric = metric(metrics, sample, null);
+              metric.count = sample.value;
+              metric.hasCount = true;
+              added = true;
+            } else if (suffix.equals("_sum")) {
+              Metric metric = metric(metrics, sample, null);
+              metric.sum = sample.value;
+              metric.hasSum = true;
+              added = true;
+            } else if (suffix.equals("_created")) {
+              setCreated(metric(metrics, sample, null), sample);
+              added = true;
+            }
+            break;
+          case INFO:
+            if (suffix.equals("_info")) {
+              setValue(metric(metrics, sample, null), sample);
+              added = true;
+            }
+            break;
+          default:
+            if (suffix.isEmpty()) {
+              setValue(metric(metrics, sample, null), sample);
+              added = true;
+            }
+        }
+      }
+      if (!added) {
+        List<Sample> samples = untyped.get(sample.name);
+        if (samples == null) {
+          samples = new ArrayList<Sample>();
+          untyped.put(sample.name, samples);
+        }
+        samples.add(sample);
+      }
+    }
+
+    if (!metrics.isEmpty()) {
+      int start = writer.startDelimited();
+      writer.writeString(1, familyName(mfs));
+      writer.writeString(2, mfs.help);
+      writer.writeVarint(3, metricType(mfs.type));
+      for (Metric metric : metrics.values()) {
+        int metricStart = writer.startMessage(4);
+        writeLabels(writer, metric.labelNames, metric.labelValues);
+        switch (mfs.type) {
+          case COUNTER:
+            writeCounter(writer, metric);
+            break;
+          case HISTOGRAM:
+          case GAUGE_HISTOGRAM:
+            writeHistogram(writer, metric);
+            break;
+          case SUMMARY:
+            writeSummary(writer, metric);
+            break;
+          case UNKNOWN:
+            if (metric.hasValue) {
+              int untypedStart = writer.startMessage(5);
+              writer.writeDouble(1, metric.value);
+              writer.endMessage(untypedStart);
+            }
+            break;
+          default:
+            if (metric.hasValue) {
+              int gaugeStart = writer.startMessage(2);
+              writer.writeDouble(1, metric.value);
+              writer.endMessage(gaugeStart);
+            }
+        }
+        if (metric.timestampMs != null) {
+          writer.writeVarint(6, metric.timestampMs);
+        }
+        writer.endMessage(metricStart);
+      }
+      writer.endDelimited(start);
+    }
+
+    for (Map.Entry<String, List<Sample>> entry : untyped.entrySet()) {
+      int start = writer.startDelimited();
+      writer.writeString(1, entry.getKey());
+      writer.writeString(2, mfs.help);
+      writer.writeVarint(3, TYPE_UNTYPED);
+      for (Sample sample : entry.getValue()) {
+        int metricStart = writer.startMessage(4);
+        writeLabels(writer, sample.labelNames, sample.labelValues);
+        int untypedStart = writer.startMessage(5);
+        writer.writeDouble(1, sample.value);
+        writer.endMessage(untypedStart);
+        if (sample.timestampMs != null) {
+          writer.writeVarint(6, sample.timestampMs);
+        }
+        writer.endMessage(metricStart);
+      }
+      writer.endDelimited(start);
+    }
+  }
+
+  /**
+   * Get or create the Metric for the labels of the {@code sample}, ignoring the label {@code excludedLabel}.
+   */
+  private static Metric metric(Map<List<String>, Metric> metrics, Sample sample, String excludedLabel) {
+    List<String> labelNames = sample.labelNames;
+    List<String> labelValues = sample.labelValues;
+    if (excludedLabel != null) {
+      labelNames = new ArrayList<String>(sample.labelNames.size());
+      labelValues = new ArrayList<String>(sample.labelNames.size());
+      for (int i = 0; i < sample.labelNames.size(); i++) {
+        if (!excludedLabel.equals(sample.labelNames.get(i))) {
+          labelNames.add(sample.labelNames.get(i));
+          labelValues.add(sample.labelValues.get(i));
+        }
+      }
+    }
+    List<String> key = new ArrayList<String>(labelNames.size() * 2);
+    key.addAll(labelNames);
+    key.addAll(labelValues);
+    Metric metric = metrics.get(key);
+    if (metric == null) {
+      metric = new Metric(labelNames, labelValues);
+      metrics.put(key, metric);
+    }
+    if (metric.timestampMs == null) {
+      metric.timestampMs = sample.timestampMs;
+    }
+    return metric;
+  }
+
+  private static void setValue(Metric metric, Sample sample) {
+    metric.value = sample.value;
+    metric.hasValue = true;
+  }
+
+  private static void setCreated(Metric metric, Sample sample) {
+    metric.created = sample.value;
+    metric.hasCreated = true;
+  }
+
+  private static String familyName(MetricFamilySamples mfs) {
+    switch (mfs.type) {
+      case COUNTER:
+        return mfs.name + "_total";
+      case INFO:
+        return mfs.name + "_info";
+      default:
+        return mfs.name;
+    }
+  }
+
+  private static int metricType(Collector.Type type) {
+    switch (type) {
+      case COUNTER:
+        return TYPE_COUNTER;
+      case GAUGE:
+      case INFO:
+      case STATE_SET:
+        return TYPE_GAUGE;
+      case SUMMARY:
+        return TYPE_SUMMARY;
+      case HISTOGRAM:
+        return TYPE_HISTOGRAM;
+      case GAUGE_HISTOGRAM:
+        return TYPE_GAUGE_HISTOGRAM;
+      default:
+        return TYPE_UNTYPED;
+    }
+  }
+
+  private static void writeLabels(ProtobufWriter writer, List<String> labelNames, List<String> labelValues) {
+    for (int i = 0; i < labelNames.size(); i++) {
+      int start = writer.startMessage(1);
+      writer.writeString(1, labelNames.get(i));
+      writer.writeString(2, labelValues.get(i));
+      writer.endMessage(start);
+    }
+  }
+
+  private static void writeCounter(ProtobufWriter writer, Metric metric) {
+    int start = writer.startMessage(3);
+    if (metric.hasValue) {
+      writer.writeDouble(1, metric.value);
+    }
+    if (metric.exemplar != null) {
+      writeExemplar(writer, 2, metric.exemplar);
+    }
+    if (metric.hasCreated) {
+      writeTimestamp(writer, 3, metric.created);
+    }
+    writer.endMessage(start);
+  }
+
+  private static void writeHistogram(ProtobufWriter writer, Metric metric) {
+    int start = writer.startMessage(7);
+    if (metric.hasCount) {
+      writeCount(writer, 1, 4, metric.count);
+    }
+    if (metric.hasSum) {
+      writer.writeDouble(2, metric.sum);
+    }
+    for (Sample bucket : metric.buckets) {
+      int bucketStart = writer.startMessage(3);
+      writeCount(writer, 1, 4, bucket.value);
+      writer.writeDouble(2, parseDouble(bucket.labelValues.get(bucket.labelNames.indexOf("le"))));
+      if (bucket.exemplar != null) {
+        writeExemplar(writer, 3, bucket.exemplar);
+      }
+      writer.endMessage(bucketStart);
+    }
+    if (metric.hasCreated) {
+      writeTimestamp(writer, 15, metric.created);
+    }
+    writer.endMessage(start);
+  }
+
+  private static void writeSummary(ProtobufWriter writer, Metric metric) {
+    int start = writer.startMessage(4);
+    if (metric.hasCount) {
+      writer.writeVarint(1, (long) metric.count);
+    }
+    if (metric.hasSum) {
+      writer.writeDouble(2, metric.sum);
+    }
+    for (Sample quantile : metric.quantiles) {
+      int quantileStart = writer.startMessage(3);
+      writer.writeDouble(1, parseDouble(quantile.labelValues.get(quantile.labelNames.indexOf("quantile"))));
+      writer.writeDouble(2, quantile.value);
+      writer.endMessage(quantileStart);
+    }
+    if (metric.hasCreated) {
+      writeTimestamp(writer, 4, metric.created);
+    }
+    writer.endMessage(start);
+  }
+
+  /**
+   * Histogram counts are uint64, with a double field as alternative for counts that are not integers.
+   */
+  private static void writeCount(ProtobufWriter writer, int intField, int floatField, double count) {
+    if (count >= 0 && count < 0x1p63 && count == Math.rint(count)) {
+      writer.writeVarint(intField, (long) count);
+    } else {
+      writer.writeDouble(floatField, count);
+    }
+  }
+
+  private static void writeExemplar(ProtobufWriter writer, int field, Exemplar exemplar) {
+    int start = writer.startMessage(field);
+    for (int i = 0; i < exemplar.getNumberOfLabels(); i++) {
+      int labelStart = writer.startMessage(1);
+      writer.writeString(1, exemplar.getLabelName(i));
+      writer.writeString(2, exemplar.getLabelValue(i));
+      writer.endMessage(labelStart);
+    }
+    writer.writeDouble(2, exemplar.getValue());
+    if (exemplar.getTimestampMs() != null) {
+      long timestampMs = exemplar.getTimestampMs();
+      long seconds = timestampMs / 1000;
+      long millis = timestampMs % 1000;
+      if (millis < 0) {
+        seconds--;
+        millis += 1000;
+      }
+      writeTimestamp(writer, 3, seconds, (int) millis * 1000000);
+    }
+    writer.endMessage(start);
+  }
+
+  /**
+   * Write a google.protobuf.Timestamp from a timestamp in seconds, like the value of a {@code _created} sample.
+   */
+  private static void writeTimestamp(ProtobufWriter writer, int field, double timestampSeconds) {
+    long seconds = (long) Math.floor(timestampSeconds);
+    long nanos = Math.round((timestampSeconds - seconds) * 1e9);
+    if (nanos >= 1000000000) {
+      seconds++;
+      nanos -= 1000000000;
+    }
+    writeTimestamp(writer, field, seconds, (int) nanos);
+  }
+
+  private static void writeTimestamp(ProtobufWriter writer, int field, long seconds, int nanos) {
+    int start = writer.startMessage(field);
+    writer.writeVarint(1, seconds);
+    writer.writeVarint(2, nanos);
+    writer.endMessage(start);
+  }
+
+  private static double parseDouble(String s) {
+    if ("+Inf".equals(s)) {
+      return Double.POSITIVE_INFINITY;
+    }
+    if ("-Inf".equals(s)) {
+      return Double.NEGATIVE_INFINITY;
+    }
+    return Double.parseDouble(s);
+  }
+
+  /**
+   * Encodes protobuf fields into a growable byte array.
+   * <p>
+   * The length of a nested message is not known before the message is written, so one byte is reserved for the length.
+   * If the length needs more than one byte the message is moved when it is finished.
+   */
+  static class ProtobufWriter {
+
+    private static final int WIRE_TYPE_VARINT = 0;
+    private static final int WIRE_TYPE_FIXED64 = 1;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+
+    private byte[] buffer = new byte[4096];
+    private int size;
+
+    void reset() {
+      size = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    byte[] getBuffer() {
+      return buffer;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(buffer, 0, size);
+    }
+
+    private void ensureCapacity(int additional) {
+      if (size + additional > buffer.length) {
+        byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + additional)];
+        System.arraycopy(buffer, 0, newBuffer, 0, size);
+        buffer = newBuffer;
+      }
+    }
+
+    private void writeTag(int field, int wireType) {
+      writeRawVarint((field << 3) | wireType);
+    }
+
+    void writeRawVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[size++] = (byte) value;
+    }
+
+    /**
+     * For int32, int64, uint32, uint64, bool, and enum fields. Negative values take 10 bytes, as in protobuf.
+     */
+    void writeVarint(int field, long value) {
+      writeTag(field, WIRE_TYPE_VARINT);
+      writeRawVarint(value);
+    }
+
+    void writeDouble(int field, double value) {
+      writeTag(field, WIRE_TYPE_FIXED64);
+      ensureCapacity(8);
+      long bits = Double.doubleToRawLongBits(value);
+      for (int i = 0; i < 8; i++) {
+        buffer[size++] = (byte) bits;
+        bits >>>= 8;
+      }
+    }
+
+    void writeString(int field, String value) {
+      byte[] bytes = value.getBytes(UTF_8);
+      writeTag(field, WIRE_TYPE_LENGTH_DELIMITED);
+      writeRawVarint(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, size, bytes.length);
+      size += bytes.length;
+    }
+
+    /**
+     * Start a nested message. Returns the position that must be passed to {@link #endMessage(int)}.
+     */
+    int startMessage(int field) {
+      writeTag(field, WIRE_TYPE_LENGTH_DELIMITED);
+      return startDelimited();
+    }
+
+    void endMessage(int start) {
+      endDelimited(start);
+    }
+
+    /**
+     * Start a length prefixed message without tag, as used between the messages of the delimited format.
+     */
+    int startDelimited() {
+      ensureCapacity(1);
+      return size++;
+    }
+
+    void endDelimited(int start) {
+      int length = size - start - 1;
+      int lengthSize = varintSize(length);
+      if (lengthSize > 1) {
+        ensureCapacity(lengthSize - 1);
+        System.arraycopy(buffer, start + 1, buffer, start + lengthSize, length);
+      }
+      int pos = start;
+      long value = length;
+      while ((value & ~0x7FL) != 0) {
+        buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos] = (byte) value;
+      size = start + lengthSize + length;
+    }
+
+    static int varintSize(long value) {
+      int result = 1;
+      while ((value & ~0x7FL) != 0) {
+        result++;
+        value >>>= 7;
+      }
+      return result;
+    }
+  }
+}
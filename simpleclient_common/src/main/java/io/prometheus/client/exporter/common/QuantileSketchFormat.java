@@ -0,0 +1,122 @@
+package io.prometheus.client.exporter.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.prometheus.client.Predicate;
+import io.prometheus.client.Summary;
+
+/**
+ * A line based format for the quantile sketches of Summaries with {@code exportSketch(true)}, see
+ * {@link Summary#getSketches()}. Each line has the name and the labels of a child like the text format,
+ * followed by the Base64 encoded sketch:
+ * <pre>
+ * requests_latency_seconds{method="GET"} AQAAAAAAAAA...
+ * </pre>
+ * The sketches are not part of the scraped metrics, as a label value that changes with every observation would
+ * create a new time series for every scrape.
+ */
+public class QuantileSketchFormat {
+  /**
+   * Content-type of the quantile sketch format.
+   */
+  public final static String CONTENT_TYPE = "text/plain; charset=utf-8";
+
+  /**
+   * Write the sketches of the given Summaries.
+   *
+   * @param nameFilter only the sketches of Summaries with an accepted name are written, may be {@code null}.
+   */
+  public static void write(Writer writer, Iterable<Summary> summaries, Predicate<String> nameFilter) throws IOException {
+    for (Summary summary : summaries) {
+      for (Summary.Sketch sketch : summary.getSketches()) {
+        if (nameFilter == null || nameFilter.test(sketch.name)) {
+          write(writer, sketch);
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a single sketch.
+   */
+  public static void write(Writer writer, Summary.Sketch sketch) throws IOException {
+    writer.write(sketch.name);
+    writer.write('{');
+    for (int i = 0; i < sketch.labelNames.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      writer.write(sketch.labelNames.get(i));
+      writer.write("=\"");
+      TextFormat.writeEscapedLabelValue(writer, sketch.labelValues.get(i));
+      writer.write('"');
+    }
+    writer.write("} ");
+    writer.write(sketch.sketch);
+    writer.write('\n');
+  }
+
+  /**
+   * Read sketches written by {@link #write(Writer, Summary.Sketch)}, for example to merge them with
+   * {@link QuantileSketchMerger#mergeByLabels(List, String...)}. Empty lines are ignored.
+   *
+   * @throws IllegalArgumentException if a line is invalid.
+   */
+  public static List<Summary.Sketch> parse(Reader reader) throws IOException {
+    BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    List<Summary.Sketch> result = new ArrayList<Summary.Sketch>();
+    String line;
+    while ((line = lines.readLine()) != null) {
+      if (!line.isEmpty()) {
+        result.add(parseLine(line));
+      }
+    }
+    return result;
+  }
+
+  private static Summary.Sketch parseLine(String line) {
+    int open = line.indexOf('{');
+    if (open <= 0) {
+      throw new IllegalArgumentException("Invalid sketch line: " + line);
+    }
+    String name = line.substring(0, open);
+    List<String> labelNames = new ArrayList<String>();
+    List<String> labelValues = new ArrayList<String>();
+    int i = open + 1;
+    while (i < line.length() && line.charAt(i) != '}') {
+      int eq = line.indexOf("=\"", i);
+      if (eq < 0) {
+        throw new IllegalArgumentException("Invalid sketch line: " + line);
+      }
+      labelNames.add(line.substring(i, eq));
+      StringBuilder value = new StringBuilder();
+      i = eq + 2;
+      for (; i < line.length() && line.charAt(i) != '"'; i++) {
+        char c = line.charAt(i);
+        if (c == '\\' && i + 1 < line.length()) {
+          c = line.charAt(++i);
+          value.append(c == 'n' ? '\n' : c);
+        } else {
+          value.append(c);
+        }
+      }
+      if (i == line.length()) {
+        throw new IllegalArgumentException("Invalid sketch line: " + line);
+      }
+      labelValues.add(value.toString());
+      i++; // closing quote
+      if (i < line.length() && line.charAt(i) == ',') {
+        i++;
+      }
+    }
+    if (i + 1 >= line.length() || line.charAt(i + 1) != ' ') {
+      throw new IllegalArgumentException("Invalid sketch line: " + line);
+    }
+    return new Summary.Sketch(name, labelNames, labelValues, line.substring(i + 2));
+  }
+}
@@ -0,0 +1,123 @@
+package io.prometheus.client.exporter.common;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import io.prometheus.client.QuantileEstimator;
+import io.prometheus.client.Summary;
+
+/**
+ * Merges the quantile sketches exported by Summaries with {@code exportSketch(true)}, for example to calculate
+ * quantiles across all instances of an application. The sketches of an instance can be read from the
+ * {@code /sketches} endpoint of its {@code HTTPServer} with {@link QuantileSketchFormat#parse(java.io.Reader)}.
+ * <p>
+ * Each sketch is merged as soon as it is added, so the merger needs the memory of a single sketch no matter how
+ * many sketches are added. The merged sketch can be encoded again, so that mergers can be chained.
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ *   QuantileSketchMerger merger = new QuantileSketchMerger();
+ *   for (String sketch : sketchesOfAllInstances) {
+ *     merger.add(sketch);
+ *   }
+ *   double p99 = merger.get(0.99);
+ * }
+ * </pre>
+ * This class is not thread-safe.
+ */
+public class QuantileSketchMerger {
+
+  private QuantileEstimator merged; // null until the first sketch is added
+  private int sketchCount = 0;
+
+  /**
+   * Merge an encoded sketch, see {@link Summary.Sketch#sketch}.
+   *
+   * @throws IllegalArgumentException if {@code sketch} is invalid, or if it cannot be merged with the
+   *         sketches added before, because the sketches are of a different kind or configuration.
+   */
+  public QuantileSketchMerger add(String sketch) {
+    QuantileEstimator estimator = QuantileEstimator.decode(sketch);
+    if (merged == null) {
+      merged = estimator;
+    } else if (merged.getClass() != estimator.getClass()) {
+      throw new IllegalArgumentException("Cannot merge sketches of different kinds.");
+    } else {
+      merged.merge(estimator);
+    }
+    sketchCount++;
+    return this;
+  }
+
+  /**
+   * Merge the sketch of a Summary child.
+   *
+   * @throws IllegalArgumentException see {@link #add(String)}.
+   */
+  public QuantileSketchMerger add(Summary.Sketch sketch) {
+    return add(sketch.sketch);
+  }
+
+  /**
+   * The estimated value at quantile {@code q} of all observations of the merged sketches,
+   * or {@code NaN} if there were no observations.
+   */
+  public double get(double q) {
+    return merged == null ? Double.NaN : merged.get(q);
+  }
+
+  /**
+   * The number of sketches that were merged.
+   */
+  public int getSketchCount() {
+    return sketchCount;
+  }
+
+  /**
+   * The encoded merged sketch, which can be added to another merger.
+   *
+   * @throws IllegalStateException if no sketch was added.
+   */
+  public String encode() {
+    if (merged == null) {
+      throw new IllegalStateException("No sketch was added.");
+    }
+    return merged.encode();
+  }
+
+  /**
+   * Merge the sketches that have the same name and labels, ignoring the labels in {@code aggregatedLabelNames}.
+   * For example, with {@code "instance"} as an aggregated label, the result has a merger per label set across
+   * all instances.
+   *
+   * @return the mergers by their labels, in the order of the first sketch with these labels. The name of the
+   *         sketches is in the {@code __name__} label.
+   */
+  public static Map<Map<String, String>, QuantileSketchMerger> mergeByLabels(
+      List<Summary.Sketch> sketches, String... aggregatedLabelNames) {
+    Set<String> ignored = new HashSet<String>(Arrays.asList(aggregatedLabelNames));
+    Map<Map<String, String>, QuantileSketchMerger> result = new LinkedHashMap<Map<String, String>, QuantileSketchMerger>();
+    for (Summary.Sketch sketch : sketches) {
+      Map<String, String> labels = new TreeMap<String, String>();
+      labels.put("__name__", sketch.name);
+      for (int i = 0; i < sketch.labelNames.size(); i++) {
+        if (!ignored.contains(sketch.labelNames.get(i))) {
+          labels.put(sketch.labelNames.get(i), sketch.labelValues.get(i));
+        }
+      }
+      QuantileSketchMerger merger = result.get(labels);
+      if (merger == null) {
+        merger = new QuantileSketchMerger();
+        result.put(labels, merger);
+      }
+      merger.add(sketch);
+    }
+    return result;
+  }
+}
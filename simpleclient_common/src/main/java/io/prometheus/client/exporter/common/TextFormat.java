@@ -3,13 +3,16 @@ package io.prometheus.client.exporter.common;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.exemplars.Exemplar;
 
 public class TextFormat {
   /**
@@ -60,80 +63,226 @@ public class TextFormat {
     throw new IllegalArgumentException("Unknown contentType " + contentType);
   }
 
+  /**
+   * Write out the metrics of the {@code registry} in a format per the contentType.
+   * <p>
+   * Unlike {@link #writeFormat(String, Writer, Enumeration)} this uses
+   * {@link CollectorRegistry#collect(Collector.SampleVisitor, Predicate)}, so that samples are written
+   * without creating {@link Collector.MetricFamilySamples} first.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be written.
+   */
+  public static void writeFormat(String contentType, Writer writer, CollectorRegistry registry, Predicate<String> sampleNameFilter) throws IOException {
+    if (CONTENT_TYPE_004.equals(contentType)) {
+        write004(writer, registry, sampleNameFilter);
+        return;
+    }
+    if (CONTENT_TYPE_OPENMETRICS_100.equals(contentType)) {
+        writeOpenMetrics100(writer, registry, sampleNameFilter);
+        return;
+    }
+    throw new IllegalArgumentException("Unknown contentType " + contentType);
+  }
+
   /**
    * Write out the text version 0.0.4 of the given MetricFamilySamples.
    */
   public static void write004(Writer writer, Enumeration<Collector.MetricFamilySamples> mfs) throws IOException {
-    Map<String, Collector.MetricFamilySamples> omFamilies = new TreeMap<String, Collector.MetricFamilySamples>();
+    Text004Writer visitor = new Text004Writer(writer);
+    while(mfs.hasMoreElements()) {
+      mfs.nextElement().visit(visitor);
+    }
+    visitor.finish();
+  }
+
+  /**
+   * Write out the text version 0.0.4 of the metrics of the {@code registry}.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be written.
+   */
+  public static void write004(Writer writer, CollectorRegistry registry, Predicate<String> sampleNameFilter) throws IOException {
+    Text004Writer visitor = new Text004Writer(writer);
+    registry.collect(visitor, sampleNameFilter);
+    visitor.finish();
+  }
+
+  private static class Text004Writer implements Collector.SampleVisitor {
+
+    private final Writer writer;
+    private final Map<String, TrailingFamily> omFamilies = new TreeMap<String, TrailingFamily>();
+    private String help;
+    private String createdName;
+    private String gcountName;
+    private String gsumName;
+
+    private Text004Writer(Writer writer) {
+      this.writer = writer;
+    }
+
     /* See http://prometheus.io/docs/instrumenting/exposition_formats/
      * for the output format specification. */
-    while(mfs.hasMoreElements()) {
-      Collector.MetricFamilySamples metricFamilySamples = mfs.nextElement();
-      String name = metricFamilySamples.name;
+    @Override
+    public void visitFamily(String name, String unit, Collector.Type type, String help) throws IOException {
       writer.write("# HELP ");
       writer.write(name);
-      if (metricFamilySamples.type == Collector.Type.COUNTER) {
+      if (type == Collector.Type.COUNTER) {
         writer.write("_total");
       }
-      if (metricFamilySamples.type == Collector.Type.INFO) {
+      if (type == Collector.Type.INFO) {
         writer.write("_info");
       }
       writer.write(' ');
-      writeEscapedHelp(writer, metricFamilySamples.help);
+      writeEscapedHelp(writer, help);
       writer.write('\n');
 
       writer.write("# TYPE ");
       writer.write(name);
-      if (metricFamilySamples.type == Collector.Type.COUNTER) {
+      if (type == Collector.Type.COUNTER) {
         writer.write("_total");
       }
-      if (metricFamilySamples.type == Collector.Type.INFO) {
+      if (type == Collector.Type.INFO) {
         writer.write("_info");
       }
       writer.write(' ');
-      writer.write(typeString(metricFamilySamples.type));
+      writer.write(typeString(type));
       writer.write('\n');
 
-      String createdName = name + "_created";
-      String gcountName = name + "_gcount";
-      String gsumName = name + "_gsum";
-      for (Collector.MetricFamilySamples.Sample sample: metricFamilySamples.samples) {
-        /* OpenMetrics specific sample, put in a gauge at the end. */
-        if (sample.name.equals(createdName)
-            || sample.name.equals(gcountName)
-            || sample.name.equals(gsumName)) {
-          Collector.MetricFamilySamples omFamily = omFamilies.get(sample.name);
-          if (omFamily == null) {
-            omFamily = new Collector.MetricFamilySamples(sample.name, Collector.Type.GAUGE, metricFamilySamples.help, new ArrayList<Collector.MetricFamilySamples.Sample>());
-            omFamilies.put(sample.name, omFamily);
-          }
-          omFamily.samples.add(sample);
-          continue;
+      this.help = help;
+      createdName = name + "_created";
+      gcountName = name + "_gcount";
+      gsumName = name + "_gsum";
+    }
+
+    @Override
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue,
+                            double value, Exemplar exemplar, Long timestampMs) throws IOException {
+      /* OpenMetrics specific sample, put in a gauge at the end. */
+      if (name.equals(createdName)
+          || name.equals(gcountName)
+          || name.equals(gsumName)) {
+        TrailingFamily omFamily = omFamilies.get(name);
+        if (omFamily == null) {
+          omFamily = new TrailingFamily(help);
+          omFamilies.put(name, omFamily);
+        }
+        omFamily.add(labelNames, labelValues, extraLabelName, extraLabelValue, value, timestampMs);
+        return;
+      }
+      writer.write(name);
+      if (labelNames.size() > 0 || extraLabelName != null) {
+        writer.write('{');
+        for (int i = 0; i < labelNames.size(); ++i) {
+          writer.write(labelNames.get(i));
+          writer.write("=\"");
+          writeEscapedLabelValue(writer, labelValues.get(i));
+          writer.write("\",");
+        }
+        if (extraLabelName != null) {
+          writer.write(extraLabelName);
+          writer.write("=\"");
+          writeEscapedLabelValue(writer, extraLabelValue);
+          writer.write("\",");
         }
-        writer.write(sample.name);
-        if (sample.labelNames.size() > 0) {
+        writer.write('}');
+      }
+      writer.write(' ');
+      writer.write(Collector.doubleToGoString(value));
+      if (timestampMs != null){
+        writer.write(' ');
+        writer.write(timestampMs.toString());
+      }
+      writer.write('\n');
+    }
+
+    void finish() throws IOException {
+      // Write out any OM-specific samples.
+      for (Map.Entry<String, TrailingFamily> omFamily : omFamilies.entrySet()) {
+        omFamily.getValue().write(writer, omFamily.getKey());
+      }
+    }
+  }
+
+  /**
+   * Samples of an OpenMetrics specific family like {@code _created}, which the text version 0.0.4 writes
+   * as a gauge after all other families.
+   * <p>
+   * The label Lists passed to {@code visitSample()} are only valid during the call, so the label names and values
+   * are copied into a flat array rather than creating a {@link Collector.MetricFamilySamples.Sample} per child.
+   */
+  private static final class TrailingFamily {
+
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private final String help;
+    private String[] labels = new String[16]; // name, value, name, value, ...
+    private int labelsSize = 0;
+    private int[] labelsEnd = new int[8]; // end of the labels of each sample
+    private double[] values = new double[8];
+    private long[] timestamps = new long[8];
+    private int size = 0;
+
+    private TrailingFamily(String help) {
+      this.help = help;
+    }
+
+    private void add(List<String> labelNames, List<String> labelValues, String extraLabelName,
+                     String extraLabelValue, double value, Long timestampMs) {
+      int n = 2 * labelNames.size() + (extraLabelName != null ? 2 : 0);
+      if (labelsSize + n > labels.length) {
+        labels = Arrays.copyOf(labels, Math.max(2 * labels.length, labelsSize + n));
+      }
+      for (int i = 0; i < labelNames.size(); i++) {
+        labels[labelsSize++] = labelNames.get(i);
+        labels[labelsSize++] = labelValues.get(i);
+      }
+      if (extraLabelName != null) {
+        labels[labelsSize++] = extraLabelName;
+        labels[labelsSize++] = extraLabelValue;
+      }
+      if (size == values.length) {
+        labelsEnd = Arrays.copyOf(labelsEnd, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
+        timestamps = Arrays.copyOf(timestamps, 2 * size);
+      }
+      labelsEnd[size] = labelsSize;
+      values[size] = value;
+      timestamps[size] = timestampMs == null ? NO_TIMESTAMP : timestampMs;
+      size++;
+    }
+
+    private void write(Writer writer, String name) throws IOException {
+      writer.write("# HELP ");
+      writer.write(name);
+      writer.write(' ');
+      writeEscapedHelp(writer, help);
+      writer.write('\n');
+      writer.write("# TYPE ");
+      writer.write(name);
+      writer.write(" gauge\n");
+      int start = 0;
+      for (int i = 0; i < size; i++) {
+        writer.write(name);
+        if (labelsEnd[i] > start) {
           writer.write('{');
-          for (int i = 0; i < sample.labelNames.size(); ++i) {
-            writer.write(sample.labelNames.get(i));
+          for (int j = start; j < labelsEnd[i]; j += 2) {
+            writer.write(labels[j]);
             writer.write("=\"");
-            writeEscapedLabelValue(writer, sample.labelValues.get(i));
+            writeEscapedLabelValue(writer, labels[j + 1]);
             writer.write("\",");
           }
           writer.write('}');
         }
         writer.write(' ');
-        writer.write(Collector.doubleToGoString(sample.value));
-        if (sample.timestampMs != null){
+        writer.write(Collector.doubleToGoString(values[i]));
+        if (timestamps[i] != NO_TIMESTAMP) {
           writer.write(' ');
-          writer.write(sample.timestampMs.toString());
+          writer.write(Long.toString(timestamps[i]));
         }
         writer.write('\n');
+        start = labelsEnd[i];
       }
     }
-    // Write out any OM-specific samples.
-    if (!omFamilies.isEmpty()) {
-      write004(writer, Collections.enumeration(omFamilies.values()));
-    }
   }
 
   private static void writeEscapedHelp(Writer writer, String s) throws IOException {
@@ -152,7 +301,7 @@ public class TextFormat {
     }
   }
 
-  private static void writeEscapedLabelValue(Writer writer, String s) throws IOException {
+  static void writeEscapedLabelValue(Writer writer, String s) throws IOException {
     for (int i = 0; i < s.length(); i++) {
       char c = s.charAt(i);
       switch (c) {
@@ -171,7 +320,7 @@ public class TextFormat {
     }
   }
 
-  private static String typeString(Collector.Type t) {
+  static String typeString(Collector.Type t) {
     switch (t) {
       case GAUGE:
         return "gauge";
@@ -198,73 +347,112 @@ public class TextFormat {
    * @since 0.10.0
    */
   public static void writeOpenMetrics100(Writer writer, Enumeration<Collector.MetricFamilySamples> mfs) throws IOException {
+    OpenMetrics100Writer visitor = new OpenMetrics100Writer(writer);
     while(mfs.hasMoreElements()) {
-      Collector.MetricFamilySamples metricFamilySamples = mfs.nextElement();
-      String name = metricFamilySamples.name;
+      mfs.nextElement().visit(visitor);
+    }
+    visitor.finish();
+  }
+
+  /**
+   * Write out the OpenMetrics text version 1.0.0 of the metrics of the {@code registry}.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be written.
+   */
+  public static void writeOpenMetrics100(Writer writer, CollectorRegistry registry, Predicate<String> sampleNameFilter) throws IOException {
+    OpenMetrics100Writer visitor = new OpenMetrics100Writer(writer);
+    registry.collect(visitor, sampleNameFilter);
+    visitor.finish();
+  }
+
+  private static class OpenMetrics100Writer implements Collector.SampleVisitor {
 
+    private final Writer writer;
+
+    private OpenMetrics100Writer(Writer writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void visitFamily(String name, String unit, Collector.Type type, String help) throws IOException {
       writer.write("# TYPE ");
       writer.write(name);
       writer.write(' ');
-      writer.write(omTypeString(metricFamilySamples.type));
+      writer.write(omTypeString(type));
       writer.write('\n');
 
-      if (!metricFamilySamples.unit.isEmpty()) {
+      if (!unit.isEmpty()) {
         writer.write("# UNIT ");
         writer.write(name);
         writer.write(' ');
-        writer.write(metricFamilySamples.unit);
+        writer.write(unit);
         writer.write('\n');
       }
 
       writer.write("# HELP ");
       writer.write(name);
       writer.write(' ');
-      writeEscapedLabelValue(writer, metricFamilySamples.help);
+      writeEscapedLabelValue(writer, help);
       writer.write('\n');
- 
-      for (Collector.MetricFamilySamples.Sample sample: metricFamilySamples.samples) {
-        writer.write(sample.name);
-        if (sample.labelNames.size() > 0) {
-          writer.write('{');
-          for (int i = 0; i < sample.labelNames.size(); ++i) {
-            if (i > 0) {
-              writer.write(",");
-            }
-            writer.write(sample.labelNames.get(i));
-            writer.write("=\"");
-            writeEscapedLabelValue(writer, sample.labelValues.get(i));
-            writer.write("\"");
+    }
+
+    @Override
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue,
+                            double value, Exemplar exemplar, Long timestampMs) throws IOException {
+      writer.write(name);
+      if (labelNames.size() > 0 || extraLabelName != null) {
+        writer.write('{');
+        for (int i = 0; i < labelNames.size(); ++i) {
+          if (i > 0) {
+            writer.write(",");
           }
-          writer.write('}');
-        }
-        writer.write(' ');
-        writer.write(Collector.doubleToGoString(sample.value));
-        if (sample.timestampMs != null){
-          writer.write(' ');
-          omWriteTimestamp(writer, sample.timestampMs);
+          writer.write(labelNames.get(i));
+          writer.write("=\"");
+          writeEscapedLabelValue(writer, labelValues.get(i));
+          writer.write("\"");
         }
-        if (sample.exemplar != null) {
-          writer.write(" # {");
-          for (int i=0; i<sample.exemplar.getNumberOfLabels(); i++) {
-            if (i > 0) {
-              writer.write(",");
-            }
-            writer.write(sample.exemplar.getLabelName(i));
-            writer.write("=\"");
-            writeEscapedLabelValue(writer, sample.exemplar.getLabelValue(i));
-            writer.write("\"");
+        if (extraLabelName != null) {
+          if (labelNames.size() > 0) {
+            writer.write(",");
           }
-          writer.write("} ");
-          writer.write(Collector.doubleToGoString(sample.exemplar.getValue()));
-          if (sample.exemplar.getTimestampMs() != null) {
-            writer.write(' ');
-            omWriteTimestamp(writer, sample.exemplar.getTimestampMs());
+          writer.write(extraLabelName);
+          writer.write("=\"");
+          writeEscapedLabelValue(writer, extraLabelValue);
+          writer.write("\"");
+        }
+        writer.write('}');
+      }
+      writer.write(' ');
+      writer.write(Collector.doubleToGoString(value));
+      if (timestampMs != null){
+        writer.write(' ');
+        omWriteTimestamp(writer, timestampMs);
+      }
+      if (exemplar != null) {
+        writer.write(" # {");
+        for (int i=0; i<exemplar.getNumberOfLabels(); i++) {
+          if (i > 0) {
+            writer.write(",");
           }
+          writer.write(exemplar.getLabelName(i));
+          writer.write("=\"");
+          writeEscapedLabelValue(writer, exemplar.getLabelValue(i));
+          writer.write("\"");
+        }
+        writer.write("} ");
+        writer.write(Collector.doubleToGoString(exemplar.getValue()));
+        if (exemplar.getTimestampMs() != null) {
+          writer.write(' ');
+          omWriteTimestamp(writer, exemplar.getTimestampMs());
         }
-        writer.write('\n');
       }
+      writer.write('\n');
+    }
+
+    void finish() throws IOException {
+      writer.write("# EOF\n");
     }
-    writer.write("# EOF\n");
   }
 
   static void omWriteTimestamp(Writer writer, long timestampMs) throws IOException {
@@ -280,7 +468,7 @@ public class TextFormat {
     writer.write(Long.toString(timestampMs % 1000));
   }
 
-  private static String omTypeString(Collector.Type t) {
+  static String omTypeString(Collector.Type t) {
     switch (t) {
       case GAUGE:
         return "gauge";
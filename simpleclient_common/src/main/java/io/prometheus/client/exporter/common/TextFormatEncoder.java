@@ -0,0 +1,682 @@
+package io.prometheus.client.exporter.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.exemplars.Exemplar;
+
+/**
+ * Writes the text formats supported by {@link TextFormat} as UTF-8 directly into a reusable byte array.
+ * The {@link ProtobufFormat} is supported as well, so that exporters can use a single buffer for all formats.
+ * <p>
+ * The output is the same as with {@link TextFormat#writeFormat(String, java.io.Writer, CollectorRegistry, Predicate)},
+ * but this avoids the overhead of a {@link java.io.Writer} and its charset encoder:
+ * <ul>
+ *   <li>Metric names and the escaped labels of each child are encoded once and cached. The cache is keyed by the
+ *       identity of the label value list, which is the same for all scrapes as long as the child exists.
+ *       Entries that were not used for a few scrapes are removed.</li>
+ *   <li>Integer sample values, which are the common case for counters and bucket counts,
+ *       are formatted without creating a String.</li>
+ *   <li>The byte array grows to the size of the largest response and is reused for the next scrape.</li>
+ * </ul>
+ * <p>
+ * This class is not thread-safe. Use one instance per thread, for example in a {@link ThreadLocal}.
+ * <p>
+ * Example:
+ * <pre>
+ * {@code
+ *   encoder.reset();
+ *   encoder.write(TextFormat.CONTENT_TYPE_004, registry, null);
+ *   encoder.writeTo(outputStream);
+ * }
+ * </pre>
+ */
+public class TextFormatEncoder {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Cache entries that haven't been used for this many scrapes are removed.
+   */
+  private static final int MAX_UNUSED_SCRAPES = 3;
+
+  /**
+   * When streaming to an OutputStream, the buffer is flushed when it has more than this many bytes.
+   */
+  private static final int FLUSH_THRESHOLD = 32 * 1024;
+
+  private byte[] buffer;
+  private int size;
+  private int scrape;
+  private OutputStream sink;
+
+  private final Map<String, byte[]> names = new HashMap<String, byte[]>();
+  private final OutputStream outputStream = new OutputStream() {
+    @Override
+    public void write(int b) {
+      writeByte((char) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensureCapacity(len);
+      System.arraycopy(b, off, buffer, size, len);
+      size += len;
+      maybeFlush();
+    }
+  };
+  private final Text004Encoder text004 = new Text004Encoder();
+  private final OpenMetrics100Encoder openMetrics100 = new OpenMetrics100Encoder();
+
+  public TextFormatEncoder() {
+    this(64 * 1024);
+  }
+
+  /**
+   * @param initialCapacity initial size of the byte array, will grow if needed.
+   */
+  public TextFormatEncoder(int initialCapacity) {
+    buffer = new byte[Math.max(initialCapacity, 16)];
+  }
+
+  /**
+   * Append the metrics of the {@code registry} in the format per the {@code contentType}.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be written.
+   */
+  public void write(String contentType, CollectorRegistry registry, Predicate<String> sampleNameFilter) throws IOException {
+    if (ProtobufFormat.CONTENT_TYPE_PROTOBUF.equals(contentType)) {
+      ProtobufFormat.write(outputStream, registry, sampleNameFilter);
+      return;
+    }
+    LabelsEncoder encoder = encoderFor(contentType);
+    scrape++;
+    registry.collect(encoder, sampleNameFilter);
+    encoder.finish();
+  }
+
+  /**
+   * Append the given MetricFamilySamples in the format per the {@code contentType}.
+   */
+  public void write(String contentType, Enumeration<Collector.MetricFamilySamples> mfs) throws IOException {
+    if (ProtobufFormat.CONTENT_TYPE_PROTOBUF.equals(contentType)) {
+      ProtobufFormat.write(outputStream, mfs);
+      return;
+    }
+    LabelsEncoder encoder = encoderFor(contentType);
+    scrape++;
+    while (mfs.hasMoreElements()) {
+      mfs.nextElement().visit(encoder);
+    }
+    encoder.finish();
+  }
+
+  /**
+   * Write the metrics of the {@code registry} to {@code out} while they are rendered.
+   * <p>
+   * The byte array is used as a buffer and flushed to {@code out} every few kilobytes,
+   * so that {@code out} (like a compressing stream) can work while the next metrics are rendered.
+   * The content of the byte array is discarded.
+   *
+   * @param sampleNameFilter may be {@code null}, indicating that all metrics should be written.
+   */
+  public void write(String contentType, CollectorRegistry registry, Predicate<String> sampleNameFilter, OutputStream out) throws IOException {
+    reset();
+    sink = out;
+    try {
+      write(contentType, registry, sampleNameFilter);
+      out.write(buffer, 0, size);
+    } finally {
+      sink = null;
+      reset();
+    }
+  }
+
+  /**
+   * If streaming, write the buffer to the sink. Must only be called between samples, as a sample's encoded labels
+   * are copied from the buffer into the labels cache, and trailing 0.0.4 samples are moved out of the buffer,
+   * after they were written.
+   */
+  private void maybeFlush() throws IOException {
+    if (sink != null && size >= FLUSH_THRESHOLD) {
+      sink.write(buffer, 0, size);
+      size = 0;
+    }
+  }
+
+  private LabelsEncoder encoderFor(String contentType) {
+    if (TextFormat.CONTENT_TYPE_004.equals(contentType)) {
+      return text004;
+    }
+    if (TextFormat.CONTENT_TYPE_OPENMETRICS_100.equals(contentType)) {
+      return openMetrics100;
+    }
+    throw new IllegalArgumentException("Unknown contentType " + contentType);
+  }
+
+  /**
+   * Discard the content, but keep the byte array and the caches.
+   */
+  public void reset() {
+    size = 0;
+  }
+
+  /**
+   * Number of bytes written since the last {@link #reset()}.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The internal byte array. Only the first {@link #size()} bytes are valid.
+   * The array is re-used after {@link #reset()}.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buffer, 0, size);
+  }
+
+  // Low level encoding
+
+  private void ensureCapacity(int additional) {
+    if (size + additional > buffer.length) {
+      byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + additional)];
+      System.arraycopy(buffer, 0, newBuffer, 0, size);
+      buffer = newBuffer;
+    }
+  }
+
+  private void writeByte(char c) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) c;
+  }
+
+  private void writeBytes(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+  }
+
+  /**
+   * Only for Strings that are known to be ASCII, like numbers and constants.
+   */
+  private void writeAscii(String s) {
+    int length = s.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      buffer[size++] = (byte) s.charAt(i);
+    }
+  }
+
+  private void writeName(String name) {
+    byte[] bytes = names.get(name);
+    if (bytes == null) {
+      bytes = name.getBytes(UTF_8);
+      if (names.size() > 100000) {
+        names.clear(); // Prevent unbounded growth if names are generated dynamically.
+      }
+      names.put(name, bytes);
+    }
+    writeBytes(bytes);
+  }
+
+  /**
+   * Write {@code s} as UTF-8. Backslash and newline are escaped. Double quotes are escaped if
+   * {@code escapeDoubleQuotes} is {@code true}.
+   */
+  private void writeEscaped(String s, boolean escapeDoubleQuotes) {
+    int length = s.length();
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        if (c == '\\') {
+          ensureCapacity(length - i + 1);
+          buffer[size++] = '\\';
+          buffer[size++] = '\\';
+        } else if (c == '\n') {
+          ensureCapacity(length - i + 1);
+          buffer[size++] = '\\';
+          buffer[size++] = 'n';
+        } else if (c == '"' && escapeDoubleQuotes) {
+          ensureCapacity(length - i + 1);
+          buffer[size++] = '\\';
+          buffer[size++] = '"';
+        } else {
+          buffer[size++] = (byte) c;
+        }
+      } else {
+        // Up to 3 bytes for this char (4 for a surrogate pair, which is 2 chars), plus 1 byte for each remaining char.
+        ensureCapacity(length - i + 3);
+        if (c < 0x800) {
+          buffer[size++] = (byte) (0xC0 | (c >> 6));
+          buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, s.charAt(++i));
+          buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+          buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+          buffer[size++] = '?'; // unpaired surrogate, same as the JDK's UTF-8 encoder
+        } else {
+          buffer[size++] = (byte) (0xE0 | (c >> 12));
+          buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+  }
+
+  /**
+   * Same output as {@link Collector#doubleToGoString(double)}.
+   */
+  void writeDouble(double d) {
+    // Double.toString() uses plain notation for integers with absolute value < 10^7.
+    if (d > -1e7 && d < 1e7) {
+      long l = (long) d;
+      if (l == d && (l != 0 || Double.doubleToRawLongBits(d) == 0)) { // -0.0 is "-0.0"
+        writeLong(l);
+        ensureCapacity(2);
+        buffer[size++] = '.';
+        buffer[size++] = '0';
+        return;
+      }
+    }
+    writeAscii(Collector.doubleToGoString(d));
+  }
+
+  void writeLong(long l) {
+    if (l == Long.MIN_VALUE) {
+      writeAscii(Long.toString(l));
+      return;
+    }
+    ensureCapacity(20);
+    if (l < 0) {
+      buffer[size++] = '-';
+      l = -l;
+    }
+    int digits = 1;
+    for (long x = l; x >= 10; x /= 10) {
+      digits++;
+    }
+    int pos = size + digits;
+    size = pos;
+    do {
+      buffer[--pos] = (byte) ('0' + (l % 10));
+      l /= 10;
+    } while (l > 0);
+  }
+
+  private void writeOpenMetricsTimestamp(long timestampMs) {
+    // Same as TextFormat.omWriteTimestamp()
+    writeLong(timestampMs / 1000L);
+    writeByte('.');
+    long ms = timestampMs % 1000;
+    if (ms < 100) {
+      writeByte('0');
+    }
+    if (ms < 10) {
+      writeByte('0');
+    }
+    writeLong(timestampMs % 1000);
+  }
+
+  /**
+   * Encoded labels of a child, without the surrounding braces.
+   */
+  private static class CachedLabels {
+    final List<String> labelNames;
+    final String[] labelValues;
+    final byte[] bytes;
+    int lastUsed;
+
+    CachedLabels(List<String> labelNames, List<String> labelValues, byte[] bytes) {
+      this.labelNames = labelNames;
+      this.labelValues = labelValues.toArray(new String[0]);
+      this.bytes = bytes;
+    }
+
+    /**
+     * Custom collectors may modify a label value list and pass it again, so compare the String references.
+     */
+    boolean matches(List<String> labelNames, List<String> labelValues) {
+      if (this.labelNames != labelNames || this.labelValues.length != labelValues.size()) {
+        return false;
+      }
+      for (int i = 0; i < this.labelValues.length; i++) {
+        if (this.labelValues[i] != labelValues.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Common base for the text formats. The formats differ in how labels are separated,
+   * so each format has its own cache.
+   */
+  private abstract class LabelsEncoder implements Collector.SampleVisitor {
+
+    private final Map<List<String>, CachedLabels> labelsCache = new IdentityHashMap<List<String>, CachedLabels>();
+    private int usedInThisScrape;
+
+    /**
+     * Write the labels without braces.
+     */
+    abstract void encodeLabels(List<String> labelNames, List<String> labelValues);
+
+    /**
+     * Write the extra label. {@code hasLabels} is true if other labels were written before.
+     */
+    abstract void encodeExtraLabel(boolean hasLabels, String name, String value);
+
+    void writeLabels(List<String> labelNames, List<String> labelValues, String extraLabelName, String extraLabelValue) {
+      boolean hasLabels = labelNames.size() > 0;
+      if (!hasLabels && extraLabelName == null) {
+        return;
+      }
+      writeByte('{');
+      if (hasLabels) {
+        CachedLabels cached = labelsCache.get(labelValues);
+        if (cached == null || !cached.matches(labelNames, labelValues)) {
+          int start = size;
+          encodeLabels(labelNames, labelValues);
+          byte[] bytes = new byte[size - start];
+          System.arraycopy(buffer, start, bytes, 0, bytes.length);
+          cached = new CachedLabels(labelNames, labelValues, bytes);
+          labelsCache.put(labelValues, cached);
+        } else {
+          writeBytes(cached.bytes);
+        }
+        if (cached.lastUsed != scrape) {
+          cached.lastUsed = scrape;
+          usedInThisScrape++;
+        }
+      }
+      if (extraLabelName != null) {
+        encodeExtraLabel(hasLabels, extraLabelName, extraLabelValue);
+      }
+      writeByte('}');
+    }
+
+    void finish() throws IOException {
+      // Remove children that no longer exist, and label lists that are created for each scrape
+      // by collectors that don't support visitors. The check is cheap, the removal is amortized.
+      if (labelsCache.size() > 2 * usedInThisScrape + 1024) {
+        for (Iterator<CachedLabels> i = labelsCache.values().iterator(); i.hasNext(); ) {
+          if (scrape - i.next().lastUsed >= MAX_UNUSED_SCRAPES) {
+            i.remove();
+          }
+        }
+      }
+      usedInThisScrape = 0;
+    }
+  }
+
+  /**
+   * Encoded {@code _created}, {@code _gcount} or {@code _gsum} samples, which the 0.0.4 format has as a separate
+   * gauge after all other metrics. The byte array is reused for the next scrape.
+   */
+  private static class TrailingFamily {
+    String help;
+    byte[] bytes = new byte[256];
+    int size;
+    int lastUsed;
+
+    void append(byte[] b, int off, int len) {
+      if (size + len > bytes.length) {
+        byte[] newBytes = new byte[Math.max(bytes.length * 2, size + len)];
+        System.arraycopy(bytes, 0, newBytes, 0, size);
+        bytes = newBytes;
+      }
+      System.arraycopy(b, off, bytes, size, len);
+      size += len;
+    }
+  }
+
+  private class Text004Encoder extends LabelsEncoder {
+
+    // By name, sorted like the families in TextFormat.write004().
+    private final Map<String, TrailingFamily> trailingFamilies = new TreeMap<String, TrailingFamily>();
+    private String help;
+    private String familyName;
+
+    @Override
+    public void visitFamily(String name, String unit, Collector.Type type, String help) throws IOException {
+      maybeFlush();
+      writeAscii("# HELP ");
+      writeName(name);
+      if (type == Collector.Type.COUNTER) {
+        writeAscii("_total");
+      }
+      if (type == Collector.Type.INFO) {
+        writeAscii("_info");
+      }
+      writeByte(' ');
+      writeEscaped(help, false);
+      writeByte('\n');
+
+      writeAscii("# TYPE ");
+      writeName(name);
+      if (type == Collector.Type.COUNTER) {
+        writeAscii("_total");
+      }
+      if (type == Collector.Type.INFO) {
+        writeAscii("_info");
+      }
+      writeByte(' ');
+      writeAscii(TextFormat.typeString(type));
+      writeByte('\n');
+
+      this.help = help;
+      familyName = name;
+    }
+
+    /**
+     * Whether {@code name} is {@code <familyName>_created}, {@code <familyName>_gcount} or {@code <familyName>_gsum}.
+     */
+    private boolean isTrailing(String name) {
+      return hasSuffix(name, "_created") || hasSuffix(name, "_gcount") || hasSuffix(name, "_gsum");
+    }
+
+    private boolean hasSuffix(String name, String suffix) {
+      return name.length() == familyName.length() + suffix.length()
+          && name.startsWith(familyName) && name.endsWith(suffix);
+    }
+
+    @Override
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue,
+                            double value, Exemplar exemplar, Long timestampMs) throws IOException {
+      maybeFlush();
+      if (familyName != null && isTrailing(name)) {
+        // OpenMetrics specific sample, put in a gauge at the end. Encode it like any other sample, and move it.
+        TrailingFamily family = trailingFamilies.get(name);
+        if (family == null) {
+          family = new TrailingFamily();
+          trailingFamilies.put(name, family);
+        }
+        if (family.lastUsed != scrape) {
+          family.lastUsed = scrape;
+          family.help = help;
+          family.size = 0;
+        }
+        int start = size;
+        writeSample(name, labelNames, labelValues, extraLabelName, extraLabelValue, value, timestampMs);
+        family.append(buffer, start, size - start);
+        size = start;
+        return;
+      }
+      writeSample(name, labelNames, labelValues, extraLabelName, extraLabelValue, value, timestampMs);
+    }
+
+    private void writeSample(String name, List<String> labelNames, List<String> labelValues,
+                             String extraLabelName, String extraLabelValue, double value, Long timestampMs) {
+      writeName(name);
+      writeLabels(labelNames, labelValues, extraLabelName, extraLabelValue);
+      writeByte(' ');
+      writeDouble(value);
+      if (timestampMs != null) {
+        writeByte(' ');
+        writeLong(timestampMs);
+      }
+      writeByte('\n');
+    }
+
+    @Override
+    void encodeLabels(List<String> labelNames, List<String> labelValues) {
+      for (int i = 0; i < labelNames.size(); ++i) {
+        writeName(labelNames.get(i));
+        writeAscii("=\"");
+        writeEscaped(labelValues.get(i), true);
+        writeAscii("\",");
+      }
+    }
+
+    @Override
+    void encodeExtraLabel(boolean hasLabels, String name, String value) {
+      writeName(name);
+      writeAscii("=\"");
+      writeEscaped(value, true);
+      writeAscii("\",");
+    }
+
+    @Override
+    void finish() throws IOException {
+      // Write out any OM-specific samples.
+      for (Iterator<Map.Entry<String, TrailingFamily>> i = trailingFamilies.entrySet().iterator(); i.hasNext(); ) {
+        Map.Entry<String, TrailingFamily> entry = i.next();
+        TrailingFamily family = entry.getValue();
+        if (family.lastUsed != scrape) {
+          if (scrape - family.lastUsed >= MAX_UNUSED_SCRAPES) {
+            i.remove();
+          }
+          continue;
+        }
+        maybeFlush();
+        writeAscii("# HELP ");
+        writeName(entry.getKey());
+        writeByte(' ');
+        writeEscaped(family.help, false);
+        writeByte('\n');
+        writeAscii("# TYPE ");
+        writeName(entry.getKey());
+        writeAscii(" gauge\n");
+        ensureCapacity(family.size);
+        System.arraycopy(family.bytes, 0, buffer, size, family.size);
+        size += family.size;
+        family.help = null;
+      }
+      familyName = null;
+      super.finish();
+    }
+  }
+
+  private class OpenMetrics100Encoder extends LabelsEncoder {
+
+    @Override
+    public void visitFamily(String name, String unit, Collector.Type type, String help) throws IOException {
+      maybeFlush();
+      writeAscii("# TYPE ");
+      writeName(name);
+      writeByte(' ');
+      writeAscii(TextFormat.omTypeString(type));
+      writeByte('\n');
+
+      if (!unit.isEmpty()) {
+        writeAscii("# UNIT ");
+        writeName(name);
+        writeByte(' ');
+        writeName(unit);
+        writeByte('\n');
+      }
+
+      writeAscii("# HELP ");
+      writeName(name);
+      writeByte(' ');
+      writeEscaped(help, true);
+      writeByte('\n');
+    }
+
+    @Override
+    public void visitSample(String name, List<String> labelNames, List<String> labelValues,
+                            String extraLabelName, String extraLabelValue,
+                            double value, Exemplar exemplar, Long timestampMs) throws IOException {
+      maybeFlush();
+      writeName(name);
+      writeLabels(labelNames, labelValues, extraLabelName, extraLabelValue);
+      writeByte(' ');
+      writeDouble(value);
+      if (timestampMs != null) {
+        writeByte(' ');
+        writeOpenMetricsTimestamp(timestampMs);
+      }
+      if (exemplar != null) {
+        writeAscii(" # {");
+        for (int i = 0; i < exemplar.getNumberOfLabels(); i++) {
+          if (i > 0) {
+            writeByte(',');
+          }
+          writeName(exemplar.getLabelName(i));
+          writeAscii("=\"");
+          writeEscaped(exemplar.getLabelValue(i), true);
+          writeByte('"');
+        }
+        writeAscii("} ");
+        writeDouble(exemplar.getValue());
+        if (exemplar.getTimestampMs() != null) {
+          writeByte(' ');
+          writeOpenMetricsTimestamp(exemplar.getTimestampMs());
+        }
+      }
+      writeByte('\n');
+    }
+
+    @Override
+    void encodeLabels(List<String> labelNames, List<String> labelValues) {
+      for (int i = 0; i < labelNames.size(); ++i) {
+        if (i > 0) {
+          writeByte(',');
+        }
+        writeName(labelNames.get(i));
+        writeAscii("=\"");
+        writeEscaped(labelValues.get(i), true);
+        writeByte('"');
+      }
+    }
+
+    @Override
+    void encodeExtraLabel(boolean hasLabels, String name, String value) {
+      if (hasLabels) {
+        writeByte(',');
+      }
+      writeName(name);
+      writeAscii("=\"");
+      writeEscaped(value, true);
+      writeByte('"');
+    }
+
+    @Override
+    void finish() throws IOException {
+      writeAscii("# EOF\n");
+      super.finish();
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package io.prometheus.client.exporter.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Info;
+import io.prometheus.client.SampleNameFilter;
+import io.prometheus.client.Summary;
+
+public class ProtobufFormatTest {
+
+  CollectorRegistry registry;
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+  }
+
+  /**
+   * A protobuf field as decoded by {@link #parse(byte[])}.
+   */
+  private static class Field {
+    int number;
+    long varint;
+    byte[] bytes;
+
+    double asDouble() {
+      return Double.longBitsToDouble(varint);
+    }
+
+    String asString() throws IOException {
+      return new String(bytes, "UTF-8");
+    }
+  }
+
+  private static List<Field> parse(byte[] message) {
+    List<Field> result = new ArrayList<Field>();
+    int[] pos = {0};
+    while (pos[0] < message.length) {
+      long tag = readVarint(message, pos);
+      Field field = new Field();
+      field.number = (int) (tag >>> 3);
+      switch ((int) (tag & 7)) {
+        case 0:
+          field.varint = readVarint(message, pos);
+          break;
+        case 1:
+          for (int i = 0; i < 8; i++) {
+            field.varint |= (message[pos[0]++] & 0xFFL) << (8 * i);
+          }
+          break;
+        case 2:
+          int length = (int) readVarint(message, pos);
+          field.bytes = Arrays.copyOfRange(message, pos[0], pos[0] + length);
+          pos[0] += length;
+          break;
+        default:
+          throw new IllegalStateException("unexpected wire type " + (tag & 7));
+      }
+      result.add(field);
+    }
+    return result;
+  }
+
+  private static long readVarint(byte[] bytes, int[] pos) {
+    long result = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[pos[0]++];
+      result |= (b & 0x7FL) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+  }
+
+  private static List<Field> fields(List<Field> message, int number) {
+    List<Field> result = new ArrayList<Field>();
+    for (Field field : message) {
+      if (field.number == number) {
+        result.add(field);
+      }
+    }
+    return result;
+  }
+
+  private static Field field(List<Field> message, int number) {
+    List<Field> result = fields(message, number);
+    assertEquals("field " + number, 1, result.size());
+    return result.get(0);
+  }
+
+  private static List<Field> message(List<Field> message, int number) {
+    return parse(field(message, number).bytes);
+  }
+
+  /**
+   * Returns the MetricFamily messages of the response.
+   */
+  private List<List<Field>> scrape(SampleNameFilter filter) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ProtobufFormat.write(out, registry, filter);
+    byte[] bytes = out.toByteArray();
+    List<List<Field>> result = new ArrayList<List<Field>>();
+    int[] pos = {0};
+    while (pos[0] < bytes.length) {
+      int length = (int) readVarint(bytes, pos);
+      result.add(parse(Arrays.copyOfRange(bytes, pos[0], pos[0] + length)));
+      pos[0] += length;
+    }
+    return result;
+  }
+
+  /**
+   * Find the Metric where the first label has the value {@code labelValue}.
+   */
+  private static List<Field> metricWithLabel(List<Field> family, String labelValue) throws IOException {
+    for (Field metric : fields(family, 4)) {
+      List<Field> labels = parse(metric.bytes);
+      if (labelValue.equals(field(message(labels, 1), 2).asString())) {
+        return labels;
+      }
+    }
+    throw new AssertionError("no metric with label value " + labelValue);
+  }
+
+  private static void assertLabels(List<Field> metric, String... namesAndValues) throws IOException {
+    List<Field> labels = fields(metric, 1);
+    assertEquals(namesAndValues.length / 2, labels.size());
+    for (int i = 0; i < labels.size(); i++) {
+      List<Field> label = parse(labels.get(i).bytes);
+      assertEquals(namesAndValues[2 * i], field(label, 1).asString());
+      assertEquals(namesAndValues[2 * i + 1], field(label, 2).asString());
+    }
+  }
+
+  @Test
+  public void testChooseContentType() {
+    String protobuf = "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited";
+    assertEquals(TextFormat.CONTENT_TYPE_004, ProtobufFormat.chooseContentType(null));
+    assertEquals(TextFormat.CONTENT_TYPE_004, ProtobufFormat.chooseContentType("text/plain"));
+    assertEquals(ProtobufFormat.CONTENT_TYPE_PROTOBUF, ProtobufFormat.chooseContentType(protobuf));
+    assertEquals(ProtobufFormat.CONTENT_TYPE_PROTOBUF, ProtobufFormat.chooseContentType(
+        protobuf + ";q=0.6,application/openmetrics-text;version=1.0.0;q=0.5,text/plain;version=0.0.4;q=0.4,*/*;q=0.1"));
+    assertEquals(TextFormat.CONTENT_TYPE_OPENMETRICS_100, ProtobufFormat.chooseContentType(
+        "application/openmetrics-text;version=1.0.0," + protobuf + ";q=0.6,text/plain;version=0.0.4;q=0.4"));
+    // Text protobuf format and other messages are not supported.
+    assertEquals(TextFormat.CONTENT_TYPE_004, ProtobufFormat.chooseContentType(
+        "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text"));
+    assertEquals(TextFormat.CONTENT_TYPE_004, ProtobufFormat.chooseContentType(
+        "application/vnd.google.protobuf;proto=other.Message;encoding=delimited"));
+  }
+
+  @Test
+  public void testCounter() throws IOException {
+    Counter counter = Counter.build().name("requests").help("help").labelNames("path").register(registry);
+    counter.labels("/").incWithExemplar(3, "trace_id", "abc");
+    List<List<Field>> families = scrape(null);
+    assertEquals(1, families.size());
+    List<Field> family = families.get(0);
+    assertEquals("requests_total", field(family, 1).asString());
+    assertEquals("help", field(family, 2).asString());
+    assertEquals(0, field(family, 3).varint);
+    List<Field> metric = message(family, 4);
+    assertLabels(metric, "path", "/");
+    List<Field> value = message(metric, 3);
+    assertEquals(3.0, field(value, 1).asDouble(), 0);
+    List<Field> exemplar = message(value, 2);
+    assertLabels(exemplar, "trace_id", "abc");
+    assertEquals(3.0, field(exemplar, 2).asDouble(), 0);
+    List<Field> created = message(value, 3);
+    long createdSeconds = field(created, 1).varint;
+    assertTrue(Math.abs(System.currentTimeMillis() / 1000 - createdSeconds) < 100);
+  }
+
+  @Test
+  public void testGaugeAndInfo() throws IOException {
+    Gauge.build().name("temperature").help("help").register(registry).set(-2.5);
+    Info.build().name("version").help("help").register(registry).info("v", "1");
+    List<List<Field>> families = scrape(null);
+    assertEquals(2, families.size());
+    for (List<Field> family : families) {
+      assertEquals(1, field(family, 3).varint);
+      List<Field> gauge = message(message(family, 4), 2);
+      if (field(family, 1).asString().equals("temperature")) {
+        assertEquals(-2.5, field(gauge, 1).asDouble(), 0);
+      } else {
+        assertEquals("version_info", field(family, 1).asString());
+        assertLabels(message(family, 4), "v", "1");
+        assertEquals(1.0, field(gauge, 1).asDouble(), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testHistogram() throws IOException {
+    Histogram histogram = Histogram.build().name("latency").help("help").labelNames("l").buckets(1, 2).register(registry);
+    histogram.labels("a").observe(1.5);
+    histogram.labels("a").observe(0.5);
+    histogram.labels("b").observe(10);
+    List<Field> family = scrape(null).get(0);
+    assertEquals("latency", field(family, 1).asString());
+    assertEquals(4, field(family, 3).varint);
+    List<Field> metrics = fields(family, 4);
+    assertEquals(2, metrics.size());
+    List<Field> metric = metricWithLabel(family, "a");
+    assertLabels(metric, "l", "a");
+    List<Field> h = message(metric, 7);
+    assertEquals(2, field(h, 1).varint);
+    assertEquals(2.0, field(h, 2).asDouble(), 0);
+    List<Field> buckets = fields(h, 3);
+    assertEquals(3, buckets.size());
+    double[] upperBounds = {1, 2, Double.POSITIVE_INFINITY};
+    long[] counts = {1, 2, 2};
+    for (int i = 0; i < buckets.size(); i++) {
+      List<Field> bucket = parse(buckets.get(i).bytes);
+      assertEquals(counts[i], field(bucket, 1).varint);
+      assertEquals(upperBounds[i], field(bucket, 2).asDouble(), 0);
+    }
+    assertEquals(1, fields(h, 15).size()); // created timestamp
+  }
+
+  @Test
+  public void testSummary() throws IOException {
+    Summary summary = Summary.build().name("sizes").help("help").quantile(0.5, 0.01).register(registry);
+    summary.observe(4);
+    List<Field> family = scrape(null).get(0);
+    assertEquals(2, field(family, 3).varint);
+    List<Field> s = message(message(family, 4), 4);
+    assertEquals(1, field(s, 1).varint);
+    assertEquals(4.0, field(s, 2).asDouble(), 0);
+    List<Field> quantile = message(s, 3);
+    assertEquals(0.5, field(quantile, 1).asDouble(), 0);
+    assertEquals(4.0, field(quantile, 2).asDouble(), 0);
+  }
+
+  @Test
+  public void testSampleNameFilter() throws IOException {
+    Histogram.build().name("latency").help("help").register(registry).observe(1);
+    List<Field> family = scrape(new SampleNameFilter.Builder().nameMustBeEqualTo("latency_count").build()).get(0);
+    List<Field> h = message(message(family, 4), 7);
+    assertEquals(1, field(h, 1).varint);
+    assertEquals(0, fields(h, 2).size());
+    assertEquals(0, fields(h, 3).size());
+  }
+
+  @Test
+  public void testUnexpectedSampleNamesAreWrittenAsUntyped() throws IOException {
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return Collections.singletonList(new MetricFamilySamples("custom", Type.GAUGE, "help", Arrays.asList(
+            new MetricFamilySamples.Sample("custom", Collections.<String>emptyList(), Collections.<String>emptyList(), 1.0),
+            new MetricFamilySamples.Sample("other", Collections.<String>emptyList(), Collections.<String>emptyList(), 2.0, 1234L))));
+      }
+    }.register(registry);
+    List<List<Field>> families = scrape(null);
+    assertEquals(2, families.size());
+    assertEquals("custom", field(families.get(0), 1).asString());
+    assertEquals("other", field(families.get(1), 1).asString());
+    assertEquals(3, field(families.get(1), 3).varint);
+    List<Field> metric = message(families.get(1), 4);
+    assertEquals(2.0, field(message(metric, 5), 1).asDouble(), 0);
+    assertEquals(1234, field(metric, 6).varint);
+  }
+
+  @Test
+  public void testLargeMessages() throws IOException {
+    Gauge gauge = Gauge.build().name("gauge").help("help").labelNames("l").register(registry);
+    StringBuilder longValue = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      longValue.append((char) ('a' + i % 26));
+    }
+    gauge.labels(longValue.toString()).set(1);
+    for (int i = 0; i < 1000; i++) {
+      gauge.labels("value" + i).set(i);
+    }
+    List<Field> family = scrape(null).get(0);
+    List<Field> metrics = fields(family, 4);
+    assertEquals(1001, metrics.size());
+    List<Field> metric = metricWithLabel(family, longValue.toString());
+    assertLabels(metric, "l", longValue.toString());
+    assertEquals(1.0, field(message(metric, 2), 1).asDouble(), 0);
+    assertEquals(999.0, field(message(metricWithLabel(family, "value999"), 2), 1).asDouble(), 0);
+  }
+
+  @Test
+  public void testVarint() {
+    long[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+    for (long value : values) {
+      ProtobufFormat.ProtobufWriter writer = new ProtobufFormat.ProtobufWriter();
+      writer.writeRawVarint(value);
+      assertEquals(ProtobufFormat.ProtobufWriter.varintSize(value), writer.size());
+      assertEquals(value, readVarint(writer.getBuffer(), new int[]{0}));
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package io.prometheus.client.exporter.common;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.QuantileEstimator;
+import io.prometheus.client.SampleNameFilter;
+import io.prometheus.client.Summary;
+
+public class QuantileSketchFormatTest {
+
+  @Test
+  public void testWriteAndParse() throws Exception {
+    Summary summary = Summary.build()
+        .name("latency_seconds").help("help")
+        .labelNames("path", "method")
+        .quantile(0.5, 0.01)
+        .quantileEstimator(QuantileEstimator.ddSketch(0.01))
+        .exportSketch(true)
+        .register(new CollectorRegistry());
+    summary.labels("/a\"\\\nb", "GET").observe(1.0);
+    String sketch = summary.getSketches().get(0).sketch;
+
+    StringWriter writer = new StringWriter();
+    QuantileSketchFormat.write(writer, Collections.singletonList(summary), null);
+    assertEquals("latency_seconds{path=\"/a\\\"\\\\\\nb\",method=\"GET\"} " + sketch + "\n", writer.toString());
+
+    List<Summary.Sketch> parsed = QuantileSketchFormat.parse(new StringReader(writer.toString() + "\n"));
+    assertEquals(1, parsed.size());
+    assertEquals("latency_seconds", parsed.get(0).name);
+    assertEquals(asList("path", "method"), parsed.get(0).labelNames);
+    assertEquals(asList("/a\"\\\nb", "GET"), parsed.get(0).labelValues);
+    assertEquals(sketch, parsed.get(0).sketch);
+  }
+
+  @Test
+  public void testNoLabels() throws Exception {
+    Summary summary = Summary.build()
+        .name("latency_seconds").help("help")
+        .quantile(0.5, 0.01)
+        .quantileEstimator(QuantileEstimator.kll(200))
+        .exportSketch(true)
+        .register(new CollectorRegistry());
+    summary.observe(1.0);
+    StringWriter writer = new StringWriter();
+    QuantileSketchFormat.write(writer, Collections.singletonList(summary), null);
+    List<Summary.Sketch> parsed = QuantileSketchFormat.parse(new StringReader(writer.toString()));
+    assertEquals(1, parsed.size());
+    assertEquals(0, parsed.get(0).labelNames.size());
+    assertEquals(1.0, QuantileEstimator.decode(parsed.get(0).sketch).get(0.5), 0.0);
+  }
+
+  @Test
+  public void testNameFilter() throws Exception {
+    Summary summary = Summary.build()
+        .name("latency_seconds").help("help")
+        .quantile(0.5, 0.01)
+        .quantileEstimator(QuantileEstimator.kll(200))
+        .exportSketch(true)
+        .register(new CollectorRegistry());
+    summary.observe(1.0);
+    StringWriter writer = new StringWriter();
+    QuantileSketchFormat.write(writer, Collections.singletonList(summary),
+        new SampleNameFilter.Builder().nameMustBeEqualTo("other").build());
+    assertEquals("", writer.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLine() throws Exception {
+    QuantileSketchFormat.parse(new StringReader("latency_seconds{path=\"/a\"}\n"));
+  }
+}
@@ -0,0 +1,139 @@
+package io.prometheus.client.exporter.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.QuantileEstimator;
+import io.prometheus.client.Summary;
+
+public class QuantileSketchMergerTest {
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  private static Summary summary(CollectorRegistry registry, QuantileEstimator.Factory estimator) {
+    return Summary.build()
+        .name("latency_seconds").help("help")
+        .labelNames("path")
+        .quantile(0.99, 0.001)
+        .quantileEstimator(estimator)
+        .exportSketch(true)
+        .register(registry);
+  }
+
+  /**
+   * The sketches of an instance, as the /sketches endpoint of the HTTPServer serves them.
+   */
+  private static List<Summary.Sketch> scrapeSketches(Summary summary) throws Exception {
+    StringWriter writer = new StringWriter();
+    QuantileSketchFormat.write(writer, Collections.singletonList(summary), null);
+    return QuantileSketchFormat.parse(new StringReader(writer.toString()));
+  }
+
+  @Test
+  public void testMergeInstances() throws Exception {
+    Random random = new Random(0);
+    List<Double> all = new ArrayList<Double>();
+    List<Summary.Sketch> scraped = new ArrayList<Summary.Sketch>();
+    for (int instance = 0; instance < 10; instance++) {
+      CollectorRegistry registry = new CollectorRegistry();
+      Summary summary = summary(registry, QuantileEstimator.ddSketch(0.01));
+      // Each instance has a different latency distribution.
+      for (int i = 0; i < 1000; i++) {
+        double value = Math.exp(random.nextGaussian()) * (instance + 1);
+        summary.labels("/a").observe(value);
+        all.add(value);
+        summary.labels("/b").observe(1.0);
+      }
+      scraped.addAll(scrapeSketches(summary));
+    }
+    Map<Map<String, String>, QuantileSketchMerger> merged = QuantileSketchMerger.mergeByLabels(scraped);
+    assertEquals(2, merged.size());
+
+    Map<String, String> a = new TreeMap<String, String>();
+    a.put("__name__", "latency_seconds");
+    a.put("path", "/a");
+    QuantileSketchMerger mergerA = merged.get(a);
+    assertEquals(10, mergerA.getSketchCount());
+    Collections.sort(all);
+    for (double q : new double[]{0.5, 0.9, 0.99}) {
+      double expected = all.get((int) (q * (all.size() - 1)));
+      assertEquals("q=" + q, expected, mergerA.get(q), expected * 0.01);
+    }
+
+    // Merged sketches can be merged again.
+    Map<String, String> b = new TreeMap<String, String>();
+    b.put("__name__", "latency_seconds");
+    b.put("path", "/b");
+    QuantileSketchMerger mergerB = new QuantileSketchMerger().add(merged.get(b).encode());
+    assertEquals(1.0, mergerB.get(0.5), 0.0);
+  }
+
+  @Test
+  public void testAggregatedLabels() throws Exception {
+    List<Summary.Sketch> sketches = new ArrayList<Summary.Sketch>();
+    for (int instance = 0; instance < 3; instance++) {
+      Summary summary = summary(new CollectorRegistry(), QuantileEstimator.kll(200));
+      summary.labels("/a").observe(instance);
+      for (Summary.Sketch sketch : scrapeSketches(summary)) {
+        List<String> labelNames = new ArrayList<String>(sketch.labelNames);
+        List<String> labelValues = new ArrayList<String>(sketch.labelValues);
+        labelNames.add("instance");
+        labelValues.add("instance-" + instance);
+        sketches.add(new Summary.Sketch(sketch.name, labelNames, labelValues, sketch.sketch));
+      }
+    }
+    assertEquals(3, QuantileSketchMerger.mergeByLabels(sketches).size());
+    Map<Map<String, String>, QuantileSketchMerger> merged = QuantileSketchMerger.mergeByLabels(sketches, "instance");
+    assertEquals(1, merged.size());
+    QuantileSketchMerger merger = merged.values().iterator().next();
+    assertEquals(0.0, merger.get(0.0), 0.0);
+    assertEquals(2.0, merger.get(1.0), 0.0);
+  }
+
+  @Test
+  public void testSketchIsNotInTextFormat() throws Exception {
+    CollectorRegistry registry = new CollectorRegistry();
+    summary(registry, QuantileEstimator.ddSketch(0.01)).labels("/a").observe(1.0);
+    StringWriter writer = new StringWriter();
+    TextFormat.write004(writer, registry.metricFamilySamples());
+    assertFalse(writer.toString().contains("sketch"));
+  }
+
+  @Test
+  public void testEmpty() {
+    QuantileSketchMerger merger = new QuantileSketchMerger();
+    assertTrue(Double.isNaN(merger.get(0.5)));
+    assertEquals(0, merger.getSketchCount());
+    thrown.expect(IllegalStateException.class);
+    merger.encode();
+  }
+
+  @Test
+  public void testDifferentKindsOfSketches() {
+    Summary summary = summary(new CollectorRegistry(), QuantileEstimator.ddSketch(0.01));
+    summary.labels("/a").observe(1.0);
+    Summary other = summary(new CollectorRegistry(), QuantileEstimator.kll(200));
+    other.labels("/a").observe(1.0);
+    List<Summary.Sketch> sketches = new ArrayList<Summary.Sketch>();
+    sketches.addAll(summary.getSketches());
+    sketches.addAll(other.getSketches());
+    thrown.expect(IllegalArgumentException.class);
+    QuantileSketchMerger.mergeByLabels(sketches);
+  }
+}
@@ -0,0 +1,201 @@
+package io.prometheus.client.exporter.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.SampleNameFilter;
+import io.prometheus.client.Summary;
+import io.prometheus.client.exemplars.Exemplar;
+
+public class TextFormatEncoderTest {
+
+  private static final List<String> CONTENT_TYPES = Arrays.asList(TextFormat.CONTENT_TYPE_004, TextFormat.CONTENT_TYPE_OPENMETRICS_100);
+
+  CollectorRegistry registry;
+  TextFormatEncoder encoder;
+
+  @Before
+  public void setUp() {
+    registry = new CollectorRegistry();
+    encoder = new TextFormatEncoder(16);
+  }
+
+  private void assertSameAsTextFormat(SampleNameFilter filter) throws IOException {
+    for (String contentType : CONTENT_TYPES) {
+      StringWriter expected = new StringWriter();
+      TextFormat.writeFormat(contentType, expected, registry, filter);
+      encoder.reset();
+      encoder.write(contentType, registry, filter);
+      // Round trip through UTF-8 like an OutputStreamWriter would, which replaces unpaired surrogates.
+      assertEquals(new String(expected.toString().getBytes("UTF-8"), "UTF-8"), new String(encoder.getBuffer(), 0, encoder.size(), "UTF-8"));
+    }
+  }
+
+  @Test
+  public void testSameAsTextFormat() throws IOException {
+    Counter counter = Counter.build().name("counter").help("help with \\ and \n").labelNames("l", "m").register(registry);
+    counter.labels("a", "b").inc();
+    counter.labels("quote\"backslash\\newline\n", "").inc(2.5);
+    counter.labels("\u00e4\u20ac\ud83d\ude00", "unpaired \ud83d").incWithExemplar(3, "trace_id", "\u00e4");
+    Gauge gauge = Gauge.build().name("gauge").help("help").unit("seconds").register(registry);
+    gauge.set(-0.0);
+    Histogram histogram = Histogram.build().name("histogram").help("help").labelNames("l").buckets(0.5, 1, 2).register(registry);
+    histogram.labels("a").observe(1.5);
+    histogram.labels("b").observe(0.1);
+    Summary summary = Summary.build().name("summary").help("help").quantile(0.5, 0.05).register(registry);
+    summary.observe(2);
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample("custom", Arrays.asList("l"), Arrays.asList("a"), 1.0, -1234L));
+        samples.add(new MetricFamilySamples.Sample("custom", Arrays.asList("l"), Arrays.asList("b"), 2.0,
+            new Exemplar(1.5, 1672531200005L, "span_id", "1"), 1672531200123L));
+        return Collections.singletonList(new MetricFamilySamples("custom", Type.GAUGE, "help", samples));
+      }
+    }.register(registry);
+
+    List<SampleNameFilter> filters = Arrays.asList(
+        (SampleNameFilter) null,
+        new SampleNameFilter.Builder().nameMustStartWith("histogram_b").build(),
+        new SampleNameFilter.Builder().nameMustBeEqualTo("counter_created", "summary_count").build());
+    for (SampleNameFilter filter : filters) {
+      assertSameAsTextFormat(filter);
+      // The second scrape uses the cached labels.
+      assertSameAsTextFormat(filter);
+    }
+  }
+
+  @Test
+  public void testCachedLabelsAfterChanges() throws IOException {
+    Gauge gauge = Gauge.build().name("gauge").help("help").labelNames("l").register(registry);
+    for (int scrape = 0; scrape < 10; scrape++) {
+      gauge.labels("a").set(scrape);
+      gauge.labels("scrape" + scrape).set(scrape);
+      if (scrape > 0) {
+        gauge.remove("scrape" + (scrape - 1));
+      }
+      assertSameAsTextFormat(null);
+    }
+  }
+
+  @Test
+  public void testCustomCollectorModifiesLabelValues() throws IOException {
+    final List<String> labelNames = Arrays.asList("l");
+    final List<String> labelValues = new ArrayList<String>(Arrays.asList("a"));
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return Collections.singletonList(new MetricFamilySamples("custom", Type.GAUGE, "help", Collections.singletonList(
+            new MetricFamilySamples.Sample("custom", labelNames, labelValues, 1.0))));
+      }
+    }.register(registry);
+    assertSameAsTextFormat(null);
+    labelValues.set(0, "b");
+    assertSameAsTextFormat(null);
+  }
+
+  @Test
+  public void testManyChildren() throws IOException {
+    Counter counter = Counter.build().name("counter").help("help").labelNames("l").register(registry);
+    for (int i = 0; i < 5000; i++) {
+      counter.labels("value" + i).inc(i);
+    }
+    assertSameAsTextFormat(null);
+    counter.clear();
+    counter.labels("x").inc();
+    for (int i = 0; i < 5; i++) {
+      assertSameAsTextFormat(null);
+    }
+  }
+
+  @Test
+  public void testTrailingSamplesAcrossScrapes() throws IOException {
+    Counter counter = Counter.build().name("counter").help("help").labelNames("l").register(registry);
+    counter.labels("a").inc();
+    Collector gaugeHistogram = new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        samples.add(new MetricFamilySamples.Sample("gh_bucket", Arrays.asList("le"), Arrays.asList("+Inf"), 3.0));
+        samples.add(new MetricFamilySamples.Sample("gh_gcount", Collections.<String>emptyList(), Collections.<String>emptyList(), 3.0));
+        samples.add(new MetricFamilySamples.Sample("gh_gsum", Collections.<String>emptyList(), Collections.<String>emptyList(), 4.5));
+        return Collections.singletonList(new MetricFamilySamples("gh", Type.GAUGE_HISTOGRAM, "help", samples));
+      }
+    }.register(registry);
+    for (int scrape = 0; scrape < 5; scrape++) {
+      counter.labels("scrape" + scrape).inc();
+      assertSameAsTextFormat(null);
+    }
+    registry.unregister(counter);
+    assertSameAsTextFormat(null);
+    registry.unregister(gaugeHistogram);
+    assertSameAsTextFormat(null);
+  }
+
+  @Test
+  public void testWriteToOutputStream() throws IOException {
+    Counter counter = Counter.build().name("counter").help("help").labelNames("l").register(registry);
+    for (int i = 0; i < 5000; i++) {
+      counter.labels("value" + i).inc(i);
+    }
+    for (String contentType : CONTENT_TYPES) {
+      StringWriter expected = new StringWriter();
+      TextFormat.writeFormat(contentType, expected, registry, null);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      encoder.write(contentType, registry, null, out);
+      assertEquals(expected.toString(), out.toString("UTF-8"));
+      // The buffer is flushed while writing, it does not hold the entire response.
+      assertEquals(0, encoder.size());
+      assertTrue(encoder.getBuffer().length < out.size());
+    }
+  }
+
+  @Test
+  public void testWriteDouble() throws IOException {
+    List<Double> values = new ArrayList<Double>(Arrays.asList(0.0, -0.0, 1.0, -1.0, 9999999.0, -9999999.0, 1e7, -1e7,
+        0.1, 1.5e-5, 123456789.0, Long.MAX_VALUE * 1.0, Double.MAX_VALUE, Double.MIN_VALUE,
+        Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NaN));
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      values.add((double) (random.nextInt(20000000) - 10000000));
+      values.add(random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10));
+    }
+    for (double value : values) {
+      encoder.reset();
+      encoder.writeDouble(value);
+      assertEquals(Collector.doubleToGoString(value), new String(encoder.getBuffer(), 0, encoder.size(), "US-ASCII"));
+    }
+  }
+
+  @Test
+  public void testWriteLong() throws IOException {
+    for (long value : new long[]{0, 1, -1, 9, 10, -10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      encoder.reset();
+      encoder.writeLong(value);
+      assertEquals(Long.toString(value), new String(encoder.getBuffer(), 0, encoder.size(), "US-ASCII"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownContentType() throws IOException {
+    encoder.write("text/html", registry, null);
+  }
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
@@ -14,8 +15,12 @@ import org.junit.Test;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Enumeration;
+import io.prometheus.client.ExponentialHistogram;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.client.Info;
+import io.prometheus.client.SampleNameFilter;
 import io.prometheus.client.Summary;
 
 
@@ -169,6 +174,33 @@ public class TextFormatTest {
             writer.toString().replaceAll("(_created\\{.*\\}) [0-9E.]+", "$1 1234.0"));
   }
 
+  @Test
+  public void testCreatedOutputWithManyChildren() throws IOException {
+    Counter counter = Counter.build().name("requests").help("help").labelNames("a", "b").register(registry);
+    StringBuilder expected = new StringBuilder("# HELP requests_created help\n# TYPE requests_created gauge\n");
+    for (int i = 0; i < 20; i++) {
+      counter.labels("x" + i, i % 2 == 0 ? "\"" : "").inc();
+    }
+    // The children are written in the same order as the counter samples.
+    for (List<String> labelValues : childLabelValues(counter)) {
+      expected.append("requests_created{a=\"").append(labelValues.get(0))
+          .append("\",b=\"").append(labelValues.get(1).replace("\"", "\\\"")).append("\",} 1234.0\n");
+    }
+    TextFormat.write004(writer, registry, null);
+    String output = writer.toString().replaceAll("(_created\\{.*\\}) [0-9E.]+", "$1 1234.0");
+    assertEquals(expected.toString(), output.substring(output.indexOf("# HELP requests_created")));
+  }
+
+  private static List<List<String>> childLabelValues(Counter counter) {
+    List<List<String>> result = new ArrayList<List<String>>();
+    for (Collector.MetricFamilySamples.Sample sample : counter.collect().get(0).samples) {
+      if (sample.name.equals("requests_created")) {
+        result.add(sample.labelValues);
+      }
+    }
+    return result;
+  }
+
   @Test
   public void testGaugeHistogramOutput() throws IOException {
     class CustomCollector extends Collector {
@@ -241,4 +273,61 @@ public class TextFormatTest {
     assertEquals(TextFormat.CONTENT_TYPE_OPENMETRICS_100, TextFormat.chooseContentType("application/openmetrics-text; version=0.0.1,text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
     assertEquals(TextFormat.CONTENT_TYPE_OPENMETRICS_100, TextFormat.chooseContentType("application/openmetrics-text; version=1.0.0"));
   }
+
+  @Test
+  public void testWriteRegistryMatchesEnumeration() throws IOException {
+    List<Collector> collectors = new ArrayList<Collector>();
+    Counter counter = Counter.build().name("counter").help("help").labelNames("l").create();
+    counter.labels("a").inc();
+    counter.labels("b\"").inc(2);
+    collectors.add(counter);
+    Gauge gauge = Gauge.build().name("gauge").help("help").unit("seconds").create();
+    gauge.set(3);
+    collectors.add(gauge);
+    Histogram histogram = Histogram.build().name("histogram").help("help").labelNames("l").buckets(1, 2).create();
+    histogram.labels("a").observe(1.5);
+    collectors.add(histogram);
+    collectors.add(Histogram.build().name("empty_histogram").help("help").labelNames("l").create());
+    Summary summary = Summary.build().name("summary").help("help").quantile(0.5, 0.05).create();
+    summary.observe(2);
+    collectors.add(summary);
+    ExponentialHistogram exponentialHistogram = ExponentialHistogram.build().name("exp").help("help").create();
+    exponentialHistogram.observe(-1);
+    exponentialHistogram.observe(0);
+    exponentialHistogram.observe(3);
+    collectors.add(exponentialHistogram);
+    Info info = Info.build().name("info").help("help").labelNames("l").create();
+    info.labels("a").info("version", "1.0");
+    collectors.add(info);
+    Enumeration enumeration = Enumeration.build().name("state").help("help").states("a", "b").create();
+    enumeration.state("b");
+    collectors.add(enumeration);
+    collectors.add(new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return Collections.singletonList(new MetricFamilySamples("custom", Type.GAUGE, "help", Collections.singletonList(
+            new MetricFamilySamples.Sample("custom", Arrays.asList("l"), Arrays.asList("a"), 1.0, 1234L))));
+      }
+    });
+
+    List<SampleNameFilter> filters = Arrays.asList(
+        (SampleNameFilter) null,
+        new SampleNameFilter.Builder().nameMustStartWith("histogram_b").build(),
+        new SampleNameFilter.Builder().nameMustBeEqualTo("counter_created", "summary_count", "exp_sum").build(),
+        new SampleNameFilter.Builder().nameMustBeEqualTo("empty_histogram_count").build());
+    for (Collector collector : collectors) {
+      for (SampleNameFilter filter : filters) {
+        // One collector per registry, because the order of collectors is not defined.
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(collector);
+        for (String contentType : Arrays.asList(TextFormat.CONTENT_TYPE_004, TextFormat.CONTENT_TYPE_OPENMETRICS_100)) {
+          StringWriter expected = new StringWriter();
+          TextFormat.writeFormat(contentType, expected, registry.filteredMetricFamilySamples(filter));
+          StringWriter actual = new StringWriter();
+          TextFormat.writeFormat(contentType, actual, registry, filter);
+          assertEquals(expected.toString(), actual.toString());
+        }
+      }
+    }
+  }
 }
@@ -1,7 +1,13 @@
 package io.prometheus.client.hotspot;
 
+import io.prometheus.client.CachingCollector;
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Registers the default Hotspot collectors.
  * <p>
@@ -35,14 +41,36 @@ public class DefaultExports {
    * Register the default Hotspot collectors with the given registry.
    */
   public static void register(CollectorRegistry registry) {
-    new BufferPoolsExports().register(registry);
-    new ClassLoadingExports().register(registry);
-    new CompilationExports().register(registry);
-    new GarbageCollectorExports().register(registry);
-    new MemoryAllocationExports().register(registry);
-    new MemoryPoolsExports().register(registry);
-    new StandardExports().register(registry);
-    new ThreadExports().register(registry);
-    new VersionInfoExports().register(registry);
+    for (Collector collector : collectors()) {
+      collector.register(registry);
+    }
+  }
+
+  /**
+   * Register the default Hotspot collectors with the given registry, calling them at most once per {@code maxAge}.
+   * <p>
+   * Use this if several Prometheus servers scrape the application, or if the application has many threads
+   * and the thread metrics are expensive to collect. The age of the served samples is exported
+   * as {@code jvm_exports_cache_age_seconds}. See {@link CachingCollector}.
+   *
+   * @return the registered collector, which can be used to refresh the samples in the background
+   *         with {@link CachingCollector#scheduleRefresh(java.util.concurrent.ScheduledExecutorService)}.
+   */
+  public static CachingCollector register(CollectorRegistry registry, long maxAge, TimeUnit unit) {
+    return new CachingCollector(collectors(), "jvm_exports_cache_age_seconds", maxAge, unit).register(registry);
+  }
+
+  private static List<Collector> collectors() {
+    List<Collector> collectors = new ArrayList<Collector>();
+    collectors.add(new BufferPoolsExports());
+    collectors.add(new ClassLoadingExports());
+    collectors.add(new CompilationExports());
+    collectors.add(new GarbageCollectorExports());
+    collectors.add(new MemoryAllocationExports());
+    collectors.add(new MemoryPoolsExports());
+    collectors.add(new StandardExports());
+    collectors.add(new ThreadExports());
+    collectors.add(new VersionInfoExports());
+    return collectors;
   }
 }
@@ -0,0 +1,24 @@
+package io.prometheus.client.hotspot;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class DefaultExportsTest {
+
+    @Test
+    public void testRegisterCached() {
+        CollectorRegistry registry = new CollectorRegistry();
+        DefaultExports.register(registry, 1, TimeUnit.HOURS);
+        Double threads = registry.getSampleValue("jvm_threads_current");
+        assertNotNull(threads);
+        assertNotNull(registry.getSampleValue("jvm_classes_currently_loaded"));
+        assertEquals(0.0, registry.getSampleValue("jvm_exports_cache_age_seconds"), 60);
+        // served from the cache
+        assertEquals(threads, registry.getSampleValue("jvm_threads_current"));
+    }
+}
@@ -0,0 +1,30 @@
+package io.prometheus.client.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@code Content-Encoding} supported by the {@link HTTPServer}.
+ * <p>
+ * gzip is built in, and zstd is supported if <a href="https://github.com/luben/zstd-jni">zstd-jni</a>
+ * is on the classpath. Other encodings like brotli can be added with
+ * {@link HTTPServer.Builder#withCompressionCodec(CompressionCodec)}, or by listing the implementation in
+ * {@code META-INF/services/io.prometheus.client.exporter.CompressionCodec} so that it is found by the
+ * {@link java.util.ServiceLoader}.
+ */
+public interface CompressionCodec {
+
+    /**
+     * The name of the encoding as used in the {@code Accept-Encoding} and {@code Content-Encoding} headers,
+     * like {@code "gzip"}.
+     */
+    String getEncoding();
+
+    /**
+     * Returns a stream that compresses to {@code out}. Closing the returned stream must finish the
+     * compressed data and close {@code out}.
+     * <p>
+     * This is called concurrently by the HTTPServer's threads.
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+}
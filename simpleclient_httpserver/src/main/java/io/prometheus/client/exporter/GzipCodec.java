@@ -0,0 +1,135 @@
+package io.prometheus.client.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * gzip with a pool of {@link Deflater} instances.
+ * <p>
+ * A {@link java.util.zip.GZIPOutputStream} allocates a new native {@link Deflater} for each response,
+ * which is freed only when it is garbage collected. This codec writes the gzip header and trailer itself
+ * and re-uses the Deflaters.
+ */
+class GzipCodec implements CompressionCodec {
+
+    private static final int MAX_POOL_SIZE = 16;
+    private static final byte[] HEADER = {
+            (byte) 0x1f, (byte) 0x8b, // magic number
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time
+            0, // extra flags
+            0 // operating system
+    };
+
+    private final int level;
+    private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+    private final AtomicInteger poolSize = new AtomicInteger();
+
+    /**
+     * @param level compression level from 0 (no compression) to 9 (best compression),
+     *              or -1 for {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    GzipCodec(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("compression level must be between -1 and 9");
+        }
+        this.level = level;
+    }
+
+    @Override
+    public String getEncoding() {
+        return "gzip";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        out.write(HEADER);
+        return new GzipStream(out, borrow());
+    }
+
+    /**
+     * If {@code stream} was returned by {@link #compress(OutputStream)}, return its {@link Deflater} to the pool
+     * without finishing the compressed data, for responses that failed while they were written.
+     * The underlying stream is not closed.
+     */
+    static void abort(OutputStream stream) {
+        if (stream instanceof GzipStream) {
+            ((GzipStream) stream).abort();
+        }
+    }
+
+    int getPoolSize() {
+        return poolSize.get();
+    }
+
+    private Deflater borrow() {
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            return new Deflater(level, true);
+        }
+        poolSize.decrementAndGet();
+        return deflater;
+    }
+
+    private void release(Deflater deflater) {
+        if (poolSize.incrementAndGet() <= MAX_POOL_SIZE) {
+            deflater.reset();
+            pool.offer(deflater);
+        } else {
+            poolSize.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private class GzipStream extends DeflaterOutputStream {
+
+        private final CRC32 crc = new CRC32();
+        private boolean closed;
+
+        GzipStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, 8192);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                finish();
+                writeInt((int) crc.getValue());
+                writeInt(def.getTotalIn());
+                out.close();
+            } finally {
+                release(def);
+            }
+        }
+
+        void abort() {
+            if (!closed) {
+                closed = true;
+                release(def);
+            }
+        }
+
+        private void writeInt(int i) throws IOException {
+            out.write(i & 0xff);
+            out.write((i >> 8) & 0xff);
+            out.write((i >> 16) & 0xff);
+            out.write((i >> 24) & 0xff);
+        }
+    }
+}
@@ -10,21 +10,33 @@ import com.sun.net.httpserver.HttpsServer;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Predicate;
 import io.prometheus.client.SampleNameFilter;
+import io.prometheus.client.Summary;
 import io.prometheus.client.Supplier;
-import io.prometheus.client.exporter.common.TextFormat;
+import io.prometheus.client.exporter.common.ProtobufFormat;
+import io.prometheus.client.exporter.common.QuantileSketchFormat;
+import io.prometheus.client.exporter.common.TextFormatEncoder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -33,7 +45,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * Expose Prometheus metrics using a plain Java HttpServer.
@@ -57,11 +69,11 @@ public class HTTPServer implements Closeable {
         }
     }
 
-    private static class LocalByteArray extends ThreadLocal<ByteArrayOutputStream> {
+    private static class LocalEncoder extends ThreadLocal<TextFormatEncoder> {
         @Override
-        protected ByteArrayOutputStream initialValue()
+        protected TextFormatEncoder initialValue()
         {
-            return new ByteArrayOutputStream(1 << 20);
+            return new TextFormatEncoder(1 << 20);
         }
     }
 
@@ -70,66 +82,283 @@ public class HTTPServer implements Closeable {
      */
     public static class HTTPMetricHandler implements HttpHandler {
         private final CollectorRegistry registry;
-        private final LocalByteArray response = new LocalByteArray();
+        private final LocalEncoder encoder = new LocalEncoder();
         private final Supplier<Predicate<String>> sampleNameFilterSupplier;
-        private final static String HEALTHY_RESPONSE = "Exporter is Healthy.";
+        private final ScrapeCache scrapeCache;
+        private final List<CompressionCodec> compressionCodecs;
+        private final static byte[] HEALTHY_RESPONSE = "Exporter is Healthy.".getBytes(Charset.forName("UTF-8"));
 
         public HTTPMetricHandler(CollectorRegistry registry) {
             this(registry, null);
         }
 
         public HTTPMetricHandler(CollectorRegistry registry, Supplier<Predicate<String>> sampleNameFilterSupplier) {
+            this(registry, sampleNameFilterSupplier, 0, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @param scrapeCacheTtl if {@code > 0}, responses are cached for this time, see
+         *                       {@link Builder#withScrapeCacheTtl(long, TimeUnit)}.
+         */
+        public HTTPMetricHandler(CollectorRegistry registry, Supplier<Predicate<String>> sampleNameFilterSupplier, long scrapeCacheTtl, TimeUnit unit) {
+            this(registry, sampleNameFilterSupplier, scrapeCacheTtl, unit, defaultCompressionCodecs(Deflater.DEFAULT_COMPRESSION));
+        }
+
+        /**
+         * @param compressionCodecs supported {@code Content-Encoding}s. If the client accepts several of them with
+         *                          the same quality value, the first one is used.
+         */
+        public HTTPMetricHandler(CollectorRegistry registry, Supplier<Predicate<String>> sampleNameFilterSupplier, long scrapeCacheTtl, TimeUnit unit, List<CompressionCodec> compressionCodecs) {
             this.registry = registry;
             this.sampleNameFilterSupplier = sampleNameFilterSupplier;
+            this.scrapeCache = scrapeCacheTtl > 0 ? new ScrapeCache(scrapeCacheTtl, unit) : null;
+            this.compressionCodecs = new ArrayList<CompressionCodec>(compressionCodecs);
         }
 
         @Override
         public void handle(HttpExchange t) throws IOException {
             String query = t.getRequestURI().getRawQuery();
             String contextPath = t.getHttpContext().getPath();
-            ByteArrayOutputStream response = this.response.get();
-            response.reset();
-            OutputStreamWriter osw = new OutputStreamWriter(response, Charset.forName("UTF-8"));
+            // HEAD responses have no body to compress. They get the Content-Length of the uncompressed response.
+            final CompressionCodec codec = t.getRequestMethod().equals("HEAD") ? null
+                    : chooseCompressionCodec(compressionCodecs, t.getRequestHeaders().get("Accept-Encoding"));
             if ("/-/healthy".equals(contextPath)) {
-                osw.write(HEALTHY_RESPONSE);
-            } else {
-                String contentType = TextFormat.chooseContentType(t.getRequestHeaders().getFirst("Accept"));
-                t.getResponseHeaders().set("Content-Type", contentType);
-                Predicate<String> filter = sampleNameFilterSupplier == null ? null : sampleNameFilterSupplier.get();
-                filter = SampleNameFilter.restrictToNamesEqualTo(filter, parseQuery(query));
-                if (filter == null) {
-                    TextFormat.writeFormat(contentType, osw, registry.metricFamilySamples());
-                } else {
-                    TextFormat.writeFormat(contentType, osw, registry.filteredMetricFamilySamples(filter));
+                sendResponse(t, HEALTHY_RESPONSE, codec);
+                return;
+            }
+            final String contentType = ProtobufFormat.chooseContentType(t.getRequestHeaders().getFirst("Accept"));
+            t.getResponseHeaders().set("Content-Type", contentType);
+            Predicate<String> supplied = sampleNameFilterSupplier == null ? null : sampleNameFilterSupplier.get();
+            Set<String> names = parseQuery(query);
+            final Predicate<String> filter = SampleNameFilter.restrictToNamesEqualTo(supplied, names);
+            if (scrapeCache != null) {
+                String encoding = codec == null ? null : codec.getEncoding();
+                byte[] response = scrapeCache.get(new ScrapeCache.Key(contentType, supplied, names, encoding), new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return render(contentType, filter, codec);
+                    }
+                });
+                if (codec != null) {
+                    t.getResponseHeaders().set("Content-Encoding", codec.getEncoding());
                 }
+                sendResponse(t, response, response.length);
+            } else if (codec != null) {
+                // Compress while rendering. If rendering fails, os is not closed, see CompressedResponseStream.
+                t.getResponseHeaders().set("Content-Encoding", codec.getEncoding());
+                CompressedResponseStream os = new CompressedResponseStream(t, codec);
+                boolean rendered = false;
+                try {
+                    encoder.get().write(contentType, registry, filter, os);
+                    rendered = true;
+                } finally {
+                    if (!rendered) {
+                        os.abort();
+                    }
+                }
+                os.close();
+                t.close();
+            } else {
+                TextFormatEncoder encoder = this.encoder.get();
+                encoder.reset();
+                encoder.write(contentType, registry, filter);
+                sendResponse(t, encoder.getBuffer(), encoder.size());
             }
+        }
 
-            osw.close();
+        /**
+         * Render a response for the scrape cache.
+         */
+        private byte[] render(String contentType, Predicate<String> filter, CompressionCodec codec) throws IOException {
+            TextFormatEncoder encoder = this.encoder.get();
+            if (codec == null) {
+                encoder.reset();
+                encoder.write(contentType, registry, filter);
+                return Arrays.copyOf(encoder.getBuffer(), encoder.size());
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream os = codec.compress(compressed);
+            try {
+                encoder.write(contentType, registry, filter, os);
+            } finally {
+                os.close();
+            }
+            return compressed.toByteArray();
+        }
 
-            if (shouldUseCompression(t)) {
-                t.getResponseHeaders().set("Content-Encoding", "gzip");
+        private static void sendResponse(HttpExchange t, byte[] response, CompressionCodec codec) throws IOException {
+            if (codec == null) {
+                sendResponse(t, response, response.length);
+            } else {
+                t.getResponseHeaders().set("Content-Encoding", codec.getEncoding());
                 t.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
-                final GZIPOutputStream os = new GZIPOutputStream(t.getResponseBody());
+                OutputStream os = codec.compress(t.getResponseBody());
                 try {
-                    response.writeTo(os);
+                    os.write(response);
                 } finally {
                     os.close();
                 }
-            } else {
-                long contentLength = response.size();
-                if (contentLength > 0) {
-                    t.getResponseHeaders().set("Content-Length", String.valueOf(contentLength));
-                }
-                if (t.getRequestMethod().equals("HEAD")) {
-                    contentLength = -1;
-                }
-                t.sendResponseHeaders(HttpURLConnection.HTTP_OK, contentLength);
-                response.writeTo(t.getResponseBody());
+                t.close();
+            }
+        }
+
+        private static void sendResponse(HttpExchange t, byte[] response, int responseLength) throws IOException {
+            long contentLength = responseLength;
+            if (contentLength > 0) {
+                t.getResponseHeaders().set("Content-Length", String.valueOf(contentLength));
             }
+            if (t.getRequestMethod().equals("HEAD")) {
+                contentLength = -1;
+            }
+            t.sendResponseHeaders(HttpURLConnection.HTTP_OK, contentLength);
+            t.getResponseBody().write(response, 0, responseLength);
             t.close();
         }
     }
 
+    /**
+     * Serves the quantile sketches of Summaries in the {@link QuantileSketchFormat}, see
+     * {@link Builder#withQuantileSketches(Summary...)}.
+     */
+    private static class QuantileSketchHandler implements HttpHandler {
+        private final List<Summary> summaries;
+        private final Supplier<Predicate<String>> sampleNameFilterSupplier;
+        private final List<CompressionCodec> compressionCodecs;
+
+        QuantileSketchHandler(List<Summary> summaries, Supplier<Predicate<String>> sampleNameFilterSupplier, List<CompressionCodec> compressionCodecs) {
+            this.summaries = new ArrayList<Summary>(summaries);
+            this.sampleNameFilterSupplier = sampleNameFilterSupplier;
+            this.compressionCodecs = new ArrayList<CompressionCodec>(compressionCodecs);
+        }
+
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            CompressionCodec codec = t.getRequestMethod().equals("HEAD") ? null
+                    : chooseCompressionCodec(compressionCodecs, t.getRequestHeaders().get("Accept-Encoding"));
+            Predicate<String> supplied = sampleNameFilterSupplier == null ? null : sampleNameFilterSupplier.get();
+            Predicate<String> filter = SampleNameFilter.restrictToNamesEqualTo(supplied, parseQuery(t.getRequestURI().getRawQuery()));
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(response, Charset.forName("UTF-8"));
+            QuantileSketchFormat.write(writer, summaries, filter);
+            writer.close();
+            t.getResponseHeaders().set("Content-Type", QuantileSketchFormat.CONTENT_TYPE);
+            HTTPMetricHandler.sendResponse(t, response.toByteArray(), codec);
+        }
+    }
+
+    /**
+     * Sends the response headers with the first write, and compresses everything written to the response body.
+     * <p>
+     * The {@link TextFormatEncoder} writes chunks of a few kilobytes, so if a collector fails while the first chunk
+     * is rendered, no status has been sent yet and the request fails as it does without compression. If a collector
+     * fails later, the caller must not close this stream, so that the compressed data is not finished and the client
+     * sees a truncated response rather than a valid one that lacks metrics. Instead, the caller must {@link #abort()}
+     * this stream to release the compressor.
+     */
+    private static class CompressedResponseStream extends OutputStream {
+
+        private final HttpExchange exchange;
+        private final CompressionCodec codec;
+        private OutputStream out; // null until the response headers are sent
+
+        private CompressedResponseStream(HttpExchange exchange, CompressionCodec codec) {
+            this.exchange = exchange;
+            this.codec = codec;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            commit().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            commit().write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            commit().close();
+        }
+
+        /**
+         * Release the compressor without finishing the compressed data. Pooled gzip {@link java.util.zip.Deflater}s
+         * are returned to the pool, other compressors are left to the garbage collector, as they have no way to
+         * release their resources without finishing the data.
+         */
+        void abort() {
+            if (out != null) {
+                GzipCodec.abort(out);
+            }
+        }
+
+        private OutputStream commit() throws IOException {
+            if (out == null) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+                out = codec.compress(exchange.getResponseBody());
+            }
+            return out;
+        }
+    }
+
+    /**
+     * The codecs found by the {@link ServiceLoader}, zstd if available, and gzip with the given compression level.
+     */
+    static List<CompressionCodec> defaultCompressionCodecs(int gzipCompressionLevel) {
+        List<CompressionCodec> result = new ArrayList<CompressionCodec>();
+        for (CompressionCodec codec : ServiceLoader.load(CompressionCodec.class)) {
+            result.add(codec);
+        }
+        ZstdCodec zstd = ZstdCodec.create();
+        if (zstd != null) {
+            result.add(zstd);
+        }
+        result.add(new GzipCodec(gzipCompressionLevel));
+        return result;
+    }
+
+    /**
+     * Choose the codec with the highest quality value in the {@code Accept-Encoding} headers.
+     * If several codecs have the same quality value, the first one in {@code codecs} wins.
+     * Returns {@code null} if the response should not be compressed.
+     */
+    static CompressionCodec chooseCompressionCodec(List<CompressionCodec> codecs, List<String> acceptEncodingHeaders) {
+        if (acceptEncodingHeaders == null) {
+            return null;
+        }
+        Map<String, Double> qualities = new HashMap<String, Double>();
+        for (String header : acceptEncodingHeaders) {
+            for (String encoding : header.split(",")) {
+                String[] parts = encoding.split(";");
+                double quality = 1.0;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                qualities.put(parts[0].trim().toLowerCase(), quality);
+            }
+        }
+        CompressionCodec result = null;
+        double bestQuality = 0;
+        for (CompressionCodec codec : codecs) {
+            Double quality = qualities.get(codec.getEncoding().toLowerCase());
+            if (quality == null) {
+                quality = qualities.get("*");
+            }
+            if (quality != null && quality > bestQuality) {
+                bestQuality = quality;
+                result = codec;
+            }
+        }
+        return result;
+    }
+
     protected static boolean shouldUseCompression(HttpExchange exchange) {
         List<String> encodingHeaders = exchange.getRequestHeaders().get("Accept-Encoding");
         if (encodingHeaders == null) return false;
@@ -207,6 +436,10 @@ public class HTTPServer implements Closeable {
         private Supplier<Predicate<String>> sampleNameFilterSupplier;
         private Authenticator authenticator;
         private HttpsConfigurator httpsConfigurator;
+        private long scrapeCacheTtlNanos = 0;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private final List<CompressionCodec> compressionCodecs = new ArrayList<CompressionCodec>();
+        private final List<Summary> quantileSketches = new ArrayList<Summary>();
 
         /**
          * Port to bind to. Must not be called together with {@link #withInetSocketAddress(InetSocketAddress)}
@@ -327,11 +560,72 @@ public class HTTPServer implements Closeable {
             return this;
         }
 
+        /**
+         * Optional: Cache responses for the given time. Default is no caching.
+         * <p>
+         * Use this if several clients scrape the same HTTPServer, or if some collectors are expensive.
+         * Within the {@code ttl}, requests with the same content type, sample name filter, {@code name[]} parameters,
+         * and compression get the same response, which is serialized and compressed only once.
+         * Concurrent requests wait for the response that is currently rendered rather than triggering another collection.
+         * <p>
+         * Note that the {@code ttl} should be a lot smaller than the scrape interval,
+         * otherwise scrapes will see the same values more than once.
+         */
+        public Builder withScrapeCacheTtl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) {
+                throw new IllegalArgumentException("ttl must be > 0");
+            }
+            this.scrapeCacheTtlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Optional: gzip compression level from 0 (no compression) to 9 (best compression).
+         * Default is {@link Deflater#DEFAULT_COMPRESSION}.
+         * Lower levels use less CPU for large scrapes at the cost of larger responses.
+         */
+        public Builder withCompressionLevel(int level) {
+            if (level < -1 || level > 9) {
+                throw new IllegalArgumentException("compression level must be between -1 and 9");
+            }
+            this.compressionLevel = level;
+            return this;
+        }
+
+        /**
+         * Optional: Support an additional {@code Content-Encoding}, like brotli.
+         * Codecs added here are preferred over the built-in ones if the client accepts several
+         * encodings with the same quality value. Can be called multiple times.
+         */
+        public Builder withCompressionCodec(CompressionCodec codec) {
+            this.compressionCodecs.add(codec);
+            return this;
+        }
+
+        /**
+         * Optional: Serve the quantile sketches of these Summaries on {@code /sketches}, so that they can be merged
+         * across instances, see {@link Summary.Builder#exportSketch(boolean)}. The sketches are written in the
+         * {@link QuantileSketchFormat}. Like on {@code /metrics}, the sample name filter and {@code name[]} query
+         * parameters apply to the names of the Summaries. Can be called multiple times.
+         *
+         * @throws IllegalStateException if a Summary doesn't export sketches.
+         */
+        public Builder withQuantileSketches(Summary... summaries) {
+            for (Summary summary : summaries) {
+                summary.getSketches();
+                this.quantileSketches.add(summary);
+            }
+            return this;
+        }
+
         /**
          * Build the HTTPServer
          * @throws IOException
          */
         public HTTPServer build() throws IOException {
+            List<CompressionCodec> codecs = new ArrayList<CompressionCodec>(compressionCodecs);
+            codecs.addAll(defaultCompressionCodecs(compressionLevel));
+
             if (sampleNameFilter != null) {
                 assertNull(sampleNameFilterSupplier, "cannot configure 'sampleNameFilter' and 'sampleNameFilterSupplier' at the same time");
                 sampleNameFilterSupplier = SampleNameFilterSupplier.of(sampleNameFilter);
@@ -344,7 +638,7 @@ public class HTTPServer implements Closeable {
                 assertNull(inetAddress, "cannot configure 'httpServer' and 'inetAddress' at the same time");
                 assertNull(inetSocketAddress, "cannot configure 'httpServer' and 'inetSocketAddress' at the same time");
                 assertNull(httpsConfigurator, "cannot configure 'httpServer' and 'httpsConfigurator' at the same time");
-                return new HTTPServer(executorService, httpServer, registry, daemon, sampleNameFilterSupplier, authenticator);
+                return new HTTPServer(executorService, httpServer, registry, daemon, sampleNameFilterSupplier, authenticator, scrapeCacheTtlNanos, codecs, quantileSketches);
             } else if (inetSocketAddress != null) {
                 assertZero(port, "cannot configure 'inetSocketAddress' and 'port' at the same time");
                 assertNull(hostname, "cannot configure 'inetSocketAddress' and 'hostname' at the same time");
@@ -366,7 +660,7 @@ public class HTTPServer implements Closeable {
                 httpServer = HttpServer.create(inetSocketAddress, 3);
             }
 
-            return new HTTPServer(executorService, httpServer, registry, daemon, sampleNameFilterSupplier, authenticator);
+            return new HTTPServer(executorService, httpServer, registry, daemon, sampleNameFilterSupplier, authenticator, scrapeCacheTtlNanos, codecs, quantileSketches);
         }
 
         private void assertNull(Object o, String msg) {
@@ -387,7 +681,7 @@ public class HTTPServer implements Closeable {
      * The {@code httpServer} is expected to already be bound to an address
      */
     public HTTPServer(HttpServer httpServer, CollectorRegistry registry, boolean daemon) throws IOException {
-        this(null, httpServer, registry, daemon, null, null);
+        this(null, httpServer, registry, daemon, null, null, 0, defaultCompressionCodecs(Deflater.DEFAULT_COMPRESSION), Collections.<Summary>emptyList());
     }
 
     /**
@@ -432,12 +726,12 @@ public class HTTPServer implements Closeable {
         this(new InetSocketAddress(host, port), CollectorRegistry.defaultRegistry, false);
     }
 
-    private HTTPServer(ExecutorService executorService, HttpServer httpServer, CollectorRegistry registry, boolean daemon, Supplier<Predicate<String>> sampleNameFilterSupplier, Authenticator authenticator) {
+    private HTTPServer(ExecutorService executorService, HttpServer httpServer, CollectorRegistry registry, boolean daemon, Supplier<Predicate<String>> sampleNameFilterSupplier, Authenticator authenticator, long scrapeCacheTtlNanos, List<CompressionCodec> compressionCodecs, List<Summary> quantileSketches) {
         if (httpServer.getAddress() == null)
             throw new IllegalArgumentException("HttpServer hasn't been bound to an address");
 
         server = httpServer;
-        HttpHandler mHandler = new HTTPMetricHandler(registry, sampleNameFilterSupplier);
+        HttpHandler mHandler = new HTTPMetricHandler(registry, sampleNameFilterSupplier, scrapeCacheTtlNanos, TimeUnit.NANOSECONDS, compressionCodecs);
         HttpContext mContext = server.createContext("/", mHandler);
         if (authenticator != null) {
             mContext.setAuthenticator(authenticator);
@@ -450,6 +744,12 @@ public class HTTPServer implements Closeable {
         if (authenticator != null) {
             mContext.setAuthenticator(authenticator);
         }
+        if (!quantileSketches.isEmpty()) {
+            mContext = server.createContext("/sketches", new QuantileSketchHandler(quantileSketches, sampleNameFilterSupplier, compressionCodecs));
+            if (authenticator != null) {
+                mContext.setAuthenticator(authenticator);
+            }
+        }
         if (executorService != null) {
             this.executorService = executorService;
         } else {
@@ -0,0 +1,190 @@
+package io.prometheus.client.exporter;
+
+import io.prometheus.client.Predicate;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches serialized (and possibly compressed) scrape responses for a configurable time.
+ * <p>
+ * Concurrent requests for the same key are coalesced: The first request renders the response,
+ * the other requests wait for it and get the same bytes.
+ * <p>
+ * Only a small number of keys is cached. If there are more, for example because clients use
+ * many different {@code name[]} parameters, the remaining requests are rendered without cache.
+ */
+class ScrapeCache {
+
+    static final int MAX_ENTRIES = 64;
+
+    private final long ttlNanos;
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    ScrapeCache(long ttl, TimeUnit unit) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be > 0");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Return the cached response for {@code key}, or call {@code loader} if there is no response or if it is expired.
+     */
+    byte[] get(Key key, Callable<byte[]> loader) throws IOException {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.isExpired(System.nanoTime())) {
+                return entry.await();
+            }
+            Entry newEntry = new Entry(loader);
+            if (entry == null) {
+                if (entries.size() >= MAX_ENTRIES) {
+                    removeExpired();
+                    if (entries.size() >= MAX_ENTRIES) {
+                        return call(loader);
+                    }
+                }
+                if (entries.putIfAbsent(key, newEntry) != null) {
+                    continue;
+                }
+            } else if (!entries.replace(key, entry, newEntry)) {
+                continue;
+            }
+            newEntry.task.run();
+            try {
+                return newEntry.await();
+            } catch (IOException e) {
+                entries.remove(key, newEntry);
+                throw e;
+            } catch (RuntimeException e) {
+                entries.remove(key, newEntry);
+                throw e;
+            } catch (Error e) {
+                entries.remove(key, newEntry);
+                throw e;
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void removeExpired() {
+        long now = System.nanoTime();
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            if (i.next().isExpired(now)) {
+                i.remove();
+            }
+        }
+    }
+
+    private static byte[] call(Callable<byte[]> loader) throws IOException {
+        try {
+            return loader.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private class Entry {
+
+        final FutureTask<byte[]> task;
+        volatile long loadedAt;
+
+        Entry(final Callable<byte[]> loader) {
+            this.task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    try {
+                        return loader.call();
+                    } finally {
+                        loadedAt = System.nanoTime();
+                    }
+                }
+            });
+        }
+
+        /**
+         * An entry that is still loading is never expired, so that concurrent requests wait for it.
+         */
+        boolean isExpired(long now) {
+            return task.isDone() && now - loadedAt >= ttlNanos;
+        }
+
+        byte[] await() throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for concurrent scrape");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    /**
+     * Everything that makes a response different.
+     * The sample name filter is compared by identity, a new filter from the supplier means a new key.
+     * The content encoding is {@code null} for uncompressed responses.
+     */
+    static class Key {
+
+        private final String contentType;
+        private final Predicate<String> sampleNameFilter;
+        private final Set<String> names;
+        private final String contentEncoding;
+
+        Key(String contentType, Predicate<String> sampleNameFilter, Set<String> names, String contentEncoding) {
+            this.contentType = contentType;
+            this.sampleNameFilter = sampleNameFilter;
+            this.names = names;
+            this.contentEncoding = contentEncoding;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return contentType.equals(other.contentType)
+                    && sampleNameFilter == other.sampleNameFilter
+                    && names.equals(other.names)
+                    && (contentEncoding == null ? other.contentEncoding == null : contentEncoding.equals(other.contentEncoding));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = contentType.hashCode();
+            result = 31 * result + System.identityHashCode(sampleNameFilter);
+            result = 31 * result + names.hashCode();
+            result = 31 * result + (contentEncoding == null ? 0 : contentEncoding.hashCode());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.prometheus.client.exporter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * zstd using <a href="https://github.com/luben/zstd-jni">zstd-jni</a>, which is an optional runtime dependency.
+ * It is accessed via reflection so that the HTTPServer does not need it at compile time.
+ */
+class ZstdCodec implements CompressionCodec {
+
+    private static final String OUTPUT_STREAM_CLASS = "com.github.luben.zstd.ZstdOutputStream";
+    private static final int DEFAULT_LEVEL = 3;
+
+    private final Constructor<?> constructor;
+
+    private ZstdCodec(Constructor<?> constructor) {
+        this.constructor = constructor;
+    }
+
+    /**
+     * Returns {@code null} if zstd-jni is not on the classpath or if the native library cannot be loaded.
+     */
+    static ZstdCodec create() {
+        try {
+            Constructor<?> constructor = Class.forName(OUTPUT_STREAM_CLASS).getConstructor(OutputStream.class, int.class);
+            ZstdCodec codec = new ZstdCodec(constructor);
+            codec.compress(new ByteArrayOutputStream()).close(); // loads the native library
+            return codec;
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getEncoding() {
+        return "zstd";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        try {
+            return (OutputStream) constructor.newInstance(out, DEFAULT_LEVEL);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InstantiationException e) {
+            throw new IOException(e);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
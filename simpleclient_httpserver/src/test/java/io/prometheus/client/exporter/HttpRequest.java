@@ -6,6 +6,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -19,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Class to perform HTTP testing
@@ -74,7 +76,11 @@ public class HttpRequest {
         urlConnection.setDoOutput(true);
         urlConnection.connect();
 
-        Scanner scanner = new Scanner(urlConnection.getInputStream(), "UTF-8").useDelimiter("\\A");
+        InputStream inputStream = urlConnection.getInputStream();
+        if ("gzip".equals(urlConnection.getContentEncoding()) && configuration.method != METHOD.HEAD) {
+            inputStream = new GZIPInputStream(inputStream);
+        }
+        Scanner scanner = new Scanner(inputStream, "UTF-8").useDelimiter("\\A");
 
         return new HttpResponse(
                 ((HttpURLConnection) urlConnection).getResponseCode(),
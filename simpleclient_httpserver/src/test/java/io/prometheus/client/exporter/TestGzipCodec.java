@@ -0,0 +1,113 @@
+package io.prometheus.client.exporter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class TestGzipCodec {
+
+  private static byte[] compress(GzipCodec codec, byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    OutputStream os = codec.compress(compressed);
+    // Write in several chunks to exercise the CRC.
+    int half = data.length / 2;
+    os.write(data, 0, half);
+    os.write(data, half, data.length - half);
+    os.close();
+    os.close(); // closing twice must not release the Deflater twice
+    return compressed.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] data) throws IOException {
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) != -1) {
+      result.write(buf, 0, n);
+    }
+    return result.toByteArray();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Random random = new Random(0);
+    for (int level = -1; level <= 9; level++) {
+      GzipCodec codec = new GzipCodec(level);
+      for (int size : new int[]{0, 1, 100, 100000}) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+          data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        Assert.assertArrayEquals(data, decompress(compress(codec, data)));
+      }
+    }
+  }
+
+  @Test
+  public void testDeflatersAreReused() throws IOException {
+    GzipCodec codec = new GzipCodec(-1);
+    Assert.assertEquals(0, codec.getPoolSize());
+    byte[] data = "metric 1.0\n".getBytes("UTF-8");
+    for (int i = 0; i < 10; i++) {
+      Assert.assertArrayEquals(data, decompress(compress(codec, data)));
+      Assert.assertEquals(1, codec.getPoolSize());
+    }
+  }
+
+  @Test
+  public void testAbortReturnsDeflater() throws IOException {
+    GzipCodec codec = new GzipCodec(-1);
+    OutputStream os = codec.compress(new ByteArrayOutputStream());
+    os.write(new byte[]{'a'});
+    GzipCodec.abort(os);
+    Assert.assertEquals(1, codec.getPoolSize());
+    os.close(); // closing after abort must not release the Deflater twice
+    GzipCodec.abort(os);
+    Assert.assertEquals(1, codec.getPoolSize());
+    // The Deflater was reset and can be used again.
+    byte[] data = "metric 1.0\n".getBytes("UTF-8");
+    Assert.assertArrayEquals(data, decompress(compress(codec, data)));
+    Assert.assertEquals(1, codec.getPoolSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLevel() {
+    new GzipCodec(10);
+  }
+
+  @Test
+  public void testChooseCompressionCodec() {
+    CompressionCodec gzip = new GzipCodec(-1);
+    CompressionCodec other = new CompressionCodec() {
+      @Override
+      public String getEncoding() {
+        return "br";
+      }
+
+      @Override
+      public OutputStream compress(OutputStream out) {
+        return out;
+      }
+    };
+    List<CompressionCodec> codecs = Arrays.asList(other, gzip);
+    Assert.assertNull(HTTPServer.chooseCompressionCodec(codecs, null));
+    Assert.assertNull(HTTPServer.chooseCompressionCodec(codecs, Collections.singletonList("deflate")));
+    Assert.assertNull(HTTPServer.chooseCompressionCodec(codecs, Collections.singletonList("gzip;q=0")));
+    Assert.assertSame(gzip, HTTPServer.chooseCompressionCodec(codecs, Collections.singletonList("GZIP")));
+    Assert.assertSame(other, HTTPServer.chooseCompressionCodec(codecs, Collections.singletonList("gzip, br")));
+    Assert.assertSame(gzip, HTTPServer.chooseCompressionCodec(codecs, Arrays.asList("gzip", "br;q=0.8")));
+    Assert.assertSame(other, HTTPServer.chooseCompressionCodec(codecs, Collections.singletonList("*")));
+    Assert.assertSame(gzip, HTTPServer.chooseCompressionCodec(codecs, Collections.singletonList("*;q=0.5, br;q=0.1")));
+  }
+}
@@ -5,9 +5,13 @@ import com.sun.net.httpserver.BasicAuthenticator;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsParameters;
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Gauge;
+import io.prometheus.client.Predicate;
+import io.prometheus.client.QuantileEstimator;
 import io.prometheus.client.SampleNameFilter;
+import io.prometheus.client.Summary;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,16 +26,25 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Java6Assertions.assertThat;
 
@@ -240,6 +253,244 @@ public class TestHTTPServer {
     }
   }
 
+  @Test
+  public void testGzipCompressionLevel() throws IOException {
+    HTTPServer httpServer = new HTTPServer.Builder()
+            .withRegistry(registry)
+            .withCompressionLevel(1)
+            .build();
+
+    try {
+      HttpResponse response = createHttpRequestBuilder(httpServer, "/metrics")
+              .withHeader("Accept-Encoding", "gzip")
+              .build().execute();
+      Assert.assertEquals("gzip", response.getHeader("content-encoding"));
+      assertThat(response.getBody()).contains("a 0.0");
+      assertThat(response.getBody()).contains("c 0.0");
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  @Test
+  public void testCompressionCodec() throws IOException {
+    HTTPServer httpServer = new HTTPServer.Builder()
+            .withRegistry(registry)
+            .withCompressionCodec(new CompressionCodec() {
+              @Override
+              public String getEncoding() {
+                return "x-test";
+              }
+
+              @Override
+              public OutputStream compress(OutputStream out) {
+                return out;
+              }
+            })
+            .build();
+
+    try {
+      HttpResponse response = createHttpRequestBuilder(httpServer, "/metrics")
+              .withHeader("Accept-Encoding", "gzip, x-test")
+              .build().execute();
+      Assert.assertEquals("x-test", response.getHeader("content-encoding"));
+      assertThat(response.getBody()).contains("a 0.0");
+      response = createHttpRequestBuilder(httpServer, "/metrics")
+              .withHeader("Accept-Encoding", "gzip, x-test;q=0.5")
+              .build().execute();
+      Assert.assertEquals("gzip", response.getHeader("content-encoding"));
+      assertThat(response.getBody()).contains("a 0.0");
+      response = createHttpRequestBuilder(httpServer, "/metrics")
+              .withHeader("Accept-Encoding", "gzip;q=0")
+              .build().execute();
+      Assert.assertNull(response.getHeader("content-encoding"));
+      assertThat(response.getBody()).contains("a 0.0");
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  /**
+   * A collector that writes {@code samples} samples and then fails.
+   */
+  private static class FailingCollector extends Collector {
+
+    private final int samples;
+
+    FailingCollector(int samples) {
+      this.samples = samples;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      throw new RuntimeException("collector failed");
+    }
+
+    @Override
+    public void collect(SampleVisitor visitor, Predicate<String> sampleNameFilter) throws IOException {
+      visitor.visitFamily("failing", "", Type.GAUGE, "help");
+      List<String> labelNames = Collections.singletonList("i");
+      for (int i = 0; i < samples; i++) {
+        visitor.visitSample("failing", labelNames, Collections.singletonList(Integer.toString(i)), null, null, i, null, null);
+      }
+      throw new RuntimeException("collector failed");
+    }
+  }
+
+  /**
+   * Read the gzip compressed body of a GET request to {@code /metrics}.
+   */
+  private static String readGzipResponse(HTTPServer httpServer) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + httpServer.getPort() + "/metrics").openConnection();
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    InputStream in = new GZIPInputStream(connection.getInputStream());
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+        body.write(buffer, 0, n);
+      }
+      return body.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testCompressionWhenCollectorFailsEarly() throws IOException {
+    new FailingCollector(10).register(registry);
+    HTTPServer httpServer = new HTTPServer(new InetSocketAddress(0), registry);
+
+    try {
+      readGzipResponse(httpServer);
+      Assert.fail("Expected IOException");
+    } catch (IOException e) {
+      // No status was sent, the request failed.
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  @Test
+  public void testCompressionWhenCollectorFailsLate() throws IOException {
+    new FailingCollector(100000).register(registry);
+    HTTPServer httpServer = new HTTPServer(new InetSocketAddress(0), registry);
+
+    try {
+      readGzipResponse(httpServer);
+      Assert.fail("Expected IOException");
+    } catch (IOException e) {
+      // The response was truncated, and the compressed data was not finished.
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  @Test
+  public void testDeflaterIsReleasedWhenCollectorFailsLate() throws IOException {
+    new FailingCollector(100000).register(registry);
+    GzipCodec codec = new GzipCodec(-1);
+    HTTPServer httpServer = new HTTPServer.Builder()
+            .withRegistry(registry)
+            .withCompressionCodec(codec)
+            .build();
+
+    try {
+      readGzipResponse(httpServer);
+      Assert.fail("Expected IOException");
+    } catch (IOException e) {
+      Assert.assertEquals(1, codec.getPoolSize());
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  @Test
+  public void testHEADRequestWithGzip() throws IOException {
+    HTTPServer httpServer = new HTTPServer.Builder()
+            .withRegistry(registry)
+            .build();
+
+    try {
+      HttpResponse httpResponse = createHttpRequestBuilder(httpServer, "/metrics?name[]=a&name[]=b")
+              .withMethod(HttpRequest.METHOD.HEAD)
+              .withHeader("Accept-Encoding", "gzip")
+              .build().execute();
+      Assert.assertNull(httpResponse.getHeader("content-encoding"));
+      Assert.assertTrue(httpResponse.getHeaderAsLong("content-length") == 74);
+      assertThat(httpResponse.getBody()).isEmpty();
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  private Summary sketchedSummary(String name) {
+    Summary summary = Summary.build()
+            .name(name).help("help")
+            .labelNames("path")
+            .quantile(0.5, 0.01)
+            .quantileEstimator(QuantileEstimator.kll(200))
+            .exportSketch(true)
+            .register(registry);
+    summary.labels("/a").observe(1.0);
+    return summary;
+  }
+
+  @Test
+  public void testQuantileSketches() throws IOException {
+    Summary summary = sketchedSummary("latency_seconds");
+    HTTPServer httpServer = new HTTPServer.Builder()
+            .withRegistry(registry)
+            .withQuantileSketches(summary)
+            .build();
+
+    try {
+      String sketch = summary.getSketches().get(0).sketch;
+      HttpResponse httpResponse = createHttpRequestBuilder(httpServer, "/sketches").build().execute();
+      Assert.assertEquals("text/plain; charset=utf-8", httpResponse.getHeader("content-type"));
+      assertThat(httpResponse.getBody()).isEqualTo("latency_seconds{path=\"/a\"} " + sketch + "\n");
+      String metrics = createHttpRequestBuilder(httpServer, "/metrics").build().execute().getBody();
+      assertThat(metrics).contains("latency_seconds_count{path=\"/a\",} 1.0");
+      assertThat(metrics).doesNotContain(sketch);
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  @Test
+  public void testQuantileSketchesWithNames() throws IOException {
+    HTTPServer httpServer = new HTTPServer.Builder()
+            .withRegistry(registry)
+            .withQuantileSketches(sketchedSummary("x_seconds"), sketchedSummary("y_seconds"))
+            .build();
+
+    try {
+      String body = createHttpRequestBuilder(httpServer, "/sketches?name[]=y_seconds").build().execute().getBody();
+      assertThat(body).startsWith("y_seconds{path=\"/a\"} ");
+      assertThat(body).doesNotContain("x_seconds");
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  @Test
+  public void testNoQuantileSketches() throws IOException {
+    HTTPServer httpServer = new HTTPServer(new InetSocketAddress(0), registry);
+
+    try {
+      // Without withQuantileSketches(), /sketches is handled like /metrics.
+      String body = createHttpRequestBuilder(httpServer, "/sketches").build().execute().getBody();
+      assertThat(body).contains("a 0.0");
+    } finally {
+      httpServer.close();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testQuantileSketchesRequireExportSketch() {
+    new HTTPServer.Builder().withQuantileSketches(Summary.build().name("s").help("help").create());
+  }
+
   @Test
   public void testOpenMetrics() throws IOException {
     HTTPServer httpServer = new HTTPServer(new InetSocketAddress(0), registry);
@@ -254,6 +505,46 @@ public class TestHTTPServer {
     }
   }
 
+  @Test
+  public void testScrapeCache() throws IOException {
+    HTTPServer httpServer = new HTTPServer.Builder()
+            .withRegistry(registry)
+            .withScrapeCacheTtl(1, TimeUnit.HOURS)
+            .build();
+    Gauge d = Gauge.build("d", "a help").register(registry);
+
+    try {
+      String body = createHttpRequestBuilder(httpServer, "/metrics").build().execute().getBody();
+      assertThat(body).contains("d 0.0");
+      d.set(1);
+      body = createHttpRequestBuilder(httpServer, "/metrics").build().execute().getBody();
+      assertThat(body).contains("d 0.0");
+      // Different content type, name[] parameters, or compression are cached separately.
+      body = createHttpRequestBuilder(httpServer, "/metrics")
+              .withHeader("Accept", "application/openmetrics-text; version=0.0.1,text/plain;version=0.0.4;q=0.5,*/*;q=0.1")
+              .build().execute().getBody();
+      assertThat(body).contains("d 1.0");
+      assertThat(body).contains("# EOF");
+      body = createHttpRequestBuilder(httpServer, "/metrics?name[]=d").build().execute().getBody();
+      assertThat(body).contains("d 1.0");
+      assertThat(body).doesNotContain("a 0.0");
+      d.set(2);
+      body = createHttpRequestBuilder(httpServer, "/metrics")
+              .withHeader("Accept-Encoding", "gzip")
+              .build().execute().getBody();
+      assertThat(body).contains("d 2.0");
+      d.set(3);
+      HttpResponse response = createHttpRequestBuilder(httpServer, "/metrics")
+              .withHeader("Accept-Encoding", "gzip")
+              .build().execute();
+      assertThat(response.getBody()).contains("d 2.0");
+      Assert.assertEquals("gzip", response.getHeader("content-encoding"));
+      Assert.assertNotNull(response.getHeaderAsLong("content-length"));
+    } finally {
+      httpServer.close();
+    }
+  }
+
   @Test
   public void testHealth() throws IOException {
     HTTPServer httpServer = new HTTPServer(new InetSocketAddress(0), registry);
@@ -0,0 +1,124 @@
+package io.prometheus.client.exporter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestScrapeCache {
+
+  private static ScrapeCache.Key key(String contentType) {
+    return new ScrapeCache.Key(contentType, null, Collections.<String>emptySet(), null);
+  }
+
+  private static Callable<byte[]> counting(final AtomicInteger calls) {
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return new byte[]{(byte) calls.incrementAndGet()};
+      }
+    };
+  }
+
+  @Test
+  public void testCachedWithinTtl() throws IOException {
+    ScrapeCache cache = new ScrapeCache(1, TimeUnit.HOURS);
+    AtomicInteger calls = new AtomicInteger();
+    Assert.assertEquals(1, cache.get(key("a"), counting(calls))[0]);
+    Assert.assertEquals(1, cache.get(key("a"), counting(calls))[0]);
+    Assert.assertEquals(2, cache.get(key("b"), counting(calls))[0]);
+    Assert.assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testExpired() throws Exception {
+    ScrapeCache cache = new ScrapeCache(1, TimeUnit.MILLISECONDS);
+    AtomicInteger calls = new AtomicInteger();
+    cache.get(key("a"), counting(calls));
+    Thread.sleep(5);
+    cache.get(key("a"), counting(calls));
+    Assert.assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testConcurrentRequestsAreCoalesced() throws Exception {
+    final ScrapeCache cache = new ScrapeCache(1, TimeUnit.HOURS);
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Callable<byte[]> slowLoader = new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        calls.incrementAndGet();
+        loading.countDown();
+        release.await();
+        return new byte[]{42};
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    try {
+      List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+      results.add(executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return cache.get(key("a"), slowLoader);
+        }
+      }));
+      loading.await();
+      for (int i = 0; i < 4; i++) {
+        results.add(executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return cache.get(key("a"), slowLoader);
+          }
+        }));
+      }
+      release.countDown();
+      for (Future<byte[]> result : results) {
+        Assert.assertEquals(42, result.get(10, TimeUnit.SECONDS)[0]);
+      }
+      Assert.assertEquals(1, calls.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailureIsNotCached() throws IOException {
+    ScrapeCache cache = new ScrapeCache(1, TimeUnit.HOURS);
+    try {
+      cache.get(key("a"), new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          throw new IOException("collection failed");
+        }
+      });
+      Assert.fail("expected IOException");
+    } catch (IOException e) {
+      Assert.assertEquals("collection failed", e.getMessage());
+    }
+    AtomicInteger calls = new AtomicInteger();
+    Assert.assertEquals(1, cache.get(key("a"), counting(calls))[0]);
+  }
+
+  @Test
+  public void testNumberOfEntriesIsLimited() throws IOException {
+    ScrapeCache cache = new ScrapeCache(1, TimeUnit.HOURS);
+    AtomicInteger calls = new AtomicInteger();
+    for (int i = 0; i < 2 * ScrapeCache.MAX_ENTRIES; i++) {
+      cache.get(key("type" + i), counting(calls));
+    }
+    Assert.assertEquals(ScrapeCache.MAX_ENTRIES, cache.size());
+    Assert.assertEquals(2 * ScrapeCache.MAX_ENTRIES, calls.get());
+  }
+}
@@ -10,6 +10,7 @@ import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
 public class Adapter {
@@ -71,6 +72,11 @@ public class Adapter {
             return delegate.getWriter();
         }
 
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return delegate.getOutputStream();
+        }
+
         @Override
         public int getStatus() {
             return delegate.getStatus();
@@ -1,6 +1,7 @@
 package io.prometheus.client.servlet.common.adapter;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
 public interface HttpServletResponseAdapter {
@@ -8,4 +9,5 @@ public interface HttpServletResponseAdapter {
     void setStatus(int httpStatusCode);
     void setContentType(String contentType);
     PrintWriter getWriter() throws IOException;
+    OutputStream getOutputStream() throws IOException;
 }
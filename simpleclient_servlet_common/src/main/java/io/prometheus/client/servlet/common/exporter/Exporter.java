@@ -5,11 +5,14 @@ import io.prometheus.client.SampleNameFilter;
 import io.prometheus.client.Predicate;
 import io.prometheus.client.servlet.common.adapter.HttpServletRequestAdapter;
 import io.prometheus.client.servlet.common.adapter.HttpServletResponseAdapter;
+import io.prometheus.client.exporter.common.ProtobufFormat;
 import io.prometheus.client.exporter.common.TextFormat;
 import io.prometheus.client.servlet.common.adapter.ServletConfigAdapter;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.util.Arrays;
 import java.util.Collections;
@@ -65,17 +68,25 @@ public class Exporter {
 
   public void doGet(final HttpServletRequestAdapter req, final HttpServletResponseAdapter resp) throws IOException {
     resp.setStatus(200);
-    String contentType = TextFormat.chooseContentType(req.getHeader("Accept"));
+    String contentType = ProtobufFormat.chooseContentType(req.getHeader("Accept"));
     resp.setContentType(contentType);
 
+    if (ProtobufFormat.CONTENT_TYPE_PROTOBUF.equals(contentType)) {
+      OutputStream out = new BufferedOutputStream(resp.getOutputStream());
+      try {
+        Predicate<String> filter = SampleNameFilter.restrictToNamesEqualTo(sampleNameFilter, parse(req));
+        ProtobufFormat.write(out, registry, filter);
+        out.flush();
+      } finally {
+        out.close();
+      }
+      return;
+    }
+
     Writer writer = new BufferedWriter(resp.getWriter());
     try {
       Predicate<String> filter = SampleNameFilter.restrictToNamesEqualTo(sampleNameFilter, parse(req));
-      if (filter == null) {
-        TextFormat.writeFormat(contentType, writer, registry.metricFamilySamples());
-      } else {
-        TextFormat.writeFormat(contentType, writer, registry.filteredMetricFamilySamples(filter));
-      }
+      TextFormat.writeFormat(contentType, writer, registry, filter);
       writer.flush();
     } finally {
       writer.close();
@@ -7,7 +7,9 @@ import io.prometheus.client.servlet.common.adapter.HttpServletResponseAdapter;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -22,11 +24,15 @@ public class ExporterTest {
   }
 
   private HttpServletRequestAdapter mockHttpServletRequest(final String[] nameParam, final boolean openMetrics) {
+    return mockHttpServletRequest(nameParam, openMetrics ? "application/openmetrics-text; version=0.0.1,text/plain;version=0.0.4;q=0.5,*/*;q=0.1" : null);
+  }
+
+  private HttpServletRequestAdapter mockHttpServletRequest(final String[] nameParam, final String acceptHeader) {
     return new HttpServletRequestAdapter() {
       @Override
       public String getHeader(String name) {
-        if (openMetrics && "Accept".equals(name)) {
-          return "application/openmetrics-text; version=0.0.1,text/plain;version=0.0.4;q=0.5,*/*;q=0.1";
+        if ("Accept".equals(name)) {
+          return acceptHeader;
         }
         return null;
       }
@@ -57,6 +63,10 @@ public class ExporterTest {
   }
 
   private HttpServletResponseAdapter mockHttpServletResponse(final PrintWriter writer) {
+    return mockHttpServletResponse(writer, null);
+  }
+
+  private HttpServletResponseAdapter mockHttpServletResponse(final PrintWriter writer, final OutputStream outputStream) {
     return new HttpServletResponseAdapter() {
       @Override
       public int getStatus() {
@@ -75,6 +85,11 @@ public class ExporterTest {
       public PrintWriter getWriter() {
         return writer;
       }
+
+      @Override
+      public OutputStream getOutputStream() {
+        return outputStream;
+      }
     };
   }
 
@@ -155,4 +170,22 @@ public class ExporterTest {
     assertThat(responseBody.toString()).contains("a 0.0");
     assertThat(responseBody.toString()).contains("# EOF");
   }
+
+  @Test
+  public void testProtobufNegotiated() throws IOException {
+    CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build("a", "a help").register(registry);
+
+    HttpServletRequestAdapter req = mockHttpServletRequest(null,
+        "application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3");
+    ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+    HttpServletResponseAdapter resp = mockHttpServletResponse(null, responseBody);
+
+    new Exporter(registry, null).doGet(req, resp);
+
+    byte[] bytes = responseBody.toByteArray();
+    assertThat(bytes.length).isGreaterThan(1);
+    assertThat((int) bytes[0]).isEqualTo(bytes.length - 1); // length prefix of the only MetricFamily
+    assertThat(new String(bytes, "UTF-8")).contains("a help");
+  }
 }
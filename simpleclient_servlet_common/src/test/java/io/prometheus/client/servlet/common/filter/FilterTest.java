@@ -10,6 +10,7 @@ import org.junit.After;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Enumeration;
@@ -101,6 +102,11 @@ public class FilterTest {
             public PrintWriter getWriter() throws IOException {
                 return null;
             }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return null;
+            }
         };
     }
 
@@ -1,15 +1,19 @@
 package io.prometheus.client.vertx;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.ProtobufFormat;
 import io.prometheus.client.exporter.common.TextFormat;
 import io.vertx.core.Handler;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.ext.web.RoutingContext;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -72,14 +76,23 @@ public class MetricsHandler implements Handler<RoutingContext> {
   @Override
   public void handle(RoutingContext ctx) {
     try {
-      final BufferWriter writer = new BufferWriter();
-      String contentType = TextFormat.chooseContentType(ctx.request().headers().get("Accept"));
+      String contentType = ProtobufFormat.chooseContentType(ctx.request().headers().get("Accept"));
+      Enumeration<Collector.MetricFamilySamples> mfs = registry.filteredMetricFamilySamples(parse(ctx.request()));
 
-      TextFormat.writeFormat(contentType, writer, registry.filteredMetricFamilySamples(parse(ctx.request())));
+      Buffer buffer;
+      if (ProtobufFormat.CONTENT_TYPE_PROTOBUF.equals(contentType)) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtobufFormat.write(out, mfs);
+        buffer = Buffer.buffer(out.toByteArray());
+      } else {
+        final BufferWriter writer = new BufferWriter();
+        TextFormat.writeFormat(contentType, writer, mfs);
+        buffer = writer.getBuffer();
+      }
       ctx.response()
               .setStatusCode(200)
               .putHeader("Content-Type", contentType)
-              .end(writer.getBuffer());
+              .end(buffer);
     } catch (IOException e) {
       ctx.fail(e);
     }